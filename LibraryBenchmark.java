@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import library.Book;
+import library.BookCopy;
+import library.CacheStats;
+import library.CatalogGenerator;
+import library.CirculationAnalytics;
+import library.CirculationBatch;
+import library.CsvLoader;
+import library.Library;
+import library.LibraryEventBus;
+import library.Patron;
+
+/**
+ * Benchmarks for the Library's hot paths, run against catalogs of different sizes written by CatalogGenerator.
+ * Each benchmark is warmed up before it is measured, and reports the average time per operation.
+ *
+ * Usage: java LibraryBenchmark [number of books...]
+ * The default is 10000 books. Catalogs of 10000000 books need several gigabytes of heap (-Xmx8g or so).
+ * <p>
+ * The JMH benchmarks in jmh/bench measure the same paths under JMH, which forks, warms up and guards against dead code
+ * properly: <code>mvn -Pjmh package</code>, then <code>java -jar target/benchmarks.jar</code>. This harness needs
+ * nothing but the JDK, so it is kept for when JMH can't be fetched.
+ */
+public class LibraryBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    // Lookups are run in batches this big, so the timer's own cost doesn't show up in the results
+    private static final int OPS_PER_ITERATION = 100_000;
+
+    // Results are folded into this, so the JIT can't decide the benchmarked code is unused and remove it
+    private static volatile long sink;
+
+    // A benchmark runs some number of operations, and returns anything it computed
+    private interface Operation {
+        long run(int ops) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[] { 10_000 } : new int[args.length];
+        for (int i = 0; i < args.length; i++)
+            sizes[i] = Integer.parseInt(args[i]);
+
+        for (int size : sizes)
+            runAll(size);
+    }
+
+    private static void runAll(int numBooks) throws Exception {
+        int numAuthors = Math.max(numBooks / 10, 1);
+        int numPatrons = Math.max(numBooks / 10, 1);
+        System.out.println("=== " + numBooks + " books, " + numAuthors + " authors, " + numPatrons + " patrons ===");
+
+        Path dir = Files.createTempDirectory("library-bench");
+        try {
+            new CatalogGenerator(42).writeAll(dir.toString(), numAuthors, numBooks, numPatrons);
+            String authorsFile = dir.resolve("authors.csv").toString();
+            String patronsFile = dir.resolve("patrons.csv").toString();
+            String booksFile = dir.resolve("books.csv").toString();
+
+            // Loading
+            for (CsvLoader.Mode mode : CsvLoader.Mode.values()) {
+                measure("load authors (" + mode + ")", 1, ops -> load(mode, authorsFile, null, null).getAuthors().size());
+                measure("load patrons (" + mode + ")", 1, ops -> load(mode, null, patronsFile, null).getPatrons().size());
+                measure("load authors+books (" + mode + ")", 1, ops -> load(mode, authorsFile, null, booksFile).getBooks().size());
+            }
+
+            Library lib = load(CsvLoader.Mode.STREAMING, authorsFile, patronsFile, booksFile);
+            Random random = new Random(42);
+
+            // Lookups
+            measure("findBookByISBN", OPS_PER_ITERATION, ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++)
+                    found += lib.findBookByISBN(isbn(random.nextInt(numBooks))) != null ? 1 : 0;
+                return found;
+            });
+            measure("findBooksByAuthor", Math.max(OPS_PER_ITERATION / numBooks, 1), ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++)
+                    found += lib.findBooksByAuthor(authorName(random.nextInt(numAuthors))).size();
+                return found;
+            });
+            measure("searchBooks (author + title prefix)", OPS_PER_ITERATION, ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++) {
+                    Book book = lib.getBooksView().get(random.nextInt(numBooks));
+                    String query = book.getAuthor().getName() + " " + book.getTitle().substring(0, Math.min(book.getTitle().length(), 6));
+                    found += lib.searchBooks(query, 10).size();
+                }
+                return found;
+            });
+            measure("searchBooks (two common words)", OPS_PER_ITERATION / 100, ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++)
+                    found += lib.searchBooks("golden towe", 10).size();
+                return found;
+            });
+            measure("findPatron", OPS_PER_ITERATION, ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++) {
+                    int p = random.nextInt(numPatrons);
+                    found += lib.findPatron(patronName(p), address(p)) != null ? 1 : 0;
+                }
+                return found;
+            });
+
+            // Circulation, on a popular book with plenty of copies
+            Book popular = lib.getBooksView().get(0);
+            popular.addCopies(500);
+            Patron patron = lib.getPatronsView().get(0);
+            measure("Book.borrowCopies(5) + return", OPS_PER_ITERATION / 10, ops -> {
+                long borrowed = 0;
+                for (int i = 0; i < ops; i++) {
+                    popular.borrowCopies(patron, 5);
+                    for (BookCopy copy : patron.findCopiesOf(popular)) {
+                        copy.returnCopy();
+                        borrowed++;
+                    }
+                }
+                return borrowed;
+            });
+
+            // A kiosk checking out and returning a basket of different books, by ISBN, one call at a time and as batches
+            int basket = Math.min(numBooks, 20);
+            for (int i = 0; i < basket; i++)
+                lib.getBooksView().get(numBooks - 1 - i).addCopies(5);
+            measure("single checkouts by ISBN + returns", OPS_PER_ITERATION / 10, ops -> {
+                long moved = 0;
+                for (int i = 0; i < ops; i += basket) {
+                    ArrayList<BookCopy> borrowed = new ArrayList<BookCopy>(basket);
+                    for (int b = 0; b < basket; b++)
+                        borrowed.add(lib.findBookByISBN(lib.getBooksView().get(numBooks - 1 - b).getISBN()).tryBorrowCopy(patron));
+                    for (BookCopy copy : borrowed)
+                        moved += lib.findBookByISBN(copy.getBook().getISBN()).findCopy(copy.getCopyNumber()).tryReturnCopy() ? 1 : 0;
+                }
+                return moved;
+            });
+            measure("applyBatch checkouts by ISBN + returns", OPS_PER_ITERATION / 10, ops -> {
+                long moved = 0;
+                for (int i = 0; i < ops; i += basket) {
+                    CirculationBatch checkouts = new CirculationBatch();
+                    for (int b = 0; b < basket; b++)
+                        checkouts.checkout(patron, lib.getBooksView().get(numBooks - 1 - b).getISBN(), 1);
+                    CirculationBatch returns = new CirculationBatch();
+                    for (BookCopy copy : lib.applyBatch(checkouts).getBorrowed())
+                        returns.checkin(copy.getBook().getISBN(), copy.getCopyNumber());
+                    moved += lib.applyBatch(returns).getReturned().size();
+                }
+                return moved;
+            });
+
+            // A patron holding many different books, as an institution might
+            Patron institution = lib.getPatronsView().get(numPatrons - 1);
+            int held = Math.min(numBooks, 1000);
+            for (int i = 0; i < held; i++) {
+                Book book = lib.getBooksView().get(i);
+                book.addCopy();
+                book.borrowCopy(institution);
+            }
+            measure("Patron.findCopiesOf (" + held + " loans)", OPS_PER_ITERATION, ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++)
+                    found += institution.findCopiesOf(lib.getBooksView().get(random.nextInt(held))).size();
+                return found;
+            });
+            measure("return + reborrow (" + held + " loans)", OPS_PER_ITERATION, ops -> {
+                long moved = 0;
+                for (int i = 0; i < ops; i++) {
+                    Book book = lib.getBooksView().get(random.nextInt(held));
+                    institution.findCopyOf(book).returnCopy();
+                    moved += book.tryBorrowCopy(institution) != null ? 1 : 0;
+                }
+                return moved;
+            });
+            measure("Book.getBorrowers", OPS_PER_ITERATION, ops -> {
+                long found = 0;
+                for (int i = 0; i < ops; i++)
+                    found += lib.getBooksView().get(random.nextInt(held)).getBorrowers().size();
+                return found;
+            });
+
+            // The same circulation with every change published to a subscriber, which the write path shouldn't wait on
+            LibraryEventBus bus = new LibraryEventBus();
+            AtomicLong received = new AtomicLong();
+            bus.subscribe("benchmark", events -> received.addAndGet(events.size()));
+            lib.addListener(bus);
+            measure("return + reborrow, with event bus", OPS_PER_ITERATION, ops -> {
+                long moved = 0;
+                for (int i = 0; i < ops; i++) {
+                    Book book = lib.getBooksView().get(random.nextInt(held));
+                    institution.findCopyOf(book).returnCopy();
+                    moved += book.tryBorrowCopy(institution) != null ? 1 : 0;
+                }
+                return moved;
+            });
+            lib.removeListener(bus);
+            bus.awaitDelivered(10, TimeUnit.SECONDS);
+            bus.close();
+            System.out.println(String.format("Event bus: %d events published, %d received, producers waited for room %d times",
+                    bus.getPublishedCount(), received.get(), bus.getFullWaits()));
+
+            // A full circulation report over the whole catalog, after all the lending above
+            CirculationAnalytics analytics = new CirculationAnalytics(lib);
+            measure("CirculationAnalytics.report", 1, ops -> analytics.report().getBooksBorrowed());
+
+            // What the Library recorded about itself over all of the above, warmups included
+            System.out.println();
+            System.out.print(lib.getMetrics());
+            for (CacheStats stats : lib.getQueryCacheStats())
+                System.out.println(stats);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        System.out.println();
+    }
+
+    private static Library load(CsvLoader.Mode mode, String authorsFile, String patronsFile, String booksFile) throws IOException {
+        Library lib = new Library();
+        CsvLoader loader = new CsvLoader(lib);
+        loader.setMode(mode);
+        if (authorsFile != null)
+            loader.loadAuthors(authorsFile);
+        if (patronsFile != null)
+            loader.loadPatrons(patronsFile);
+        if (booksFile != null)
+            loader.loadBooks(booksFile);
+        return lib;
+    }
+
+    // Runs a benchmark, and prints the average time per operation over the measured iterations
+    private static void measure(String name, int opsPerIteration, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            sink += operation.run(opsPerIteration);
+
+        long totalNanos = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += operation.run(opsPerIteration);
+            totalNanos += System.nanoTime() - start;
+        }
+
+        double nanosPerOp = (double) totalNanos / ((long) MEASURED_ITERATIONS * opsPerIteration);
+        System.out.println(String.format("%-40s %14.1f ns/op %14.0f ops/s", name, nanosPerOp, 1e9 / nanosPerOp));
+    }
+
+    // The generated names are unique, so lookups have exactly one answer
+    private static String authorName(int i) { return CatalogGenerator.authorName(i); }
+    private static String patronName(int i) { return CatalogGenerator.patronName(i); }
+    private static String address(int i) { return CatalogGenerator.address(i); }
+    private static String isbn(int i) { return CatalogGenerator.isbn(i); }
+}
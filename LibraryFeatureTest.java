@@ -0,0 +1,723 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import library.Author;
+import library.Book;
+import library.BookCopy;
+import library.BookRecord;
+import library.CacheStats;
+import library.CirculationAnalytics;
+import library.CirculationReport;
+import library.CsvLoader;
+import library.Hold;
+import library.Library;
+import library.LibraryEvent;
+import library.LibraryEventBus;
+import library.LibraryListener;
+import library.LibraryServer;
+import library.LibraryShard;
+import library.LibrarySnapshot;
+import library.LoadReport;
+import library.LocalShard;
+import library.Patron;
+import library.ShardedLibrary;
+import library.Status;
+
+/**
+ * Checks of the Library's features which don't need racing threads. Each check builds a small Library, uses one feature
+ * the way a caller would and compares what it gets with what it should, then prints whether it passed.
+ * <p>
+ * Usage: java LibraryFeatureTest
+ * The exit status is 1 if any check failed.
+ */
+public class LibraryFeatureTest {
+    // A check returns null if it passed, or what went wrong
+    private interface Check {
+        String run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = true;
+        passed &= run("search ranking and prefixes", LibraryFeatureTest::searchRanking);
+        passed &= run("server error responses", LibraryFeatureTest::serverErrors);
+        passed &= run("sharded search and transfer", LibraryFeatureTest::shardedLibrary);
+        passed &= run("event ordering and failing subscribers", LibraryFeatureTest::eventOrdering);
+        passed &= run("circulation report totals and rankings", LibraryFeatureTest::reportTotals);
+        passed &= run("CSV loading, streamed", () -> csvLoading(CsvLoader.Mode.STREAMING));
+        passed &= run("CSV loading, memory-mapped", () -> csvLoading(CsvLoader.Mode.MAPPED));
+        passed &= run("snapshot round trip", LibraryFeatureTest::snapshotRoundTrip);
+        passed &= run("overdue sweeps", LibraryFeatureTest::overdueSweeps);
+        passed &= run("query cache invalidation", LibraryFeatureTest::queryCacheInvalidation);
+
+        System.out.println(passed ? "All checks passed" : "Some checks FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(String name, Check check) throws Exception {
+        System.out.println("=== " + name + " ===");
+        String failure = check.run();
+        System.out.println(failure == null ? "PASSED" : "FAILED: " + failure);
+        System.out.println();
+        return failure == null;
+    }
+
+    // A word in the title must rank above one in the author's name, which must rank above one in the publisher, with
+    // equal matches in the order the books were added. Every word must match, and the last may be the start of a word -
+    // one which begins more words than are expanded must keep the words most books contain, not the first alphabetically
+    private static String searchRanking() throws Exception {
+        Library library = new Library();
+        Author plain = library.addAuthor("Ann Plain", 1950, 1, 1);
+        Author harbor = library.addAuthor("Harbor Smith", 1950, 1, 1);
+        Book byPublisher = library.addBook("Quiet Fields", plain, "rank-1", "Harbor Press");
+        Book byAuthor = library.addBook("Quiet Hills", harbor, "rank-2", "Plain Press");
+        Book byTitle = library.addBook("Harbor Lights", plain, "rank-3", "Plain Press");
+        Book byTitleLater = library.addBook("Harbor Lights", plain, "rank-4", "Plain Press");
+
+        List<String> found = isbns(library.searchBooks("harbor", 10));
+        List<String> expected = isbns(Arrays.asList(byTitle, byTitleLater, byAuthor, byPublisher));
+        if (!found.equals(expected))
+            return "\"harbor\" should rank title, then author, then publisher matches, " + expected + ", but gave " + found;
+        if (!isbns(library.searchBooks("HARB", 10)).equals(expected))
+            return "a prefix of \"harbor\" found " + isbns(library.searchBooks("HARB", 10));
+        found = isbns(library.searchBooks("harbor quiet", 10));
+        if (!found.equals(isbns(Arrays.asList(byAuthor, byPublisher))))
+            return "\"harbor quiet\" should only find books with both words, but gave " + found;
+        if (library.searchBooks("harbor lights", 1).size() != 1)
+            return "a search returned more results than its limit";
+
+        // More rare words beginning with "s" than are expanded, all before the common one alphabetically
+        for (int i = 0; i < Library.MAX_PREFIX_EXPANSIONS + 8; i++)
+            library.addBook(String.format("S%03d", i), plain, "rare-" + i, "Plain Press");
+        ArrayList<Book> common = new ArrayList<Book>();
+        for (int i = 0; i < 5; i++)
+            common.add(library.addBook("Sun Rise " + i, plain, "sun-" + i, "Plain Press"));
+        found = isbns(library.searchBooks("s", 1000));
+        if (!found.containsAll(isbns(common)))
+            return "\"s\" should expand to \"sun\", which the most books contain, but found " + found.size() + " books without them";
+
+        System.out.println(String.format("\"harbor\" ranked %s, \"s\" found %d books", isbns(library.searchBooks("harbor", 10)), found.size()));
+        return null;
+    }
+
+    // Every request must get an answer: a query which can't be decoded is the client's mistake and gets a 400, and an
+    // endpoint which fails gets a 500, rather than the connection being dropped
+    private static String serverErrors() throws Exception {
+        Library library = new Library() {
+            @Override
+            public ArrayList<Book> searchBooks(String query, int limit) {
+                if (query.equals("fail"))
+                    throw new IllegalStateException("A search which fails");
+                return super.searchBooks(query, limit);
+            }
+        };
+        library.addBook("Server River", library.addAuthor("Sam Server", 1980, 8, 8), "server-1", "Server Press").addCopy();
+
+        LibraryServer server = new LibraryServer(library, 0);
+        server.start();
+        try {
+            int[] statuses = new int[3];
+            String[] paths = { "/search?q=river", "/search?q=%zz", "/search?q=fail" };
+            for (int i = 0; i < paths.length; i++)
+                statuses[i] = status(server.getPort(), paths[i]);
+
+            System.out.println(String.format("search %d, malformed escape %d, failing search %d, %d failed requests",
+                    statuses[0], statuses[1], statuses[2], server.getFailedRequests()));
+            if (statuses[0] != 200 || statuses[1] != 400 || statuses[2] != 500)
+                return "expected 200, 400 and 500, but got " + Arrays.toString(statuses);
+            if (server.getFailedRequests() != 1)
+                return server.getFailedRequests() + " requests were counted as failed, not 1";
+            return null;
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    // Sends a GET over a plain socket, as an HTTP client would refuse to send a malformed query, and reads the status of the
+    // answer. Gives -1 if the connection was closed without one
+    private static int status(int port, String path) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            return statusLine == null ? -1 : Integer.parseInt(statusLine.split(" ")[1]);
+        }
+    }
+
+    // Two branches hold some of the same books. Searches must merge their answers best first, and lookups by author must
+    // group them by branch. A copy moved between branches must leave one and reach the
+    // other; one sent to a branch which fails must be put back; and one sent to a branch too slow to answer must not be
+    // put back, so it ends up in exactly one branch once the slow branch gets to it
+    private static String shardedLibrary() throws Exception {
+        LocalShard north = new LocalShard("North", new Library());
+        LocalShard south = new LocalShard("South", new Library());
+        ControlledShard flaky = new ControlledShard(new LocalShard("Flaky", new Library()));
+        try {
+            ShardedLibrary branches = new ShardedLibrary(ShardedLibrary.Partitioning.BRANCH, Arrays.asList(north, south, flaky));
+            LocalDate dob = LocalDate.of(1948, 2, 2);
+            branches.addCopies(new BookRecord("North", "Silent River", "Ada Shore", dob, "shard-1", "Shard Press"), 2);
+            branches.addCopies(new BookRecord("South", "Silent River", "Ada Shore", dob, "shard-1", "Shard Press"), 1);
+            branches.addCopies(new BookRecord("North", "Silent Tower", "Ada Shore", dob, "shard-2", "Shard Press"), 1);
+            branches.addCopies(new BookRecord("South", "Loud Garden", "Ben Field", dob, "shard-3", "Shard Press"), 1);
+
+            // Each branch ranks against its own catalog, so only which books come back is certain, not their order
+            List<String> found = describe(branches.searchBooks("silent river", 10));
+            found.sort(null);
+            if (!found.equals(Arrays.asList("North shard-1", "South shard-1")))
+                return "a search for a book held by both branches should find it at each, but gave " + found;
+            ArrayList<BookRecord> merged = branches.searchBooks("silent", 10);
+            for (int i = 1; i < merged.size(); i++) {
+                if (merged.get(i).getScore() > merged.get(i - 1).getScore())
+                    return "merged search results aren't best first: " + describe(merged);
+            }
+            if (branches.searchBooks("silent", 2).size() != 2)
+                return "a merged search returned more results than its limit";
+            found = describe(branches.findBooksByAuthor("ada shore"));
+            if (!found.equals(Arrays.asList("North shard-1", "North shard-2", "South shard-1")))
+                return "books by an author should be grouped by branch, but were " + found;
+
+            BookRecord moved = branches.transferCopy("shard-2", "North", "South");
+            if (moved == null || moved.getTotalCopies() != 1 || copies(north, "shard-2") != 0)
+                return "a transferred copy should leave North and reach South, but North has " + copies(north, "shard-2");
+            if (branches.transferCopy("shard-2", "North", "South") != null)
+                return "a branch with no copy left transferred one anyway";
+
+            flaky.failing = true;
+            try {
+                branches.transferCopy("shard-1", "North", "Flaky");
+                return "a transfer to a failing branch succeeded";
+            } catch (IllegalStateException e) {
+                if (copies(north, "shard-1") != 2 || copies(flaky.branch, "shard-1") != 0)
+                    return "a copy sent to a failing branch wasn't put back: " + e.getMessage();
+            }
+
+            flaky.failing = false;
+            flaky.delayMillis = 500;
+            branches.setTimeout(50);
+            try {
+                branches.transferCopy("shard-1", "North", "Flaky");
+                return "a transfer to a branch which didn't answer in time succeeded";
+            } catch (IllegalStateException e) {
+                // Expected - the slow branch still adds the copy once it gets to it
+            }
+            branches.setTimeout(ShardedLibrary.DEFAULT_TIMEOUT_MILLIS);
+            flaky.delayMillis = 0;
+            TimeUnit.MILLISECONDS.sleep(1000);
+            int held = copies(north, "shard-1") + copies(flaky.branch, "shard-1");
+            if (held != 2)
+                return "after a timed-out transfer the two branches hold " + held + " copies between them, not 2";
+
+            System.out.println(String.format("%d results merged for \"silent\", copies of shard-1: North %d, South %d, Flaky %d",
+                    merged.size(), copies(north, "shard-1"), copies(south, "shard-1"), copies(flaky.branch, "shard-1")));
+            return null;
+        } finally {
+            north.close();
+            south.close();
+            flaky.branch.close();
+        }
+    }
+
+    // Every subscriber must be given every event, numbered in the order the changes were made, with a return to a waiting
+    // hold reported as the return, the loan to the patron waiting and then the hold being filled. A subscriber which
+    // throws must be given the later events all the same, with its latest failure kept on its subscription rather than
+    // written out
+    private static String eventOrdering() throws Exception {
+        Library library = new Library();
+        LibraryEventBus bus = new LibraryEventBus(64, 4);
+        library.addListener(bus);
+        List<LibraryEvent> received = Collections.synchronizedList(new ArrayList<LibraryEvent>());
+        LibraryEventBus.Subscription recorder = bus.subscribe("recorder", events -> received.addAll(events));
+        LibraryEventBus.Subscription failing = bus.subscribe("failing", events -> {
+            if (events.get(0).getSequence() == 0)
+                throw new IllegalStateException("the first batch was refused");
+        });
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(written, true, StandardCharsets.UTF_8));
+        try {
+            Author author = library.addAuthor("Ann Plain", 1950, 1, 1);
+            Patron lender = library.addPatron("First Reader", "1 High Street", "555-0101");
+            Patron waiting = library.addPatron("Second Reader", "2 High Street", "555-0102");
+            Book book = library.addBook("Quiet Fields", author, "events-1", "Plain Press");
+            book.addCopies(1);
+            BookCopy copy = book.tryBorrowCopy(lender);
+            book.placeHold(waiting);
+            copy.tryReturnCopy();
+            copy.tryReturnCopy();
+            if (!bus.awaitDelivered(10, TimeUnit.SECONDS))
+                return "the subscribers weren't given every event in time";
+        } finally {
+            System.setOut(out);
+            bus.close();
+        }
+
+        List<LibraryEvent.Type> expected = Arrays.asList(LibraryEvent.Type.AUTHOR_ADDED, LibraryEvent.Type.PATRON_ADDED,
+                LibraryEvent.Type.PATRON_ADDED, LibraryEvent.Type.BOOK_ADDED, LibraryEvent.Type.COPY_ADDED,
+                LibraryEvent.Type.COPY_BORROWED, LibraryEvent.Type.HOLD_PLACED, LibraryEvent.Type.COPY_RETURNED,
+                LibraryEvent.Type.COPY_BORROWED, LibraryEvent.Type.HOLD_FILLED, LibraryEvent.Type.COPY_RETURNED);
+        ArrayList<LibraryEvent.Type> types = new ArrayList<LibraryEvent.Type>();
+        for (int i = 0; i < received.size(); i++) {
+            if (received.get(i).getSequence() != i)
+                return "event " + i + " was numbered " + received.get(i).getSequence();
+            types.add(received.get(i).getType());
+        }
+        if (!types.equals(expected))
+            return "the events should have been " + expected + ", but were " + types;
+        if (received.get(9).getPatron() == null || !received.get(9).getPatron().getName().equals("Second Reader"))
+            return "the hold was filled for " + received.get(9).getPatron();
+
+        if (failing.getDelivered() != expected.size())
+            return "the failing subscriber was given " + failing.getDelivered() + " of " + expected.size() + " events";
+        if (failing.getFailures() != 1 || failing.getLastFailure() == null
+                || !"the first batch was refused".equals(failing.getLastFailure().getMessage()))
+            return "the failing subscriber should have one failure kept, but had " + failing.getFailures() + ", the last " + failing.getLastFailure();
+        if (recorder.getFailures() != 0 || recorder.getLastFailure() != null)
+            return "the recorder failed with " + recorder.getLastFailure();
+        if (written.size() > 0)
+            return "the bus wrote out " + written.toString(StandardCharsets.UTF_8).trim();
+
+        System.out.println(String.format("%d events in %d and %d batches, the failing subscriber failed on %d",
+                received.size(), recorder.getBatches(), failing.getBatches(), failing.getFailures()));
+        return null;
+    }
+
+    // A report must add up every copy, loan and hold, and rank equal demand by when the author was added and by the
+    // publisher's name - never by where they happen to hash to
+    private static String reportTotals() throws Exception {
+        Library library = new Library();
+        CirculationAnalytics analytics = new CirculationAnalytics(library);
+        Patron lender = library.addPatron("First Reader", "1 High Street", "555-0101");
+        Patron keen = library.addPatron("Second Reader", "2 High Street", "555-0102");
+        Patron waiting = library.addPatron("Third Reader", "3 High Street", "555-0103");
+
+        // Authors are added in the reverse order of their names, and publishers are named out of order too
+        ArrayList<Author> authors = new ArrayList<Author>();
+        for (int i = 0; i < 20; i++) {
+            Author author = library.addAuthor(String.format("Writer %02d", 19 - i), 1950, 1, 1);
+            authors.add(author);
+            Book book = library.addBook("Title " + i, author, "report-" + i, String.format("Press %02d", i * 7 % 20));
+            book.addCopies(2);
+            book.tryBorrowCopy(lender);
+        }
+        Book popular = library.addBook("Popular", authors.get(19), "report-popular", "Press 99");
+        popular.addCopies(2);
+        popular.tryBorrowCopies(keen, 2);
+        popular.placeHold(waiting);
+
+        CirculationReport report = analytics.report(10);
+        String totals = String.format("%d borrowed, %d by patrons, %d active, %d with loans, %d of %d copies on loan, %d books, %d with none free, %d holds",
+                report.getBooksBorrowed(), report.getPatronBorrowing(), report.getActivePatrons(), report.getPatronsWithLoans(),
+                report.getCopies(Status.CHECKED_OUT), report.getTotalCopies(), report.getBookCount(), report.getBooksWithNoCopyFree(),
+                report.getHoldsWaiting());
+        if (!totals.equals("22 borrowed, 22 by patrons, 2 active, 2 with loans, 22 of 42 copies on loan, 21 books, 1 with none free, 1 holds"))
+            return "the report's totals were " + totals;
+
+        ArrayList<String> expectedAuthors = new ArrayList<String>(Arrays.asList("Writer 00: 3"));
+        ArrayList<String> expectedPublishers = new ArrayList<String>(Arrays.asList("Press 99: 2"));
+        for (int i = 0; i < 9; i++) {
+            expectedAuthors.add(String.format("Writer %02d: 1", 19 - i));
+            expectedPublishers.add(String.format("Press %02d: 1", i));
+        }
+        ArrayList<String> authorDemand = new ArrayList<String>();
+        for (CirculationReport.Entry<Author> entry : report.getAuthorDemand())
+            authorDemand.add(entry.getItem().getName() + ": " + entry.getCount());
+        if (!authorDemand.equals(expectedAuthors))
+            return "authors should rank " + expectedAuthors + ", but ranked " + authorDemand;
+        ArrayList<String> publisherDemand = new ArrayList<String>();
+        for (CirculationReport.Entry<String> entry : report.getPublisherDemand())
+            publisherDemand.add(entry.getItem() + ": " + entry.getCount());
+        if (!publisherDemand.equals(expectedPublishers))
+            return "publishers should rank " + expectedPublishers + ", but ranked " + publisherDemand;
+
+        System.out.println(totals);
+        return null;
+    }
+
+    // Loading must give the same Library however the files are cut into chunks, whether they are read onto the heap or
+    // parsed where they are mapped, including a row longer than a whole chunk, with every row which can't be read written
+    // to the reject file under its line number rather than stopping the load. The authors file starts with a byte order
+    // mark and ends its lines with \r\n, as Excel writes them
+    private static String csvLoading(CsvLoader.Mode mode) throws Exception {
+        ArrayList<String> authorLines = new ArrayList<String>(Arrays.asList("Ann Plain,1950,1,1", "Zo\u00eb Ash,1961,2,3",
+                "Bad Date,1950,13,1", "Too,Many,Fields,1,2", "", "Harbor Smith,1970,5,6"));
+        String[] authorNames = { "Ann Plain", "Zo\u00eb Ash", "Harbor Smith" };
+        ArrayList<String> bookLines = new ArrayList<String>();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= 300; i++) {
+            String title = i == 150 ? "A Title Much Longer Than Any Chunk".repeat(8) : "Title " + i + " of" + " the series".repeat(i % 4);
+            String author = i == 100 ? "Nobody Here" : authorNames[i % 3].toUpperCase();
+            bookLines.add(i == 200 ? title + "," + author + ",csv-" + i : title + "," + author + ",csv-" + i + ",Press " + i % 5);
+            if (i != 100 && i != 200)
+                expected.add(title + " | " + authorNames[i % 3] + " | csv-" + i + " | Press " + i % 5);
+        }
+
+        Path dir = Files.createTempDirectory("library-feature-csv");
+        try {
+            Path authorsFile = dir.resolve("authors.csv");
+            Path booksFile = dir.resolve("books.csv");
+            try (OutputStream out = Files.newOutputStream(authorsFile)) {
+                out.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+                out.write(String.join("\r\n", authorLines).concat("\r\n").getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(booksFile, bookLines, StandardCharsets.UTF_8);
+
+            String loaded = null;
+            for (int chunkSize : new int[] { 48, 1000, 1 << 20 }) {
+                Library library = new Library();
+                CsvLoader loader = new CsvLoader(library);
+                loader.setMode(mode);
+                loader.setChunkSize(chunkSize);
+                LoadReport authors = loader.loadAuthors(authorsFile.toString());
+                LoadReport books = loader.loadBooks(booksFile.toString());
+
+                if (authors.getRowsLoaded() != 3 || authors.getRowsRejected() != 2)
+                    return "with " + chunkSize + " byte chunks, authors were loaded as " + authors;
+                if (books.getRowsLoaded() != expected.size() || books.getRowsRejected() != 2)
+                    return "with " + chunkSize + " byte chunks, books were loaded as " + books;
+                List<String> authorRejects = Files.readAllLines(Paths.get(authors.getRejectFile()), StandardCharsets.UTF_8);
+                if (authorRejects.size() != 2 || !authorRejects.get(0).startsWith("line 3: ") || !authorRejects.get(1).startsWith("line 4: "))
+                    return "with " + chunkSize + " byte chunks, the authors rejected were " + authorRejects;
+                List<String> bookRejects = Files.readAllLines(Paths.get(books.getRejectFile()), StandardCharsets.UTF_8);
+                if (bookRejects.size() != 2 || !bookRejects.get(0).startsWith("line 100: unknown author")
+                        || !bookRejects.get(1).startsWith("line 200: expected 4 fields but found 3"))
+                    return "with " + chunkSize + " byte chunks, the books rejected were " + bookRejects;
+
+                ArrayList<String> found = new ArrayList<String>();
+                for (Book book : library.getBooksView())
+                    found.add(book.getTitle() + " | " + book.getAuthor().getName() + " | " + book.getISBN() + " | " + book.getPublisher());
+                if (!found.equals(expected)) {
+                    for (int i = 0; i < Math.min(found.size(), expected.size()); i++) {
+                        if (!found.get(i).equals(expected.get(i)))
+                            return "with " + chunkSize + " byte chunks, book " + i + " should be " + expected.get(i) + ", but was " + found.get(i);
+                    }
+                    return "with " + chunkSize + " byte chunks, " + found.size() + " books were loaded instead of " + expected.size();
+                }
+                loaded = String.format("%d authors and %d books loaded, %d and %d rejected", authors.getRowsLoaded(),
+                        books.getRowsLoaded(), authors.getRowsRejected(), books.getRowsRejected());
+            }
+
+            System.out.println(loaded + ", in chunks of 48 bytes to 1 MB");
+            return null;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // A Library loaded from a snapshot must be the one saved: the same authors, patrons and books, each copy under its own
+    // number with its status, borrower and dates, each patron's loans, and the holds waiting in the order they'll be filled.
+    // Copy numbers must carry on after the highest ever given, even one since removed, and a file which isn't a snapshot
+    // must be refused
+    private static String snapshotRoundTrip() throws Exception {
+        Library library = new Library();
+        library.setClock(Clock.fixed(Instant.parse("2024-03-01T12:00:00Z"), ZoneOffset.UTC));
+        Author plain = library.addAuthor("Ann Plain", 1950, 1, 1);
+        Author ash = library.addAuthor("Zo\u00eb Ash", 1961, 2, 3);
+        Patron first = library.addPatron("First Reader", "1 High Street", "555-0101");
+        Patron second = library.addPatron("Second Reader", "2 High Street", "555-0102");
+        Patron third = library.addPatron("Third Reader", "3 High Street", "555-0103");
+        Book fields = library.addBook("Quiet Fields", plain, "snap-1", "Plain Press");
+        Book lights = library.addBook("Harbor Lights", ash, "snap-2", "Harbor Press");
+        library.addBook("No Copies Yet", ash, "snap-3", "Harbor Press");
+
+        fields.addCopies(5);
+        fields.removeCopy(fields.findCopy(2));
+        fields.removeCopy(fields.findCopy(5));
+        fields.findCopy(1).tryBorrowCopy(first);
+        library.setClock(Clock.fixed(Instant.parse("2024-04-15T12:00:00Z"), ZoneOffset.UTC));
+        library.sweepOverdue();
+        fields.findCopy(4).tryBorrowCopy(second);
+        lights.addCopies(1);
+        lights.tryBorrowCopy(first);
+        lights.placeHold(third);
+        lights.placeHold(second);
+
+        Path dir = Files.createTempDirectory("library-feature-snapshot");
+        try {
+            Path file = dir.resolve("library.snapshot");
+            LibrarySnapshot.save(library, file.toString());
+            Library loaded = LibrarySnapshot.load(file.toString());
+
+            String saved = describe(library);
+            String restored = describe(loaded);
+            if (!restored.equals(saved))
+                return "the Library was saved as\n" + saved + "\nbut loaded as\n" + restored;
+
+            loaded.findBookByISBN("snap-1").addCopy();
+            List<Integer> numbers = new ArrayList<Integer>();
+            for (BookCopy copy : loaded.findBookByISBN("snap-1").getCopies())
+                numbers.add(copy.getCopyNumber());
+            if (!numbers.equals(Arrays.asList(1, 3, 4, 6)))
+                return "after loading, a new copy was numbered as one of " + numbers;
+
+            Path notSnapshot = dir.resolve("authors.csv");
+            Files.write(notSnapshot, Arrays.asList("Ann Plain,1950,1,1"), StandardCharsets.UTF_8);
+            try {
+                LibrarySnapshot.load(notSnapshot.toString());
+                return "a CSV file was loaded as a snapshot";
+            } catch (IOException e) {
+                // Expected
+            }
+
+            System.out.println(String.format("%d bytes for %d books, %d patrons and %d holds", Files.size(file),
+                    loaded.getBooksView().size(), loaded.getPatronsView().size(), lights.getHoldCount()));
+            return null;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // A sweep must mark each loan OVERDUE only once the day after it is due, earliest due first, and only once. A copy
+    // returned, renewed or lent again must be swept by its new due date, or not at all
+    private static String overdueSweeps() throws Exception {
+        Library library = new Library();
+        library.setLoanPeriod(14);
+        ArrayList<String> marked = new ArrayList<String>();
+        library.addListener(new LibraryListener() {
+            @Override
+            public void copyChanged(BookCopy copy) { marked.add(copy.getBook().getISBN() + " " + copy.getStatus()); }
+        });
+        Author author = library.addAuthor("Ann Plain", 1950, 1, 1);
+        Patron first = library.addPatron("First Reader", "1 High Street", "555-0101");
+        Patron second = library.addPatron("Second Reader", "2 High Street", "555-0102");
+        BookCopy[] copies = new BookCopy[3];
+        for (int i = 0; i < copies.length; i++) {
+            Book book = library.addBook("Loan " + i, author, "due-" + i, "Plain Press");
+            book.addCopies(1);
+            copies[i] = book.findCopy(1);
+        }
+
+        setDay(library, 0);
+        copies[0].tryBorrowCopy(first);
+        copies[1].tryBorrowCopy(first);
+        setDay(library, 5);
+        copies[2].tryBorrowCopy(second);
+        setDay(library, 10);
+        copies[1].tryReturnCopy();
+
+        // Loans are still current on the day they are due
+        setDay(library, 14);
+        if (library.sweepOverdue() != 0)
+            return "a loan was marked overdue on the day it was due";
+        setDay(library, 15);
+        marked.clear();
+        int swept = library.sweepOverdue();
+        if (swept != 1 || !marked.equals(Arrays.asList("due-0 OVERDUE")))
+            return "the day after the first loan was due, " + swept + " copies were marked overdue: " + marked;
+        if (copies[1].getStatus() != Status.AVAILABLE || copies[2].getStatus() != Status.CHECKED_OUT)
+            return "the returned and the current loans became " + copies[1].getStatus() + " and " + copies[2].getStatus();
+
+        // The third loan is renewed before the overdue one is returned and lent again, to fall due first
+        setDay(library, 16);
+        copies[2].setDueDate(copies[2].getDueDate().plusDays(14));
+        copies[0].tryReturnCopy();
+        if (copies[0].getStatus() != Status.AVAILABLE || copies[0].getDueDate() != null)
+            return "an overdue copy was returned as " + copies[0].getStatus() + ", due " + copies[0].getDueDate();
+        copies[0].tryBorrowCopy(second);
+
+        setDay(library, 20);
+        if (library.sweepOverdue() != 0)
+            return "a renewed loan was marked overdue by its old due date";
+        setDay(library, 40);
+        marked.clear();
+        swept = library.sweepOverdue();
+        if (swept != 2 || !marked.equals(Arrays.asList("due-0 OVERDUE", "due-2 OVERDUE")))
+            return "after both loans were due, " + swept + " copies were marked overdue, in the order " + marked;
+        if (library.sweepOverdue() != 0)
+            return "a copy was marked overdue twice";
+
+        System.out.println("The last sweep marked " + marked);
+        return null;
+    }
+
+    // Under either eviction policy, a cached lookup or search must never outlive a change to the books it came from:
+    // retitling a book, renaming its author or adding a book must each be seen by the very next query, even one whose
+    // last word is only the start of a changed word
+    private static String queryCacheInvalidation() throws Exception {
+        String summary = "";
+        for (Library.CachePolicy policy : Library.CachePolicy.values()) {
+            Library library = new Library();
+            library.setQueryCache(policy, 256);
+            Author author = library.addAuthor("Ann Plain", 1950, 1, 1);
+            Author other = library.addAuthor("Harbor Smith", 1950, 1, 1);
+            Book fields = library.addBook("Quiet Fields", author, "cache-1", "North Press");
+            Book hills = library.addBook("Open Hills", author, "cache-2", "North Press");
+            library.addBook("Harbor Lights", other, "cache-3", "North Press");
+
+            // Each query is asked twice, so that it is answered from the cache before anything changes
+            String[] searches = { "quiet", "harb", "open hills", "plain", "stone" };
+            for (int i = 0; i < 2; i++) {
+                library.findBooksByAuthor("Ann Plain");
+                library.findBooksByAuthor("ann stone");
+                for (String query : searches)
+                    library.searchBooks(query, 10);
+            }
+            long hits = 0;
+            for (CacheStats stats : library.getQueryCacheStats())
+                hits += stats.getHits();
+            if (hits < 7)
+                return policy + " answered only " + hits + " repeated queries from the cache";
+
+            fields.setTitle("Harbor Fields");
+            if (!isbns(library.searchBooks("quiet", 10)).isEmpty())
+                return policy + " still found a book by the title it lost";
+            List<String> found = isbns(library.searchBooks("harb", 10));
+            found.sort(null);
+            if (!found.equals(Arrays.asList("cache-1", "cache-3")))
+                return policy + " found " + found + " for a prefix of a title a book was given";
+            hills.setTitle("Open Hills Again");
+            if (!isbns(library.searchBooks("open hills", 10)).equals(Arrays.asList("cache-2")))
+                return policy + " lost a book when a word was added to its title";
+
+            author.setName("Ann Stone");
+            if (!library.findBooksByAuthor("Ann Plain").isEmpty() || !isbns(library.searchBooks("plain", 10)).isEmpty())
+                return policy + " still found books by their author's old name";
+            if (!isbns(library.findBooksByAuthor("ann stone")).equals(Arrays.asList("cache-1", "cache-2"))
+                    || !isbns(library.searchBooks("stone", 10)).equals(Arrays.asList("cache-1", "cache-2")))
+                return policy + " didn't find books by their author's new name";
+
+            library.addBook("Stone Walls", author, "cache-4", "North Press");
+            if (!isbns(library.findBooksByAuthor("Ann Stone")).equals(Arrays.asList("cache-1", "cache-2", "cache-4")))
+                return policy + " didn't find a book added to its author";
+            if (!isbns(library.searchBooks("stone", 10)).contains("cache-4"))
+                return policy + " didn't find a book added with a word searched for";
+
+            long invalidations = 0;
+            for (CacheStats stats : library.getQueryCacheStats())
+                invalidations += stats.getInvalidations();
+            summary += (summary.isEmpty() ? "" : ", ") + policy + ": " + hits + " hits before the changes, " + invalidations + " results dropped";
+        }
+
+        System.out.println(summary);
+        return null;
+    }
+
+    // A branch which can be told to fail, or to take its time, when copies are added to it
+    private static class ControlledShard implements LibraryShard {
+        private final LocalShard branch;
+        private volatile boolean failing;
+        private volatile long delayMillis;
+
+        private ControlledShard(LocalShard branch) { this.branch = branch; }
+
+        @Override
+        public String getName() { return branch.getName(); }
+
+        @Override
+        public CompletableFuture<BookRecord> addCopies(BookRecord book, int copies) {
+            if (failing) {
+                CompletableFuture<BookRecord> failed = new CompletableFuture<BookRecord>();
+                failed.completeExceptionally(new IllegalStateException(getName() + " is closed"));
+                return failed;
+            }
+            long delay = delayMillis;
+            if (delay == 0)
+                return branch.addCopies(book, copies);
+            // Like a remote branch, it carries on adding the copies whether or not the caller is still waiting
+            CompletableFuture<BookRecord> answer = new CompletableFuture<BookRecord>();
+            Thread slow = new Thread(() -> {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                    answer.complete(branch.addCopies(book, copies).join());
+                } catch (Throwable e) {
+                    answer.completeExceptionally(e);
+                }
+            });
+            slow.start();
+            return answer;
+        }
+
+        @Override
+        public CompletableFuture<BookRecord> releaseCopy(String isbn) { return branch.releaseCopy(isbn); }
+
+        @Override
+        public CompletableFuture<BookRecord> findBookByISBN(String isbn) { return branch.findBookByISBN(isbn); }
+
+        @Override
+        public CompletableFuture<ArrayList<BookRecord>> findBooksByAuthor(String authorName) { return branch.findBooksByAuthor(authorName); }
+
+        @Override
+        public CompletableFuture<ArrayList<BookRecord>> searchBooks(String query, int limit) { return branch.searchBooks(query, limit); }
+    }
+
+    // The number of copies a branch holds of a book
+    private static int copies(LocalShard branch, String isbn) {
+        Book book = branch.getLibrary().findBookByISBN(isbn);
+        return book == null ? 0 : book.getTotalCopies();
+    }
+
+    // Sets a Library's clock to noon on a day counted from the start of 2024
+    private static void setDay(Library library, int day) {
+        library.setClock(Clock.fixed(Instant.parse("2024-01-01T12:00:00Z").plus(Duration.ofDays(day)), ZoneOffset.UTC));
+    }
+
+    // Everything a snapshot keeps of a Library, one line per author, patron, book and copy
+    private static String describe(Library library) {
+        StringBuilder text = new StringBuilder();
+        for (Author author : library.getAuthorsView())
+            text.append(author.getName()).append(", born ").append(author.getDOB()).append('\n');
+        for (Patron patron : library.getPatronsView()) {
+            text.append(patron.getName()).append(", ").append(patron.getAddress()).append(", ").append(patron.getPhoneNum()).append(", loans:");
+            for (BookCopy copy : patron.getCheckedOut())
+                text.append(' ').append(copy.getBook().getISBN()).append('#').append(copy.getCopyNumber());
+            text.append(", holds:");
+            for (Hold hold : patron.getHolds())
+                text.append(' ').append(hold.getBook().getISBN()).append(" place ").append(hold.getPosition()).append(" since ").append(hold.getPlacedDate());
+            text.append('\n');
+        }
+        for (Book book : library.getBooksView()) {
+            text.append(book.getTitle()).append(", ").append(book.getAuthor().getName()).append(", ").append(book.getISBN())
+                    .append(", ").append(book.getPublisher()).append('\n');
+            for (BookCopy copy : book.getCopies()) {
+                Patron borrower = copy.getBorrower();
+                text.append("  #").append(copy.getCopyNumber()).append(' ').append(copy.getStatus()).append(' ')
+                        .append(borrower == null ? "-" : borrower.getName()).append(' ').append(copy.getCheckoutDate())
+                        .append(' ').append(copy.getDueDate()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    // Each book as its ISBN
+    private static List<String> isbns(List<Book> books) {
+        ArrayList<String> isbns = new ArrayList<String>();
+        for (Book book : books)
+            isbns.add(book.getISBN());
+        return isbns;
+    }
+
+    // Each record as its branch and ISBN
+    private static List<String> describe(List<BookRecord> records) {
+        ArrayList<String> described = new ArrayList<String>();
+        for (BookRecord record : records)
+            described.add(record.getBranch() + " " + record.getISBN());
+        return described;
+    }
+}
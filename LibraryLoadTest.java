@@ -0,0 +1,222 @@
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import library.CatalogGenerator;
+import library.CsvLoader;
+import library.Library;
+import library.LibraryServer;
+
+/**
+ * A load generator for LibraryServer, which reports the requests per second it got through and their latencies.
+ * <p>
+ * A number of clients each send one request at a time for a while, as fast as they are answered: mostly searches for an
+ * author's name, with some checkouts, and returns of the copies the client checked out. Without a URL, a catalog is
+ * generated with CatalogGenerator and served in this JVM. With one, the server there must be serving a catalog generated
+ * with the same number of books and the default seed, so the names and ISBNs asked for exist.
+ * <p>
+ * Usage: java LibraryLoadTest [number of books] [clients] [seconds] [server URL]
+ * The defaults are 100000 books, 64 clients and 10 seconds.
+ */
+public class LibraryLoadTest {
+    // Out of every hundred requests, how many are searches and how many checkouts. The rest are returns
+    private static final int SEARCH_PERCENT = 80;
+    private static final int CHECKOUT_PERCENT = 10;
+    // Requests before this point are sent, but not counted, so the server's JIT has warmed up
+    private static final double WARMUP_FRACTION = 0.2;
+
+    private static final Pattern COPY_NUMBER = Pattern.compile("\"copy\":(\\d+)");
+
+    // What one client saw
+    private static class Client extends Thread {
+        private final HttpClient http;
+        private final String baseUrl;
+        private final int numBooks;
+        private final int numAuthors;
+        private final int numPatrons;
+        private final long warmupEnds;
+        private final long endsAt;
+        private final Random random;
+        // ISBN and copy number of each copy this client has checked out and not yet returned
+        private final ArrayDeque<String[]> loans = new ArrayDeque<String[]>();
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private final int[] statusCounts = new int[600];
+        private int failures;
+
+        private Client(HttpClient http, String baseUrl, int numBooks, long warmupEnds, long endsAt, long seed) {
+            this.http = http;
+            this.baseUrl = baseUrl;
+            this.numBooks = numBooks;
+            this.numAuthors = Math.max(numBooks / 10, 1);
+            this.numPatrons = Math.max(numBooks / 10, 1);
+            this.warmupEnds = warmupEnds;
+            this.endsAt = endsAt;
+            this.random = new Random(seed);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long now;
+            while ((now = System.nanoTime()) < endsAt) {
+                int roll = random.nextInt(100);
+                boolean checkout = roll >= SEARCH_PERCENT && (roll < SEARCH_PERCENT + CHECKOUT_PERCENT || loans.isEmpty());
+                HttpRequest request;
+                String isbn = null;
+                if (roll < SEARCH_PERCENT) {
+                    String name = CatalogGenerator.authorName(random.nextInt(numAuthors));
+                    // A whole name, or a first name and the start of a surname, as someone typing into a search box might
+                    String query = random.nextBoolean() ? name : name.substring(0, Math.min(name.length(), name.indexOf(' ') + 3));
+                    request = get("/search?limit=10&q=" + encode(query));
+                } else if (checkout) {
+                    isbn = CatalogGenerator.isbn(random.nextInt(numBooks));
+                    request = post("/checkout?patron=" + random.nextInt(numPatrons) + "&isbn=" + encode(isbn));
+                } else {
+                    String[] loan = loans.poll();
+                    request = post("/return?isbn=" + encode(loan[0]) + "&copy=" + loan[1]);
+                }
+
+                try {
+                    HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                    long latency = System.nanoTime() - now;
+                    if (checkout && response.statusCode() == 200) {
+                        Matcher matcher = COPY_NUMBER.matcher(response.body());
+                        if (matcher.find())
+                            loans.add(new String[] { isbn, matcher.group(1) });
+                    }
+                    if (now >= warmupEnds)
+                        record(response.statusCode(), latency);
+                } catch (Exception e) {
+                    if (now >= warmupEnds)
+                        failures++;
+                }
+            }
+        }
+
+        private void record(int status, long latency) {
+            if (count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latency;
+            statusCounts[Math.min(Math.max(status, 0), statusCounts.length - 1)]++;
+        }
+
+        private HttpRequest get(String path) { return HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build(); }
+        private HttpRequest post(String path) { return HttpRequest.newBuilder(URI.create(baseUrl + path)).POST(HttpRequest.BodyPublishers.noBody()).build(); }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numBooks = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int numClients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String baseUrl = args.length > 3 ? args[3] : null;
+
+        Path dir = null;
+        LibraryServer server = null;
+        try {
+            if (baseUrl == null) {
+                dir = Files.createTempDirectory("library-load");
+                int numOthers = Math.max(numBooks / 10, 1);
+                CatalogGenerator generator = new CatalogGenerator(42);
+                generator.writeAll(dir.toString(), numOthers, numBooks, numOthers);
+
+                Library library = new Library();
+                CsvLoader loader = new CsvLoader(library);
+                loader.loadAuthors(dir.resolve("authors.csv").toString());
+                loader.loadPatrons(dir.resolve("patrons.csv").toString());
+                loader.loadBooks(dir.resolve("books.csv").toString());
+                for (int i = 0; i < numBooks; i++)
+                    library.findBookByISBN(CatalogGenerator.isbn(i)).addCopies(generator.copiesOf(i));
+
+                server = new LibraryServer(library, 0);
+                server.start();
+                baseUrl = "http://localhost:" + server.getPort();
+                System.out.println("Serving " + numBooks + " books on " + baseUrl
+                        + (server.usesVirtualThreads() ? " with virtual threads" : " with a pool of " + server.getMaxConcurrentRequests() + " threads"));
+            }
+
+            run(baseUrl, numBooks, numClients, seconds);
+            if (server != null)
+                System.out.println("Server turned away " + server.getRejectedRequests() + " requests");
+        } finally {
+            if (server != null)
+                server.stop(1);
+            if (dir != null) {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+
+    private static void run(String baseUrl, int numBooks, int numClients, int seconds) throws InterruptedException {
+        HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+        long start = System.nanoTime();
+        long warmupEnds = start + (long) (seconds * WARMUP_FRACTION * 1e9);
+        long endsAt = start + seconds * 1_000_000_000L;
+
+        ArrayList<Client> clients = new ArrayList<Client>();
+        for (int i = 0; i < numClients; i++)
+            clients.add(new Client(http, baseUrl, numBooks, warmupEnds, endsAt, 42 + i));
+        for (Client client : clients)
+            client.start();
+        for (Client client : clients)
+            client.join();
+
+        // Merge what the clients saw
+        int total = 0;
+        int failures = 0;
+        int[] statusCounts = new int[600];
+        for (Client client : clients) {
+            total += client.count;
+            failures += client.failures;
+            for (int s = 0; s < statusCounts.length; s++)
+                statusCounts[s] += client.statusCounts[s];
+        }
+        long[] latencies = new long[total];
+        int at = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.latencies, 0, latencies, at, client.count);
+            at += client.count;
+        }
+        Arrays.sort(latencies);
+
+        double measuredSeconds = (endsAt - warmupEnds) / 1e9;
+        System.out.println(String.format("%d clients, %.1f s measured: %d requests, %.0f req/s, %d failed to send",
+                numClients, measuredSeconds, total, total / measuredSeconds, failures));
+        StringBuilder statuses = new StringBuilder("Statuses:");
+        for (int s = 0; s < statusCounts.length; s++) {
+            if (statusCounts[s] > 0)
+                statuses.append(' ').append(s).append(" x").append(statusCounts[s]);
+        }
+        System.out.println(statuses);
+        if (total > 0) {
+            System.out.println(String.format("Latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 99.9),
+                    latencies[total - 1] / 1e6));
+        }
+    }
+
+    // The latency below which a percentage of requests fell, in milliseconds
+    private static double percentile(long[] sorted, double percent) {
+        int i = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+
+    private static String encode(String value) { return URLEncoder.encode(value, StandardCharsets.UTF_8); }
+}
@@ -0,0 +1,613 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Stream;
+
+import library.Author;
+import library.Book;
+import library.BatchResult;
+import library.BookCopy;
+import library.CirculationBatch;
+import library.CirculationJournal;
+import library.Hold;
+import library.Library;
+import library.Patron;
+import library.Status;
+
+/**
+ * Stress checks for the Library's concurrent paths. Each check races several threads against one Library for a while,
+ * then checks that nothing was lost or duplicated, and prints what it did and whether it passed.
+ * <p>
+ * Usage: java LibraryStressTest [threads] [seconds per check]
+ * The defaults are 8 threads and 3 seconds. The exit status is 1 if any check failed.
+ */
+public class LibraryStressTest {
+    // A check returns null if it passed, or what went wrong
+    private interface Check {
+        String run(int threads, long millis) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = (long) ((args.length > 1 ? Double.parseDouble(args[1]) : 3) * 1000);
+
+        boolean passed = true;
+        passed &= run("checkout race", LibraryStressTest::checkoutRace, threads, millis);
+        passed &= run("journal crash and recovery", LibraryStressTest::journalRecovery, threads, millis);
+        passed &= run("journalled adds", LibraryStressTest::journalledAdds, threads, millis);
+        passed &= run("off-heap retitling", LibraryStressTest::offHeapRetitle, threads, millis);
+        passed &= run("batches with holds waiting", LibraryStressTest::batchesWithHolds, threads, millis);
+
+        System.out.println(passed ? "All checks passed" : "Some checks FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(String name, Check check, int threads, long millis) throws Exception {
+        System.out.println("=== " + name + " (" + threads + " threads) ===");
+        String failure = check.run(threads, millis);
+        System.out.println(failure == null ? "PASSED" : "FAILED: " + failure);
+        System.out.println();
+        return failure == null;
+    }
+
+    // Starts the threads together, and waits for them all to finish
+    private static void race(int threads, ThreadBody body) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> running = new ArrayList<Thread>();
+        Throwable[] failures = new Throwable[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(id);
+                } catch (Throwable e) {
+                    failures[id] = e;
+                }
+            });
+            running.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : running)
+            thread.join();
+        for (Throwable failure : failures) {
+            if (failure != null)
+                throw new IllegalStateException("A racing thread failed", failure);
+        }
+    }
+
+    private interface ThreadBody {
+        void run(int id) throws Exception;
+    }
+
+    // Threads borrow and return copies of a few books as fast as they can, by Book.tryBorrowCopy and by racing for one
+    // particular copy with BookCopy.tryBorrowCopy. Each thread claims every copy it is lent in a shared table, so a copy
+    // lent twice is caught the moment the second loan is made. Afterwards every copy's status and borrower, and every
+    // patron's loans, must agree with the table
+    private static String checkoutRace(int threads, long millis) throws Exception {
+        final int numBooks = 16;
+        final int copiesPerBook = 4;
+        final int patronsPerThread = 4;
+
+        Library library = new Library();
+        Author author = library.addAuthor("Stress Author", 1970, 1, 1);
+        Book[] books = new Book[numBooks];
+        for (int i = 0; i < numBooks; i++) {
+            books[i] = library.addBook("Stress Book " + i, author, "stress-" + i, "Stress Press");
+            for (int c = 0; c < copiesPerBook; c++)
+                books[i].addCopy();
+        }
+        Patron[][] patrons = new Patron[threads][patronsPerThread];
+        for (int t = 0; t < threads; t++) {
+            for (int p = 0; p < patronsPerThread; p++)
+                patrons[t][p] = library.addPatron("Stress Patron " + t + "-" + p, "Stress Street", "555-0100");
+        }
+
+        // Who each copy is lent to, by book and copy number
+        AtomicReferenceArray<Patron> owners = new AtomicReferenceArray<Patron>(numBooks * copiesPerBook);
+        AtomicLong lent = new AtomicLong();
+        AtomicLong returned = new AtomicLong();
+        AtomicLong doubleLent = new AtomicLong();
+        AtomicLong lostReturns = new AtomicLong();
+        long endsAt = System.nanoTime() + millis * 1_000_000;
+
+        race(threads, id -> {
+            Random random = new Random(id);
+            ArrayList<BookCopy> loans = new ArrayList<BookCopy>();
+            while (System.nanoTime() < endsAt) {
+                int roll = random.nextInt(10);
+                if (roll < 4 || loans.isEmpty()) {
+                    Patron patron = patrons[id][random.nextInt(patronsPerThread)];
+                    Book book = books[random.nextInt(numBooks)];
+                    BookCopy copy;
+                    if (roll < 2) {
+                        copy = book.tryBorrowCopy(patron);
+                    } else {
+                        BookCopy wanted = book.findCopy(1 + random.nextInt(copiesPerBook));
+                        copy = wanted.tryBorrowCopy(patron) ? wanted : null;
+                    }
+                    if (copy != null) {
+                        lent.incrementAndGet();
+                        if (!owners.compareAndSet(slot(copy, copiesPerBook), null, patron))
+                            doubleLent.incrementAndGet();
+                        loans.add(copy);
+                    }
+                } else {
+                    // The claim is given up before the return, so a thread lent the copy straight after can claim it
+                    BookCopy copy = loans.remove(random.nextInt(loans.size()));
+                    owners.set(slot(copy, copiesPerBook), null);
+                    if (copy.tryReturnCopy())
+                        returned.incrementAndGet();
+                    else
+                        lostReturns.incrementAndGet();
+                }
+            }
+        });
+
+        long onLoan = 0;
+        long mismatched = 0;
+        for (Book book : books) {
+            for (int c = 1; c <= copiesPerBook; c++) {
+                BookCopy copy = book.findCopy(c);
+                Patron owner = owners.get(slot(copy, copiesPerBook));
+                boolean out = copy.getStatus() != Status.AVAILABLE;
+                if (out)
+                    onLoan++;
+                if (out != (owner != null) || copy.getBorrower() != owner || (owner != null && !owner.hasCopy(copy)))
+                    mismatched++;
+            }
+        }
+        long patronLoans = 0;
+        for (Patron[] row : patrons) {
+            for (Patron patron : row)
+                patronLoans += patron.getLoanCount();
+        }
+
+        System.out.println(String.format("%d loans, %d returns, %d copies on loan at the end, %d held by patrons",
+                lent.get(), returned.get(), onLoan, patronLoans));
+        if (doubleLent.get() > 0)
+            return doubleLent.get() + " copies were lent while already on loan";
+        if (lostReturns.get() > 0)
+            return lostReturns.get() + " returns of copies on loan failed";
+        if (mismatched > 0)
+            return mismatched + " copies disagree with who they were lent to";
+        if (onLoan != patronLoans || onLoan != lent.get() - returned.get())
+            return "copies on loan (" + onLoan + "), patrons' loans (" + patronLoans + ") and loans less returns ("
+                    + (lent.get() - returned.get()) + ") differ";
+        return null;
+    }
+
+    // Threads circulate copies with a journal attached, across several days and a checkpoint taken part way through.
+    // Once everything is durable the run is abandoned without closing the journal, as a crash would leave it, and half a
+    // record is left at the end of the last segment, as a crash part way through a write would. The Library recovered
+    // from the directory must have every copy in the same status, with the same borrower, checkout date and due date,
+    // and every patron must have the same loans, and be waiting in the same place for the same books
+    private static String journalRecovery(int threads, long millis) throws Exception {
+        final int numBooks = 64;
+        final int copiesPerBook = 3;
+        final int numPatrons = 32;
+        final int days = 4;
+
+        Path dir = Files.createTempDirectory("library-stress-journal");
+        try {
+            Library library = new Library();
+            Instant startDay = Instant.parse("2024-03-01T12:00:00Z");
+            library.setClock(Clock.fixed(startDay, ZoneOffset.UTC));
+            Author author = library.addAuthor("Journal Author", 1960, 5, 5);
+            Book[] books = new Book[numBooks];
+            for (int i = 0; i < numBooks; i++) {
+                books[i] = library.addBook("Journal Book " + i, author, "journal-" + i, "Journal Press");
+                for (int c = 0; c < copiesPerBook; c++)
+                    books[i].addCopy();
+            }
+            Patron[] patrons = new Patron[numPatrons];
+            for (int p = 0; p < numPatrons; p++)
+                patrons[p] = library.addPatron("Journal Patron " + p, "Journal Street", "555-0101");
+
+            CirculationJournal journal = new CirculationJournal(library, dir.toString());
+            // A book whose only copy never comes back, with a queue placed before the checkpoint which never moves, so
+            // after the checkpoint its holds are only in the snapshot
+            Book reserved = library.addBook("Journal Reserved", author, "journal-reserved", "Journal Press");
+            reserved.addCopy();
+            reserved.tryBorrowCopy(library.addPatron("Journal Keeper", "Journal Street", "555-0101"));
+            for (int p = numPatrons - 1; p >= numPatrons - 4; p--)
+                reserved.placeHold(patrons[p]);
+            AtomicLong changes = new AtomicLong();
+            for (int day = 0; day < days; day++) {
+                library.setClock(Clock.fixed(startDay.plus(Duration.ofDays(day)), ZoneOffset.UTC));
+                long endsAt = System.nanoTime() + millis * 1_000_000 / days;
+                final int seed = day;
+                race(threads, id -> {
+                    Random random = new Random(seed * 1000 + id);
+                    while (System.nanoTime() < endsAt) {
+                        Book book = books[random.nextInt(numBooks)];
+                        Patron patron = patrons[random.nextInt(numPatrons)];
+                        int roll = random.nextInt(10);
+                        boolean changed;
+                        if (roll < 4) {
+                            changed = book.tryBorrowCopy(patron) != null;
+                        } else if (roll < 8) {
+                            changed = book.findCopy(1 + random.nextInt(copiesPerBook)).tryReturnCopy();
+                        } else if (roll < 9) {
+                            changed = book.placeHold(patron) != null;
+                        } else {
+                            Hold hold = patron.findHoldOn(book);
+                            changed = hold != null && hold.cancel();
+                        }
+                        if (changed)
+                            changes.incrementAndGet();
+                    }
+                });
+                // Circulation carries on while the checkpoint is taken
+                if (day == days / 2) {
+                    Thread checkpoint = new Thread(() -> {
+                        try {
+                            journal.checkpoint();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    checkpoint.start();
+                    race(threads, id -> {
+                        Random random = new Random(-id - 1);
+                        for (int i = 0; i < 2000; i++)
+                            books[random.nextInt(numBooks)].findCopy(1 + random.nextInt(copiesPerBook)).tryReturnCopy();
+                    });
+                    checkpoint.join();
+                }
+            }
+            journal.flush();
+
+            // The crash: the journal is never closed, and the last segment ends in a torn record
+            Path lastSegment;
+            try (Stream<Path> files = Files.list(dir)) {
+                lastSegment = files.filter(path -> path.getFileName().toString().endsWith(".log"))
+                        .max(Comparator.naturalOrder()).get();
+            }
+            ByteBuffer torn = ByteBuffer.allocate(12).putInt(64).putInt(0x5eed).putInt(7);
+            torn.flip();
+            Files.write(lastSegment, torn.array(), StandardOpenOption.APPEND);
+
+            Library recovered = CirculationJournal.recover(dir.toString());
+            List<Book> recoveredBooks = recovered.getBooksView();
+            long onLoan = 0;
+            long mismatched = 0;
+            for (int i = 0; i < numBooks; i++) {
+                for (int c = 1; c <= copiesPerBook; c++) {
+                    BookCopy before = books[i].findCopy(c);
+                    BookCopy after = recoveredBooks.get(i).findCopy(c);
+                    if (before.getStatus() != Status.AVAILABLE)
+                        onLoan++;
+                    if (after == null || before.getStatus() != after.getStatus()
+                            || !sameName(before.getBorrower(), after.getBorrower())
+                            || (before.getStatus() != Status.AVAILABLE && !before.getCheckoutDate().equals(after.getCheckoutDate()))
+                            || !Objects.equals(before.getDueDate(), after.getDueDate()))
+                        mismatched++;
+                }
+            }
+            long loansDiffer = 0;
+            long holdsDiffer = 0;
+            long waiting = 0;
+            for (int p = 0; p < numPatrons; p++) {
+                Patron after = recovered.getPatronsView().get(p);
+                if (patrons[p].getLoanCount() != after.getLoanCount())
+                    loansDiffer++;
+                List<String> holdsBefore = describeHolds(patrons[p]);
+                waiting += holdsBefore.size();
+                if (!holdsBefore.equals(describeHolds(after)))
+                    holdsDiffer++;
+            }
+
+            System.out.println(String.format("%d changes over %d days, %d records in %d syncs, %d copies on loan and %d holds waiting at the crash",
+                    changes.get(), days, journal.getRecordsWritten(), journal.getSyncCount(), onLoan, waiting));
+            if (mismatched > 0)
+                return mismatched + " copies were recovered in a different state";
+            if (loansDiffer > 0)
+                return loansDiffer + " patrons were recovered with different loans";
+            if (holdsDiffer > 0)
+                return holdsDiffer + " patrons were recovered waiting for different books, or in different places";
+            return null;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // One thread adds books and patrons to a journalled Library while the others add copies to and borrow from the newest
+    // book as soon as they can find it, lending to the newest patron. Every copy record must be journalled after the book
+    // and patron it refers to, so the Library recovered from the journal must have every book with the same copies, in
+    // the same state, and every patron with the same loans
+    private static String journalledAdds(int threads, long millis) throws Exception {
+        Path dir = Files.createTempDirectory("library-stress-adds");
+        try {
+            Library library = new Library();
+            Author author = library.addAuthor("Adding Author", 1965, 6, 6);
+            library.addBook("Added Book 0", author, "added-0", "Adding Press");
+            library.addPatron("Added Patron 0", "Adding Street", "555-0103");
+            CirculationJournal journal = new CirculationJournal(library, dir.toString());
+
+            long endsAt = System.nanoTime() + millis * 1_000_000;
+            AtomicLong added = new AtomicLong();
+            AtomicLong lent = new AtomicLong();
+            race(Math.max(2, threads), id -> {
+                if (id == 0) {
+                    for (int n = 1; System.nanoTime() < endsAt; n++) {
+                        library.addBook("Added Book " + n, author, "added-" + n, "Adding Press");
+                        library.addPatron("Added Patron " + n, "Adding Street", "555-0103");
+                        added.incrementAndGet();
+                    }
+                    return;
+                }
+                while (System.nanoTime() < endsAt) {
+                    List<Book> books = library.getBooksView();
+                    List<Patron> patrons = library.getPatronsView();
+                    Book book = books.get(books.size() - 1);
+                    book.addCopy();
+                    if (book.tryBorrowCopy(patrons.get(patrons.size() - 1)) != null)
+                        lent.incrementAndGet();
+                }
+            });
+            journal.close();
+
+            Library recovered;
+            try {
+                recovered = CirculationJournal.recover(dir.toString());
+            } catch (IOException | RuntimeException e) {
+                return "the journal couldn't be replayed: " + e;
+            }
+            List<Book> books = library.getBooksView();
+            List<Book> recoveredBooks = recovered.getBooksView();
+            if (recoveredBooks.size() != books.size())
+                return books.size() + " books were added, but " + recoveredBooks.size() + " were recovered";
+            long mismatched = 0;
+            for (int i = 0; i < books.size(); i++) {
+                Book before = books.get(i);
+                Book after = recoveredBooks.get(i);
+                if (before.getTotalCopies() != after.getTotalCopies())
+                    mismatched++;
+                for (BookCopy copy : before.getCopiesView()) {
+                    BookCopy same = after.findCopy(copy.getCopyNumber());
+                    if (same == null || same.getStatus() != copy.getStatus() || !sameName(copy.getBorrower(), same.getBorrower()))
+                        mismatched++;
+                }
+            }
+            long loansDiffer = 0;
+            List<Patron> patrons = library.getPatronsView();
+            for (int p = 0; p < patrons.size(); p++) {
+                if (patrons.get(p).getLoanCount() != recovered.getPatronsView().get(p).getLoanCount())
+                    loansDiffer++;
+            }
+
+            System.out.println(String.format("%d books and patrons added, %d copies lent as soon as they were added, %d records",
+                    added.get(), lent.get(), journal.getRecordsWritten()));
+            if (mismatched > 0)
+                return mismatched + " books or copies were recovered in a different state";
+            if (loansDiffer > 0)
+                return loansDiffer + " patrons were recovered with different loans";
+            return null;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // Half the threads retitle the books of an off-heap Library while the other half read titles and look them up. Each
+    // title names its book, so a reader can tell a title torn between two writes, or a lookup which finds the wrong book,
+    // from one which is just out of date. Afterwards every book must be found by its last title, and by no other
+    private static String offHeapRetitle(int threads, long millis) throws Exception {
+        final int numBooks = 256;
+        final int writers = Math.max(1, threads / 2);
+
+        Library library = new Library();
+        library.setStorage(Library.Storage.OFF_HEAP);
+        Author author = library.addAuthor("Retitle Author", 1980, 2, 2);
+        Book[] books = new Book[numBooks];
+        for (int i = 0; i < numBooks; i++)
+            books[i] = library.addBook(title(i, 0, 0), author, "retitle-" + i, "Retitle Press");
+
+        AtomicLong retitles = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong torn = new AtomicLong();
+        AtomicLong wrongBook = new AtomicLong();
+        long endsAt = System.nanoTime() + millis * 1_000_000;
+
+        race(Math.max(2, threads), id -> {
+            Random random = new Random(id);
+            long version = 0;
+            while (System.nanoTime() < endsAt) {
+                int i = random.nextInt(numBooks);
+                if (id < writers) {
+                    // Titles of very different lengths, so a torn read can't pass for a whole one
+                    books[i].setTitle(title(i, id, ++version) + (version % 3 == 0 ? " - a much longer subtitle" : ""));
+                    retitles.incrementAndGet();
+                } else {
+                    String title = books[i].getTitle();
+                    reads.incrementAndGet();
+                    if (bookOf(title) != i) {
+                        torn.incrementAndGet();
+                        continue;
+                    }
+                    // The book may have been retitled since, but no other book can have this title
+                    Book found = library.findBookByTitle(title);
+                    if (found != null && found != books[i])
+                        wrongBook.incrementAndGet();
+                }
+            }
+        });
+
+        long unfindable = 0;
+        for (int i = 0; i < numBooks; i++) {
+            if (library.findBookByTitle(books[i].getTitle()) != books[i])
+                unfindable++;
+        }
+        long stale = 0;
+        for (int i = 0; i < numBooks; i++) {
+            if (library.findBookByTitle(title(i, 0, 0)) != null && !books[i].getTitle().equals(title(i, 0, 0)))
+                stale++;
+        }
+
+        System.out.println(String.format("%d retitles, %d reads, %d MB off the heap",
+                retitles.get(), reads.get(), library.getOffHeapBytes() >> 20));
+        if (torn.get() > 0)
+            return torn.get() + " titles were read torn or from the wrong book";
+        if (wrongBook.get() > 0)
+            return wrongBook.get() + " title lookups found the wrong book";
+        if (unfindable > 0)
+            return unfindable + " books can't be found by their title";
+        if (stale > 0)
+            return stale + " books can still be found by their first title";
+        return null;
+    }
+
+    private static String title(int book, int writer, long version) { return "Retitle " + book + " by " + writer + " v" + version; }
+
+    // The book a title names, or -1 if it isn't a whole title
+    private static int bookOf(String title) {
+        if (title == null || !title.startsWith("Retitle "))
+            return -1;
+        String[] words = title.split(" ");
+        if (words.length < 5 || !words[2].equals("by") || !words[4].startsWith("v"))
+            return -1;
+        if (words.length > 5 && !title.endsWith(" - a much longer subtitle"))
+            return -1;
+        try {
+            Integer.parseInt(words[3]);
+            Long.parseLong(words[4].substring(1));
+            return Integer.parseInt(words[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // A copy returned while a patron is waiting for its book goes to them, so a batch can't lend it again. First a batch
+    // which would do just that must fail the checkout rather than report a copy it never lent. Then threads apply batches
+    // of returns and checkouts while others place holds, and every copy a batch reports as borrowed must be a real copy
+    // lent to the patron who asked for it
+    private static String batchesWithHolds(int threads, long millis) throws Exception {
+        Library library = new Library();
+        Author author = library.addAuthor("Batch Author", 1975, 3, 3);
+        Book book = library.addBook("Batch Book", author, "batch-0", "Batch Press");
+        book.addCopy();
+        Patron lender = library.addPatron("Batch Lender", "Batch Street", "555-0102");
+        Patron waiter = library.addPatron("Batch Waiter", "Batch Street", "555-0102");
+        Patron batcher = library.addPatron("Batch Borrower", "Batch Street", "555-0102");
+
+        BookCopy lent = book.tryBorrowCopy(lender);
+        Hold hold = book.placeHold(waiter);
+        BatchResult result = library.applyBatch(new CirculationBatch().checkin(lent).checkout(batcher, "batch-0", 1));
+        if (result.isApplied() || result.getFailures().size() != 1 || lent.getBorrower() != lender)
+            return "an atomic batch lending a copy returned to a patron on hold was applied: " + result.getFailures();
+        result = library.applyBatch(new CirculationBatch().checkin(lent).checkout(batcher, "batch-0", 1).setAtomic(false));
+        if (result.isSuccessful() || result.getBorrowed().size() != 0 || result.getReturned().size() != 1)
+            return "a batch lent a copy returned to a patron on hold: " + result.getBorrowed() + ", " + result.getFailures();
+        if (hold.getState() != Hold.State.FILLED || lent.getBorrower() != waiter || batcher.getLoanCount() != 0)
+            return "the copy returned by a batch didn't go to the patron on hold";
+        if (book.tryBorrowCopies(batcher, 1) != null)
+            return "tryBorrowCopies lent a copy when none was free";
+
+        final int numBooks = 32;
+        final int copiesPerBook = 3;
+        final int patronsPerThread = 4;
+        Book[] books = new Book[numBooks];
+        for (int i = 0; i < numBooks; i++) {
+            books[i] = library.addBook("Batch Book " + (i + 1), author, "batch-" + (i + 1), "Batch Press");
+            for (int c = 0; c < copiesPerBook; c++)
+                books[i].addCopy();
+        }
+        Patron[][] patrons = new Patron[threads][patronsPerThread];
+        for (int t = 0; t < threads; t++) {
+            for (int p = 0; p < patronsPerThread; p++)
+                patrons[t][p] = library.addPatron("Batch Patron " + t + "-" + p, "Batch Street", "555-0102");
+        }
+
+        AtomicLong batches = new AtomicLong();
+        AtomicLong lentByBatches = new AtomicLong();
+        AtomicLong holdsPlaced = new AtomicLong();
+        AtomicLong badCopies = new AtomicLong();
+        long endsAt = System.nanoTime() + millis * 1_000_000;
+
+        race(threads, id -> {
+            Random random = new Random(id);
+            while (System.nanoTime() < endsAt) {
+                Patron patron = patrons[id][random.nextInt(patronsPerThread)];
+                Book wanted = books[random.nextInt(numBooks)];
+                if (random.nextInt(8) == 0) {
+                    Hold placed = wanted.placeHold(patron);
+                    if (placed.getState() == Hold.State.WAITING && random.nextBoolean())
+                        placed.cancel();
+                    holdsPlaced.incrementAndGet();
+                    continue;
+                }
+
+                // Return everything this patron has, whether they borrowed it or were lent it for a hold, and borrow again
+                CirculationBatch batch = new CirculationBatch().setAtomic(random.nextBoolean());
+                for (BookCopy copy : patron.getCheckedOut())
+                    batch.checkin(copy);
+                batch.checkout(patron, wanted.getISBN(), 1 + random.nextInt(copiesPerBook));
+                BatchResult applied = library.applyBatch(batch);
+                batches.incrementAndGet();
+                for (BookCopy copy : applied.getBorrowed()) {
+                    lentByBatches.incrementAndGet();
+                    if (copy == null || copy.getBook() != wanted || copy.getBorrower() != patron)
+                        badCopies.incrementAndGet();
+                }
+            }
+        });
+
+        long onLoan = 0;
+        for (Book b : books) {
+            for (int c = 1; c <= copiesPerBook; c++) {
+                if (b.findCopy(c).getStatus() != Status.AVAILABLE)
+                    onLoan++;
+            }
+        }
+        long patronLoans = 0;
+        for (Patron[] row : patrons) {
+            for (Patron patron : row)
+                patronLoans += patron.getLoanCount();
+        }
+
+        System.out.println(String.format("%d batches lent %d copies, %d holds placed, %d copies on loan at the end",
+                batches.get(), lentByBatches.get(), holdsPlaced.get(), onLoan));
+        if (badCopies.get() > 0)
+            return badCopies.get() + " copies reported as borrowed by a batch weren't lent to its patron";
+        if (onLoan != patronLoans)
+            return onLoan + " copies are on loan, but patrons have " + patronLoans;
+        return null;
+    }
+
+    // A patron's waiting holds, as the book, place in its queue and day placed of each, in the order of the books
+    private static List<String> describeHolds(Patron patron) {
+        ArrayList<String> holds = new ArrayList<String>();
+        for (Hold hold : patron.getHolds())
+            holds.add(hold.getBook().getTitle() + " #" + hold.getPosition() + " " + hold.getPlacedDate());
+        holds.sort(null);
+        return holds;
+    }
+
+    private static boolean sameName(Patron a, Patron b) {
+        return a == null ? b == null : b != null && a.getName().equals(b.getName());
+    }
+
+    private static int slot(BookCopy copy, int copiesPerBook) {
+        int book = Integer.parseInt(copy.getBook().getISBN().substring("stress-".length()));
+        return book * copiesPerBook + copy.getCopyNumber() - 1;
+    }
+}
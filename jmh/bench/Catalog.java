@@ -0,0 +1,85 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import library.Book;
+import library.CatalogGenerator;
+import library.CsvLoader;
+import library.Library;
+import library.Patron;
+
+/**
+ * A catalog written by CatalogGenerator and loaded into a Library, shared by every thread of a benchmark, with one
+ * author and one patron for every ten books, as LibraryBenchmark uses.
+ * <p>
+ * Every benchmark runs against catalogs of 10 thousand, 1 million and 10 million books. The largest needs a heap of
+ * several gigabytes, which is given to the benchmark JVMs with -jvmArgs, and takes a while to generate, so a quick run
+ * can pick sizes with JMH's -p option:
+ *     java -jar target/benchmarks.jar -p numBooks=10000
+ *     java -jar target/benchmarks.jar -jvmArgs -Xmx12g
+ */
+@State(Scope.Benchmark)
+public class Catalog {
+    @Param({ "10000", "1000000", "10000000" })
+    public int numBooks;
+
+    public int numAuthors;
+    public int numPatrons;
+    public Path dir;
+    public Library library;
+    // The books and patrons in the order they were added, so picking one costs nothing
+    public Book[] books;
+    public Patron[] patrons;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        numAuthors = Math.max(numBooks / 10, 1);
+        numPatrons = Math.max(numBooks / 10, 1);
+        dir = Files.createTempDirectory("library-jmh");
+        new CatalogGenerator(42).writeAll(dir.toString(), numAuthors, numBooks, numPatrons);
+
+        library = load(CsvLoader.Mode.STREAMING, true, true, true);
+        books = library.getBooks().toArray(new Book[0]);
+        patrons = library.getPatrons().toArray(new Patron[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Loads some of the generated files into a new Library.
+     *
+     * @param mode How the files are read.
+     * @param authors Whether to load the authors.
+     * @param patrons Whether to load the patrons.
+     * @param books Whether to load the books, which needs the authors.
+     * @return The Library.
+     */
+    public Library load(CsvLoader.Mode mode, boolean authors, boolean patrons, boolean books) throws IOException {
+        Library lib = new Library();
+        CsvLoader loader = new CsvLoader(lib);
+        loader.setMode(mode);
+        if (authors)
+            loader.loadAuthors(dir.resolve("authors.csv").toString());
+        if (patrons)
+            loader.loadPatrons(dir.resolve("patrons.csv").toString());
+        if (books)
+            loader.loadBooks(dir.resolve("books.csv").toString());
+        return lib;
+    }
+}
@@ -0,0 +1,160 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import library.BatchResult;
+import library.Book;
+import library.BookCopy;
+import library.CirculationAnalytics;
+import library.CirculationBatch;
+import library.CirculationReport;
+import library.Patron;
+
+/**
+ * Checkouts, returns, batches, finding a patron's loans and circulation reports, as LibraryBenchmark measures them. Every benchmark returns
+ * what it borrows, so the Library is in the same state after each call as before it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CirculationBenchmark {
+    // How many different books a kiosk checks out at once
+    private static final int BASKET = 20;
+
+    /**
+     * A popular book with plenty of copies, a basket of books at the end of the catalog, and a patron to lend them to.
+     */
+    @State(Scope.Benchmark)
+    public static class Shelves {
+        Book popular;
+        Book[] basket;
+        String[] basketISBNs;
+        Patron patron;
+        CirculationAnalytics analytics;
+
+        @Setup(Level.Trial)
+        public void setUp(Catalog catalog) {
+            popular = catalog.books[0];
+            popular.addCopies(500);
+            int size = Math.min(catalog.numBooks, BASKET);
+            basket = new Book[size];
+            basketISBNs = new String[size];
+            for (int b = 0; b < size; b++) {
+                basket[b] = catalog.books[catalog.numBooks - 1 - b];
+                basket[b].addCopies(5);
+                basketISBNs[b] = basket[b].getISBN();
+            }
+            patron = catalog.patrons[0];
+            analytics = new CirculationAnalytics(catalog.library);
+        }
+    }
+
+    /**
+     * A patron of each thread's own, so threads borrowing together only contend for the book.
+     */
+    @State(Scope.Thread)
+    public static class Borrower {
+        Patron patron;
+
+        @Setup(Level.Trial)
+        public void setUp(Catalog catalog, Picker picker) { patron = catalog.patrons[picker.next(catalog.numPatrons)]; }
+    }
+
+    /**
+     * A patron holding one copy each of many different books, as an institution might.
+     */
+    @State(Scope.Benchmark)
+    public static class Institution {
+        // How many different books the institution has on loan
+        static final int HELD = 1000;
+
+        Patron patron;
+        Book[] held;
+
+        @Setup(Level.Trial)
+        public void setUp(Catalog catalog) {
+            patron = catalog.patrons[catalog.numPatrons - 1];
+            held = new Book[Math.min(catalog.numBooks, HELD)];
+            for (int b = 0; b < held.length; b++) {
+                held[b] = catalog.books[b];
+                held[b].addCopy();
+                held[b].borrowCopy(patron);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean borrowAndReturn(Shelves shelves, Borrower borrower) {
+        BookCopy copy = shelves.popular.tryBorrowCopy(borrower.patron);
+        return copy != null && copy.tryReturnCopy();
+    }
+
+    // Several threads lending copies of one book, which all take its lock
+    @Benchmark
+    @Threads(4)
+    public boolean borrowAndReturnFourThreads(Shelves shelves, Borrower borrower) {
+        BookCopy copy = shelves.popular.tryBorrowCopy(borrower.patron);
+        return copy != null && copy.tryReturnCopy();
+    }
+
+    // Several copies at once, found again through the patron to return them
+    @Benchmark
+    public int borrowCopiesAndReturn(Shelves shelves, Borrower borrower) {
+        shelves.popular.borrowCopies(borrower.patron, 5);
+        int returned = 0;
+        for (BookCopy copy : borrower.patron.findCopiesOf(shelves.popular)) {
+            copy.returnCopy();
+            returned++;
+        }
+        return returned;
+    }
+
+    @Benchmark
+    public ArrayList<BookCopy> findCopiesOf(Institution institution, Picker picker) {
+        return institution.patron.findCopiesOf(institution.held[picker.next(institution.held.length)]);
+    }
+
+    @Benchmark
+    public int singleCheckoutsByISBN(Catalog catalog, Shelves shelves) {
+        ArrayList<BookCopy> borrowed = new ArrayList<BookCopy>(shelves.basket.length);
+        for (String isbn : shelves.basketISBNs)
+            borrowed.add(catalog.library.findBookByISBN(isbn).tryBorrowCopy(shelves.patron));
+        int moved = 0;
+        for (BookCopy copy : borrowed)
+            moved += copy != null && copy.tryReturnCopy() ? 1 : 0;
+        return moved;
+    }
+
+    @Benchmark
+    public int batchCheckoutsByISBN(Catalog catalog, Shelves shelves) {
+        CirculationBatch checkouts = new CirculationBatch();
+        for (String isbn : shelves.basketISBNs)
+            checkouts.checkout(shelves.patron, isbn, 1);
+        BatchResult result = catalog.library.applyBatch(checkouts);
+        CirculationBatch returns = new CirculationBatch();
+        for (BookCopy copy : result.getBorrowed())
+            returns.checkin(copy);
+        return catalog.library.applyBatch(returns).getReturned().size();
+    }
+
+    @Benchmark
+    public CirculationReport report(Shelves shelves) {
+        return shelves.analytics.report();
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import library.CsvLoader;
+import library.Library;
+
+/**
+ * Loading the generated catalog from CSV, once per call, in each of the loader's modes.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+    @Param({ "STREAMING", "MAPPED" })
+    public CsvLoader.Mode mode;
+
+    @Benchmark
+    public Library loadAuthors(Catalog catalog) throws IOException {
+        return catalog.load(mode, true, false, false);
+    }
+
+    @Benchmark
+    public Library loadPatrons(Catalog catalog) throws IOException {
+        return catalog.load(mode, false, true, false);
+    }
+
+    @Benchmark
+    public Library loadAuthorsAndBooks(Catalog catalog) throws IOException {
+        return catalog.load(mode, true, false, true);
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import library.Book;
+import library.CatalogGenerator;
+import library.Patron;
+
+/**
+ * The Library's lookups and searches, as LibraryBenchmark measures them. Each returns what it found, so JMH keeps the
+ * work from being optimised away.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    @Benchmark
+    public Book findBookByISBN(Catalog catalog, Picker picker) {
+        return catalog.library.findBookByISBN(CatalogGenerator.isbn(picker.next(catalog.numBooks)));
+    }
+
+    // Lookups take no lock, so they should scale with the threads reading
+    @Benchmark
+    @Threads(4)
+    public Book findBookByISBNFourThreads(Catalog catalog, Picker picker) {
+        return catalog.library.findBookByISBN(CatalogGenerator.isbn(picker.next(catalog.numBooks)));
+    }
+
+    @Benchmark
+    public Book findBookByTitle(Catalog catalog, Picker picker) {
+        return catalog.library.findBookByTitle(catalog.books[picker.next(catalog.numBooks)].getTitle());
+    }
+
+    @Benchmark
+    public List<Book> findBooksByAuthor(Catalog catalog, Picker picker) {
+        return catalog.library.findBooksByAuthor(CatalogGenerator.authorName(picker.next(catalog.numAuthors)));
+    }
+
+    @Benchmark
+    public List<Book> searchAuthorAndTitlePrefix(Catalog catalog, Picker picker) {
+        Book book = catalog.books[picker.next(catalog.numBooks)];
+        String title = book.getTitle();
+        return catalog.library.searchBooks(book.getAuthor().getName() + " " + title.substring(0, Math.min(title.length(), 6)), 10);
+    }
+
+    @Benchmark
+    public List<Book> searchTwoCommonWords(Catalog catalog) {
+        return catalog.library.searchBooks("golden towe", 10);
+    }
+
+    @Benchmark
+    public Patron findPatron(Catalog catalog, Picker picker) {
+        int p = picker.next(catalog.numPatrons);
+        return catalog.library.findPatron(CatalogGenerator.patronName(p), CatalogGenerator.address(p));
+    }
+}
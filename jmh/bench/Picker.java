@@ -0,0 +1,20 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Picks which book, author or patron each call looks up. Every thread has its own, seeded in turn, so picking never
+ * contends and each run picks the same things.
+ */
+@State(Scope.Thread)
+public class Picker {
+    private static final AtomicLong SEEDS = new AtomicLong(42);
+
+    private final SplittableRandom random = new SplittableRandom(SEEDS.getAndIncrement());
+
+    public int next(int bound) { return random.nextInt(bound); }
+}
@@ -10,8 +10,17 @@ import java.util.ArrayList;
  */
 public class Author {
     private String name;
-    private final LocalDate dateOfBirth;
+    // The name's id in the StringDictionary of the Library this author is in, so names can be matched by comparing ids.
+    // Names are only kept there by a Library on the heap - otherwise this is NO_ID
+    private int nameId;
+    private LocalDate dateOfBirth;
     private ArrayList<Book> bibliography;
+    // Holds the name and date of birth instead of the fields above, once this author is in an off-heap Library
+    private OffHeapCatalog catalog;
+
+    // The Library this author has been added to, and its position there. The Library is told when their name changes, so it can keep its indexes up to date
+    private Library library;
+    private int catalogSeq;
 
     /**
      * Class constructor
@@ -21,6 +30,7 @@ public class Author {
      */
     public Author(String name, LocalDate dateOfBirth) {
         this.name = name;
+        this.nameId = StringDictionary.NO_ID;
         this.dateOfBirth = dateOfBirth;
         this.bibliography = new ArrayList<Book>();
     }
@@ -28,22 +38,79 @@ public class Author {
     /**
      * @return The name of the Author.
      *      */
-    public String getName() { return name; }
+    public String getName() { return catalog == null ? name : catalog.authorName(catalogSeq); }
     /**
      * @return The author's date of birth.
      */
-    public LocalDate getDOB() { return dateOfBirth; }
+    public LocalDate getDOB() { return catalog == null ? dateOfBirth : catalog.authorDOB(catalogSeq); }
     /**
      * @return A list of books written by the author. If the author has no works defined, the list will be empty.
      */
     public ArrayList<Book> getBibliography() { return bibliography; }
 
+    // Used by the Library when this Author is added to it
+    void setLibrary(Library library, int catalogSeq) {
+        this.library = library;
+        this.catalogSeq = catalogSeq;
+    }
+    Library getLibrary() { return library; }
+    int getCatalogSeq() { return catalogSeq; }
+    // The key of this author's name in a Library's StringDictionary, which two names share if they are equal ignoring case.
+    // Only the dictionary of the Library this author is in has their name's id - any other has to look the name up
+    int getNameKey(StringDictionary dictionary) {
+        int id = nameId;
+        if (id != StringDictionary.NO_ID && library != null && library.getStrings() == dictionary)
+            return dictionary.keyOf(id);
+        return dictionary.keyOf(getName());
+    }
+    // Used by a Library on the heap once this Author has their place there, to keep their name in its dictionary
+    void internName(StringDictionary dictionary) {
+        this.nameId = dictionary.intern(getName());
+        this.name = dictionary.get(nameId);
+    }
+    // Used by an off-heap Library once this Author has their place there, to move the fields into its catalog
+    void moveOffHeap(OffHeapCatalog catalog) {
+        catalog.addAuthor(catalogSeq, name, dateOfBirth);
+        this.catalog = catalog;
+        this.name = null;
+        this.nameId = StringDictionary.NO_ID;
+        this.dateOfBirth = null;
+    }
+
     /**
      * Sets the author's name
      * @param name The author's name.
      */
     // An author's birthday never changes, but their name might
-    public void setName(String name) { this.name = name; }
+    public void setName(String name) {
+        // The old name is read and the new one set under the Library's lock, as it guards the indexes being updated
+        String oldName;
+        synchronized (library != null ? library : this) {
+            oldName = getName();
+            if (catalog != null) {
+                catalog.setAuthorName(catalogSeq, name);
+            } else if (nameId != StringDictionary.NO_ID) {
+                this.nameId = library.getStrings().intern(name);
+                this.name = library.getStrings().get(nameId);
+            } else {
+                this.name = name;
+            }
+            if (library != null)
+                library.authorRenamed(this, oldName);
+        }
+
+        // Libraries holding this author's books find them by the author's name too, even if the author was never added
+        ArrayList<Library> told = new ArrayList<Library>();
+        if (library != null)
+            told.add(library);
+        for (Book book : bibliography) {
+            Library holder = book.getLibrary();
+            if (holder != null && !told.contains(holder)) {
+                told.add(holder);
+                holder.authorRenamed(this, oldName);
+            }
+        }
+    }
 
     /**
      * Adds a Book to the list of this Author's works
@@ -53,6 +120,7 @@ public class Author {
     public void addWork(Book book) { bibliography.add(book); }
 
     public String toString() {
-        return String.format("%s (%d/%s/%d)\nBibliography: %d", name, dateOfBirth.getYear(), dateOfBirth.getMonth(), dateOfBirth.getDayOfMonth());
+        LocalDate dateOfBirth = getDOB();
+        return String.format("%s (%d/%s/%d)\nBibliography: %d", getName(), dateOfBirth.getYear(), dateOfBirth.getMonth(), dateOfBirth.getDayOfMonth());
     }
 }
@@ -0,0 +1,85 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of applying a CirculationBatch: the copies which were borrowed and returned, and why any items failed.
+ */
+public class BatchResult {
+    /**
+     * An item of a batch which could not be made.
+     */
+    public static class Failure {
+        private final int item;
+        private final String reason;
+
+        /**
+         * Class constructor.
+         *
+         * @param item The position of the item in its batch, counting from 0 in the order items were added.
+         * @param reason Why the item could not be made.
+         */
+        public Failure(int item, String reason) {
+            this.item = item;
+            this.reason = reason;
+        }
+
+        /**
+         * @return The position of the item in its batch, counting from 0 in the order items were added.
+         */
+        public int getItem() { return item; }
+        /**
+         * @return Why the item could not be made.
+         */
+        public String getReason() { return reason; }
+
+        public String toString() { return "Item " + item + ": " + reason; }
+    }
+
+    private final boolean applied;
+    private final ArrayList<BookCopy> borrowed;
+    private final ArrayList<BookCopy> returned;
+    private final ArrayList<Failure> failures;
+
+    /**
+     * Class constructor.
+     *
+     * @param applied Whether any of the batch was applied.
+     * @param borrowed The copies which were borrowed.
+     * @param returned The copies which were returned.
+     * @param failures The items which could not be made.
+     */
+    public BatchResult(boolean applied, ArrayList<BookCopy> borrowed, ArrayList<BookCopy> returned, ArrayList<Failure> failures) {
+        this.applied = applied;
+        this.borrowed = borrowed;
+        this.returned = returned;
+        this.failures = failures;
+    }
+
+    /**
+     * @return <code>true</code> if every item in the batch was made.
+     */
+    public boolean isSuccessful() { return failures.isEmpty(); }
+    /**
+     * @return <code>true</code> if the batch was applied. An atomic batch with any failures is not applied at all, while
+     *      other batches are applied as far as they can be.
+     */
+    public boolean isApplied() { return applied; }
+    /**
+     * @return The copies which were borrowed, in the order their checkouts were added to the batch.
+     */
+    public List<BookCopy> getBorrowed() { return borrowed; }
+    /**
+     * @return The copies which were returned.
+     */
+    public List<BookCopy> getReturned() { return returned; }
+    /**
+     * @return The items which could not be made, in the order they were added to the batch.
+     */
+    public List<Failure> getFailures() { return failures; }
+
+    public String toString() {
+        return String.format("%d borrowed, %d returned, %d failed%s", borrowed.size(), returned.size(), failures.size(), applied ? "" : " (not applied)");
+    }
+}
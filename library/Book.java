@@ -1,10 +1,24 @@
 package library;
 
+import java.time.LocalDate;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Class which describes a book in the library.
  * It also contains a list of the physical copies of this book in the library.
+ * <p>
+ * Circulation is thread-safe: each Book has its own lock, which guards its copies and their statuses. Checkouts of
+ * different books never wait for each other, and two patrons can never be lent the same copy.
+ * <p>
+ * A patron who finds no copy available can place a Hold. While holds are waiting, every copy which is returned or added
+ * is lent to the oldest of them, so patrons are served in the order they asked.
  * 
  * @author Lauren Wilson
  */
@@ -12,10 +26,34 @@ public class Book {
     private String title;
     // I've decided that certain properties of a Book should never change
     private final Author author;
-    private final String isbn;
+    private String isbn;
+    // Once this book is in a Library, the copy in its StringDictionary, as many books share a publisher
     private String publisher;
-    // Use an ArrayList to keep track of each available copy of a book in the library
-    private ArrayList<BookCopy> copies;
+    // Holds the title and ISBN instead of the fields above, once this book is in an off-heap Library
+    private OffHeapCatalog catalog;
+    // The copies of this book, kept as packed arrays rather than objects, in order of their copy numbers, which are never reused
+    // BookCopy objects are views onto this store, made as they are needed
+    private CopyStore copies;
+    private int nextCopyNumber;
+    // Copies which were removed while on loan, so that their borrowers still see what they had
+    private CopyStore removedCopies;
+    // A live count of copies in each Status, kept in step by BookCopy.setStatus, so checking availability never walks the copies
+    private int[] statusCounts;
+    // Every copy before this position is unavailable, so the search for a copy to lend can start here
+    private int firstAvailable;
+    // Patrons waiting for a copy, oldest first. Made when the first hold is placed, as most books are never waited for
+    private HoldQueue holds;
+    // How many times a copy of this book has been lent, since it was made or loaded
+    private long borrowCount;
+    // Held while this book's copies (or their statuses) are being read or changed. A Patron is only ever locked while
+    // holding a Book's lock, never the other way around, so the two can't deadlock
+    private final VersionedLock lock;
+    // How many times a reader tries to copy the copies' state without the lock, before it takes the lock instead
+    private static final int OPTIMISTIC_READS = 4;
+
+    // The Library this book has been added to, and its position there. The Library is told when its title or publisher changes, so it can keep its indexes up to date
+    private Library library;
+    private int catalogSeq;
 
     /**
      * Class constructor.
@@ -30,7 +68,11 @@ public class Book {
         this.author = author;
         this.isbn = isbn;
         this.publisher = publisher;
-        this.copies = new ArrayList<BookCopy>();
+        this.copies = new CopyStore();
+        this.nextCopyNumber = 1;
+        this.statusCounts = new int[Status.values().length];
+        this.firstAvailable = 0;
+        this.lock = new VersionedLock();
 
         // This book should also be added to the author's bibliography
         this.author.addWork(this);
@@ -40,7 +82,7 @@ public class Book {
     /**
      * @return The book's title.
      */
-    public String getTitle() { return title; }
+    public String getTitle() { return catalog == null ? title : catalog.bookTitle(catalogSeq); }
     /**
      * @return The book's Author.
      */
@@ -48,22 +90,174 @@ public class Book {
     /**
      * @return The book's ISBN.
      */
-    public String getISBN() { return isbn; }
+    public String getISBN() { return catalog == null ? isbn : catalog.bookISBN(catalogSeq); }
     /**
      * @return The book's publisher.
      */
     public String getPublisher() { return publisher; }
     /**
-     * @return A list of copies of this Book which exist in the Library.
+     * @return A list of copies of this Book which exist in the Library, in order of their copy numbers. The list is the
+     *      caller's own, and doesn't see copies added or removed later.
+     */
+    public ArrayList<BookCopy> getCopies() {
+        lock.lock();
+        try {
+            ArrayList<BookCopy> list = new ArrayList<BookCopy>(copies.size());
+            for (int i = 0; i < copies.size(); i++)
+                list.add(new BookCopy(this, copies.copyNumber(i)));
+            return list;
+        } finally {
+            lock.unlock();
+        }
+    }
+    /**
+     * @return A view of the copies of this Book which exist in the Library, in order of their copy numbers, without
+     *      copying them. The list can't be changed directly, and reflects later changes to the copies - hold the Book's
+     *      lock, or use findCopy, if they may change while it is read.
      */
-    public ArrayList<BookCopy> getCopies() { return copies;}
+    public List<BookCopy> getCopiesView() { return new CopyList(); }
+
+    // Used by the Library when this Book is added to it
+    void setLibrary(Library library, int catalogSeq) {
+        this.library = library;
+        this.catalogSeq = catalogSeq;
+        this.publisher = library.getStrings().canonical(publisher);
+    }
+    Library getLibrary() { return library; }
+    int getCatalogSeq() { return catalogSeq; }
+    // Used by an off-heap Library once this Book has its place there, to move the fields into its catalog
+    void moveOffHeap(OffHeapCatalog catalog) {
+        catalog.addBook(catalogSeq, title, isbn);
+        this.catalog = catalog;
+        this.title = null;
+        this.isbn = null;
+    }
+    // Used by copies of this book, and by anything which needs to change several copies at once
+    ReentrantLock getLock() { return lock; }
+    // The listeners to tell about changes to this book's copies, which is nobody until the book is in a Library
+    List<LibraryListener> getListeners() { return library == null ? Collections.<LibraryListener>emptyList() : library.getListeners(); }
+    // Where this book's copies record their circulation, which goes nowhere until the book is in a Library
+    LibraryMetrics getMetrics() { return library == null ? LibraryMetrics.NONE : library.getMetrics(); }
+    // Used when saving and restoring a Library, so that copy numbers carry on from where they left off
+    int getNextCopyNumber() { return nextCopyNumber; }
+    void setNextCopyNumber(int nextCopyNumber) { this.nextCopyNumber = Math.max(this.nextCopyNumber, nextCopyNumber); }
+    // Used by copies to find their state. The caller must hold this book's lock
+    CopyStore getCopyStore() { return copies; }
+    // Used before any change to the copies' state, so that optimistic readers know to try again. The caller must hold
+    // this book's lock
+    void changingCopies() { lock.beginWrite(); }
+
+    // Copies the state of this book's copies without taking its lock, so a reader never holds up a checkout. A copy made
+    // while a change was being made may be inconsistent, so it is made again, and after a few tries made under the lock
+    CopyStore readCopies() {
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long version = lock.version;
+            if ((version & 1) == 0) {
+                CopyStore state = copies.tryCopy();
+                // The reads of the store must be done before the version is checked again
+                VarHandle.acquireFence();
+                if (state != null && lock.version == version)
+                    return state;
+            }
+            Thread.onSpinWait();
+        }
+
+        lock.lock();
+        try {
+            return copies.copy();
+        } finally {
+            lock.unlock();
+        }
+    }
+    CopyStore storeOf(int copyNumber) {
+        if (copies.find(copyNumber) >= 0)
+            return copies;
+
+        // A copy which isn't in the list has been removed. Its state is kept aside, for whoever still holds it
+        if (removedCopies == null)
+            removedCopies = new CopyStore();
+        if (removedCopies.find(copyNumber) < 0)
+            removedCopies.insert(copyNumber);
+        return removedCopies;
+    }
+
+    // Finds who has a copy, without setting aside state for an unknown number as storeOf would. The caller must hold this book's lock
+    Patron borrowerOf(int copyNumber) {
+        int pos = copies.find(copyNumber);
+        if (pos >= 0)
+            return copies.borrower(pos);
+        if (removedCopies != null && (pos = removedCopies.find(copyNumber)) >= 0)
+            return removedCopies.borrower(pos);
+        return null;
+    }
 
     /**
-     * Adds a new copy of this book to the system.
+     * Finds everyone who has a copy of this book, including copies which have since been removed from it.
+     * 
+     * @return The patrons with a copy on loan, each once however many copies they have. Will be empty if no copies are on loan.
+     */
+    public ArrayList<Patron> getBorrowers() {
+        LinkedHashSet<Patron> borrowers = new LinkedHashSet<Patron>();
+        lock.lock();
+        try {
+            copies.addBorrowersTo(borrowers);
+            if (removedCopies != null)
+                removedCopies.addBorrowersTo(borrowers);
+        } finally {
+            lock.unlock();
+        }
+        return new ArrayList<Patron>(borrowers);
+    }
+
+    /**
+     * Finds a copy of this book by its copy number.
+     * 
+     * @param copyNumber The number of the copy.
+     * @return The matching copy. Will be <code>null</code> if this book has no copy with that number.
+     */
+    public BookCopy findCopy(int copyNumber) {
+        lock.lock();
+        try {
+            return copies.find(copyNumber) >= 0 ? new BookCopy(this, copyNumber) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a new copy of this book to the system. If patrons are waiting for the book, the copy is lent to the oldest hold.
      */
     public void addCopy() {
-        BookCopy newCopy = new BookCopy(this);
-        copies.add(newCopy);
+        lock.lock();
+        try {
+            addCopy(nextCopyNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds a copy with a specific number, which is how saved copies are restored
+    BookCopy addCopy(int copyNumber) {
+        lock.lock();
+        try {
+            if (copies.find(copyNumber) >= 0 || (removedCopies != null && removedCopies.find(copyNumber) >= 0))
+                throw new IllegalArgumentException("'" + getTitle() + "' already has a copy number " + copyNumber);
+
+            changingCopies();
+            int pos = copies.insert(copyNumber);
+            nextCopyNumber = Math.max(nextCopyNumber, copyNumber + 1);
+            statusCounts[Status.AVAILABLE.ordinal()]++;
+            firstAvailable = Math.min(firstAvailable, pos);
+
+            BookCopy newCopy = new BookCopy(this, copyNumber);
+
+            for (LibraryListener listener : getListeners())
+                listener.copyAdded(newCopy);
+            fillHolds();
+            return newCopy;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -72,8 +266,15 @@ public class Book {
      * @param num Number of copies to add.
      */
     public void addCopies(int num) { 
-        for (int i = 0; i < num; i++)
-            addCopy();
+        lock.lock();
+        try {
+            changingCopies();
+            copies.ensureCapacity(num);
+            for (int i = 0; i < num; i++)
+                addCopy();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -82,10 +283,61 @@ public class Book {
      * @param copy The specific BookCopy to be removed.
      */
     public void removeCopy(BookCopy copy) {
-        // If the copy is unaccounted for, show an error
-        if (copy.getStatus() != Status.AVAILABLE)
-            System.out.println(String.format("WARNING: A checked-out copy of '%s' was removed from the system."));
-        copies.remove(copy);
+        lock.lock();
+        try {
+            // If the copy is unaccounted for, show an error
+            if (copy.getStatus() != Status.AVAILABLE)
+                System.out.println(String.format("WARNING: A checked-out copy of '%s' was removed from the system.", getTitle()));
+
+            int pos = copy.getBook() == this && !copy.isDetached() ? copies.find(copy.getCopyNumber()) : -1;
+            if (pos >= 0) {
+                changingCopies();
+                copy.removingFromList();
+                statusCounts[copies.status(pos).ordinal()]--;
+
+                // Anyone still holding a copy which was on loan keeps seeing its state
+                if (copies.status(pos) != Status.AVAILABLE || copies.borrower(pos) != null) {
+                    if (removedCopies == null)
+                        removedCopies = new CopyStore();
+                    removedCopies.copyState(removedCopies.insert(copy.getCopyNumber()), copies, pos);
+                }
+
+                copies.remove(pos);
+                if (pos < firstAvailable)
+                    firstAvailable--;
+
+                for (LibraryListener listener : getListeners())
+                    listener.copyRemoved(copy);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by a copy of this book as it is lent, while it holds this book's lock
+    void copyLent() { borrowCount++; }
+
+    // Reads what CirculationAnalytics needs under one lock: the number of copies in each Status, in order, then the
+    // number of holds waiting, then the number of times a copy has been lent
+    void readCirculation(long[] counts) {
+        lock.lock();
+        try {
+            for (int i = 0; i < statusCounts.length; i++)
+                counts[i] = statusCounts[i];
+            counts[statusCounts.length] = holds == null ? 0 : holds.waiting();
+            counts[statusCounts.length + 1] = borrowCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by a copy of this book when its status changes, while it holds this book's lock
+    void copyStatusChanged(int pos, Status oldStatus, Status newStatus) {
+        statusCounts[oldStatus.ordinal()]--;
+        statusCounts[newStatus.ordinal()]++;
+
+        if (newStatus == Status.AVAILABLE)
+            firstAvailable = Math.min(firstAvailable, pos);
     }
 
     /**
@@ -93,71 +345,299 @@ public class Book {
      * 
      * @return The number of copies of this book in the system.
      */
-    public int getTotalCopies() { return copies.size(); }
+    public int getTotalCopies() {
+        lock.lock();
+        try {
+            return copies.size();
+        } finally {
+            lock.unlock();
+        }
+    }
 
     /**
      * Gets specifically the number of copies that are AVAILABLE.
      * 
      * @return The number of copies with a status of AVAILABLE.
      */
-    public int getAvailableCopies() { 
-        int total = 0;
-        for (BookCopy copy : copies) {
-            if (copy.getStatus() == Status.AVAILABLE)
-                total ++;
+    public int getAvailableCopies() { return getCopyCount(Status.AVAILABLE); }
+
+    /**
+     * Gets the number of unavailable (CHECKED_OUT, OVERDUE) copies.
+     * 
+     * @return The number of copies without a status of AVAILABLE.
+     */
+    public int getUnavailableCopies() {
+        lock.lock();
+        try {
+            return copies.size() - statusCounts[Status.AVAILABLE.ordinal()];
+        } finally {
+            lock.unlock();
         }
-        return total;
     }
 
     /**
-     * Gets the number of unavailable (CHECKED_OUT, OVERDUE) copies.
+     * Gets the number of copies with a specific Status.
      * 
-     * @return
+     * @param status The Status to count.
+     * @return The number of copies with that Status.
      */
-    public int getUnavailableCopies() { 
-        int total = 0;
-        for (BookCopy copy : copies) {
-            if (copy.getStatus() != Status.AVAILABLE)
-                total ++;
+    public int getCopyCount(Status status) {
+        lock.lock();
+        try {
+            return statusCounts[status.ordinal()];
+        } finally {
+            lock.unlock();
         }
-        return total;
     }
 
     /**
-     * Searches the list of copies for the first AVAILABLE copy.
+     * Picks an AVAILABLE copy of the book. The lowest-numbered AVAILABLE copy is lent first.
+     * Note that another thread may borrow the copy before the caller does - use tryBorrowCopy to pick and borrow in one step.
      * 
      * @return An AVAILABLE copy of the book. If none were found, the value will be <code>null</code>.
      */
     public BookCopy nextAvailableCopy() {
-        // Hopefully, this is only ever called after checking that there is an available copy!
-        BookCopy lend = null;
-        for (BookCopy copy : copies) {
-            if (copy.getStatus() == Status.AVAILABLE) {
-                lend = copy;
-                break;
-            }
+        lock.lock();
+        try {
+            if (statusCounts[Status.AVAILABLE.ordinal()] == 0)
+                return null;
+
+            firstAvailable = copies.indexOf(Status.AVAILABLE, firstAvailable);
+            return new BookCopy(this, copies.copyNumber(firstAvailable));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds an AVAILABLE copy of the book and borrows it, as a single step which is safe to call from several threads at once.
+     * 
+     * @param borrower The Patron borrowing a copy.
+     * @return The copy which was borrowed. Will be <code>null</code> if no copies were AVAILABLE.
+     */
+    public BookCopy tryBorrowCopy(Patron borrower) {
+        LibraryMetrics metrics = getMetrics();
+        long start = metrics.start();
+        BookCopy copy = lendNextCopy(borrower);
+        metrics.record(LibraryMetrics.Operation.BORROW, start, copy != null);
+        return copy;
+    }
+
+    private BookCopy lendNextCopy(Patron borrower) {
+        lock.lock();
+        try {
+            // Patrons who are waiting come first
+            fillHolds();
+            if (statusCounts[Status.AVAILABLE.ordinal()] == 0)
+                return null;
+
+            firstAvailable = copies.indexOf(Status.AVAILABLE, firstAvailable);
+            BookCopy copy = new BookCopy(this, copies.copyNumber(firstAvailable));
+            copy.tryBorrowCopy(copies, firstAvailable, borrower);
+            return copy;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Borrows a specific number of copies of a book, as a single step which is safe to call from several threads at once.
+     * Either every copy is borrowed, or none are. Patrons waiting for the book are lent copies first, so only the copies
+     * left once they have been served can be borrowed.
+     * 
+     * @param borrower The Patron who is borrowing this book.
+     * @param num The number of copies being borrowed.
+     * @return The copies which were borrowed. Will be <code>null</code> if there were not enough AVAILABLE copies.
+     */
+    public ArrayList<BookCopy> tryBorrowCopies(Patron borrower, int num) {
+        lock.lock();
+        try {
+            fillHolds();
+            if (getAvailableCopies() < num)
+                return null;
 
-        return lend;
+            ArrayList<BookCopy> borrowed = new ArrayList<BookCopy>(num);
+            for (int i = 0; i < num; i++)
+                borrowed.add(tryBorrowCopy(borrower));
+            return borrowed;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Finds an AVAILABLE copy of the book and borrows it. If no copies are AVAILABLE, a message is displayed.
+     * Finds an AVAILABLE copy of the book and borrows it. If no copies are AVAILABLE, a hold is placed for the borrower
+     * instead, and a message is displayed.
      * 
      * @param borrower The Patron borrowing a copy.
      */
     public void borrowCopy(Patron borrower) {
-        boolean borrowed = false;
-        for (BookCopy copy : copies) {
-            if (copy.getStatus() == Status.AVAILABLE) {
-                borrowed = true;
-                copy.borrowCopy(borrower);
-                break;
+        if (tryBorrowCopy(borrower) != null)
+            return;
+
+        Hold hold = placeHold(borrower);
+        if (hold.getState() == Hold.State.WAITING)
+            System.out.println("There are no copies of " + getTitle() + " available, so " + borrower.getName() + " has been placed on hold;");
+    }
+
+    /**
+     * Places a hold on this book for a patron. If no one else is waiting and a copy is AVAILABLE, it is lent straight away
+     * and the hold comes back already filled. Otherwise the patron joins the back of the queue, and is lent the first copy
+     * returned or added after everyone ahead of them has been served.
+     * 
+     * @param patron The Patron who is waiting for a copy.
+     * @return The patron's hold. If they were already waiting for this book, their existing hold is returned.
+     */
+    public Hold placeHold(Patron patron) {
+        lock.lock();
+        try {
+            Hold hold = patron.findHoldOn(this);
+            if (hold != null)
+                return hold;
+
+            hold = new Hold(this, patron, library == null ? LocalDate.now() : library.today());
+            if (getHoldCount() == 0 && statusCounts[Status.AVAILABLE.ordinal()] > 0) {
+                hold.filled(lendNextCopy(patron).getCopyNumber());
+                return hold;
             }
+
+            if (holds == null)
+                holds = new HoldQueue();
+            holds.add(hold);
+            patron.addHold(hold);
+            for (LibraryListener listener : getListeners())
+                listener.holdPlaced(hold);
+            return hold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of times a copy of this book has been lent since it was made or loaded, including copies since removed.
+     */
+    public long getBorrowCount() {
+        lock.lock();
+        try {
+            return borrowCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of patrons waiting for a copy of this book.
+     */
+    public int getHoldCount() {
+        lock.lock();
+        try {
+            return holds == null ? 0 : holds.waiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Used by Hold.cancel
+    boolean cancelHold(Hold hold) {
+        lock.lock();
+        try {
+            if (hold.getState() != Hold.State.WAITING)
+                return false;
+
+            hold.cancelled();
+            holds.cancelled();
+            hold.getPatron().removeHold(hold);
+            for (LibraryListener listener : getListeners())
+                listener.holdCancelled(hold);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Used by Hold.getPosition. This walks the queue, so it is for showing to a patron rather than for circulation
+    int holdPosition(Hold hold) {
+        lock.lock();
+        try {
+            return holds == null ? -1 : holds.positionOf(hold);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Used when saving a Library. The holds still waiting, oldest first
+    ArrayList<Hold> getWaitingHolds() {
+        lock.lock();
+        try {
+            return holds == null ? new ArrayList<Hold>() : holds.waitingHolds();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Used when restoring a Library. Puts a patron at the back of the queue as they were saved, without lending them a
+    // copy or telling listeners. Does nothing if they are already waiting
+    void restoreHold(Patron patron, LocalDate placed) {
+        lock.lock();
+        try {
+            if (patron.findHoldOn(this) != null)
+                return;
+
+            Hold hold = new Hold(this, patron, placed);
+            if (holds == null)
+                holds = new HoldQueue();
+            holds.add(hold);
+            patron.addHold(hold);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Used when restoring a Library. Takes a patron's hold out of the queue as filled with a copy whose loan has already
+    // been restored. Does nothing if they aren't waiting
+    void restoreHoldFilled(Patron patron, int copyNumber) {
+        lock.lock();
+        try {
+            Hold hold = patron.findHoldOn(this);
+            if (hold == null)
+                return;
+
+            hold.filled(copyNumber);
+            holds.cancelled();
+            patron.removeHold(hold);
+        } finally {
+            lock.unlock();
         }
+    }
+
+    // Takes the oldest waiting hold off the queue, for a copy which is about to be lent to it. The caller must hold this
+    // book's lock, and call holdFilled once the copy is lent
+    Hold nextHold() {
+        if (holds == null)
+            return null;
 
-        if (!borrowed)
-            System.out.println("Failed to borrow a copy of " + title + ", as there are none available;");
+        Hold hold = holds.poll();
+        if (hold != null)
+            hold.getPatron().removeHold(hold);
+        return hold;
+    }
+
+    // Marks a hold taken by nextHold as filled, and tells listeners. The caller must hold this book's lock
+    void holdFilled(Hold hold, int copyNumber) {
+        hold.filled(copyNumber);
+        for (LibraryListener listener : getListeners())
+            listener.holdFilled(hold);
+    }
+
+    // Lends AVAILABLE copies to waiting holds, oldest first. The caller must hold this book's lock
+    private void fillHolds() {
+        while (holds != null && holds.waiting() > 0 && statusCounts[Status.AVAILABLE.ordinal()] > 0) {
+            Hold hold = nextHold();
+            firstAvailable = copies.indexOf(Status.AVAILABLE, firstAvailable);
+            int copyNumber = copies.copyNumber(firstAvailable);
+            new BookCopy(this, copyNumber).tryBorrowCopy(copies, firstAvailable, hold.getPatron());
+            holdFilled(hold, copyNumber);
+        }
     }
 
     /**
@@ -167,12 +647,13 @@ public class Book {
      * @param num The number of copies being borrowed.
      */
     public void borrowCopies(Patron borrower, int num) {
-        if (getAvailableCopies() >= num) {
-        for  (int i = 0; i < num; i++) 
-            borrowCopy(borrower);
+        lock.lock();
+        try {
+            if (tryBorrowCopies(borrower, num) == null)
+                System.out.println("Could not borrow " + num + " copies of " + getTitle() + " beause only " + getAvailableCopies() + "are available.");
+        } finally {
+            lock.unlock();
         }
-        else
-        System.out.println("Could not borrow " + num + " copies of " + title + " beause only " + getAvailableCopies() + "are available.");
     }
 
     /**
@@ -180,23 +661,87 @@ public class Book {
      * 
      * @param title The title of this book.
      */
-    public void setTitle(String title) { this.title = title; }
+    public void setTitle(String title) {
+        // The old title is read and the new one set under the Library's lock, so two threads changing the book at once
+        // can't leave the Library's indexes, or what its listeners are told, out of step with the book
+        synchronized (library != null ? library : this) {
+            String oldTitle = getTitle();
+            if (catalog == null)
+                this.title = title;
+            else
+                catalog.setBookTitle(catalogSeq, title);
+            if (library != null)
+                library.bookRetitled(this, oldTitle);
+        }
+    }
     /**
      * Sets the publisher of the book.
      * 
      * @param publisher The publisher of this book.
      */
-    public void setPublisher(String publisher) { this.publisher = publisher; }
+    public void setPublisher(String publisher) {
+        synchronized (library != null ? library : this) {
+            String oldPublisher = getPublisher();
+            this.publisher = library != null ? library.getStrings().canonical(publisher) : publisher;
+            if (library != null)
+                library.bookPublisherChanged(this, oldPublisher);
+        }
+    }
 
-    public String toString() {
-        String desc = "";
-        desc += "Title:\t\t" + title + "\n";
-        desc += "Author:\t\t" + author.getName() + "\n";
-        desc += "ISBN:\t\t" + isbn + "\n";
-        desc += "Publisher:\t" + publisher + "\n";
-        desc += getTotalCopies() + " total copies, " + getAvailableCopies() + " available\n";
-        desc += copies.toString();
+    // A read-only list of views onto the copies in the store
+    private class CopyList extends AbstractList<BookCopy> implements RandomAccess {
+        @Override
+        public BookCopy get(int index) {
+            lock.lock();
+            try {
+                if (index < 0 || index >= copies.size())
+                    throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + copies.size() + " copies");
+                return new BookCopy(Book.this, copies.copyNumber(index));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() { return getTotalCopies(); }
+    }
 
-        return desc;
+    public String toString() { return ReportWriter.render(this); }
+
+    // A lock which counts each change made under it, so its count is odd exactly while a change is being made. A reader
+    // which sees the same even count before and after reading the book's state knows no change was made in between.
+    // Taking the lock only to read leaves the count alone, so readers don't spoil each other's optimistic reads
+    private static class VersionedLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        // Only written by the thread holding the lock
+        private volatile long version;
+        // Whether the current holder has begun a change, which ends when it lets go of the lock
+        private boolean writing;
+
+        // Marks the start of a change to the book's copies. The caller must hold the lock, and the change lasts until it
+        // is let go, however many further changes are begun in the meantime
+        void beginWrite() {
+            if (!isHeldByCurrentThread())
+                throw new IllegalStateException("The book's copies can only be changed while holding its lock");
+            if (!writing) {
+                writing = true;
+                version++;
+                // A volatile write doesn't keep later writes from moving ahead of it, so the odd count must be visible
+                // before any change made under the lock
+                VarHandle.storeStoreFence();
+            }
+        }
+
+        @Override
+        public void unlock() {
+            if (writing && getHoldCount() == 1) {
+                writing = false;
+                // The changes made under the lock must be visible before the count is even again
+                VarHandle.releaseFence();
+                version++;
+            }
+            super.unlock();
+        }
     }
-}
\ No newline at end of file
+}
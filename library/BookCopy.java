@@ -4,18 +4,23 @@ import java.time.LocalDate;
 
 /**
  * A class representing a physical copy of a Book in the Library.
+ * Changes to a copy are made while holding its Book's lock, so a copy can't be lent to two patrons at once.
+ * <p>
+ * A BookCopy is a view onto a copy whose state is kept in its Book, so there may be several BookCopy objects for one copy.
+ * They are <code>equals</code> to each other, and changes made through any of them are seen by all.
  * 
  * @author Lauren Wilson
  */
 public class BookCopy implements Borrowable {
-    // The enumerated status of the book
-    private Status status;
     // A reference back to the book this is a copy of
     // This can't change - if the book changes, it's a different book
     // (Philosophers have been stumped by this one)
     private final Book copyOf;
-    private Patron borrower;
-    private LocalDate checkoutDate;
+    // Identifies this copy among the copies of its Book. Numbers are never reused, so they can be written down and looked up later
+    private final int copyNumber;
+    // The status, borrower and dates of the copy live in its Book's CopyStore, so a BookCopy is only a view, and many views of
+    // one copy can exist at once. A copy made with the public constructor isn't in its Book's list, so it keeps its own store
+    private final CopyStore ownStore;
 
     /**
      * Class constructor. The status of the new copy is set to AVAILABLE.
@@ -24,13 +29,30 @@ public class BookCopy implements Borrowable {
      */
     public BookCopy(Book book) {
         this.copyOf = book;
-        this.status = Status.AVAILABLE;
+        this.copyNumber = 0;
+        this.ownStore = new CopyStore();
+        this.ownStore.insert(0);
+    }
+
+    // Used by Book, to make a view of one of its copies
+    BookCopy(Book book, int copyNumber) {
+        this.copyOf = book;
+        this.copyNumber = copyNumber;
+        this.ownStore = null;
     }
 
     /**
      * @return The enumerated status of this copy.
      */
-    public Status getStatus() { return status; }
+    public Status getStatus() {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = store();
+            return store.status(store.find(copyNumber));
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
     /**
      * @return The Book which this is a copy of.
      */
@@ -38,64 +60,363 @@ public class BookCopy implements Borrowable {
     /**
      * @return The Patron which has borrowed this copy.
      */
-    public Patron getBorrower() { return borrower; }
+    public Patron getBorrower() {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = store();
+            return store.borrower(store.find(copyNumber));
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
     /**
      * @return The date this copy was checked out.
      */
-    public LocalDate getCheckoutDate() { return checkoutDate; }
+    public LocalDate getCheckoutDate() {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = store();
+            return store.checkoutDate(store.find(copyNumber));
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
+    /**
+     * @return The date this copy is due back. Will be <code>null</code> if the copy is not on loan.
+     */
+    public LocalDate getDueDate() {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = store();
+            return store.dueDate(store.find(copyNumber));
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
+    /**
+     * @return The number of this copy, which is unique among the copies of its Book. Copies which were never added to a Book are numbered 0.
+     */
+    public int getCopyNumber() { return copyNumber; }
 
     /**
      * Sets the status of this copy.
      * 
      * @param status The status of this book. Must be a value from the Status enum.
      */
-    public void setStatus(Status status) { this.status = status; }
+    public void setStatus(Status status) {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = writableStore();
+            int pos = store.find(copyNumber);
+            boolean wasDue = isDue(store, pos);
+            changeStatus(store, pos, status);
+            updateDueDateIndex(store, pos, wasDue, store.dueDate(pos));
+            changed(store);
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
     /**
      * Sets the borrower of this copy.
      * 
      * @param borrower The Patron who is borrowing this book.
      */
-    public void setBorrower(Patron borrower) { this.borrower = borrower; }
+    public void setBorrower(Patron borrower) {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = writableStore();
+            store.setBorrower(store.find(copyNumber), borrower);
+            changed(store);
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
     /**
      * Sets the date this copy was checked out.
      * 
      * @param checkoutDate The date of the checkout.
      */
-    public void setCheckoutDate(LocalDate checkoutDate) { this.checkoutDate = checkoutDate; }
+    public void setCheckoutDate(LocalDate checkoutDate) {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = writableStore();
+            store.setCheckoutDate(store.find(copyNumber), checkoutDate);
+            changed(store);
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
+    /**
+     * Sets the date this copy is due back, such as when a loan is renewed.
+     * 
+     * @param dueDate The new due date.
+     */
+    public void setDueDate(LocalDate dueDate) {
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = writableStore();
+            int pos = store.find(copyNumber);
+            boolean wasDue = isDue(store, pos);
+            LocalDate oldDueDate = store.dueDate(pos);
+            store.setDueDate(pos, dueDate);
+            updateDueDateIndex(store, pos, wasDue, oldDueDate);
+            changed(store);
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
+
+    // The private methods below work on this copy's state where it is kept - a store, and a position in it. The caller must hold the Book's lock
+
+    // Finds the store which holds this copy's state
+    private CopyStore store() { return ownStore != null ? ownStore : copyOf.storeOf(copyNumber); }
+
+    // Finds the store which holds this copy's state, to change it
+    private CopyStore writableStore() {
+        CopyStore store = store();
+        writing(store);
+        return store;
+    }
+
+    // Tells the Book a change to its copies is being made, if the store is its own
+    private void writing(CopyStore store) {
+        if (store == copyOf.getCopyStore())
+            copyOf.changingCopies();
+    }
+
+    // Used by the Book, to tell copies of its own from copies made with the public constructor
+    boolean isDetached() { return ownStore != null; }
+
+    // Sets the status and keeps the Book's availability counts in step
+    private void changeStatus(CopyStore store, int pos, Status status) {
+        Status oldStatus = store.status(pos);
+        store.setStatus(pos, status);
+
+        // Only copies in the Book's list are counted
+        if (oldStatus != status && store == copyOf.getCopyStore())
+            copyOf.copyStatusChanged(pos, oldStatus, status);
+    }
+
+    // Tells listeners that one of the setters was called
+    private void changed(CopyStore store) {
+        if (store == copyOf.getCopyStore()) {
+            for (LibraryListener listener : copyOf.getListeners())
+                listener.copyChanged(this);
+        }
+    }
+
+    // A copy is in the Library's due-date index while it is in its Book's list, CHECKED_OUT, with a due date
+    private boolean isDue(CopyStore store, int pos) {
+        return store == copyOf.getCopyStore() && store.status(pos) == Status.CHECKED_OUT && store.hasDueDate(pos);
+    }
+
+    // Moves this copy within the due-date index after a change
+    private void updateDueDateIndex(CopyStore store, int pos, boolean wasDue, LocalDate oldDueDate) {
+        Library library = copyOf.getLibrary();
+        if (library == null)
+            return;
+
+        boolean due = isDue(store, pos);
+        LocalDate dueDate = due ? store.dueDate(pos) : null;
+        boolean moved = wasDue && due && !oldDueDate.equals(dueDate);
+        if (wasDue && (!due || moved))
+            library.getDueDates().remove(this, oldDueDate);
+        if (due && (!wasDue || moved))
+            library.getDueDates().add(this, dueDate);
+    }
+
+    // Used by the Book just before this copy is taken out of its list of copies, while it holds its lock
+    void removingFromList() {
+        CopyStore store = store();
+        int pos = store.find(copyNumber);
+        Library library = copyOf.getLibrary();
+        if (library != null && isDue(store, pos))
+            library.getDueDates().remove(this, store.dueDate(pos));
+    }
+
+    // Used by the Library when it adds this copy's Book, as copies can be lent before then
+    void indexDueDate() {
+        CopyStore store = store();
+        updateDueDateIndex(store, store.find(copyNumber), false, null);
+    }
+
+    /**
+     * Marks this copy OVERDUE if it is still on a loan which ended before a date. Used by the Library's overdue sweep.
+     * 
+     * @param today The date loans must end before to be overdue.
+     * @return <code>true</code> if the copy was marked OVERDUE.
+     */
+    boolean markOverdue(LocalDate today) {
+        copyOf.getLock().lock();
+        try {
+            // The copy may have been returned, or lent again, since the sweep found it
+            CopyStore store = store();
+            int pos = store.find(copyNumber);
+            if (!isDue(store, pos) || !store.dueDate(pos).isBefore(today))
+                return false;
+
+            writing(store);
+            changeStatus(store, pos, Status.OVERDUE);
+            updateDueDateIndex(store, pos, true, store.dueDate(pos));
+            changed(store);
+            return true;
+        } finally {
+            copyOf.getLock().unlock();
+        }
+    }
 
     /**
-     * Borrows this copy of the book - sets the status to CHECKED_OUT, sets the checkout date to the current date, and adds this copy to the borrower's list of checked out books.
+     * Borrows this copy of the book - sets the status to CHECKED_OUT, sets the checkout date to the current date, sets the due date one loan period later, and adds this copy to the borrower's list of checked out books.
+     * If the copy is not AVAILABLE, a message is displayed instead.
      * 
      * @param borrower The Patron who is borrowing this book.
      */
     // Borrowing a book adds this copy to the borrower's 'checked out' list
     @Override
     public void borrowCopy(Patron borrower) {
-        setStatus(Status.CHECKED_OUT);
-        setBorrower(borrower);
-        setCheckoutDate(LocalDate.now());
-        borrower.addBook(this);
+        if (!tryBorrowCopy(borrower))
+            System.out.println("Failed to borrow this copy of " + copyOf.getTitle() + ", as it is not available.");
     }
 
     /**
-     * Returns this copy of the book, making it AVAILABLE again.
+     * Returns this copy of the book, making it AVAILABLE again, or lending it to the oldest hold if a patron is waiting for the book.
+     * If the copy was not borrowed, a message is displayed instead.
      */
     @Override
     public void returnCopy() {
-        setStatus(Status.AVAILABLE);
-        borrower.removeBook(this);
-        setBorrower(null);
+        if (!tryReturnCopy())
+            System.out.println("Failed to return this copy of " + copyOf.getTitle() + ", as it was not borrowed.");
+    }
+
+    /**
+     * Borrows this copy of the book, if it is AVAILABLE. The check and the checkout happen as one step, so it is safe to call from several threads at once.
+     * 
+     * @param borrower The Patron who is borrowing this book.
+     * @return <code>true</code> if the copy was borrowed, or <code>false</code> if it was not AVAILABLE.
+     */
+    public boolean tryBorrowCopy(Patron borrower) {
+        LibraryMetrics metrics = copyOf.getMetrics();
+        long start = metrics.start();
+        boolean borrowed;
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = store();
+            borrowed = tryBorrowCopy(store, store.find(copyNumber), borrower);
+        } finally {
+            copyOf.getLock().unlock();
+        }
+        metrics.record(LibraryMetrics.Operation.BORROW, start, borrowed);
+        return borrowed;
+    }
+
+    // Used by the Book, which has already found the copy it is lending. The caller must hold the Book's lock
+    boolean tryBorrowCopy(CopyStore store, int pos, Patron borrower) {
+        if (store.status(pos) != Status.AVAILABLE)
+            return false;
+
+        lend(store, pos, borrower, false, null);
+        return true;
+    }
+
+    // Starts a loan of this copy to a borrower, whether it was AVAILABLE or is being handed on from a return
+    private void lend(CopyStore store, int pos, Patron borrower, boolean wasDue, LocalDate oldDueDate) {
+        Library library = copyOf.getLibrary();
+        LocalDate checkoutDate = library == null ? LocalDate.now() : library.today();
+        writing(store);
+        changeStatus(store, pos, Status.CHECKED_OUT);
+        store.setBorrower(pos, borrower);
+        store.setCheckoutDate(pos, checkoutDate);
+        store.setDueDate(pos, checkoutDate.plusDays(library == null ? Library.DEFAULT_LOAN_PERIOD : library.getLoanPeriod()));
+        updateDueDateIndex(store, pos, wasDue, oldDueDate);
+        borrower.borrowed(this);
+
+        if (store == copyOf.getCopyStore()) {
+            copyOf.copyLent();
+            for (LibraryListener listener : copyOf.getListeners())
+                listener.copyBorrowed(this);
+        }
     }
 
+    /**
+     * Returns this copy of the book, if it is borrowed. It is safe to call from several threads at once - only one of them will return the copy.
+     * 
+     * @return <code>true</code> if the copy was returned, or <code>false</code> if it was not borrowed.
+     */
+    public boolean tryReturnCopy() {
+        LibraryMetrics metrics = copyOf.getMetrics();
+        long start = metrics.start();
+        boolean returned;
+        copyOf.getLock().lock();
+        try {
+            CopyStore store = store();
+            returned = tryReturnCopy(store, store.find(copyNumber));
+        } finally {
+            copyOf.getLock().unlock();
+        }
+        metrics.record(LibraryMetrics.Operation.RETURN, start, returned);
+        return returned;
+    }
+
+    // Used by the Library, which has already found the copy being returned. The caller must hold the Book's lock
+    boolean tryReturnCopy(CopyStore store, int pos) {
+        Patron returnedBy = store.borrower(pos);
+        if (returnedBy == null)
+            return false;
+
+        writing(store);
+        boolean wasDue = isDue(store, pos);
+        LocalDate oldDueDate = store.dueDate(pos);
+        // If patrons are waiting, the copy goes straight to the oldest of them, and is never AVAILABLE for anyone else to take
+        Hold hold = store == copyOf.getCopyStore() ? copyOf.nextHold() : null;
+        if (hold == null) {
+            changeStatus(store, pos, Status.AVAILABLE);
+            store.setDueDate(pos, null);
+            updateDueDateIndex(store, pos, wasDue, oldDueDate);
+        }
+        returnedBy.removeBook(this);
+        store.setBorrower(pos, null);
+
+        if (store == copyOf.getCopyStore()) {
+            for (LibraryListener listener : copyOf.getListeners())
+                listener.copyReturned(this, returnedBy);
+        }
+
+        if (hold != null) {
+            lend(store, pos, hold.getPatron(), wasDue, oldDueDate);
+            copyOf.holdFilled(hold, copyNumber);
+        }
+        return true;
+    }
+
+    /**
+     * Compares this copy to another. Two views of the same copy of the same Book are equal, while copies made with the public constructor are only equal to themselves.
+     * 
+     * @param other The object to compare to.
+     * @return <code>true</code> if the other object is a view of the same copy.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof BookCopy))
+            return false;
+
+        BookCopy copy = (BookCopy) other;
+        return ownStore == null && copy.ownStore == null && copyOf == copy.copyOf && copyNumber == copy.copyNumber;
+    }
+
+    @Override
+    public int hashCode() { return ownStore != null ? System.identityHashCode(this) : 31 * System.identityHashCode(copyOf) + copyNumber; }
+
     public String toString() { 
         // (Breaks are not needed for this switch statement, as returns function as breaks)
-        switch (status) {
+        switch (getStatus()) {
             case AVAILABLE:
                 return "AVAILABLE";
             case CHECKED_OUT:
                 return "CHECKED_OUT <" + getCheckoutDate() + ">";
             case OVERDUE:
-                return "OVERDUE";
+                return "OVERDUE <" + getDueDate() + ">";
             default:
                 return "<unknown>";
         }
@@ -0,0 +1,99 @@
+package library;
+
+import java.time.LocalDate;
+
+/**
+ * A description of a Book held by one branch of a ShardedLibrary, as values which can be passed between branches.
+ * <p>
+ * A Book is a live object which belongs to a single Library, so it can't be handed to another branch or sent over a
+ * network. A record holds what the coordinator needs instead: what the book is, who wrote it, and how many copies the
+ * branch had when the record was made. Records never change.
+ */
+public final class BookRecord {
+    private final String branch;
+    private final String isbn;
+    private final String title;
+    private final String authorName;
+    private final LocalDate authorDOB;
+    private final String publisher;
+    private final int totalCopies;
+    private final int availableCopies;
+    // How well the book matched a search, for merging results from several branches. Zero for records not made by a search
+    private final double score;
+
+    /**
+     * Class constructor, for a book which is to be added to a branch.
+     *
+     * @param branch The name of the branch to add it to. Ignored when books are placed by ISBN.
+     * @param title Title of the book.
+     * @param authorName Full name of the book's author.
+     * @param authorDOB The author's date of birth, used if the branch doesn't know the author yet.
+     * @param isbn ISBN of the book.
+     * @param publisher Publisher of the book.
+     */
+    public BookRecord(String branch, String title, String authorName, LocalDate authorDOB, String isbn, String publisher) {
+        this(branch, isbn, title, authorName, authorDOB, publisher, 0, 0, 0);
+    }
+
+    private BookRecord(String branch, String isbn, String title, String authorName, LocalDate authorDOB, String publisher,
+            int totalCopies, int availableCopies, double score) {
+        this.branch = branch;
+        this.isbn = isbn;
+        this.title = title;
+        this.authorName = authorName;
+        this.authorDOB = authorDOB;
+        this.publisher = publisher;
+        this.totalCopies = totalCopies;
+        this.availableCopies = availableCopies;
+        this.score = score;
+    }
+
+    // Used by a branch, to describe one of its books as it is now. The copies are counted without taking the book's lock
+    static BookRecord of(String branch, Book book, double score) {
+        CopyStore copies = book.readCopies();
+        Author author = book.getAuthor();
+        return new BookRecord(branch, book.getISBN(), book.getTitle(), author.getName(), author.getDOB(), book.getPublisher(),
+                copies.size(), copies.count(Status.AVAILABLE), score);
+    }
+
+    /**
+     * @return The name of the branch holding the book.
+     */
+    public String getBranch() { return branch; }
+    /**
+     * @return The book's ISBN.
+     */
+    public String getISBN() { return isbn; }
+    /**
+     * @return The book's title.
+     */
+    public String getTitle() { return title; }
+    /**
+     * @return The full name of the book's author.
+     */
+    public String getAuthorName() { return authorName; }
+    /**
+     * @return The author's date of birth.
+     */
+    public LocalDate getAuthorDOB() { return authorDOB; }
+    /**
+     * @return The book's publisher.
+     */
+    public String getPublisher() { return publisher; }
+    /**
+     * @return The number of copies the branch had.
+     */
+    public int getTotalCopies() { return totalCopies; }
+    /**
+     * @return The number of those copies which were AVAILABLE.
+     */
+    public int getAvailableCopies() { return availableCopies; }
+    /**
+     * @return How well the book matched the search which found it. Will be 0 if the record wasn't made by a search.
+     */
+    public double getScore() { return score; }
+
+    public String toString() {
+        return String.format("%s by %s (ISBN %s) at %s: %d of %d copies available", title, authorName, isbn, branch, availableCopies, totalCopies);
+    }
+}
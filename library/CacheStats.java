@@ -0,0 +1,80 @@
+package library;
+
+/**
+ * A snapshot of how well one of the Library's query caches is doing.
+ */
+public class CacheStats {
+    private final String name;
+    private final Library.CachePolicy policy;
+    private final int capacity;
+    private final int size;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long invalidations;
+
+    /**
+     * Class constructor.
+     *
+     * @param name What the cache holds.
+     * @param policy How the cache evicts entries.
+     * @param capacity The most entries the cache holds.
+     * @param size The number of entries in the cache.
+     * @param hits The number of lookups answered from the cache.
+     * @param misses The number of lookups which weren't.
+     * @param evictions The number of entries evicted to make room.
+     * @param invalidations The number of entries removed because the data behind them changed.
+     */
+    public CacheStats(String name, Library.CachePolicy policy, int capacity, int size, long hits, long misses, long evictions, long invalidations) {
+        this.name = name;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+    }
+
+    /**
+     * @return What the cache holds.
+     */
+    public String getName() { return name; }
+    /**
+     * @return How the cache evicts entries.
+     */
+    public Library.CachePolicy getPolicy() { return policy; }
+    /**
+     * @return The most entries the cache holds.
+     */
+    public int getCapacity() { return capacity; }
+    /**
+     * @return The number of entries in the cache.
+     */
+    public int getSize() { return size; }
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHits() { return hits; }
+    /**
+     * @return The number of lookups which weren't.
+     */
+    public long getMisses() { return misses; }
+    /**
+     * @return The number of entries evicted to make room.
+     */
+    public long getEvictions() { return evictions; }
+    /**
+     * @return The number of entries removed because the data behind them changed.
+     */
+    public long getInvalidations() { return invalidations; }
+    /**
+     * @return The fraction of lookups answered from the cache, or 0 if there have been none.
+     */
+    public double getHitRate() { return hits + misses == 0 ? 0 : (double) hits / (hits + misses); }
+
+    public String toString() {
+        return String.format("%s (%s, %d/%d): %d hits, %d misses (%.1f%%), %d evicted, %d invalidated",
+                name, policy, size, capacity, hits, misses, getHitRate() * 100, evictions, invalidations);
+    }
+}
@@ -0,0 +1,427 @@
+package library;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Generates synthetic authors.csv, books.csv and patrons.csv files for load testing, in the format the Library's load methods read.
+ * <p>
+ * The output is reproducible: the same seed and sizes always give the same files. Each row is worked out from the seed and its
+ * row number alone, so rows are generated in parallel blocks and streamed to disk in order, and a row can be recreated
+ * without generating the ones before it. Author productivity and copy counts follow Zipf distributions, so a few authors
+ * write most of the books and most books have only a copy or two, as in a real collection.
+ * <p>
+ * Names, addresses and ISBNs are unique, so every generated author, patron and book can be found again by its key.
+ * <p>
+ * Usage: java library.CatalogGenerator directory authors books patrons [seed] [author skew] [copy skew]
+ */
+public class CatalogGenerator {
+    // Rows are generated in blocks of this many, one block per task
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    // Word lists for names, titles and places. Nothing in them contains the delimiter
+    private static final String[] GIVEN_NAMES = { "Ailyn", "Alyse", "Ari", "Bendite", "Celle", "Dannel", "Dorthy", "Dougie", "Dynah", "Ellsworth",
+        "Fawne", "Gilda", "Hamil", "Howie", "Jacobo", "Kent", "Kristy", "Leif", "Leland", "Lizbeth", "Marlee", "Merissa", "Nerta", "Nina",
+        "Prince", "Ricki", "Whitby" };
+    private static final String[] SYLLABLES = { "al", "an", "ber", "bul", "cas", "clo", "cor", "da", "el", "fer", "gan", "hol", "ing", "jes",
+        "kel", "lan", "ley", "mar", "min", "nel", "ow", "pugh", "quin", "rad", "sco", "stur", "ten", "ton", "vig", "wil", "yar", "zel" };
+    private static final String[] ADJECTIVES = { "Big", "Last", "Silent", "Crimson", "Hidden", "Lost", "Forgotten", "Golden", "Final", "Broken",
+        "Distant", "Endless", "Little", "Secret", "Wandering", "Burning" };
+    private static final String[] NOUNS = { "Book", "Arch", "Voyage", "Junkie", "Garden", "River", "Kingdom", "Lantern", "Winter", "Machine",
+        "Harbour", "Letter", "Orchard", "Tower", "Dream", "Atlas", "Compass", "Empire", "Forest", "Mirror" };
+    private static final String[] PUBLISHER_WORDS = { "Words", "Irregular", "Bookwyrms", "Five", "Lantern", "Quill", "Harbour", "Ink", "Paper",
+        "Northern", "Parchment", "Folio" };
+    private static final String[] PUBLISHER_KINDS = { "Publishing", "Books", "Press", "House", "& Sons" };
+    private static final String[] STREETS = { "Coleman", "Bartillon", "Packers", "Gateway", "Lullaby", "Mcguire", "Maple", "Birch", "Sunset",
+        "Harbor", "Ridge", "Meadow" };
+    private static final String[] STREET_KINDS = { "Terrace", "Court", "Lane", "Trail", "Way", "Circle", "Road", "Avenue" };
+
+    // Each kind of random choice draws from its own stream, so changing one doesn't change the others
+    private static final long AUTHOR_STREAM = 1;
+    private static final long BOOK_STREAM = 2;
+    private static final long PATRON_STREAM = 3;
+    private static final long COPY_STREAM = 4;
+
+    private final long seed;
+    private double authorSkew;
+    private double copySkew;
+    private int maxCopies;
+    private int numPublishers;
+    private ForkJoinPool pool;
+    // Built when first needed, as copiesOf is called once per book
+    private ZipfSampler copySampler;
+
+    /**
+     * Class constructor. By default author productivity has a Zipf exponent of 1.0, copy counts have an exponent of 1.5 up to
+     * 50 copies, and there are 500 publishers.
+     *
+     * @param seed The seed which decides every random choice.
+     */
+    public CatalogGenerator(long seed) {
+        this.seed = seed;
+        this.authorSkew = 1.0;
+        this.copySkew = 1.5;
+        this.maxCopies = 50;
+        this.numPublishers = 500;
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Sets how unevenly books are spread among authors. 0 spreads them evenly, and higher values give more books to the most productive authors.
+     *
+     * @param authorSkew The Zipf exponent of author productivity.
+     */
+    public void setAuthorSkew(double authorSkew) { this.authorSkew = authorSkew; }
+    /**
+     * Sets how unevenly copies are spread among books. 0 spreads them evenly, and higher values leave more books with a single copy.
+     *
+     * @param copySkew The Zipf exponent of copy counts.
+     */
+    public void setCopySkew(double copySkew) {
+        this.copySkew = copySkew;
+        this.copySampler = null;
+    }
+    /**
+     * @param maxCopies The largest number of copies a single book can have.
+     */
+    public void setMaxCopies(int maxCopies) {
+        this.maxCopies = maxCopies;
+        this.copySampler = null;
+    }
+    /**
+     * @param numPublishers The number of different publishers books are spread among.
+     */
+    public void setNumPublishers(int numPublishers) { this.numPublishers = numPublishers; }
+    /**
+     * @param pool The pool blocks of rows are generated on.
+     */
+    public void setPool(ForkJoinPool pool) { this.pool = pool; }
+
+    /**
+     * Writes authors.csv, books.csv and patrons.csv into a directory, creating it if needed.
+     *
+     * @param dir The directory to write to.
+     * @param numAuthors The number of authors.
+     * @param numBooks The number of books.
+     * @param numPatrons The number of patrons.
+     * @throws IOException If the files could not be written.
+     */
+    public void writeAll(String dir, long numAuthors, long numBooks, long numPatrons) throws IOException {
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        writeAuthors(path.resolve("authors.csv").toString(), numAuthors);
+        writeBooks(path.resolve("books.csv").toString(), numBooks, numAuthors);
+        writePatrons(path.resolve("patrons.csv").toString(), numPatrons);
+    }
+
+    /**
+     * Writes a list of authors, one per row as <code>name,year,month,day</code>.
+     *
+     * @param file The file to write.
+     * @param numAuthors The number of authors.
+     * @throws IOException If the file could not be written.
+     */
+    public void writeAuthors(String file, long numAuthors) throws IOException {
+        // Authors are born between 1900 and 2005
+        final long firstDay = LocalDate.of(1900, 1, 1).toEpochDay();
+        final long numDays = LocalDate.of(2006, 1, 1).toEpochDay() - firstDay;
+
+        write(file, numAuthors, (i, row) -> {
+            LocalDate dateOfBirth = LocalDate.ofEpochDay(firstDay + random(AUTHOR_STREAM, i).nextLong(numDays));
+            row.append(authorName(i)).append(',')
+                .append(dateOfBirth.getYear()).append(',')
+                .append(dateOfBirth.getMonthValue()).append(',')
+                .append(dateOfBirth.getDayOfMonth());
+        });
+    }
+
+    /**
+     * Writes a list of books, one per row as <code>title,author name,ISBN,publisher</code>. Authors are chosen
+     * from the first <code>numAuthors</code> authors written by writeAuthors.
+     *
+     * @param file The file to write.
+     * @param numBooks The number of books.
+     * @param numAuthors The number of authors to choose from.
+     * @throws IOException If the file could not be written.
+     */
+    public void writeBooks(String file, long numBooks, long numAuthors) throws IOException {
+        final ZipfSampler authors = new ZipfSampler(numAuthors, authorSkew);
+        // Publishers are skewed too - a handful of big houses publish most books
+        final ZipfSampler publishers = new ZipfSampler(numPublishers, 1.0);
+
+        write(file, numBooks, (i, row) -> {
+            SplittableRandom random = random(BOOK_STREAM, i);
+            appendTitle(row, random);
+            row.append(',').append(authorName(authors.sample(random) - 1));
+            row.append(',').append(isbn(i));
+            row.append(',');
+            appendPublisher(row, publishers.sample(random) - 1);
+        });
+    }
+
+    /**
+     * Writes a list of patrons, one per row as <code>name,address,phone number</code>.
+     *
+     * @param file The file to write.
+     * @param numPatrons The number of patrons.
+     * @throws IOException If the file could not be written.
+     */
+    public void writePatrons(String file, long numPatrons) throws IOException {
+        write(file, numPatrons, (i, row) -> {
+            SplittableRandom random = random(PATRON_STREAM, i);
+            row.append(patronName(i)).append(',').append(address(i)).append(',');
+            row.append(200 + random.nextInt(800)).append('-')
+                .append(100 + random.nextInt(900)).append('-');
+            appendPadded(row, random.nextInt(10000), 4);
+        });
+    }
+
+    /**
+     * Works out how many copies of a generated book the library should have. CSV files don't record copies, so this
+     * lets a load test add the same copies every time.
+     *
+     * @param book The row number of the book in books.csv, starting at 0.
+     * @return The number of copies, between 1 and the maximum.
+     */
+    public int copiesOf(long book) {
+        if (copySampler == null)
+            copySampler = new ZipfSampler(maxCopies, copySkew);
+        return (int) copySampler.sample(random(COPY_STREAM, book));
+    }
+
+    /**
+     * @param i The row number of an author, starting at 0.
+     * @return The name of that author. Every author has a different name.
+     */
+    public static String authorName(long i) {
+        StringBuilder name = new StringBuilder();
+        name.append(GIVEN_NAMES[(int) (i % GIVEN_NAMES.length)]).append(' ');
+        appendSurname(name, i / GIVEN_NAMES.length);
+        return name.toString();
+    }
+
+    /**
+     * @param i The row number of a patron, starting at 0.
+     * @return The name of that patron. Every patron has a different name.
+     */
+    public static String patronName(long i) {
+        // Patrons use the names of authors in reverse order, so the two lists don't look alike
+        StringBuilder name = new StringBuilder();
+        name.append(GIVEN_NAMES[GIVEN_NAMES.length - 1 - (int) (i % GIVEN_NAMES.length)]).append(' ');
+        appendSurname(name, i / GIVEN_NAMES.length);
+        return name.toString();
+    }
+
+    /**
+     * @param i The row number of a patron, starting at 0.
+     * @return The address of that patron.
+     */
+    public static String address(long i) {
+        long h = mix(i);
+        return (1 + Math.floorMod(h, 99999)) + " " + STREETS[Math.floorMod(h >>> 20, STREETS.length)] + " "
+            + STREET_KINDS[Math.floorMod(h >>> 40, STREET_KINDS.length)];
+    }
+
+    /**
+     * @param i The row number of a book, starting at 0.
+     * @return The ISBN of that book, in the same 10-digit form as data/books.csv. Every book up to a billion has a different ISBN.
+     */
+    public static String isbn(long i) {
+        // Multiplying by a number with no factors of 2 or 5 shuffles the numbers below a billion without repeating any
+        long digits = Math.floorMod(i * 387_420_489L, 1_000_000_000L);
+        String body = Long.toString(1_000_000_000L + digits).substring(1);
+
+        // The check digit makes the weighted sum of all ten digits (weights 10 down to 1) a multiple of 11
+        int sum = 0;
+        for (int d = 0; d < 9; d++)
+            sum += (body.charAt(d) - '0') * (10 - d);
+        int check = (11 - sum % 11) % 11;
+
+        return body.charAt(0) + "-" + body.substring(1, 3) + "-" + body.substring(3) + "-" + (check == 10 ? "X" : String.valueOf(check));
+    }
+
+    private static void appendSurname(StringBuilder name, long n) {
+        // Writes n in bijective base-32 with a syllable per digit, so every n gives a different surname
+        int start = name.length();
+        do {
+            name.insert(start, SYLLABLES[(int) (n % SYLLABLES.length)]);
+            n = n / SYLLABLES.length - 1;
+        } while (n >= 0);
+        name.setCharAt(start, Character.toUpperCase(name.charAt(start)));
+    }
+
+    private static void appendTitle(StringBuilder row, SplittableRandom random) {
+        if (random.nextBoolean())
+            row.append("The ");
+        row.append(ADJECTIVES[random.nextInt(ADJECTIVES.length)]).append(' ').append(NOUNS[random.nextInt(NOUNS.length)]);
+        if (random.nextInt(4) == 0)
+            row.append(" of the ").append(NOUNS[random.nextInt(NOUNS.length)]);
+        // Long series are common enough
+        if (random.nextInt(8) == 0)
+            row.append(" Volume ").append(2 + random.nextInt(9));
+    }
+
+    private static void appendPublisher(StringBuilder row, long i) {
+        row.append(PUBLISHER_WORDS[(int) (i % PUBLISHER_WORDS.length)]);
+        long n = i / PUBLISHER_WORDS.length;
+        if (n > 0)
+            row.append(' ').append(n + 1);
+        row.append(' ').append(PUBLISHER_KINDS[Math.floorMod(mix(i), PUBLISHER_KINDS.length)]);
+    }
+
+    private static void appendPadded(StringBuilder row, int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++)
+            row.append('0');
+        row.append(digits);
+    }
+
+    // A random number generator for one row of one stream, which only depends on the seed, the stream and the row
+    private SplittableRandom random(long stream, long row) {
+        return new SplittableRandom(mix(mix(seed + stream) + row));
+    }
+
+    // The SplitMix64 finaliser, which scrambles a number so that neighbouring inputs give unrelated outputs
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Writes one row (without its line break) for a row number
+    private interface RowWriter {
+        void write(long i, StringBuilder row);
+    }
+
+    // Generates blocks of rows in parallel, and writes them to the file in order
+    private void write(String file, long numRows, RowWriter rowWriter) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+            int maxPending = pool.getParallelism() * 2;
+
+            for (long blockStart = 0; blockStart < numRows; blockStart += BLOCK_SIZE) {
+                final long start = blockStart;
+                final long end = Math.min(blockStart + BLOCK_SIZE, numRows);
+                pending.add(pool.submit(() -> {
+                    StringBuilder block = new StringBuilder(BLOCK_SIZE * 48);
+                    for (long i = start; i < end; i++) {
+                        rowWriter.write(i, block);
+                        block.append('\n');
+                    }
+                    return block.toString().getBytes(StandardCharsets.UTF_8);
+                }));
+
+                if (pending.size() >= maxPending)
+                    out.write(next(pending));
+            }
+
+            while (!pending.isEmpty())
+                out.write(next(pending));
+        }
+    }
+
+    private static byte[] next(ArrayDeque<Future<byte[]>> pending) throws IOException {
+        try {
+            return pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating rows", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to generate rows", e.getCause());
+        }
+    }
+
+    /**
+     * Draws numbers from 1 to n, where k is drawn with a probability proportional to 1 / k^exponent.
+     * Uses rejection-inversion sampling (Hormann and Derflinger, 1996), which takes constant time and memory however large n is.
+     */
+    static class ZipfSampler {
+        private final long n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        ZipfSampler(long n, double exponent) {
+            if (n < 1)
+                throw new IllegalArgumentException("Need at least one element to sample from");
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1.0;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+        }
+
+        long sample(SplittableRandom random) {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                long k = (long) (x + 0.5);
+                if (k < 1)
+                    k = 1;
+                else if (k > n)
+                    k = n;
+
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k))
+                    return k;
+            }
+        }
+
+        private double h(double x) { return Math.exp(-exponent * Math.log(x)); }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1.0 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1.0 - exponent);
+            if (t < -1.0)
+                t = -1.0;
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, accurate near 0
+        private static double helper1(double x) {
+            if (Math.abs(x) > 1e-8)
+                return Math.log1p(x) / x;
+            return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+        }
+
+        // (exp(x) - 1) / x, accurate near 0
+        private static double helper2(double x) {
+            if (Math.abs(x) > 1e-8)
+                return Math.expm1(x) / x;
+            return 1.0 + x * 0.5 * (1.0 + x * 1.0 / 3.0 * (1.0 + 0.25 * x));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: java library.CatalogGenerator directory authors books patrons [seed] [author skew] [copy skew]");
+            System.exit(1);
+        }
+
+        CatalogGenerator generator = new CatalogGenerator(args.length > 4 ? Long.parseLong(args[4]) : 0);
+        if (args.length > 5)
+            generator.setAuthorSkew(Double.parseDouble(args[5]));
+        if (args.length > 6)
+            generator.setCopySkew(Double.parseDouble(args[6]));
+
+        long start = System.nanoTime();
+        generator.writeAll(args[0], Long.parseLong(args[1]), Long.parseLong(args[2]), Long.parseLong(args[3]));
+        System.out.println(String.format("Catalog written to %s in %.1fs", args[0], (System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,321 @@
+package library;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A case-insensitive hash index from a key (a title, an ISBN, a name...) to the items which have that key.
+ * Items which share a key are kept in the order they were added to the Library, so a lookup returns the
+ * same "first match" that a linear scan over the Library's lists would.
+ * <p>
+ * The index doesn't keep the keys themselves - only their hashes, and the items. When two hashes match, the key is read
+ * back from an item to confirm it, so keys which are stored off the heap stay there. An index whose keys are entries in
+ * a Library's StringDictionary confirms a match by comparing dictionary keys instead, without reading or folding a string.
+ * <p>
+ * Changes are made by one thread at a time - the Library's, under its monitor - while lookups may run on any number of
+ * threads with no lock at all. A lookup reads the table through one volatile field, and each slot with an acquiring read
+ * which pairs with the releasing write that filled it, so it sees either an item before a change or after it, never a
+ * half-made one. Nothing a lookup can reach is changed in place: a table which grows is rebuilt and published whole,
+ * groups of items sharing a key are copied to change them, and a removed item leaves a marker behind rather than
+ * moving the items after it, so a lookup under way never misses a key which was there before it started.
+ */
+class CatalogIndex<T> {
+    // Pairs an item with its position in the Library, which decides the order of items sharing a key
+    private static class Entry<T> {
+        private final T item;
+        private final int seq;
+
+        private Entry(T item, int seq) {
+            this.item = item;
+            this.seq = seq;
+        }
+    }
+
+    // The items sharing a key, when there is more than one. Never changed once it is in a table - a change makes a new one
+    private static class Group<T> {
+        private final ArrayList<Entry<T>> entries;
+
+        private Group(ArrayList<Entry<T>> entries) { this.entries = entries; }
+    }
+
+    // The arrays of a table, which are replaced together when it grows, so a lookup can never see some from before and
+    // some from after
+    private static class Table {
+        private final int[] hashes;
+        private final Object[] slots;
+        private final int[] seqs;
+
+        private Table(int capacity) {
+            this.hashes = new int[capacity];
+            this.slots = new Object[capacity];
+            this.seqs = new int[capacity];
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Left in the slot of a removed item, so the keys after it in its run can still be reached
+    private static final Object REMOVED = new Object();
+
+    // Reads and writes of single slots, so a slot's hash and item are always seen together
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    // Reads an item's key, to confirm a match
+    private final Function<T, String> keyOf;
+    // The dictionary holding the keys, and a way to read the dictionary key of an item's key, for an index which matches
+    // by dictionary keys. Both are null otherwise
+    private final StringDictionary dictionary;
+    private final ToIntFunction<T> dictionaryKeyOf;
+
+    // An open-addressed table with one slot per distinct key. Almost every key has a single item, which is kept in the
+    // slot itself along with its position in the Library - a key shared by several items gets a Group instead
+    private volatile Table table;
+    // The number of keys, and of slots which are not empty, counting those left by removed items
+    private int size;
+    private int used;
+
+    /**
+     * Class constructor. The index starts out empty.
+     *
+     * @param keyOf Reads the current key of an item.
+     */
+    CatalogIndex(Function<T, String> keyOf) { this(keyOf, null, null); }
+
+    /**
+     * Class constructor, for an index whose keys are entries in a StringDictionary. The index starts out empty.
+     *
+     * @param keyOf Reads the current key of an item.
+     * @param dictionary The dictionary which holds every item's key.
+     * @param dictionaryKeyOf Reads the dictionary key of an item's current key, which items share when their keys
+     *      are equal ignoring case.
+     */
+    CatalogIndex(Function<T, String> keyOf, StringDictionary dictionary, ToIntFunction<T> dictionaryKeyOf) {
+        this.keyOf = keyOf;
+        this.dictionary = dictionary;
+        this.dictionaryKeyOf = dictionaryKeyOf;
+        this.table = new Table(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Folds a key so that two keys which are <code>equalsIgnoreCase</code> fold to equal strings.
+     * This is the same per-character comparison that <code>String.equalsIgnoreCase</code> makes.
+     *
+     * @param key The key to fold.
+     * @return The folded key, which is the key itself if it needed no changes.
+     */
+    static String fold(String key) {
+        if (key == null)
+            return null;
+
+        char[] folded = null;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            char f = Character.toLowerCase(Character.toUpperCase(c));
+            if (f != c) {
+                // Only copy the key once we know it actually changes
+                if (folded == null)
+                    folded = key.toCharArray();
+                folded[i] = f;
+            }
+        }
+
+        return folded == null ? key : new String(folded);
+    }
+
+    /**
+     * Adds an item to the index. Only one thread may change the index at a time.
+     *
+     * @param key The key of the item. Items with a <code>null</code> key are not indexed.
+     * @param item The item to add.
+     * @param seq The position of the item in the Library, used to order items which share a key.
+     */
+    @SuppressWarnings("unchecked")
+    void add(String key, T item, int seq) {
+        if (key == null)
+            return;
+
+        Table t = table;
+        Probe probe = new Probe(key);
+        int slot = find(t, probe);
+        if (slot < 0) {
+            slot = -(slot + 1);
+            if (t.slots[slot] == null)
+                used++;
+            size++;
+            t.hashes[slot] = probe.hash;
+            t.seqs[slot] = seq;
+            SLOTS.setRelease(t.slots, slot, item);
+            if (used * 2 > t.slots.length)
+                rebuild(t);
+            return;
+        }
+
+        ArrayList<Entry<T>> entries;
+        if (t.slots[slot] instanceof Group) {
+            entries = new ArrayList<Entry<T>>(((Group<T>) t.slots[slot]).entries);
+        } else {
+            entries = new ArrayList<Entry<T>>(2);
+            entries.add(new Entry<T>((T) t.slots[slot], t.seqs[slot]));
+        }
+
+        // Items are nearly always added in order, so search for the insertion point from the end
+        int pos = entries.size();
+        while (pos > 0 && entries.get(pos - 1).seq > seq)
+            pos--;
+        entries.add(pos, new Entry<T>(item, seq));
+        SLOTS.setRelease(t.slots, slot, new Group<T>(entries));
+    }
+
+    /**
+     * Removes an item from the index. Only one thread may change the index at a time.
+     *
+     * @param key The key the item was added under.
+     * @param item The item to remove.
+     */
+    @SuppressWarnings("unchecked")
+    void remove(String key, T item) {
+        if (key == null)
+            return;
+
+        // The item's key may already have changed, so it is found by the old key's hash and the item itself
+        Table t = table;
+        int mask = t.slots.length - 1;
+        int hash = new Probe(key).hash;
+        for (int slot = hash & mask; t.slots[slot] != null; slot = (slot + 1) & mask) {
+            if (t.hashes[slot] != hash)
+                continue;
+
+            Object current = t.slots[slot];
+            if (current == item) {
+                SLOTS.setRelease(t.slots, slot, REMOVED);
+                size--;
+                return;
+            }
+            if (current instanceof Group) {
+                ArrayList<Entry<T>> entries = ((Group<T>) current).entries;
+                for (int i = 0; i < entries.size(); i++) {
+                    if (entries.get(i).item == item) {
+                        ArrayList<Entry<T>> remaining = new ArrayList<Entry<T>>(entries);
+                        remaining.remove(i);
+                        if (remaining.size() == 1) {
+                            t.seqs[slot] = remaining.get(0).seq;
+                            SLOTS.setRelease(t.slots, slot, remaining.get(0).item);
+                        } else {
+                            SLOTS.setRelease(t.slots, slot, new Group<T>(remaining));
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the first item with a given key. Safe to call from any thread, while the index is being changed.
+     *
+     * @param key The key to search for.
+     * @return The item which was added to the Library first. Will be <code>null</code> if no match was found.
+     */
+    T first(String key) {
+        if (key == null)
+            return null;
+
+        Probe probe = new Probe(key);
+        // A key with no dictionary key is equal to no string in the dictionary, so no item can have it
+        if (dictionaryKeyOf != null && probe.dictionaryKey == StringDictionary.NO_ID)
+            return null;
+
+        Table t = table;
+        int mask = t.slots.length - 1;
+        for (int slot = probe.hash & mask; ; slot = (slot + 1) & mask) {
+            Object current = SLOTS.getAcquire(t.slots, slot);
+            if (current == null)
+                return null;
+            if (current != REMOVED && t.hashes[slot] == probe.hash) {
+                T item = firstItem(current);
+                if (probe.matches(item))
+                    return item;
+            }
+        }
+    }
+
+    // A key being looked up, as its folded text or its dictionary key, whichever the index matches by, and its hash
+    private class Probe {
+        private final String folded;
+        private final int dictionaryKey;
+        private final int hash;
+
+        private Probe(String key) {
+            if (dictionaryKeyOf == null) {
+                this.folded = fold(key);
+                this.dictionaryKey = StringDictionary.NO_ID;
+                this.hash = hash(folded);
+            } else {
+                this.folded = null;
+                this.dictionaryKey = dictionary.keyOf(key);
+                this.hash = hash(dictionaryKey);
+            }
+        }
+
+        private boolean matches(T item) {
+            return folded != null ? folded.equals(fold(keyOf.apply(item))) : dictionaryKeyOf.applyAsInt(item) == dictionaryKey;
+        }
+    }
+
+    // Finds the slot holding a key, or -(the slot where it would go) - 1, which is the first slot left by a removed item
+    // in its run if there is one, or else the empty slot ending the run. Only used by the thread changing the index
+    private int find(Table t, Probe probe) {
+        int mask = t.slots.length - 1;
+        int free = -1;
+        int slot = probe.hash & mask;
+        for (; t.slots[slot] != null; slot = (slot + 1) & mask) {
+            if (t.slots[slot] == REMOVED) {
+                if (free < 0)
+                    free = slot;
+            } else if (t.hashes[slot] == probe.hash && probe.matches(firstItem(t.slots[slot]))) {
+                return slot;
+            }
+        }
+        return -((free >= 0 ? free : slot) + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T firstItem(Object slotted) { return slotted instanceof Group ? ((Group<T>) slotted).entries.get(0).item : (T) slotted; }
+
+    // Copies the keys into a new table, leaving out the slots of removed items, and publishes it whole. The table only
+    // grows if the keys alone would fill it more than a quarter full, as a table filled mostly by removals just needs clearing
+    private void rebuild(Table old) {
+        int capacity = size * 4 > old.slots.length ? old.slots.length * 2 : old.slots.length;
+        Table t = new Table(capacity);
+
+        // Keys in the old table are all distinct, so each just goes in the first free slot from its home
+        for (int i = 0; i < old.slots.length; i++) {
+            if (old.slots[i] == null || old.slots[i] == REMOVED)
+                continue;
+
+            int slot = old.hashes[i] & (capacity - 1);
+            while (t.slots[slot] != null)
+                slot = (slot + 1) & (capacity - 1);
+            t.hashes[slot] = old.hashes[i];
+            t.slots[slot] = old.slots[i];
+            t.seqs[slot] = old.seqs[i];
+        }
+        used = size;
+        table = t;
+    }
+
+    // Spreads the high bits of the hash into the low ones, which choose the slot
+    private static int hash(String folded) {
+        int h = folded.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Dictionary keys are handed out in order, so they are scattered before they choose a slot
+    private static int hash(int dictionaryKey) {
+        int h = dictionaryKey * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,67 @@
+package library;
+
+import java.util.List;
+
+/**
+ * A point-in-time view of a Library's authors, patrons and books, which never changes once it is made.
+ * <p>
+ * Every addition to a Library publishes a new view, sharing nearly everything with the one before, so taking a view
+ * costs nothing and reading one needs no locks. Reports, searches and anything else which walks the whole catalog can
+ * read a view from any thread while books are being added and lent, without seeing a half-made change or a
+ * ConcurrentModificationException.
+ * <p>
+ * A view fixes which authors, patrons and books there are. The Books themselves are the live objects, so their copies
+ * show their current state.
+ */
+public final class CatalogView {
+    private final long version;
+    private final PersistentVector<Author> authors;
+    private final PersistentVector<Patron> patrons;
+    private final PersistentVector<Book> books;
+
+    private CatalogView(long version, PersistentVector<Author> authors, PersistentVector<Patron> patrons, PersistentVector<Book> books) {
+        this.version = version;
+        this.authors = authors;
+        this.patrons = patrons;
+        this.books = books;
+    }
+
+    // The view of a new, empty Library
+    static CatalogView empty() {
+        return new CatalogView(0, PersistentVector.<Author>empty(), PersistentVector.<Patron>empty(), PersistentVector.<Book>empty());
+    }
+
+    /**
+     * @return The number of additions made to the Library before this view, which orders views of the same Library.
+     */
+    public long getVersion() { return version; }
+    /**
+     * @return The Library's Authors, in the order they were added. The list can't be changed.
+     */
+    public List<Author> getAuthors() { return authors.asList(); }
+    /**
+     * @return The Library's Patrons, in the order they were added. The list can't be changed.
+     */
+    public List<Patron> getPatrons() { return patrons.asList(); }
+    /**
+     * @return The Library's Books, in the order they were added. The list can't be changed.
+     */
+    public List<Book> getBooks() { return books.asList(); }
+
+    // Used by the Library to make the views which follow this one
+    CatalogView withAuthor(Author author) { return new CatalogView(version + 1, authors.append(author), patrons, books); }
+
+    CatalogView withPatron(Patron patron) { return new CatalogView(version + 1, authors, patrons.append(patron), books); }
+
+    CatalogView withBook(Book book) { return new CatalogView(version + 1, authors, patrons, books.append(book)); }
+
+    // Positions in a view are the positions the Library's indexes use, so they can be looked up directly
+    Book bookAt(int seq) { return books.get(seq); }
+    Patron patronAt(int seq) { return patrons.get(seq); }
+
+    int authorCount() { return authors.size(); }
+
+    int patronCount() { return patrons.size(); }
+
+    int bookCount() { return books.size(); }
+}
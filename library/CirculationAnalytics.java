@@ -0,0 +1,298 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reports on how a Library's books and patrons circulate: the most borrowed titles, demand by author and publisher,
+ * the most active patrons, and how much of the collection is on loan.
+ * <p>
+ * Every Book and Patron counts the copies lent to or by it as they are lent, under locks already held for the loan, so
+ * circulation costs nothing extra to record. A report walks a CatalogView of the Library, split into ranges which are
+ * tallied in parallel on a fork-join pool, each with its own primitive count tables and top-k heaps, which are merged
+ * as the ranges join. Reading a Book takes its lock only long enough to copy a handful of counters, so reports can be
+ * made while the Library is busy lending, and never hold up a loan for long.
+ * <p>
+ * Borrowing is counted from the start of a period, which is when the analytics were made, or the last call to
+ * <code>startPeriod</code>. Books and patrons added since then count everything they have borrowed.
+ */
+public class CirculationAnalytics {
+    /**
+     * How many entries each ranking in a report holds, unless told otherwise.
+     */
+    public static final int DEFAULT_TOP = 10;
+
+    // Ranges of books or patrons smaller than this are tallied on one thread rather than split again
+    private static final int SPLIT_THRESHOLD = 4096;
+
+    private final Library library;
+    private final ForkJoinPool pool;
+    // Each book's and patron's borrow count when the period started, by position in the Library
+    private long[] bookBaseline;
+    private long[] patronBaseline;
+    private LocalDate periodStart;
+
+    /**
+     * Class constructor. Reports are tallied on the common fork-join pool, and the first period starts now.
+     *
+     * @param library The Library to report on.
+     */
+    public CirculationAnalytics(Library library) { this(library, ForkJoinPool.commonPool()); }
+
+    /**
+     * Class constructor. The first period starts now.
+     *
+     * @param library The Library to report on.
+     * @param pool The pool to tally reports on.
+     */
+    public CirculationAnalytics(Library library, ForkJoinPool pool) {
+        this.library = library;
+        this.pool = pool;
+        startPeriod();
+    }
+
+    /**
+     * Starts a new period, so that later reports count only what is borrowed from now on.
+     */
+    public synchronized void startPeriod() {
+        CatalogView view = library.getCatalogView();
+        long[] books = new long[view.bookCount()];
+        for (int seq = 0; seq < books.length; seq++)
+            books[seq] = view.bookAt(seq).getBorrowCount();
+        long[] patrons = new long[view.patronCount()];
+        for (int seq = 0; seq < patrons.length; seq++)
+            patrons[seq] = view.patronAt(seq).getBorrowCount();
+
+        this.bookBaseline = books;
+        this.patronBaseline = patrons;
+        this.periodStart = library.today();
+    }
+
+    /**
+     * @return The Library's date when the current period started.
+     */
+    public synchronized LocalDate getPeriodStart() { return periodStart; }
+
+    /**
+     * Reports on circulation since the period started, with DEFAULT_TOP entries in each ranking.
+     *
+     * @return The report.
+     */
+    public CirculationReport report() { return report(DEFAULT_TOP); }
+
+    /**
+     * Reports on circulation since the period started.
+     *
+     * @param top How many entries each ranking holds.
+     * @return The report.
+     */
+    public synchronized CirculationReport report(int top) {
+        if (top < 0)
+            throw new IllegalArgumentException("A ranking can't hold fewer than 0 entries");
+
+        CatalogView view = library.getCatalogView();
+        BookTally books = pool.invoke(new BookPass(view, bookBaseline, top, 0, view.bookCount()));
+        PatronTally patrons = pool.invoke(new PatronPass(view, patronBaseline, top, 0, view.patronCount()));
+
+        ArrayList<CirculationReport.Entry<Book>> mostBorrowed = new ArrayList<CirculationReport.Entry<Book>>();
+        int[] ids = new int[top];
+        long[] counts = new long[top];
+        int n = books.top.drain(ids, counts);
+        for (int i = 0; i < n; i++)
+            mostBorrowed.add(new CirculationReport.Entry<Book>(view.bookAt(ids[i]), counts[i]));
+
+        ArrayList<CirculationReport.Entry<Patron>> mostActive = new ArrayList<CirculationReport.Entry<Patron>>();
+        n = patrons.top.drain(ids, counts);
+        for (int i = 0; i < n; i++)
+            mostActive.add(new CirculationReport.Entry<Patron>(view.patronAt(ids[i]), counts[i]));
+
+        // Equal demand goes to the author added first, or the publisher first alphabetically
+        ArrayList<CirculationReport.Entry<Author>> authorDemand = ranking(books.authors, top, Comparator.comparingInt(Author::getCatalogSeq));
+        ArrayList<CirculationReport.Entry<String>> publisherDemand = ranking(books.publishers, top, Comparator.<String>naturalOrder());
+
+        return new CirculationReport(library.today(), periodStart, mostBorrowed, authorDemand, publisherDemand, mostActive,
+                books.borrowed, patrons.borrowing, patrons.active, patrons.withLoans, view.patronCount(),
+                books.copiesByStatus, books.noCopyFree, books.holdsWaiting,
+                view.bookCount());
+    }
+
+    // Picks the keys with the highest counts, most first. Keys with equal counts are ranked in an order of their own,
+    // so the ranking doesn't depend on where the keys happen to sit in the map
+    private static <K> ArrayList<CirculationReport.Entry<K>> ranking(CountMap<K> map, int top, Comparator<? super K> ties) {
+        Comparator<CirculationReport.Entry<K>> order = Comparator.comparingLong((CirculationReport.Entry<K> entry) -> -entry.getCount())
+                .thenComparing(CirculationReport.Entry::getItem, ties);
+        // The worst of the best so far is at the head, to be pushed out by any better key
+        PriorityQueue<CirculationReport.Entry<K>> best = new PriorityQueue<CirculationReport.Entry<K>>(Math.max(1, top), order.reversed());
+        map.forEach((key, count) -> {
+            CirculationReport.Entry<K> entry = new CirculationReport.Entry<K>(key, count);
+            if (best.size() < top)
+                best.add(entry);
+            else if (top > 0 && order.compare(entry, best.peek()) < 0) {
+                best.poll();
+                best.add(entry);
+            }
+        });
+
+        ArrayList<CirculationReport.Entry<K>> entries = new ArrayList<CirculationReport.Entry<K>>(best);
+        entries.sort(order);
+        return entries;
+    }
+
+    // How much a book or patron has borrowed since the period started. Those added since count everything
+    private static long sinceStart(long borrowCount, long[] baseline, int seq) {
+        return seq < baseline.length ? Math.max(0, borrowCount - baseline[seq]) : borrowCount;
+    }
+
+    // What one range of books adds up to
+    private static final class BookTally {
+        final TopK top;
+        final CountMap<Author> authors = new CountMap<Author>();
+        final CountMap<String> publishers = new CountMap<String>();
+        final long[] copiesByStatus = new long[Status.values().length];
+        long borrowed;
+        int noCopyFree;
+        long holdsWaiting;
+
+        BookTally(int top) { this.top = new TopK(top); }
+
+        BookTally merge(BookTally other) {
+            top.addAll(other.top);
+            authors.addAll(other.authors);
+            publishers.addAll(other.publishers);
+            for (int i = 0; i < copiesByStatus.length; i++)
+                copiesByStatus[i] += other.copiesByStatus[i];
+            borrowed += other.borrowed;
+            noCopyFree += other.noCopyFree;
+            holdsWaiting += other.holdsWaiting;
+            return this;
+        }
+    }
+
+    // Tallies a range of books, splitting it in half until it is small enough for one thread
+    private static final class BookPass extends RecursiveTask<BookTally> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient CatalogView view;
+        private final long[] baseline;
+        private final int top;
+        private final int from;
+        private final int to;
+
+        BookPass(CatalogView view, long[] baseline, int top, int from, int to) {
+            this.view = view;
+            this.baseline = baseline;
+            this.top = top;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected BookTally compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                BookPass left = new BookPass(view, baseline, top, from, mid);
+                left.fork();
+                BookTally right = new BookPass(view, baseline, top, mid, to).compute();
+                return left.join().merge(right);
+            }
+
+            BookTally tally = new BookTally(top);
+            int statuses = tally.copiesByStatus.length;
+            // Copy counts by status, then holds waiting, then the borrow count, as Book.readCirculation fills them
+            long[] counts = new long[statuses + 2];
+            for (int seq = from; seq < to; seq++) {
+                Book book = view.bookAt(seq);
+                book.readCirculation(counts);
+
+                long copies = 0;
+                for (int i = 0; i < statuses; i++) {
+                    tally.copiesByStatus[i] += counts[i];
+                    copies += counts[i];
+                }
+                if (copies > 0 && counts[Status.AVAILABLE.ordinal()] == 0)
+                    tally.noCopyFree++;
+                tally.holdsWaiting += counts[statuses];
+
+                long borrowed = sinceStart(counts[statuses + 1], baseline, seq);
+                if (borrowed > 0) {
+                    tally.borrowed += borrowed;
+                    tally.top.offer(seq, borrowed);
+                    tally.authors.add(book.getAuthor(), borrowed);
+                    tally.publishers.add(book.getPublisher(), borrowed);
+                }
+            }
+            return tally;
+        }
+    }
+
+    // What one range of patrons adds up to
+    private static final class PatronTally {
+        final TopK top;
+        long borrowing;
+        int active;
+        int withLoans;
+
+        PatronTally(int top) { this.top = new TopK(top); }
+
+        PatronTally merge(PatronTally other) {
+            top.addAll(other.top);
+            borrowing += other.borrowing;
+            active += other.active;
+            withLoans += other.withLoans;
+            return this;
+        }
+    }
+
+    // Tallies a range of patrons, splitting it in half until it is small enough for one thread
+    private static final class PatronPass extends RecursiveTask<PatronTally> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient CatalogView view;
+        private final long[] baseline;
+        private final int top;
+        private final int from;
+        private final int to;
+
+        PatronPass(CatalogView view, long[] baseline, int top, int from, int to) {
+            this.view = view;
+            this.baseline = baseline;
+            this.top = top;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected PatronTally compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                PatronPass left = new PatronPass(view, baseline, top, from, mid);
+                left.fork();
+                PatronTally right = new PatronPass(view, baseline, top, mid, to).compute();
+                return left.join().merge(right);
+            }
+
+            PatronTally tally = new PatronTally(top);
+            // Copies on loan, copies borrowed, then holds waiting, as Patron.readCirculation fills them
+            long[] counts = new long[3];
+            for (int seq = from; seq < to; seq++) {
+                view.patronAt(seq).readCirculation(counts);
+                if (counts[0] > 0)
+                    tally.withLoans++;
+
+                long borrowed = sinceStart(counts[1], baseline, seq);
+                if (borrowed > 0) {
+                    tally.borrowing += borrowed;
+                    tally.active++;
+                    tally.top.offer(seq, borrowed);
+                }
+            }
+            return tally;
+        }
+    }
+
+    public String toString() { return "CirculationAnalytics[since " + getPeriodStart() + "]"; }
+}
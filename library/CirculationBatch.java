@@ -0,0 +1,101 @@
+package library;
+
+import java.util.ArrayList;
+
+/**
+ * A list of checkouts and returns to be made together, such as everything scanned at a self-service kiosk or sorted
+ * by a book drop. Items are added to the batch, which is then handed to <code>Library.applyBatch</code>.
+ * <p>
+ * By default a batch is atomic: if any item can't be made, none of them are. A batch which isn't atomic makes every
+ * item it can, and reports the rest as failures.
+ */
+public class CirculationBatch {
+    // A single checkout or return. Items are numbered in the order they were added, which is how failures refer to them
+    static class Item {
+        final boolean isReturn;
+        final Patron patron;
+        final String isbn;
+        final Book book;
+        final int count;
+        final int copyNumber;
+
+        private Item(boolean isReturn, Patron patron, String isbn, Book book, int count, int copyNumber) {
+            this.isReturn = isReturn;
+            this.patron = patron;
+            this.isbn = isbn;
+            this.book = book;
+            this.count = count;
+            this.copyNumber = copyNumber;
+        }
+    }
+
+    private final ArrayList<Item> items;
+    private boolean atomic;
+
+    /**
+     * Class constructor. The batch starts out empty, and atomic.
+     */
+    public CirculationBatch() {
+        this.items = new ArrayList<Item>();
+        this.atomic = true;
+    }
+
+    /**
+     * Adds a checkout of one or more copies of a book.
+     *
+     * @param patron The Patron borrowing the copies.
+     * @param isbn The ISBN of the book.
+     * @param count The number of copies to borrow.
+     * @return This batch, so calls can be chained.
+     */
+    public CirculationBatch checkout(Patron patron, String isbn, int count) {
+        items.add(new Item(false, patron, isbn, null, count, 0));
+        return this;
+    }
+
+    /**
+     * Adds the return of a copy, identified by its book's ISBN and its copy number.
+     *
+     * @param isbn The ISBN of the book.
+     * @param copyNumber The number of the copy.
+     * @return This batch, so calls can be chained.
+     */
+    public CirculationBatch checkin(String isbn, int copyNumber) {
+        items.add(new Item(true, null, isbn, null, 1, copyNumber));
+        return this;
+    }
+
+    /**
+     * Adds the return of a copy.
+     *
+     * @param copy The copy being returned.
+     * @return This batch, so calls can be chained.
+     */
+    public CirculationBatch checkin(BookCopy copy) {
+        items.add(new Item(true, null, null, copy.getBook(), 1, copy.getCopyNumber()));
+        return this;
+    }
+
+    /**
+     * Sets whether the batch is all-or-nothing.
+     *
+     * @param atomic <code>true</code> if a single failure should stop every item from being made, or <code>false</code>
+     *      if the items which can be made should be. Batches are atomic by default.
+     * @return This batch, so calls can be chained.
+     */
+    public CirculationBatch setAtomic(boolean atomic) {
+        this.atomic = atomic;
+        return this;
+    }
+    /**
+     * @return <code>true</code> if a single failure stops every item in the batch from being made.
+     */
+    public boolean isAtomic() { return atomic; }
+    /**
+     * @return The number of checkouts and returns in the batch.
+     */
+    public int size() { return items.size(); }
+
+    // Used by the Library as it applies the batch
+    ArrayList<Item> getItems() { return items; }
+}
@@ -0,0 +1,710 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every change to a Library's circulation, so that nothing is lost when the program stops.
+ * <p>
+ * The journal listens to the Library, and turns each change into a record which is queued for a background thread to write.
+ * That thread writes everything which has queued up since its last write, and then syncs the file to disk once for the whole
+ * batch ("group commit"), so a burst of checkouts costs a handful of syncs rather than one each. Changes are not held up
+ * waiting for the disk - a desk which needs to know its checkout is safe calls <code>awaitDurable</code> afterwards.
+ * <p>
+ * The journal lives in a directory, alongside a LibrarySnapshot. <code>checkpoint</code> saves a new snapshot and deletes
+ * the journal records it makes unnecessary, so the journal never grows without bound. <code>recover</code> loads the
+ * snapshot and replays the journal over it, which restores the status, borrower, checkout date and due date of every copy.
+ * Replaying a record more than once has no further effect, so checkpoints can be taken while circulation carries on.
+ * <p>
+ * The journal records new authors, patrons, books and copies, all circulation, and holds as they are placed, filled and
+ * cancelled. Changes to names, titles, addresses and publishers are not journaled, and are only saved by the next checkpoint.
+ */
+public class CirculationJournal implements LibraryListener, AutoCloseable {
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // The types of record in the journal
+    private static final byte ADD_AUTHOR = 1;
+    private static final byte ADD_PATRON = 2;
+    private static final byte ADD_BOOK = 3;
+    private static final byte ADD_COPY = 4;
+    private static final byte REMOVE_COPY = 5;
+    private static final byte BORROW = 6;
+    private static final byte RETURN = 7;
+    private static final byte SET = 8;
+    private static final byte HOLD_PLACED = 9;
+    private static final byte HOLD_FILLED = 10;
+    private static final byte HOLD_CANCELLED = 11;
+
+    private static final int NONE = -1;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final Status[] STATUSES = Status.values();
+    // Queued in place of a record to tell the writer to start a new segment file
+    private static final byte[] ROTATE = new byte[0];
+
+    private final Library library;
+    private final Path dir;
+    private final Thread writer;
+
+    // Guards everything below. Appending a record only holds it long enough to add to the queue
+    private final Object queueLock = new Object();
+    private ArrayList<byte[]> queue;
+    // Records are numbered in the order they are queued. Every record up to durableSeq is safely on disk
+    private long appendedSeq;
+    private long durableSeq;
+    private long syncs;
+    private boolean closing;
+    private IOException failure;
+
+    // The number of the last record each thread appended, for awaitDurable
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+    // Only touched by the writer thread (and by checkpoint, once the writer has switched segments)
+    private FileChannel segment;
+    private volatile int segmentNumber;
+
+    /**
+     * Class constructor. Opens a journal in a directory, and starts journaling every change to the Library.
+     * If the directory doesn't have a snapshot yet, one is saved straight away, so the journal always has something to replay onto.
+     * To carry on from an earlier run, pass in the Library returned by <code>recover</code>.
+     *
+     * @param library The Library to journal.
+     * @param dir The directory to keep the journal in. It is created if needed.
+     * @throws IOException If the journal could not be opened.
+     */
+    public CirculationJournal(Library library, String dir) throws IOException {
+        this.library = library;
+        this.dir = Paths.get(dir);
+        this.queue = new ArrayList<byte[]>();
+        Files.createDirectories(this.dir);
+
+        // Always start a fresh segment, so a torn record at the end of the last run's segment stays where it is
+        ArrayList<Integer> existing = segmentNumbers(this.dir);
+        this.segmentNumber = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.segment = openSegment(segmentNumber);
+
+        this.writer = new Thread(this::writeLoop, "circulation-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        library.addListener(this);
+
+        if (!Files.exists(this.dir.resolve(CHECKPOINT_FILE)))
+            checkpoint();
+    }
+
+    /**
+     * Rebuilds a Library from the snapshot and journal in a directory.
+     *
+     * @param dir The directory the journal was kept in.
+     * @return The Library, in the state of the last change which reached the disk. If the directory is empty, the Library is empty too.
+     * @throws IOException If the snapshot or journal could not be read.
+     */
+    public static Library recover(String dir) throws IOException {
+        Path path = Paths.get(dir);
+        Path snapshot = path.resolve(SNAPSHOT_FILE);
+        Library library = Files.exists(snapshot) ? LibrarySnapshot.load(snapshot.toString()) : new Library();
+
+        int firstSegment = readCheckpoint(path);
+        for (int number : segmentNumbers(path)) {
+            if (number >= firstSegment)
+                replay(library, path.resolve(segmentName(number)));
+        }
+
+        return library;
+    }
+
+    /**
+     * Waits until every change this thread has made so far is safely on disk.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    public void awaitDurable() throws IOException { awaitSeq(lastAppended.get()[0]); }
+
+    /**
+     * Waits until every change made so far, by any thread, is safely on disk.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    public void flush() throws IOException {
+        long seq;
+        synchronized (queueLock) {
+            seq = appendedSeq;
+        }
+        awaitSeq(seq);
+    }
+
+    /**
+     * Saves a new snapshot of the Library, and deletes the journal records which came before it.
+     * Circulation can carry on while this runs.
+     *
+     * @throws IOException If the snapshot could not be saved.
+     */
+    public synchronized void checkpoint() throws IOException {
+        // Switch to a new segment. Everything from here on is replayed over the new snapshot
+        long seq;
+        synchronized (queueLock) {
+            queue.add(ROTATE);
+            seq = ++appendedSeq;
+            queueLock.notifyAll();
+        }
+        awaitSeq(seq);
+        int firstSegment = segmentNumber;
+
+        LibrarySnapshot.save(library, dir.resolve(SNAPSHOT_FILE).toString());
+
+        // Only once the snapshot is safely on disk can the checkpoint move on, and only once the checkpoint is can older
+        // segments go - until then they are all a crash has to recover from
+        Path temp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(temp, Integer.toString(firstSegment).getBytes(StandardCharsets.UTF_8));
+        LibrarySnapshot.moveDurably(temp, dir.resolve(CHECKPOINT_FILE));
+
+        for (int number : segmentNumbers(dir)) {
+            if (number < firstSegment)
+                Files.deleteIfExists(dir.resolve(segmentName(number)));
+        }
+    }
+
+    /**
+     * @return The number of records written to the journal so far.
+     */
+    public long getRecordsWritten() {
+        synchronized (queueLock) {
+            return durableSeq;
+        }
+    }
+    /**
+     * @return The number of times the journal has been synced to disk. Each sync commits every record written since the one before.
+     */
+    public long getSyncCount() {
+        synchronized (queueLock) {
+            return syncs;
+        }
+    }
+
+    /**
+     * Stops journaling the Library, after waiting for every change so far to reach the disk.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    public void close() throws IOException {
+        library.removeListener(this);
+        try {
+            flush();
+        } finally {
+            synchronized (queueLock) {
+                closing = true;
+                queueLock.notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            segment.close();
+        }
+    }
+
+    // Library changes, turned into records
+
+    @Override
+    public void authorAdded(Author author) {
+        Record record = new Record(ADD_AUTHOR);
+        record.writeInt(author.getCatalogSeq());
+        record.writeString(author.getName());
+        record.writeLong(author.getDOB().toEpochDay());
+        append(record);
+    }
+
+    @Override
+    public void patronAdded(Patron patron) {
+        Record record = new Record(ADD_PATRON);
+        record.writeInt(patron.getCatalogSeq());
+        record.writeString(patron.getName());
+        record.writeString(patron.getAddress());
+        record.writeString(patron.getPhoneNum());
+        append(record);
+    }
+
+    @Override
+    public void bookAdded(Book book) {
+        Record record = new Record(ADD_BOOK);
+        record.writeInt(book.getCatalogSeq());
+        record.writeString(book.getTitle());
+        record.writeInt(book.getAuthor().getLibrary() == library ? book.getAuthor().getCatalogSeq() : NONE);
+        record.writeString(book.getISBN());
+        record.writeString(book.getPublisher());
+        append(record);
+
+        // A book can have copies before it is added to the Library
+        book.getLock().lock();
+        try {
+            for (BookCopy copy : book.getCopiesView()) {
+                copyAdded(copy);
+                copyChanged(copy);
+            }
+        } finally {
+            book.getLock().unlock();
+        }
+    }
+
+    @Override
+    public void copyAdded(BookCopy copy) { append(copyRecord(ADD_COPY, copy)); }
+
+    @Override
+    public void copyRemoved(BookCopy copy) { append(copyRecord(REMOVE_COPY, copy)); }
+
+    @Override
+    public void copyBorrowed(BookCopy copy) {
+        Record record = copyRecord(BORROW, copy);
+        record.writeInt(patronSeq(copy.getBorrower()));
+        record.writeLong(copy.getCheckoutDate().toEpochDay());
+        record.writeLong(epochDay(copy.getDueDate()));
+        append(record);
+    }
+
+    @Override
+    public void copyReturned(BookCopy copy, Patron borrower) {
+        Record record = copyRecord(RETURN, copy);
+        record.writeInt(patronSeq(borrower));
+        append(record);
+    }
+
+    @Override
+    public void copyChanged(BookCopy copy) {
+        Record record = copyRecord(SET, copy);
+        record.writeByte(copy.getStatus().ordinal());
+        record.writeInt(patronSeq(copy.getBorrower()));
+        record.writeLong(epochDay(copy.getCheckoutDate()));
+        record.writeLong(epochDay(copy.getDueDate()));
+        append(record);
+    }
+
+    @Override
+    public void holdPlaced(Hold hold) {
+        Record record = holdRecord(HOLD_PLACED, hold);
+        record.writeLong(hold.getPlacedDate().toEpochDay());
+        append(record);
+    }
+
+    // The copy's loan is journaled just before this, so replaying it only has to take the hold out of the queue
+    @Override
+    public void holdFilled(Hold hold) {
+        Record record = holdRecord(HOLD_FILLED, hold);
+        record.writeInt(hold.getCopy().getCopyNumber());
+        append(record);
+    }
+
+    @Override
+    public void holdCancelled(Hold hold) { append(holdRecord(HOLD_CANCELLED, hold)); }
+
+    private Record holdRecord(byte type, Hold hold) {
+        Record record = new Record(type);
+        record.writeInt(hold.getBook().getCatalogSeq());
+        record.writeInt(patronSeq(hold.getPatron()));
+        return record;
+    }
+
+    private Record copyRecord(byte type, BookCopy copy) {
+        Record record = new Record(type);
+        record.writeInt(copy.getBook().getCatalogSeq());
+        record.writeInt(copy.getCopyNumber());
+        return record;
+    }
+
+    private int patronSeq(Patron patron) { return patron != null && patron.getLibrary() == library ? patron.getCatalogSeq() : NONE; }
+
+    private void append(Record record) {
+        byte[] bytes = record.toBytes();
+        long seq;
+        synchronized (queueLock) {
+            // Once the journal has failed, nothing more can be made durable - awaitDurable reports the failure
+            if (failure != null || closing)
+                return;
+            queue.add(bytes);
+            seq = ++appendedSeq;
+            queueLock.notifyAll();
+        }
+        lastAppended.get()[0] = seq;
+    }
+
+    private void awaitSeq(long seq) throws IOException {
+        synchronized (queueLock) {
+            while (durableSeq < seq && failure == null) {
+                try {
+                    queueLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal", e);
+                }
+            }
+            if (durableSeq < seq)
+                throw new IOException("The circulation journal could not be written", failure);
+        }
+    }
+
+    // The writer thread takes everything which has queued up, writes it, and syncs once for the lot
+    private void writeLoop() {
+        try {
+            while (true) {
+                ArrayList<byte[]> batch;
+                long batchSeq;
+                synchronized (queueLock) {
+                    while (queue.isEmpty() && !closing)
+                        queueLock.wait();
+                    if (queue.isEmpty())
+                        return;
+
+                    batch = queue;
+                    batchSeq = appendedSeq;
+                    queue = new ArrayList<byte[]>();
+                }
+
+                write(batch);
+                segment.force(false);
+
+                synchronized (queueLock) {
+                    durableSeq = batchSeq;
+                    syncs++;
+                    queueLock.notifyAll();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            synchronized (queueLock) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                queueLock.notifyAll();
+            }
+        }
+    }
+
+    private void write(ArrayList<byte[]> batch) throws IOException {
+        int start = 0;
+        for (int i = 0; i <= batch.size(); i++) {
+            if (i == batch.size() || batch.get(i) == ROTATE) {
+                ByteBuffer[] buffers = new ByteBuffer[i - start];
+                long remaining = 0;
+                for (int b = start; b < i; b++) {
+                    buffers[b - start] = ByteBuffer.wrap(batch.get(b));
+                    remaining += batch.get(b).length;
+                }
+                while (remaining > 0)
+                    remaining -= segment.write(buffers);
+
+                if (i < batch.size()) {
+                    segment.force(false);
+                    segment.close();
+                    segment = openSegment(segmentNumber + 1);
+                    segmentNumber++;
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    // Creates a segment, and syncs the directory so the segment is still there after a crash, along with whatever is synced to it
+    private FileChannel openSegment(int number) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(segmentName(number)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            LibrarySnapshot.forceDirectory(dir);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static String segmentName(int number) { return String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX); }
+
+    private static ArrayList<Integer> segmentNumbers(Path dir) throws IOException {
+        ArrayList<Integer> numbers = new ArrayList<Integer>();
+        if (!Files.isDirectory(dir))
+            return numbers;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static int readCheckpoint(Path dir) throws IOException {
+        Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint))
+            return 1;
+        return Integer.parseInt(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+    }
+
+    // Replaying
+
+    private static void replay(Library library, Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 20))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc != crc(payload))
+                        break;
+                } catch (EOFException e) {
+                    // A record which was only partly written when the program stopped. It was never durable, so it is ignored
+                    break;
+                }
+
+                apply(library, new DataInputStream(new java.io.ByteArrayInputStream(payload)));
+            }
+        }
+    }
+
+    // Applies one record. Records describe the state they leave a copy in, so applying one twice is harmless
+    private static void apply(Library library, DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        switch (type) {
+            case ADD_AUTHOR: {
+                int seq = record.readInt();
+                String name = readString(record);
+                LocalDate dateOfBirth = LocalDate.ofEpochDay(record.readLong());
+                if (isNew(seq, library.getAuthorsView().size()))
+                    library.addAuthor(new Author(name, dateOfBirth));
+                break;
+            }
+            case ADD_PATRON: {
+                int seq = record.readInt();
+                String name = readString(record);
+                String address = readString(record);
+                String phoneNum = readString(record);
+                if (isNew(seq, library.getPatronsView().size()))
+                    library.addPatron(name, address, phoneNum);
+                break;
+            }
+            case ADD_BOOK: {
+                int seq = record.readInt();
+                String title = readString(record);
+                int author = record.readInt();
+                String isbn = readString(record);
+                String publisher = readString(record);
+                if (isNew(seq, library.getBooksView().size()))
+                    library.addBook(title, author(library, author), isbn, publisher);
+                break;
+            }
+            case ADD_COPY: {
+                Book book = book(library, record.readInt());
+                int copyNumber = record.readInt();
+                if (book.findCopy(copyNumber) == null)
+                    book.addCopy(copyNumber);
+                break;
+            }
+            case REMOVE_COPY: {
+                Book book = book(library, record.readInt());
+                BookCopy copy = book.findCopy(record.readInt());
+                if (copy != null)
+                    book.removeCopy(copy);
+                break;
+            }
+            case BORROW: {
+                BookCopy copy = readCopy(library, record);
+                Patron borrower = patron(library, record.readInt());
+                LocalDate checkoutDate = LocalDate.ofEpochDay(record.readLong());
+                restore(copy, Status.CHECKED_OUT, borrower, checkoutDate, date(record.readLong()));
+                break;
+            }
+            case RETURN: {
+                BookCopy copy = readCopy(library, record);
+                record.readInt();
+                restore(copy, Status.AVAILABLE, null, copy.getCheckoutDate(), null);
+                break;
+            }
+            case SET: {
+                // A setter was called directly, which doesn't touch the borrower's list, so neither does replaying it
+                BookCopy copy = readCopy(library, record);
+                Status status = STATUSES[record.readByte()];
+                Patron borrower = patron(library, record.readInt());
+                LocalDate checkoutDate = date(record.readLong());
+                LocalDate dueDate = date(record.readLong());
+                copy.setStatus(status);
+                copy.setBorrower(borrower);
+                copy.setCheckoutDate(checkoutDate);
+                copy.setDueDate(dueDate);
+                break;
+            }
+            case HOLD_PLACED: {
+                // A hold which is already waiting keeps its place. One which is filled or cancelled later in the
+                // journal is taken out again when that record is replayed
+                Book book = book(library, record.readInt());
+                Patron patron = patron(library, record.readInt());
+                LocalDate placed = LocalDate.ofEpochDay(record.readLong());
+                if (patron != null)
+                    book.restoreHold(patron, placed);
+                break;
+            }
+            case HOLD_FILLED: {
+                Book book = book(library, record.readInt());
+                Patron patron = patron(library, record.readInt());
+                int copyNumber = record.readInt();
+                if (patron != null)
+                    book.restoreHoldFilled(patron, copyNumber);
+                break;
+            }
+            case HOLD_CANCELLED: {
+                Book book = book(library, record.readInt());
+                Patron patron = patron(library, record.readInt());
+                Hold hold = patron == null ? null : patron.findHoldOn(book);
+                if (hold != null)
+                    hold.cancel();
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    // Puts a copy into a state, moving it between borrowers' lists as needed
+    private static void restore(BookCopy copy, Status status, Patron borrower, LocalDate checkoutDate, LocalDate dueDate) {
+        Patron oldBorrower = copy.getBorrower();
+        if (oldBorrower != null && oldBorrower != borrower)
+            oldBorrower.removeBook(copy);
+
+        copy.setStatus(status);
+        copy.setBorrower(borrower);
+        copy.setCheckoutDate(checkoutDate);
+        copy.setDueDate(dueDate);
+
+        if (borrower != null && !borrower.hasCopy(copy))
+            borrower.addBook(copy);
+    }
+
+    // Catalog records carry the position the new entry had. Ones the Library already has were in the snapshot
+    private static boolean isNew(int seq, int size) throws IOException {
+        if (seq > size)
+            throw new IOException("The journal is missing records - expected entry " + size + " but found " + seq);
+        return seq == size;
+    }
+
+    private static BookCopy readCopy(Library library, DataInputStream record) throws IOException {
+        Book book = book(library, record.readInt());
+        int copyNumber = record.readInt();
+        BookCopy copy = book.findCopy(copyNumber);
+        if (copy == null)
+            throw new IOException("The journal refers to copy " + copyNumber + " of '" + book.getTitle() + "', which doesn't exist");
+        return copy;
+    }
+
+    // Entries are found by the position they were added at. A record can only refer to one added before it, so a position
+    // past the end means the journal is corrupt
+    private static Author author(Library library, int seq) throws IOException {
+        List<Author> authors = library.getAuthorsView();
+        if (seq < 0 || seq >= authors.size())
+            throw new IOException("The journal refers to author " + seq + ", but only " + authors.size() + " have been added");
+        return authors.get(seq);
+    }
+
+    private static Patron patron(Library library, int seq) throws IOException {
+        if (seq == NONE)
+            return null;
+        List<Patron> patrons = library.getPatronsView();
+        if (seq < 0 || seq >= patrons.size())
+            throw new IOException("The journal refers to patron " + seq + ", but only " + patrons.size() + " have been added");
+        return patrons.get(seq);
+    }
+
+    private static Book book(Library library, int seq) throws IOException {
+        List<Book> books = library.getBooksView();
+        if (seq < 0 || seq >= books.size())
+            throw new IOException("The journal refers to book " + seq + ", but only " + books.size() + " have been added");
+        return books.get(seq);
+    }
+
+    private static long epochDay(LocalDate date) { return date == null ? NO_DATE : date.toEpochDay(); }
+
+    private static LocalDate date(long epochDay) { return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay); }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NONE)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    // Builds the bytes of one record: its length and checksum, followed by its type and fields
+    private static class Record {
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+
+        Record(byte type) {
+            this.bytes = new ByteArrayOutputStream(64);
+            this.out = new DataOutputStream(bytes);
+            writeByte(type);
+        }
+
+        void writeByte(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeInt(NONE);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            bytes.write(utf8, 0, utf8.length);
+        }
+
+        byte[] toBytes() {
+            byte[] payload = bytes.toByteArray();
+            return ByteBuffer.allocate(8 + payload.length).putInt(payload.length).putInt(crc(payload)).put(payload).array();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How a Library's books and patrons have circulated, as made by CirculationAnalytics.
+ * <p>
+ * A report is a summary taken at one moment, and never changes once it is made. Borrowing counts the copies lent
+ * during the report's period; everything else - copies on loan, holds waiting, utilisation - is the state of the
+ * Library when the report was made.
+ */
+public final class CirculationReport {
+    /**
+     * One item in a ranking, with how many times it was borrowed.
+     */
+    public static final class Entry<T> {
+        private final T item;
+        private final long count;
+
+        Entry(T item, long count) {
+            this.item = item;
+            this.count = count;
+        }
+
+        /**
+         * @return The book, author, publisher or patron ranked.
+         */
+        public T getItem() { return item; }
+        /**
+         * @return The number of copies lent to or of the item during the period.
+         */
+        public long getCount() { return count; }
+
+        public String toString() { return item + ": " + count; }
+    }
+
+    private final LocalDate date;
+    private final LocalDate periodStart;
+    private final List<Entry<Book>> mostBorrowedBooks;
+    private final List<Entry<Author>> authorDemand;
+    private final List<Entry<String>> publisherDemand;
+    private final List<Entry<Patron>> mostActivePatrons;
+    private final long booksBorrowed;
+    private final long patronBorrowing;
+    private final int activePatrons;
+    private final int patronsWithLoans;
+    private final int patronCount;
+    private final long[] copiesByStatus;
+    private final int booksWithNoCopyFree;
+    private final long holdsWaiting;
+    private final int bookCount;
+
+    // Reports are only made by CirculationAnalytics
+    CirculationReport(LocalDate date, LocalDate periodStart, List<Entry<Book>> mostBorrowedBooks, List<Entry<Author>> authorDemand,
+            List<Entry<String>> publisherDemand, List<Entry<Patron>> mostActivePatrons, long booksBorrowed, long patronBorrowing,
+            int activePatrons, int patronsWithLoans, int patronCount, long[] copiesByStatus, int booksWithNoCopyFree,
+            long holdsWaiting, int bookCount) {
+        this.date = date;
+        this.periodStart = periodStart;
+        this.mostBorrowedBooks = Collections.unmodifiableList(mostBorrowedBooks);
+        this.authorDemand = Collections.unmodifiableList(authorDemand);
+        this.publisherDemand = Collections.unmodifiableList(publisherDemand);
+        this.mostActivePatrons = Collections.unmodifiableList(mostActivePatrons);
+        this.booksBorrowed = booksBorrowed;
+        this.patronBorrowing = patronBorrowing;
+        this.activePatrons = activePatrons;
+        this.patronsWithLoans = patronsWithLoans;
+        this.patronCount = patronCount;
+        this.copiesByStatus = copiesByStatus.clone();
+        this.booksWithNoCopyFree = booksWithNoCopyFree;
+        this.holdsWaiting = holdsWaiting;
+        this.bookCount = bookCount;
+    }
+
+    /**
+     * @return The Library's date when the report was made.
+     */
+    public LocalDate getDate() { return date; }
+    /**
+     * @return The Library's date when the period began.
+     */
+    public LocalDate getPeriodStart() { return periodStart; }
+    /**
+     * @return The books lent most often during the period, most first. Books lent equally often are in the order they were added.
+     */
+    public List<Entry<Book>> getMostBorrowedBooks() { return mostBorrowedBooks; }
+    /**
+     * @return The authors whose books were lent most often during the period, most first.
+     */
+    public List<Entry<Author>> getAuthorDemand() { return authorDemand; }
+    /**
+     * @return The publishers whose books were lent most often during the period, most first.
+     */
+    public List<Entry<String>> getPublisherDemand() { return publisherDemand; }
+    /**
+     * @return The patrons who borrowed most during the period, most first. Patrons who borrowed equally are in the order they were added.
+     */
+    public List<Entry<Patron>> getMostActivePatrons() { return mostActivePatrons; }
+    /**
+     * @return The number of copies lent during the period, counted by book.
+     */
+    public long getBooksBorrowed() { return booksBorrowed; }
+    /**
+     * @return The number of copies borrowed during the period, counted by patron. Equal to getBooksBorrowed unless
+     *      copies were lent while the report was being made.
+     */
+    public long getPatronBorrowing() { return patronBorrowing; }
+    /**
+     * @return The number of patrons who borrowed at least one copy during the period.
+     */
+    public int getActivePatrons() { return activePatrons; }
+    /**
+     * @return The number of patrons with at least one copy on loan.
+     */
+    public int getPatronsWithLoans() { return patronsWithLoans; }
+    /**
+     * @return The number of patrons in the Library.
+     */
+    public int getPatronCount() { return patronCount; }
+    /**
+     * @return The number of books in the Library.
+     */
+    public int getBookCount() { return bookCount; }
+    /**
+     * @param status A status.
+     * @return The number of copies with that status.
+     */
+    public long getCopies(Status status) { return copiesByStatus[status.ordinal()]; }
+    /**
+     * @return The number of copies of every book.
+     */
+    public long getTotalCopies() {
+        long total = 0;
+        for (long copies : copiesByStatus)
+            total += copies;
+        return total;
+    }
+    /**
+     * @return The number of copies on loan, whether or not they are overdue.
+     */
+    public long getCopiesOnLoan() { return getTotalCopies() - getCopies(Status.AVAILABLE); }
+    /**
+     * @return The share of copies on loan, from 0 to 1. Will be 0 if there are no copies.
+     */
+    public double getUtilisation() {
+        long total = getTotalCopies();
+        return total == 0 ? 0 : (double) getCopiesOnLoan() / total;
+    }
+    /**
+     * @return The number of books with at least one copy, none of which is AVAILABLE.
+     */
+    public int getBooksWithNoCopyFree() { return booksWithNoCopyFree; }
+    /**
+     * @return The number of holds waiting for a copy, across every book.
+     */
+    public long getHoldsWaiting() { return holdsWaiting; }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Circulation from ").append(periodStart).append(" to ").append(date).append('\n');
+        text.append(String.format("  %d copies lent, %d of %d patrons borrowing, %d with loans%n",
+                booksBorrowed, activePatrons, patronCount, patronsWithLoans));
+        text.append(String.format("  %d copies of %d books: %d on loan (%.1f%%), %d overdue, %d books with no copy free, %d holds waiting%n",
+                getTotalCopies(), bookCount, getCopiesOnLoan(), getUtilisation() * 100, getCopies(Status.OVERDUE),
+                booksWithNoCopyFree, holdsWaiting));
+        appendRanking(text, "Most borrowed", mostBorrowedBooks);
+        appendRanking(text, "Authors in demand", authorDemand);
+        appendRanking(text, "Publishers in demand", publisherDemand);
+        appendRanking(text, "Most active patrons", mostActivePatrons);
+        return text.toString();
+    }
+
+    private static void appendRanking(StringBuilder text, String heading, List<? extends Entry<?>> ranking) {
+        if (ranking.isEmpty())
+            return;
+        text.append("  ").append(heading).append(":\n");
+        for (int i = 0; i < ranking.size(); i++) {
+            Entry<?> entry = ranking.get(i);
+            text.append(String.format("    %2d. %s (%d)%n", i + 1, name(entry.getItem()), entry.getCount()));
+        }
+    }
+
+    // Books, authors and patrons are named rather than printed whole
+    private static String name(Object item) {
+        if (item instanceof Book)
+            return ((Book) item).getTitle();
+        if (item instanceof Author)
+            return ((Author) item).getName();
+        if (item instanceof Patron)
+            return ((Patron) item).getName();
+        return String.valueOf(item);
+    }
+}
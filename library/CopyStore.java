@@ -0,0 +1,278 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * The state of a Book's copies, kept as packed primitive arrays rather than one object per copy.
+ * <p>
+ * Each copy takes three ints - its copy number and status packed together, its checkout day and its due day - plus a
+ * slot in an array of borrowers, which is only allocated once one of the copies is lent. That is around 16 bytes a copy,
+ * where a BookCopy object with its dates and its place in the Book's lists took around 90, so a catalog with tens of
+ * millions of copies fits in a fraction of the heap. BookCopy objects are only views onto a copy in a store.
+ * <p>
+ * Copies are kept in order of copy number, so a copy is found by binary search. A store does no locking of its own -
+ * the Book's lock must be held while using it.
+ */
+class CopyStore {
+    /**
+     * Stands for a missing date.
+     */
+    static final int NO_DAY = Integer.MIN_VALUE;
+    /**
+     * The highest copy number which fits in a store, as numbers share an int with the status.
+     */
+    static final int MAX_COPY_NUMBER = (1 << 24) - 1;
+
+    // The ints which make up each copy
+    private static final int STRIDE = 3;
+    private static final int NUMBER_AND_STATUS = 0;
+    private static final int CHECKOUT_DAY = 1;
+    private static final int DUE_DAY = 2;
+    private static final int STATUS_BITS = 8;
+    private static final Status[] STATUSES = Status.values();
+    private static final int[] EMPTY = new int[0];
+
+    private int[] copies;
+    // Null until a copy is lent, as most copies of most books sit on the shelf
+    private Patron[] borrowers;
+    // How many copies each borrower has, so the borrowers of a book are found without going through every copy. Also null
+    // until a copy is lent
+    private HashMap<Patron, int[]> loanCounts;
+    private int size;
+
+    /**
+     * Class constructor. The store starts out empty.
+     */
+    CopyStore() {
+        this.copies = EMPTY;
+    }
+
+    /**
+     * @return The number of copies in the store.
+     */
+    int size() { return size; }
+
+    /**
+     * Makes room for more copies, so adding them one at a time doesn't grow the arrays over and over.
+     *
+     * @param extra The number of copies about to be added.
+     */
+    void ensureCapacity(int extra) {
+        int needed = (size + extra) * STRIDE;
+        if (needed > copies.length)
+            copies = Arrays.copyOf(copies, needed);
+        if (borrowers != null && size + extra > borrowers.length)
+            borrowers = Arrays.copyOf(borrowers, size + extra);
+    }
+
+    /**
+     * Copies the store, for reading while the original goes on changing. The copy doesn't count its borrowers' loans, so
+     * it is only for reading.
+     *
+     * @return A new store with the same copies.
+     */
+    CopyStore copy() {
+        CopyStore copy = new CopyStore();
+        copy.copies = Arrays.copyOf(copies, size * STRIDE);
+        copy.borrowers = borrowers == null ? null : Arrays.copyOf(borrowers, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Copies the store without the Book's lock, while another thread may be changing it. Each field is read once, and
+     * the copy is only made if the size fits the arrays read alongside it - the caller still has to check that no change
+     * was made while it was copying, and make the copy again if one was.
+     *
+     * @return A new store with the same copies. Will be <code>null</code> if the fields were read part way through a
+     *      change, and don't fit together.
+     */
+    CopyStore tryCopy() {
+        int copied = size;
+        int[] packed = copies;
+        Patron[] lent = borrowers;
+        if (copied < 0 || copied > packed.length / STRIDE || (lent != null && copied > lent.length))
+            return null;
+
+        CopyStore copy = new CopyStore();
+        copy.copies = Arrays.copyOf(packed, copied * STRIDE);
+        copy.borrowers = lent == null ? null : Arrays.copyOf(lent, copied);
+        copy.size = copied;
+        return copy;
+    }
+
+    /**
+     * Counts the copies with a status.
+     *
+     * @param status The status to count.
+     * @return The number of copies with that status.
+     */
+    int count(Status status) {
+        int count = 0;
+        for (int pos = 0; pos < size; pos++) {
+            if ((copies[pos * STRIDE + NUMBER_AND_STATUS] & ((1 << STATUS_BITS) - 1)) == status.ordinal())
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Finds a copy by its number.
+     *
+     * @param copyNumber The number of the copy.
+     * @return The position of the copy. Like Arrays.binarySearch, a missing copy gives -(insertion point) - 1.
+     */
+    int find(int copyNumber) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midNumber = copyNumber(mid);
+            if (midNumber < copyNumber)
+                low = mid + 1;
+            else if (midNumber > copyNumber)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Adds a copy, which starts out AVAILABLE with no borrower or dates.
+     *
+     * @param copyNumber The number of the new copy. It must not be in the store already.
+     * @return The position of the new copy.
+     */
+    int insert(int copyNumber) {
+        if (copyNumber < 0 || copyNumber > MAX_COPY_NUMBER)
+            throw new IllegalArgumentException("Copy numbers must be between 0 and " + MAX_COPY_NUMBER + ": " + copyNumber);
+
+        int pos = -(find(copyNumber) + 1);
+        if (size * STRIDE == copies.length)
+            ensureCapacity(Math.max(size / 2, 2));
+
+        System.arraycopy(copies, pos * STRIDE, copies, (pos + 1) * STRIDE, (size - pos) * STRIDE);
+        if (borrowers != null)
+            System.arraycopy(borrowers, pos, borrowers, pos + 1, size - pos);
+        size++;
+
+        copies[pos * STRIDE + NUMBER_AND_STATUS] = copyNumber << STATUS_BITS | Status.AVAILABLE.ordinal();
+        copies[pos * STRIDE + CHECKOUT_DAY] = NO_DAY;
+        copies[pos * STRIDE + DUE_DAY] = NO_DAY;
+        if (borrowers != null)
+            borrowers[pos] = null;
+        return pos;
+    }
+
+    /**
+     * Removes a copy.
+     *
+     * @param pos The position of the copy.
+     */
+    void remove(int pos) {
+        setBorrower(pos, null);
+        System.arraycopy(copies, (pos + 1) * STRIDE, copies, pos * STRIDE, (size - pos - 1) * STRIDE);
+        if (borrowers != null) {
+            System.arraycopy(borrowers, pos + 1, borrowers, pos, size - pos - 1);
+            borrowers[size - 1] = null;
+        }
+        size--;
+    }
+
+    /**
+     * Copies the state of one copy from another store, such as when a copy is moved out of its Book's list.
+     *
+     * @param pos The position of the copy in this store.
+     * @param from The store to copy from.
+     * @param fromPos The position of the copy in that store.
+     */
+    void copyState(int pos, CopyStore from, int fromPos) {
+        setStatus(pos, from.status(fromPos));
+        setBorrower(pos, from.borrower(fromPos));
+        copies[pos * STRIDE + CHECKOUT_DAY] = from.copies[fromPos * STRIDE + CHECKOUT_DAY];
+        copies[pos * STRIDE + DUE_DAY] = from.copies[fromPos * STRIDE + DUE_DAY];
+    }
+
+    int copyNumber(int pos) { return copies[pos * STRIDE + NUMBER_AND_STATUS] >>> STATUS_BITS; }
+
+    Status status(int pos) { return STATUSES[copies[pos * STRIDE + NUMBER_AND_STATUS] & ((1 << STATUS_BITS) - 1)]; }
+
+    void setStatus(int pos, Status status) { copies[pos * STRIDE + NUMBER_AND_STATUS] = copyNumber(pos) << STATUS_BITS | status.ordinal(); }
+
+    Patron borrower(int pos) { return borrowers == null ? null : borrowers[pos]; }
+
+    void setBorrower(int pos, Patron borrower) {
+        if (borrowers == null) {
+            if (borrower == null)
+                return;
+            borrowers = new Patron[copies.length / STRIDE];
+            loanCounts = new HashMap<Patron, int[]>();
+        }
+
+        Patron oldBorrower = borrowers[pos];
+        if (oldBorrower == borrower)
+            return;
+        if (oldBorrower != null) {
+            int[] count = loanCounts.get(oldBorrower);
+            if (--count[0] == 0)
+                loanCounts.remove(oldBorrower);
+        }
+        if (borrower != null) {
+            int[] count = loanCounts.get(borrower);
+            if (count == null)
+                loanCounts.put(borrower, new int[] { 1 });
+            else
+                count[0]++;
+        }
+        borrowers[pos] = borrower;
+    }
+
+    /**
+     * Adds the patrons who have copies in this store to a set.
+     *
+     * @param into The set to add to.
+     */
+    void addBorrowersTo(Set<Patron> into) {
+        if (loanCounts != null)
+            into.addAll(loanCounts.keySet());
+    }
+
+    LocalDate checkoutDate(int pos) { return date(copies[pos * STRIDE + CHECKOUT_DAY]); }
+
+    void setCheckoutDate(int pos, LocalDate date) { copies[pos * STRIDE + CHECKOUT_DAY] = day(date); }
+
+    LocalDate dueDate(int pos) { return date(copies[pos * STRIDE + DUE_DAY]); }
+
+    void setDueDate(int pos, LocalDate date) { copies[pos * STRIDE + DUE_DAY] = day(date); }
+
+    boolean hasDueDate(int pos) { return copies[pos * STRIDE + DUE_DAY] != NO_DAY; }
+
+    // Raw epoch days, for callers which render dates without making LocalDates
+    int checkoutDay(int pos) { return copies[pos * STRIDE + CHECKOUT_DAY]; }
+
+    int dueDay(int pos) { return copies[pos * STRIDE + DUE_DAY]; }
+
+    /**
+     * Finds the first copy with a status, starting from a position.
+     *
+     * @param status The status to look for.
+     * @param from The position to start from.
+     * @return The position of the first matching copy, or -1 if there is none.
+     */
+    int indexOf(Status status, int from) {
+        for (int pos = from; pos < size; pos++) {
+            if ((copies[pos * STRIDE + NUMBER_AND_STATUS] & ((1 << STATUS_BITS) - 1)) == status.ordinal())
+                return pos;
+        }
+        return -1;
+    }
+
+    // Dates are kept as epoch days, which fit in an int for any date a library will see
+    private static int day(LocalDate date) { return date == null ? NO_DAY : Math.toIntExact(date.toEpochDay()); }
+
+    private static LocalDate date(int day) { return day == NO_DAY ? null : LocalDate.ofEpochDay(day); }
+}
@@ -0,0 +1,99 @@
+package library;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Counts per key, kept in an open-addressed table of keys beside an array of long counts, so adding to a count never
+ * boxes it or makes an entry object. Keys are compared with <code>equals</code>, and <code>null</code> keys are ignored.
+ * <p>
+ * A CountMap is not thread-safe. Threads working in parallel each fill their own, and merge them when they are done.
+ */
+final class CountMap<K> {
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] keys;
+    private long[] counts;
+    private int size;
+
+    CountMap() {
+        this.keys = new Object[MIN_CAPACITY];
+        this.counts = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * @return The number of keys counted.
+     */
+    int size() { return size; }
+
+    /**
+     * Adds to a key's count, starting it at 0 if the key is new.
+     *
+     * @param key The key.
+     * @param delta The amount to add.
+     */
+    void add(K key, long delta) {
+        if (key == null)
+            return;
+
+        int slot = slotOf(key);
+        if (keys[slot] == null) {
+            keys[slot] = key;
+            // Kept at most half full, so probes stay short
+            if (++size * 2 > keys.length) {
+                resize();
+                slot = slotOf(key);
+            }
+        }
+        counts[slot] += delta;
+    }
+
+    /**
+     * Adds every count in another map to this one.
+     *
+     * @param other The other map.
+     */
+    @SuppressWarnings("unchecked")
+    void addAll(CountMap<K> other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.keys[slot] != null)
+                add((K) other.keys[slot], other.counts[slot]);
+        }
+    }
+
+    /**
+     * Gives every key to an action with its count, in no particular order.
+     *
+     * @param action What to do with each key and its count.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(ObjLongConsumer<? super K> action) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null)
+                action.accept((K) keys[slot], counts[slot]);
+        }
+    }
+
+    // The slot holding a key, or the empty slot it would go in
+    private int slotOf(Object key) {
+        int mask = keys.length - 1;
+        int hash = key.hashCode() * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void resize() {
+        Object[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new Object[oldKeys.length * 2];
+        counts = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+}
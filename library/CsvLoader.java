@@ -0,0 +1,482 @@
+package library;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk loader for the Library's CSV files.
+ * Each file is read in large chunks, and the chunks are parsed in parallel on a fork-join pool. Rows are still added to
+ * the Library in the order they appear in the file. Rows which can't be read are written to a reject file
+ * (the name of the file, followed by <code>.rejects</code>) rather than stopping the load.
+ * <p>
+ * Only the fields which are kept are turned into Strings - numbers are parsed straight from the file's bytes, and
+ * author names in books.csv are matched against the known authors without being decoded.
+ */
+public class CsvLoader {
+    /**
+     * The ways a file can be read.
+     */
+    public enum Mode {
+        /**
+         * The file is read into a series of chunks on the heap. This works everywhere, and is the default.
+         */
+        STREAMING,
+        /**
+         * The file is memory-mapped and parsed where it lies, without copying it onto the heap first.
+         * This is much lighter on the garbage collector for very large files.
+         */
+        MAPPED;
+    }
+
+    // Chunks are cut at the last line break before this many bytes
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    // Files are mapped this much at a time, as a single mapping can't be larger than 2GB
+    private static final int MAPPED_WINDOW_SIZE = 1 << 30;
+
+    private final Library library;
+    private final ForkJoinPool pool;
+    private int chunkSize;
+    private Mode mode;
+
+    /**
+     * Class constructor. Chunks are parsed on the common fork-join pool.
+     *
+     * @param library The Library to load rows into.
+     */
+    public CsvLoader(Library library) { this(library, ForkJoinPool.commonPool()); }
+
+    /**
+     * Class constructor.
+     *
+     * @param library The Library to load rows into.
+     * @param pool The pool to parse chunks on.
+     */
+    public CsvLoader(Library library, ForkJoinPool pool) {
+        this.library = library;
+        this.pool = pool;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.mode = Mode.STREAMING;
+    }
+
+    /**
+     * Sets how files are read.
+     *
+     * @param mode The mode to read files in.
+     */
+    public void setMode(Mode mode) { this.mode = mode; }
+
+    /**
+     * Sets the size of the chunks files are read in. Smaller chunks spread small files over more threads, larger chunks have less overhead.
+     *
+     * @param chunkSize The chunk size, in bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads a list of Authors from a file. Each row must be <code>name,year,month,day</code>.
+     *
+     * @param file The file to read.
+     * @return A summary of the load.
+     * @throws IOException If the file could not be read.
+     */
+    public LoadReport loadAuthors(String file) throws IOException {
+        return load(file, LibraryMetrics.Operation.LOAD_AUTHORS, new RowParser<Author>(4) {
+            Author parse(CsvRow row) {
+                LocalDate dateOfBirth = LocalDate.of(row.integer(1), row.integer(2), row.integer(3));
+                return new Author(row.string(0), dateOfBirth);
+            }
+
+            void add(Author author) { library.addAuthor(author); }
+        });
+    }
+
+    /**
+     * Reads a list of Patrons from a file. Each row must be <code>name,address,phone number</code>.
+     *
+     * @param file The file to read.
+     * @return A summary of the load.
+     * @throws IOException If the file could not be read.
+     */
+    public LoadReport loadPatrons(String file) throws IOException {
+        return load(file, LibraryMetrics.Operation.LOAD_PATRONS, new RowParser<Patron>(3) {
+            Patron parse(CsvRow row) { return new Patron(row.string(0), row.string(1), row.string(2)); }
+
+            void add(Patron patron) { library.addPatron(patron); }
+        });
+    }
+
+    /**
+     * Reads a list of Books from a file. Each row must be <code>title,author name,ISBN,publisher</code>, and the author must already be in the Library.
+     *
+     * @param file The file to read.
+     * @return A summary of the load.
+     * @throws IOException If the file could not be read.
+     */
+    public LoadReport loadBooks(String file) throws IOException {
+        // Authors are looked up from several threads at once, so take a read-only copy of them first
+        final AuthorTable authors = new AuthorTable(library.getAuthorsView());
+
+        return load(file, LibraryMetrics.Operation.LOAD_BOOKS, new RowParser<BookRow>(4) {
+            BookRow parse(CsvRow row) {
+                Author author = authors.find(row, 1);
+                if (author == null)
+                    throw new IllegalArgumentException("unknown author '" + row.string(1) + "'");
+
+                // Publishers repeat across thousands of rows, so each row keeps the Library's dictionary copy rather than
+                // its own, and the parsing threads do the interning rather than the one adding rows
+                return new BookRow(row.string(0), author, row.string(2), library.getStrings().canonical(row.string(3)));
+            }
+
+            // Creating the Book adds it to its author's bibliography, so that has to wait until the rows are added in order
+            void add(BookRow book) { library.addBook(book.title, book.author, book.isbn, book.publisher); }
+        });
+    }
+
+    // Reads a file chunk by chunk, parsing chunks in parallel and adding their rows to the Library in file order
+    private <T> LoadReport load(String file, LibraryMetrics.Operation operation, RowParser<T> parser) throws IOException {
+        long startTime = System.nanoTime();
+        long metricsStart = library.getMetrics().start();
+        Rejects rejects = new Rejects(file);
+
+        boolean loaded = false;
+        try {
+            if (mode == Mode.MAPPED)
+                loadMapped(file, parser, rejects);
+            else
+                loadStreaming(file, parser, rejects);
+            loaded = true;
+        } finally {
+            rejects.close();
+            library.getMetrics().record(operation, metricsStart, loaded);
+        }
+
+        return new LoadReport(file, parser.loaded, rejects.count, System.nanoTime() - startTime, rejects.count > 0 ? rejects.path.toString() : null);
+    }
+
+    private <T> void loadStreaming(String file, RowParser<T> parser, Rejects rejects) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            // Keep a few chunks in flight so every thread has work, without reading the whole file into memory
+            ArrayDeque<Future<ParsedChunk<T>>> pending = new ArrayDeque<Future<ParsedChunk<T>>>();
+            int maxPending = pool.getParallelism() + 1;
+
+            byte[] carry = new byte[0];
+            boolean firstChunk = true;
+            boolean eof = false;
+            while (!eof) {
+                byte[] chunk = new byte[Math.max(chunkSize, carry.length * 2)];
+                System.arraycopy(carry, 0, chunk, 0, carry.length);
+                int filled = carry.length + in.readNBytes(chunk, carry.length, chunk.length - carry.length);
+                eof = filled < chunk.length;
+
+                // Cut the chunk after its last line break - the rest is carried over to the next chunk
+                int end = filled;
+                if (!eof) {
+                    while (end > 0 && chunk[end - 1] != '\n')
+                        end--;
+                    // A single line longer than the whole chunk, so carry all of it over into a bigger chunk
+                    if (end == 0) {
+                        carry = chunk;
+                        continue;
+                    }
+                }
+                carry = new byte[filled - end];
+                System.arraycopy(chunk, end, carry, 0, carry.length);
+
+                final ByteBuffer data = ByteBuffer.wrap(chunk);
+                final int chunkStart = firstChunk ? skipByteOrderMark(data, end) : 0;
+                firstChunk = false;
+
+                final int chunkEnd = end;
+                pending.add(pool.submit(() -> parseChunk(data, chunkStart, chunkEnd, parser)));
+
+                if (pending.size() >= maxPending)
+                    apply(pending.poll(), parser, rejects);
+            }
+
+            while (!pending.isEmpty())
+                apply(pending.poll(), parser, rejects);
+        }
+    }
+
+    private <T> void loadMapped(String file, RowParser<T> parser, Rejects rejects) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ArrayDeque<Future<ParsedChunk<T>>> pending = new ArrayDeque<Future<ParsedChunk<T>>>();
+            int maxPending = pool.getParallelism() + 1;
+
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                // Map the next window of the file, and cut it after its last line break
+                int windowSize = (int) Math.min(size - position, MAPPED_WINDOW_SIZE);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                int windowEnd = windowSize;
+                if (position + windowSize < size) {
+                    while (windowEnd > 0 && window.get(windowEnd - 1) != '\n')
+                        windowEnd--;
+                    if (windowEnd == 0)
+                        throw new IOException("Line at byte " + position + " of " + file + " is longer than " + MAPPED_WINDOW_SIZE + " bytes");
+                }
+
+                // Split the window into chunks, which all parse straight out of the mapping
+                int chunkStart = position == 0 ? skipByteOrderMark(window, windowEnd) : 0;
+                while (chunkStart < windowEnd) {
+                    int chunkEnd = (int) Math.min((long) chunkStart + chunkSize, windowEnd);
+                    while (chunkEnd < windowEnd && window.get(chunkEnd - 1) != '\n')
+                        chunkEnd++;
+
+                    final int start = chunkStart;
+                    final int end = chunkEnd;
+                    pending.add(pool.submit(() -> parseChunk(window, start, end, parser)));
+                    if (pending.size() >= maxPending)
+                        apply(pending.poll(), parser, rejects);
+
+                    chunkStart = chunkEnd;
+                }
+
+                position += windowEnd;
+            }
+
+            while (!pending.isEmpty())
+                apply(pending.poll(), parser, rejects);
+        }
+    }
+
+    // Skips the byte order mark some editors put at the start of a UTF-8 file
+    private static int skipByteOrderMark(ByteBuffer data, int end) {
+        if (end >= 3 && data.get(0) == (byte) 0xEF && data.get(1) == (byte) 0xBB && data.get(2) == (byte) 0xBF)
+            return 3;
+        return 0;
+    }
+
+    // Parses every line between start and end. This runs on the pool, so it must not touch the Library
+    static <T> ParsedChunk<T> parseChunk(ByteBuffer data, int start, int end, RowParser<T> parser) {
+        ParsedChunk<T> parsed = new ParsedChunk<T>();
+        CsvRow row = new CsvRow(parser.fieldCount);
+
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && data.get(lineEnd) != '\n')
+                lineEnd++;
+            int next = lineEnd + 1;
+
+            // Files written on Windows end their lines with \r\n
+            if (lineEnd > lineStart && data.get(lineEnd - 1) == '\r')
+                lineEnd--;
+
+            parsed.lines++;
+            if (lineEnd > lineStart) {
+                int fields = row.split(data, lineStart, lineEnd);
+                try {
+                    if (fields != parser.fieldCount)
+                        throw new IllegalArgumentException("expected " + parser.fieldCount + " fields but found " + fields);
+                    parsed.rows.add(parser.parse(row));
+                } catch (RuntimeException e) {
+                    parsed.rejects.add(new Reject(parsed.lines, e.getMessage() != null ? e.getMessage() : e.toString(), row.text()));
+                }
+            }
+
+            lineStart = next;
+        }
+
+        return parsed;
+    }
+
+    private <T> void apply(Future<ParsedChunk<T>> future, RowParser<T> parser, Rejects rejects) throws IOException {
+        ParsedChunk<T> parsed;
+        try {
+            parsed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse a chunk", e.getCause());
+        }
+
+        for (T row : parsed.rows) {
+            parser.add(row);
+            parser.loaded++;
+        }
+        for (Reject reject : parsed.rejects)
+            rejects.write(rejects.lineBase + reject.line, reject.reason, reject.text);
+        rejects.lineBase += parsed.lines;
+    }
+
+    // Knows how many fields a kind of row has, how to parse it, and how to add it to the Library
+    abstract static class RowParser<T> {
+        final int fieldCount;
+        // Only touched by the thread adding rows to the Library
+        long loaded;
+
+        RowParser(int fieldCount) { this.fieldCount = fieldCount; }
+
+        // Called from the pool, possibly from several threads at once
+        abstract T parse(CsvRow row);
+        // Called in file order, from the thread which started the load
+        abstract void add(T row);
+    }
+
+    // The result of parsing one chunk. Line numbers are relative to the start of the chunk
+    static class ParsedChunk<T> {
+        ArrayList<T> rows = new ArrayList<T>();
+        ArrayList<Reject> rejects = new ArrayList<Reject>();
+        int lines;
+    }
+
+    static class Reject {
+        final int line;
+        final String reason;
+        final String text;
+
+        Reject(int line, String reason, String text) {
+            this.line = line;
+            this.reason = reason;
+            this.text = text;
+        }
+    }
+
+    // A parsed row of books.csv, waiting for its turn to be added to the Library
+    private static class BookRow {
+        final String title;
+        final Author author;
+        final String isbn;
+        final String publisher;
+
+        BookRow(String title, Author author, String isbn, String publisher) {
+            this.title = title;
+            this.author = author;
+            this.isbn = isbn;
+            this.publisher = publisher;
+        }
+    }
+
+    // Finds authors by name, straight from the bytes of a field. Names are compared the same way as Library.findAuthorByName,
+    // and earlier authors win when two names match
+    static class AuthorTable {
+        // Open-addressed table of the folded names which are plain ASCII, which is nearly all of them
+        private final byte[][] keys;
+        private final Author[] values;
+        private final int mask;
+        // Every other name is looked up as a String instead
+        private final HashMap<String, Author> byName;
+
+        AuthorTable(List<Author> authors) {
+            int capacity = Integer.highestOneBit(Math.max(authors.size(), 1) * 2 + 1) * 2;
+            this.keys = new byte[capacity][];
+            this.values = new Author[capacity];
+            this.mask = capacity - 1;
+            this.byName = new HashMap<String, Author>();
+
+            for (Author author : authors) {
+                String folded = CatalogIndex.fold(author.getName());
+                if (folded == null || byName.containsKey(folded))
+                    continue;
+                byName.put(folded, author);
+
+                if (isAscii(folded)) {
+                    byte[] key = folded.getBytes(StandardCharsets.US_ASCII);
+                    int slot = hash(key) & mask;
+                    while (keys[slot] != null)
+                        slot = (slot + 1) & mask;
+                    keys[slot] = key;
+                    values[slot] = author;
+                }
+            }
+        }
+
+        Author find(CsvRow row, int field) {
+            int length = row.length(field);
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = row.byteAt(field, i);
+                // Anything outside ASCII might fold differently, so let String work it out
+                if (b < 0)
+                    return byName.get(CatalogIndex.fold(row.string(field)));
+                hash = 31 * hash + foldAscii(b);
+            }
+
+            for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (matches(keys[slot], row, field))
+                    return values[slot];
+            }
+            return null;
+        }
+
+        private static boolean matches(byte[] key, CsvRow row, int field) {
+            if (key.length != row.length(field))
+                return false;
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != foldAscii(row.byteAt(field, i)))
+                    return false;
+            }
+            return true;
+        }
+
+        private static int hash(byte[] key) {
+            int hash = 0;
+            for (byte b : key)
+                hash = 31 * hash + b;
+            return hash;
+        }
+
+        // For ASCII, CatalogIndex.fold only lower-cases letters
+        private static byte foldAscii(byte b) { return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b; }
+
+        private static boolean isAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) >= 0x80)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    // The reject file is only created once there is something to put in it
+    static class Rejects {
+        final Path path;
+        BufferedWriter out;
+        long count;
+        long lineBase;
+
+        Rejects(String file) throws IOException {
+            this.path = Paths.get(file + ".rejects");
+            // Don't leave the rejects of an earlier load lying around
+            Files.deleteIfExists(path);
+        }
+
+        void write(long line, String reason, String text) throws IOException {
+            if (out == null)
+                out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            out.write("line " + line + ": " + reason + " | " + text);
+            out.newLine();
+            count++;
+        }
+
+        void close() throws IOException {
+            if (out != null)
+                out.close();
+        }
+    }
+}
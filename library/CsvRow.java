@@ -0,0 +1,144 @@
+package library;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single row of a CSV file, read straight from the bytes of the file.
+ * Splitting a row only records where each field starts and ends. Fields are only turned into Strings or numbers
+ * when they are asked for, so a field which isn't needed costs nothing.
+ */
+class CsvRow {
+    private static final byte DELIMITER = ',';
+
+    private ByteBuffer data;
+    private int rowStart;
+    private int rowEnd;
+    // The start (inclusive) and end (exclusive) of each field in the current row
+    private int[] starts;
+    private int[] ends;
+    private int fieldCount;
+    // Fields in buffers without a backing array (such as mapped files) are copied here before decoding
+    private byte[] scratch;
+
+    /**
+     * Class constructor.
+     *
+     * @param maxFields The number of fields a row is expected to have. Rows with more fields can still be split, but only this many are kept.
+     */
+    CsvRow(int maxFields) {
+        this.starts = new int[maxFields];
+        this.ends = new int[maxFields];
+        this.scratch = new byte[64];
+    }
+
+    /**
+     * Splits a row into fields.
+     *
+     * @param data The buffer holding the row.
+     * @param start The index of the first byte of the row.
+     * @param end The index after the last byte of the row, not including the line break.
+     * @return The number of fields in the row.
+     */
+    int split(ByteBuffer data, int start, int end) {
+        this.data = data;
+        this.rowStart = start;
+        this.rowEnd = end;
+
+        // The delimiter is a single byte which never appears inside a multi-byte UTF-8 character, so it is safe to search for byte by byte
+        int count = 0;
+        int fieldStart = start;
+        for (int i = start; i < end; i++) {
+            if (data.get(i) == DELIMITER) {
+                mark(count++, fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        mark(count++, fieldStart, end);
+
+        fieldCount = count;
+        return count;
+    }
+
+    private void mark(int field, int start, int end) {
+        if (field < starts.length) {
+            starts[field] = start;
+            ends[field] = end;
+        }
+    }
+
+    /**
+     * @return The number of fields in the current row.
+     */
+    int fieldCount() { return fieldCount; }
+
+    /**
+     * @param field The index of a field.
+     * @return The length of the field, in bytes.
+     */
+    int length(int field) { return ends[field] - starts[field]; }
+
+    /**
+     * @param field The index of a field.
+     * @param index The index of a byte within the field.
+     * @return The byte at that position.
+     */
+    byte byteAt(int field, int index) { return data.get(starts[field] + index); }
+
+    /**
+     * Decodes a field as a String.
+     *
+     * @param field The index of the field.
+     * @return The text of the field.
+     */
+    String string(int field) { return decode(starts[field], ends[field]); }
+
+    /**
+     * Parses a field as a whole number, without creating a String for it first.
+     *
+     * @param field The index of the field.
+     * @return The number.
+     * @throws NumberFormatException If the field is not a whole number.
+     */
+    int integer(int field) {
+        int start = starts[field];
+        int end = ends[field];
+        boolean negative = start < end && data.get(start) == '-';
+        int i = negative ? start + 1 : start;
+
+        if (i == end)
+            throw new NumberFormatException("'" + string(field) + "' is not a number");
+
+        // Accumulate as a negative number, which has the larger range, so that Integer.MIN_VALUE can still be parsed
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = data.get(i) - '0';
+            if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10)
+                throw new NumberFormatException("'" + string(field) + "' is not a number");
+            value = value * 10 - digit;
+        }
+
+        if (!negative) {
+            if (value == Integer.MIN_VALUE)
+                throw new NumberFormatException("'" + string(field) + "' is not a number");
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * @return The full text of the current row.
+     */
+    String text() { return decode(rowStart, rowEnd); }
+
+    private String decode(int start, int end) {
+        int length = end - start;
+        if (data.hasArray())
+            return new String(data.array(), data.arrayOffset() + start, length, StandardCharsets.UTF_8);
+
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        data.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
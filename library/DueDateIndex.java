@@ -0,0 +1,79 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The copies on loan in a Library, ordered by the date they are due back.
+ * <p>
+ * Copies due on the same day share a bucket, and buckets are kept in date order, so finding the loans which have
+ * expired means taking buckets from the front until reaching today. That costs time in proportion to the number of
+ * expired loans, however many copies the Library has. Copies add and remove themselves as they are borrowed and
+ * returned, while holding their Book's lock, so the index is guarded by its own lock rather than any Book's.
+ */
+class DueDateIndex {
+    private final TreeMap<LocalDate, LinkedHashSet<BookCopy>> byDueDate;
+    private int size;
+
+    /**
+     * Class constructor. The index starts out empty.
+     */
+    DueDateIndex() {
+        this.byDueDate = new TreeMap<LocalDate, LinkedHashSet<BookCopy>>();
+    }
+
+    /**
+     * Adds a copy which is on loan.
+     *
+     * @param copy The copy.
+     * @param dueDate The date it is due back.
+     */
+    synchronized void add(BookCopy copy, LocalDate dueDate) {
+        LinkedHashSet<BookCopy> due = byDueDate.get(dueDate);
+        if (due == null) {
+            due = new LinkedHashSet<BookCopy>();
+            byDueDate.put(dueDate, due);
+        }
+        if (due.add(copy))
+            size++;
+    }
+
+    /**
+     * Removes a copy, once it is no longer on loan or its due date changes. Copies which aren't in the index are ignored.
+     *
+     * @param copy The copy.
+     * @param dueDate The due date it was added with.
+     */
+    synchronized void remove(BookCopy copy, LocalDate dueDate) {
+        LinkedHashSet<BookCopy> due = byDueDate.get(dueDate);
+        if (due != null && due.remove(copy)) {
+            size--;
+            if (due.isEmpty())
+                byDueDate.remove(dueDate);
+        }
+    }
+
+    /**
+     * Takes every copy which was due back before a date out of the index.
+     *
+     * @param date The first date on which loans are not yet expired.
+     * @return The expired copies, earliest due first.
+     */
+    synchronized ArrayList<BookCopy> pollDueBefore(LocalDate date) {
+        ArrayList<BookCopy> expired = new ArrayList<BookCopy>();
+        while (!byDueDate.isEmpty() && byDueDate.firstKey().isBefore(date)) {
+            Map.Entry<LocalDate, LinkedHashSet<BookCopy>> first = byDueDate.pollFirstEntry();
+            expired.addAll(first.getValue());
+            size -= first.getValue().size();
+        }
+        return expired;
+    }
+
+    /**
+     * @return The number of copies in the index.
+     */
+    synchronized int size() { return size; }
+}
@@ -0,0 +1,90 @@
+package library;
+
+import java.time.LocalDate;
+
+/**
+ * A Patron's place in the queue for a Book which had no copy to lend them.
+ * <p>
+ * Holds are filled in the order they were placed. When a copy of the book is returned, or a new copy is added, it is lent
+ * straight to the patron of the oldest waiting hold - the copy never becomes AVAILABLE for someone else to take first.
+ */
+public class Hold {
+    /**
+     * Where a hold is in its life.
+     */
+    public enum State {
+        /**
+         * The patron is still waiting for a copy.
+         */
+        WAITING,
+        /**
+         * A copy has been lent to the patron.
+         */
+        FILLED,
+        /**
+         * The hold was cancelled before a copy came back.
+         */
+        CANCELLED;
+    }
+
+    private final Book book;
+    private final Patron patron;
+    private final LocalDate placed;
+    // Changed only while holding the Book's lock
+    private volatile State state;
+    private volatile int copyNumber;
+
+    // Holds are only made by Books, as patrons join their queues
+    Hold(Book book, Patron patron, LocalDate placed) {
+        this.book = book;
+        this.patron = patron;
+        this.placed = placed;
+        this.state = State.WAITING;
+    }
+
+    /**
+     * @return The Book the patron is waiting for.
+     */
+    public Book getBook() { return book; }
+    /**
+     * @return The Patron who placed the hold.
+     */
+    public Patron getPatron() { return patron; }
+    /**
+     * @return The date the hold was placed.
+     */
+    public LocalDate getPlacedDate() { return placed; }
+    /**
+     * @return Whether the patron is still waiting, has been lent a copy, or cancelled.
+     */
+    public State getState() { return state; }
+    /**
+     * @return The copy lent to the patron. Will be <code>null</code> unless the hold has been filled.
+     */
+    public BookCopy getCopy() { return state == State.FILLED ? new BookCopy(book, copyNumber) : null; }
+    /**
+     * Finds how many patrons are ahead of this one in the queue. This walks the queue, so is meant for showing to the patron.
+     *
+     * @return The number of waiting holds placed before this one, or -1 if this hold is no longer waiting.
+     */
+    public int getPosition() { return state == State.WAITING ? book.holdPosition(this) : -1; }
+
+    /**
+     * Gives up the patron's place in the queue.
+     *
+     * @return <code>true</code> if the hold was cancelled, or <code>false</code> if it had already been filled or cancelled.
+     */
+    public boolean cancel() { return book.cancelHold(this); }
+
+    // Used by the Book, while it holds its lock
+    void filled(int copyNumber) {
+        this.copyNumber = copyNumber;
+        this.state = State.FILLED;
+    }
+
+    void cancelled() { this.state = State.CANCELLED; }
+
+    public String toString() {
+        return "Hold[" + book.getTitle() + " for " + patron.getName() + ", placed " + placed + ", " + state + "]";
+    }
+}
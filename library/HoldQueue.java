@@ -0,0 +1,112 @@
+package library;
+
+import java.util.ArrayList;
+
+/**
+ * The holds waiting on one Book, oldest first. A Book only makes its queue once someone places a hold on it, so the
+ * millions of books nobody is waiting for cost nothing.
+ * <p>
+ * Holds are kept in a circular array, so placing one and filling the oldest both take constant time. A cancelled hold
+ * is left where it is and skipped when it reaches the front, rather than searched for and removed; if cancelled holds
+ * come to outnumber waiting ones, the array is compacted. A queue does no locking of its own - the Book's lock must be
+ * held while using it.
+ */
+class HoldQueue {
+    private Hold[] holds = new Hold[4];
+    private int head;
+    // The number of slots in use, including cancelled holds not yet skipped
+    private int size;
+    private int waiting;
+
+    /**
+     * @return The number of holds still waiting.
+     */
+    int waiting() { return waiting; }
+
+    /**
+     * Adds a hold at the back of the queue.
+     *
+     * @param hold The hold to add.
+     */
+    void add(Hold hold) {
+        if (size == holds.length)
+            resize(holds.length * 2);
+        holds[(head + size) & (holds.length - 1)] = hold;
+        size++;
+        waiting++;
+    }
+
+    /**
+     * Takes the oldest waiting hold off the front of the queue.
+     *
+     * @return The hold, or <code>null</code> if none are waiting.
+     */
+    Hold poll() {
+        while (size > 0) {
+            Hold hold = holds[head];
+            holds[head] = null;
+            head = (head + 1) & (holds.length - 1);
+            size--;
+            if (hold.getState() == Hold.State.WAITING) {
+                waiting--;
+                return hold;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Counts a hold as cancelled, or filled out of turn. The hold's state must already be changed, so it is skipped when
+     * it reaches the front.
+     */
+    void cancelled() {
+        waiting--;
+        if (size > 32 && waiting < size / 2)
+            resize(holds.length);
+    }
+
+    /**
+     * Finds how many waiting holds are ahead of a hold.
+     *
+     * @param hold The hold to look for.
+     * @return The number of holds ahead of it, or -1 if it isn't waiting in this queue.
+     */
+    int positionOf(Hold hold) {
+        int ahead = 0;
+        for (int i = 0; i < size; i++) {
+            Hold other = holds[(head + i) & (holds.length - 1)];
+            if (other == hold)
+                return ahead;
+            if (other.getState() == Hold.State.WAITING)
+                ahead++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The holds still waiting, oldest first.
+     */
+    ArrayList<Hold> waitingHolds() {
+        ArrayList<Hold> waitingHolds = new ArrayList<Hold>(waiting);
+        for (int i = 0; i < size; i++) {
+            Hold hold = holds[(head + i) & (holds.length - 1)];
+            if (hold.getState() == Hold.State.WAITING)
+                waitingHolds.add(hold);
+        }
+        return waitingHolds;
+    }
+
+    // Copies the waiting holds, in order, to the start of a new array, dropping cancelled ones
+    private void resize(int capacity) {
+        Hold[] resized = new Hold[Math.max(4, Integer.highestOneBit(Math.max(capacity, waiting) - 1) << 1)];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Hold hold = holds[(head + i) & (holds.length - 1)];
+            if (hold.getState() == Hold.State.WAITING)
+                resized[kept++] = hold;
+        }
+        holds = resized;
+        head = 0;
+        size = kept;
+    }
+}
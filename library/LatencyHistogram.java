@@ -0,0 +1,181 @@
+package library;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, in the style of HdrHistogram: buckets are log-linear, so every recorded value
+ * lands in a bucket no more than about 6% wider than itself, whether it is a 50ns lookup or a 5-minute load.
+ * <p>
+ * Values below 32 get a bucket each. Above that, each power of two is split into 16 equal buckets, so the bucket of a
+ * value is found from its highest set bit and the four bits after it, with no searching or locking.
+ * <p>
+ * Recording only increments a counter, so any number of threads can record at once. Like a LongAdder, the buckets start
+ * out as a single row of counters, and each time two threads collide on a counter more rows are added, up to about one
+ * per processor. Each thread records into the row its probe picks, and a thread which collides moves its probe to
+ * another row, so threads which record often soon each have a row to themselves. Reading the histogram adds up the
+ * rows, bucket by bucket.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    // Enough buckets for any non-negative long
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS + SUB_BUCKETS;
+
+    // The most rows a histogram grows to: the power of two at or above the number of processors, as more rows than threads
+    // running at once can't cut collisions any further
+    private static final int MAX_ROWS = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+    // Each thread's probe, which picks its row in every histogram. It starts from the thread's id, and moves when the
+    // thread collides with another
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[] { mix(Thread.currentThread().getId()) });
+
+    // The counts of each bucket, split over rows. The number of values recorded is the sum of the buckets, so it isn't
+    // counted separately. Rows are only added, and the array is published whole each time, so a row a thread is
+    // recording into is never lost
+    private volatile AtomicLongArray[] rows;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    /**
+     * Class constructor. The histogram starts out empty.
+     */
+    LatencyHistogram() {
+        this.rows = new AtomicLongArray[] { new AtomicLongArray(BUCKETS) };
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param nanos The value to record. Negative values are recorded as 0.
+     */
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        int bucket = bucketOf(nanos);
+        int[] probe = PROBE.get();
+        AtomicLongArray[] current = rows;
+        AtomicLongArray row = current[probe[0] & (current.length - 1)];
+        long count = row.get(bucket);
+        if (!row.compareAndSet(bucket, count, count + 1)) {
+            row.incrementAndGet(bucket);
+            collided(current, probe);
+        }
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    // Moves a thread which collided with another to a different row, adding rows if there are still fewer than the most
+    private void collided(AtomicLongArray[] seen, int[] probe) {
+        // An xorshift step, as ThreadLocalRandom takes for the probes of a LongAdder
+        int p = probe[0];
+        p ^= p << 13;
+        p ^= p >>> 17;
+        p ^= p << 5;
+        probe[0] = p;
+
+        if (seen.length < MAX_ROWS) {
+            synchronized (this) {
+                if (rows == seen) {
+                    AtomicLongArray[] grown = Arrays.copyOf(seen, seen.length * 2);
+                    for (int i = seen.length; i < grown.length; i++)
+                        grown[i] = new AtomicLongArray(BUCKETS);
+                    rows = grown;
+                }
+            }
+        }
+    }
+
+    // The count of a bucket, across every row
+    private static long countOf(AtomicLongArray[] rows, int bucket) {
+        long count = 0;
+        for (AtomicLongArray row : rows)
+            count += row.get(bucket);
+        return count;
+    }
+
+    // Scatters a thread's id into a probe, which is never 0 so the xorshift steps never get stuck
+    private static int mix(long id) {
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    long getCount() {
+        AtomicLongArray[] current = rows;
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += countOf(current, i);
+        return count;
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if none have been recorded.
+     */
+    double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @return The largest value recorded.
+     */
+    long getMax() { return max.get(); }
+
+    /**
+     * Finds a percentile of the recorded values. Values recorded while this runs may or may not be counted.
+     *
+     * @param percentile The percentile to find, from 0 to 100.
+     * @return The highest value in the bucket holding that percentile, or 0 if no values have been recorded.
+     */
+    long getPercentile(double percentile) {
+        AtomicLongArray[] current = rows;
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = countOf(current, i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+
+        // The rank of the value we want, counting from 1
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValueIn(i), getMax());
+        }
+        return getMax();
+    }
+
+    // The bucket a value is counted in
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        // Keep the highest set bit and the bits just after it, which fall between HALF_SUB_BUCKETS and SUB_BUCKETS
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // The highest value counted in a bucket
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = bucket / HALF_SUB_BUCKETS - 1;
+        long mantissa = bucket - shift * HALF_SUB_BUCKETS;
+        // The top bucket ends at Long.MAX_VALUE, which (mantissa + 1) << shift would overflow
+        return shift >= 64 - SUB_BUCKET_BITS ? Long.MAX_VALUE : ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -1,9 +1,16 @@
 package library;
 
 import java.util.ArrayList;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.io.IOException;
+import java.time.Clock;
 import java.time.LocalDate;
 
 /**
@@ -12,54 +19,252 @@ import java.time.LocalDate;
  * @author Lauren Wilson
  */
 public class Library {
-    private ArrayList<Author> authors;
-    private ArrayList<Patron> patrons;
-    private ArrayList<Book> books;
+    /**
+     * The number of days a copy can be borrowed for, unless the Library is told otherwise.
+     */
+    public static final int DEFAULT_LOAN_PERIOD = 21;
+
+    /**
+     * Where the Library keeps the fields of its Books and Authors.
+     */
+    public enum Storage {
+        /**
+         * Fields are kept in the Book and Author objects, as ordinary heap objects. This is the default.
+         */
+        HEAP,
+        /**
+         * Titles, ISBNs and dates of birth are kept in direct buffers outside the heap, and decoded each time they are
+         * read. Reads cost a little more, but a large catalog no longer adds to the garbage collector's work - the heap
+         * holds one small object per Book and Author, rather than a tree of strings. Author names are kept off the heap
+         * too. Publishers repeat so often that they stay in the Library's dictionary, kept once each, with either storage.
+         */
+        OFF_HEAP;
+    }
+
+    /**
+     * How the query caches choose which results to evict.
+     */
+    public enum CachePolicy {
+        /**
+         * The least recently used result is evicted.
+         */
+        LRU,
+        /**
+         * New results must have been asked for more often than the results they would push out, as counted by a frequency
+         * sketch of recent queries. This is the default, as it keeps popular queries cached through bursts of one-off ones.
+         */
+        W_TINY_LFU;
+    }
+
+    /**
+     * The number of results each query cache holds, unless the Library is told otherwise.
+     */
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 1024;
+    /**
+     * The most words the last, possibly incomplete, word of a <code>searchBooks</code> query is expanded to. The words
+     * it begins which the most books contain are the ones kept.
+     */
+    public static final int MAX_PREFIX_EXPANSIONS = 64;
+
+    // The authors, patrons and books, as an immutable view which is replaced with every addition. Readers take whichever
+    // view is current and walk it without locking, while additions are made one at a time under the Library's monitor
+    private volatile CatalogView view;
+
+    // Case-insensitive indexes, so that lookups don't have to scan the lists above. Like the view, they are changed only
+    // under the Library's monitor, and read by lookups on any thread without a lock
+    private CatalogIndex<Author> authorsByName;
+    private CatalogIndex<Patron> patronsByKey;
+    private CatalogIndex<Book> booksByTitle;
+    private CatalogIndex<Book> booksByISBN;
+    // A full-text index of the words in each book's title, author and publisher
+    private SearchIndex booksByWord;
+
+    // Recent results of the lookups which can't be answered from a single index entry, or null while caching is off
+    private QueryCache<String, ArrayList<Book>> booksByAuthorCache;
+    private QueryCache<SearchQuery, ArrayList<Book>> searchCache;
+
+    // Holds the fields of the Books and Authors in an off-heap Library, and is null otherwise
+    private OffHeapCatalog offHeap;
+    // One copy of each publisher, and of each author's name unless the Library is off-heap. It belongs to this Library
+    // alone, so the strings of a Library which is no longer used go with it
+    private final StringDictionary strings;
+
+    // How the load methods read their files
+    private CsvLoader.Mode loadMode;
+
+    // Where the Library gets today's date from, so tests can move time along, and how long loans last
+    private Clock clock;
+    private int loanPeriod;
+    // Every copy on loan, ordered by due date, so overdue copies can be found without looking at every copy
+    private DueDateIndex dueDates;
+
+    // Counts and times lookups, circulation and loads
+    private LibraryMetrics metrics;
+
+    // Told about every change to the Library. Copy-on-write, as listeners are added rarely but notified constantly, from many threads
+    private CopyOnWriteArrayList<LibraryListener> listeners;
 
     /**
      * Class constructor. Once instantiated, Authors, Patrons, and Books can be added to the Library.
      */
     // The Library's constructor has no parameters - authors, books, and patrons are added after the fact
     public Library() {
-        this.authors = new ArrayList<Author>();
-        this.patrons = new ArrayList<Patron>();
-        this.books = new ArrayList<Book>();
+        this.view = CatalogView.empty();
+        this.strings = new StringDictionary();
+
+        this.authorsByName = authorIndex();
+        this.patronsByKey = new CatalogIndex<Patron>(patron -> patronKey(patron.getName(), patron.getAddress()));
+        this.booksByTitle = new CatalogIndex<Book>(Book::getTitle);
+        this.booksByISBN = new CatalogIndex<Book>(Book::getISBN);
+        this.booksByWord = new SearchIndex(seq -> view.bookAt(seq));
+
+        this.loadMode = CsvLoader.Mode.STREAMING;
+        this.clock = Clock.systemDefaultZone();
+        this.loanPeriod = DEFAULT_LOAN_PERIOD;
+        this.dueDates = new DueDateIndex();
+        this.listeners = new CopyOnWriteArrayList<LibraryListener>();
+        this.metrics = new LibraryMetrics();
+        setQueryCache(CachePolicy.W_TINY_LFU, DEFAULT_QUERY_CACHE_SIZE);
     }
 
     /**
      * 
      * @return A list of the Authors known by the library. Every Book in the system must be written by one of these Authors.
+     *      The list is the caller's own copy, so changing it doesn't change the Library.
+     */
+    public ArrayList<Author> getAuthors() { return new ArrayList<Author>(view.getAuthors()); }
+    /**
+     * 
+     * @return A list of Patrons registered in the library. The list is the caller's own copy, so changing it doesn't change the Library.
+     */
+    public ArrayList<Patron> getPatrons() { return new ArrayList<Patron>(view.getPatrons()); }
+    /**
+     * 
+     * @return A list of Books which can be found in the library. The list is the caller's own copy, so changing it doesn't change the Library.
+     */
+    public ArrayList<Book> getBooks() { return new ArrayList<Book>(view.getBooks()); }
+    /**
+     * @return The Authors known by the library, without copying them. The list is a snapshot, which can't be changed and
+     *      doesn't see later additions.
+     */
+    public List<Author> getAuthorsView() { return view.getAuthors(); }
+    /**
+     * @return The Patrons registered in the library, without copying them. The list is a snapshot, which can't be changed
+     *      and doesn't see later additions.
+     */
+    public List<Patron> getPatronsView() { return view.getPatrons(); }
+    /**
+     * @return The Books which can be found in the library, without copying them. The list is a snapshot, which can't be
+     *      changed and doesn't see later additions.
+     */
+    public List<Book> getBooksView() { return view.getBooks(); }
+    /**
+     * Takes a point-in-time view of the catalog, so several lists can be read as they were at one moment. This never
+     * waits, and never holds up additions or circulation.
+     * 
+     * @return The current view of the Library's Authors, Patrons and Books.
      */
-    public ArrayList<Author> getAuthors() { return authors; }
+    public CatalogView getCatalogView() { return view; }
+
+    // Note that the lists above are only added to through the add methods below, which keep the find methods' indexes in step
+
     /**
+     * Adds a listener, which will be told about every later change to the Library.
      * 
-     * @return A list of Patrons registered in the library.
+     * @param listener The listener to add.
      */
-    public ArrayList<Patron> getPatrons() { return patrons; }
+    public void addListener(LibraryListener listener) { listeners.add(listener); }
     /**
+     * Removes a listener, so it is no longer told about changes.
      * 
-     * @return A list of Books which can be found in the library.
+     * @param listener The listener to remove.
+     */
+    public void removeListener(LibraryListener listener) { listeners.remove(listener); }
+    // Used by Books and BookCopies to report changes to their copies
+    CopyOnWriteArrayList<LibraryListener> getListeners() { return listeners; }
+    // Used by Books and Authors in this Library, and by loaders making them, to share one copy of each publisher and name
+    StringDictionary getStrings() { return strings; }
+
+    // On the heap, authors' names are dictionary entries and are matched by their keys. Off the heap, the names are
+    // only in the off-heap catalog, and are matched by reading them back
+    private CatalogIndex<Author> authorIndex() {
+        if (offHeap != null)
+            return new CatalogIndex<Author>(Author::getName);
+        return new CatalogIndex<Author>(Author::getName, strings, author -> author.getNameKey(strings));
+    }
+    /**
+     * @return The counters and latency histograms of this Library's lookups, circulation and loads.
      */
-    public ArrayList<Book> getBooks() { return books; }
+    public LibraryMetrics getMetrics() { return metrics; }
 
     /**
      * Adds an author to the system.
      * 
      * @param author The Author to be added.
      */
-    public void addAuthor(Author author) { authors.add(author); }
+    public synchronized void addAuthor(Author author) {
+        author.setLibrary(this, view.authorCount());
+        if (offHeap != null)
+            author.moveOffHeap(offHeap);
+        else
+            author.internName(strings);
+        view = view.withAuthor(author);
+        authorsByName.add(author.getName(), author, author.getCatalogSeq());
+
+        for (LibraryListener listener : listeners)
+            listener.authorAdded(author);
+    }
     /**
      * Adds a patron to the system.
      * 
      * @param patron The Patron to be added.
      */
-    public void addPatron(Patron patron) { patrons.add(patron); }
+    public synchronized void addPatron(Patron patron) {
+        patron.setLibrary(this, view.patronCount());
+        // Told to the listeners before it is published, so no loan or hold another thread makes can be journalled before
+        // the patron it refers to
+        for (LibraryListener listener : listeners)
+            listener.patronAdded(patron);
+
+        view = view.withPatron(patron);
+        patronsByKey.add(patronKey(patron.getName(), patron.getAddress()), patron, patron.getCatalogSeq());
+    }
     /**
      * Adds a book to the system. Note that copies of it are not automatically made available.
      * 
      * @param book The Book to be added
      */
-    public void addBook(Book book) { books.add(book); }
+    public synchronized void addBook(Book book) {
+        book.setLibrary(this, view.bookCount());
+        if (offHeap != null)
+            book.moveOffHeap(offHeap);
+        else
+            strings.intern(book.getAuthor().getName());
+        // Told to the listeners before it is published or its due dates indexed, so no copy another thread adds, lends or
+        // marks overdue can be journalled before the book it belongs to
+        for (LibraryListener listener : listeners)
+            listener.bookAdded(book);
+
+        // Published before it is indexed, so any position a search finds is in the view
+        view = view.withBook(book);
+        booksByTitle.add(book.getTitle(), book, book.getCatalogSeq());
+        booksByISBN.add(book.getISBN(), book, book.getCatalogSeq());
+        booksByWord.addBook(book);
+
+        // Every book added changes how rare each word is, which can reorder any search, so cached searches all go
+        if (booksByAuthorCache != null)
+            booksByAuthorCache.invalidate(CatalogIndex.fold(book.getAuthor().getName()));
+        if (searchCache != null)
+            searchCache.invalidateAll();
+
+        book.getLock().lock();
+        try {
+            for (BookCopy copy : book.getCopiesView())
+                copy.indexDueDate();
+        } finally {
+            book.getLock().unlock();
+        }
+    }
 
     // Shortcut methods which create new instances of a class, add them to relevant a lists, and return the instances
     // This allows for simpler code elsewhere
@@ -76,7 +281,7 @@ public class Library {
         LocalDate newDOB = LocalDate.of(year, month, day);
         Author newAuthor = new Author(name, newDOB);
 
-        authors.add(newAuthor);
+        addAuthor(newAuthor);
         return newAuthor;
     }
 
@@ -91,7 +296,7 @@ public class Library {
     public Patron addPatron(String name, String address, String phoneNum) {
         Patron newPatron = new Patron(name, address, phoneNum);
 
-        patrons.add(newPatron);
+        addPatron(newPatron);
         return newPatron;
     }
 
@@ -106,7 +311,7 @@ public class Library {
      */
     public Book addBook(String title, Author author, String isbn, String publisher) {
         Book newBook = new Book(title, author, isbn, publisher);
-        books.add(newBook);
+        addBook(newBook);
 
         return newBook;
     }
@@ -118,16 +323,10 @@ public class Library {
      * @return The first matching Author. Will be <code>null</code> if no match was found.
      */
     public Author findAuthorByName(String name) {
-        Author result = null;
-        for (Author author : authors) {
-
-            if (author.getName().equalsIgnoreCase(name)) {
-                result = author;
-                break;
-            }
-        }
-
-        return result;
+        long start = metrics.start();
+        Author author = authorsByName.first(name);
+        metrics.record(LibraryMetrics.Operation.FIND_AUTHOR_BY_NAME, start, author != null);
+        return author;
     }
 
     /**
@@ -137,15 +336,10 @@ public class Library {
      * @return The first matching Book. Will be <code>null</code> if no match was found.
      */
     public Book findBookByTitle(String title) {
-        Book result = null;
-        for (Book book : books) {
-            if (book.getTitle().equalsIgnoreCase(title)) {
-                result = book;
-                break;
-            }
-        }
-
-        return result;
+        long start = metrics.start();
+        Book book = booksByTitle.first(title);
+        metrics.record(LibraryMetrics.Operation.FIND_BOOK_BY_TITLE, start, book != null);
+        return book;
     }
 
     /**
@@ -155,16 +349,12 @@ public class Library {
      * @return The first matching Book. Will be <code>null</code> if no match was found.
      */
     public Book findBookByISBN(String isbn) {
-        Book result = null;
-        for (Book book : books) {
-            if (book.getISBN().equalsIgnoreCase(isbn)) {
-                result = book;
-                break;
-            }
-        }
-
-        return result;
+        long start = metrics.start();
+        Book book = booksByISBN.first(isbn);
+        metrics.record(LibraryMetrics.Operation.FIND_BOOK_BY_ISBN, start, book != null);
+        return book;
     }
+
     /**
      * Searches for all Books by the given author.
      * 
@@ -172,15 +362,114 @@ public class Library {
      * @return A list of all matching Books.
      */
     public ArrayList<Book> findBooksByAuthor(String authorName) {
-        ArrayList<Book> results = new ArrayList<Book>();
-        for (Book book : books) {
-            if (book.getAuthor().getName().equalsIgnoreCase(authorName))
-                results.add(book);
+        long start = metrics.start();
+        QueryCache<String, ArrayList<Book>> cache = booksByAuthorCache;
+        String key = CatalogIndex.fold(authorName);
+        ArrayList<Book> results = cache == null || key == null ? null : cache.get(key);
+        if (results == null) {
+            long generation = cache == null || key == null ? 0 : cache.generation(key);
+            results = new ArrayList<Book>();
+            if (offHeap == null) {
+                // Names which are equal ignoring case share a dictionary key, so each book costs one int comparison, and a
+                // name no author of this Library's books has ever had has no key and matches nothing
+                int nameKey = strings.keyOf(authorName);
+                if (nameKey != StringDictionary.NO_ID) {
+                    for (Book book : view.getBooks()) {
+                        if (book.getAuthor().getNameKey(strings) == nameKey)
+                            results.add(book);
+                    }
+                }
+            } else {
+                for (Book book : view.getBooks()) {
+                    if (book.getAuthor().getName().equalsIgnoreCase(authorName))
+                        results.add(book);
+                }
+            }
+            if (cache != null && key != null)
+                cache.put(key, results, generation);
         }
 
-        return results;
+        metrics.record(LibraryMetrics.Operation.FIND_BOOKS_BY_AUTHOR, start, !results.isEmpty());
+        // Cached lists are shared, so callers get their own copy
+        return new ArrayList<Book>(results);
     } 
 
+    /**
+     * Searches the titles, authors and publishers of Books for words, the way a catalog search box would.
+     * Matches in the title rank above matches in the author's name, which rank above matches in the publisher.
+     * 
+     * <p>
+     * The last word of the query may be the start of a word, and matches the <code>MAX_PREFIX_EXPANSIONS</code> words it
+     * begins which the most books contain. A prefix of only a letter or two may begin more words than that, and then a
+     * Book whose only match is one of the rarer words is left out - typing more of the word finds it.
+     *
+     * @param query The words to search for, such as <code>"silent riv"</code>. Case doesn't matter, and the last word may be
+     *      the start of a word.
+     * @param limit The most Books to return.
+     * @return The Books containing every word, with the last as described above, best match first. Will be empty if
+     *      nothing matched.
+     */
+    public ArrayList<Book> searchBooks(String query, int limit) {
+        long start = metrics.start();
+        QueryCache<SearchQuery, ArrayList<Book>> cache = searchCache;
+        SearchQuery key = cache == null ? null : new SearchQuery(query, limit);
+        ArrayList<Book> results = key == null ? null : cache.get(key);
+        if (results == null) {
+            long generation = key == null ? 0 : cache.generation(key);
+            results = booksByWord.search(query, limit);
+            if (key != null)
+                cache.put(key, results, generation);
+        }
+
+        metrics.record(LibraryMetrics.Operation.SEARCH_BOOKS, start, !results.isEmpty());
+        return new ArrayList<Book>(results);
+    }
+
+    // Searches as searchBooks does, adding the score of each result to a list, so a shard's results can be merged with
+    // other shards'. The query cache only holds books, so it isn't used
+    ArrayList<Book> searchBooks(String query, int limit, ArrayList<Double> scores) {
+        long start = metrics.start();
+        ArrayList<Book> results = booksByWord.search(query, limit, scores);
+        metrics.record(LibraryMetrics.Operation.SEARCH_BOOKS, start, !results.isEmpty());
+        return results;
+    }
+
+    // A search, as the words it looks for and how many results it wants, so that queries differing only in case or
+    // punctuation share a cache entry
+    private static class SearchQuery {
+        private final String[] words;
+        private final int limit;
+
+        private SearchQuery(String query, int limit) {
+            this.words = SearchIndex.tokenize(query).toArray(new String[0]);
+            this.limit = limit;
+        }
+
+        // Whether a change to any of these words could change this search's results. The last word of a search matches
+        // every word it is the start of
+        private boolean isAffectedBy(Set<String> changedWords) {
+            for (int i = 0; i < words.length - 1; i++) {
+                if (changedWords.contains(words[i]))
+                    return true;
+            }
+            if (words.length > 0) {
+                for (String changed : changedWords) {
+                    if (changed.startsWith(words[words.length - 1]))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof SearchQuery && ((SearchQuery) other).limit == limit && Arrays.equals(((SearchQuery) other).words, words);
+        }
+
+        @Override
+        public int hashCode() { return 31 * Arrays.hashCode(words) + limit; }
+    }
+
     /**
      * Searches for a Patron of the library. Both their name and home address must be specified.
      * 
@@ -189,120 +478,434 @@ public class Library {
      * @return The matching Matron. Will be <code>null</code> if no match was found.
      */
     public Patron findPatron(String name, String address) {
-        Patron result = null;
+        long start = metrics.start();
+        // A patron is only a match if both fields match, so a missing field can never match
+        Patron patron = name == null || address == null ? null : patronsByKey.first(patronKey(name, address));
+        metrics.record(LibraryMetrics.Operation.FIND_PATRON, start, patron != null);
+        return patron;
+    }
+
+    // Patrons are indexed by name and address together, joined by a character which won't appear in either
+    private static String patronKey(String name, String address) {
+        if (name == null || address == null)
+            return null;
+
+        return name + '\u0000' + address;
+    }
 
-        // First, make a list of patrons with a matching name
-        ArrayList<Patron> filteredPatrons = new ArrayList<Patron>();
-        for (Patron patron : patrons) {
-            if (patron.getName().equalsIgnoreCase(name))
-                filteredPatrons.add(patron);    
+    // The methods below are called by Authors, Patrons, and Books when one of their fields is set. They hold this
+    // Library's lock, which guards the indexes just as it does while adding
+    synchronized void authorRenamed(Author author, String oldName) {
+        // The author of any of this Library's books can be found by name, so the new name needs a dictionary key
+        if (offHeap == null)
+            strings.intern(author.getName());
+        if (author.getLibrary() == this) {
+            authorsByName.remove(oldName, author);
+            authorsByName.add(author.getName(), author, author.getCatalogSeq());
         }
 
-        // If the list is not empty (patrons were found), look for a matching address next
-        if (filteredPatrons.size() > 0) {
-            for (Patron patron : filteredPatrons) {
-                if (patron.getAddress().equalsIgnoreCase(address)) {
-                    result = patron;
-                    break;
-                }
-            }
+        for (Book book : author.getBibliography()) {
+            if (book.getLibrary() == this)
+                booksByWord.fieldChanged(book, SearchIndex.AUTHOR, oldName, author.getName());
         }
 
-        return result;
+        // Books are found by their author's name, so lookups under both the old and new names have changed
+        if (booksByAuthorCache != null) {
+            booksByAuthorCache.invalidate(CatalogIndex.fold(oldName));
+            booksByAuthorCache.invalidate(CatalogIndex.fold(author.getName()));
+        }
+        searchWordsChanged(oldName, author.getName());
+
+        for (LibraryListener listener : listeners)
+            listener.authorChanged(author, oldName);
+    }
+
+    synchronized void patronChanged(Patron patron, String oldName, String oldAddress, String oldPhoneNum) {
+        // Only the name and address are indexed
+        if (!Objects.equals(oldName, patron.getName()) || !Objects.equals(oldAddress, patron.getAddress())) {
+            patronsByKey.remove(patronKey(oldName, oldAddress), patron);
+            patronsByKey.add(patronKey(patron.getName(), patron.getAddress()), patron, patron.getCatalogSeq());
+        }
+
+        for (LibraryListener listener : listeners)
+            listener.patronChanged(patron, oldName, oldAddress, oldPhoneNum);
+    }
+
+    synchronized void bookRetitled(Book book, String oldTitle) {
+        booksByTitle.remove(oldTitle, book);
+        booksByTitle.add(book.getTitle(), book, book.getCatalogSeq());
+        booksByWord.fieldChanged(book, SearchIndex.TITLE, oldTitle, book.getTitle());
+        searchWordsChanged(oldTitle, book.getTitle());
+
+        for (LibraryListener listener : listeners)
+            listener.bookChanged(book, oldTitle, book.getPublisher());
+    }
+
+    synchronized void bookPublisherChanged(Book book, String oldPublisher) {
+        booksByWord.fieldChanged(book, SearchIndex.PUBLISHER, oldPublisher, book.getPublisher());
+        searchWordsChanged(oldPublisher, book.getPublisher());
+
+        for (LibraryListener listener : listeners)
+            listener.bookChanged(book, book.getTitle(), oldPublisher);
+    }
+
+    // Drops the cached searches which a field changing from one text to another could affect. Only words which were in
+    // one text but not the other change the index, and only searches using those words can see the difference
+    private void searchWordsChanged(String oldText, String newText) {
+        if (searchCache == null)
+            return;
+
+        HashSet<String> oldWords = new HashSet<String>(SearchIndex.tokenize(oldText));
+        HashSet<String> newWords = new HashSet<String>(SearchIndex.tokenize(newText));
+        HashSet<String> changed = new HashSet<String>(oldWords);
+        changed.addAll(newWords);
+        oldWords.retainAll(newWords);
+        changed.removeAll(oldWords);
+        if (!changed.isEmpty())
+            searchCache.invalidateIf(query -> query.isAffectedBy(changed));
     }
 
     /**
-     * Reads a list of Authors from a file. The list must be in CSV format.
+     * Sets the clock the Library reads today's date from. Checkouts are dated by it, and overdue sweeps compare due dates against it.
      * 
-     * @param file The file to read.
+     * @param clock The clock to use. The system clock is used by default.
      */
-    public void loadAuthors(String file) {
-        // We'll assume the file is formatted as CSV data, which is easy to parse
-        String delimiter = ",";
+    public void setClock(Clock clock) { this.clock = clock; }
+    /**
+     * @return The clock the Library reads today's date from.
+     */
+    public Clock getClock() { return clock; }
+    // Today's date, according to the Library's clock
+    LocalDate today() { return LocalDate.now(clock); }
+
+    /**
+     * Sets how long new loans last. Copies which are already on loan keep their due dates.
+     * 
+     * @param days The number of days after checkout a copy is due back.
+     */
+    public void setLoanPeriod(int days) {
+        if (days < 0)
+            throw new IllegalArgumentException("A loan period can't be negative: " + days);
+        this.loanPeriod = days;
+    }
+    /**
+     * @return The number of days after checkout a copy is due back.
+     */
+    public int getLoanPeriod() { return loanPeriod; }
+    // Used by copies to add and remove themselves as they are lent and returned
+    DueDateIndex getDueDates() { return dueDates; }
+
+    /**
+     * Marks every CHECKED_OUT copy whose due date has passed as OVERDUE, earliest due first.
+     * This only looks at the loans which have expired since the last sweep, so it is cheap to run often.
+     * 
+     * @return The number of copies which became OVERDUE.
+     */
+    public int sweepOverdue() {
+        LocalDate today = today();
+        int marked = 0;
+        for (BookCopy copy : dueDates.pollDueBefore(today)) {
+            if (copy.markOverdue(today))
+                marked++;
+        }
+
+        return marked;
+    }
 
+    /**
+     * Applies a batch of checkouts and returns as a single step. Items are grouped by Book, and every Book in the batch
+     * is locked (in catalog order, so two batches can't deadlock) until the whole batch is done. Each Book's
+     * availability is checked once for all of its items, with its returns made before its checkouts, so a copy returned
+     * in a batch can be lent again by the same batch - unless a patron is waiting for the book, in which case the copy
+     * goes to them, as it would outside a batch.
+     * <p>
+     * Nothing is printed - items which can't be made are reported in the result. An atomic batch with any failures
+     * changes nothing.
+     * 
+     * @param batch The checkouts and returns to make.
+     * @return Which copies were borrowed and returned, and which items failed.
+     */
+    public BatchResult applyBatch(CirculationBatch batch) {
+        long start = metrics.start();
+        BatchResult result = applyBatchLocked(batch);
+        metrics.record(LibraryMetrics.Operation.APPLY_BATCH, start, result.isSuccessful());
+        return result;
+    }
+
+    private BatchResult applyBatchLocked(CirculationBatch batch) {
+        ArrayList<CirculationBatch.Item> items = batch.getItems();
+        ArrayList<BatchResult.Failure> failures = new ArrayList<BatchResult.Failure>();
+
+        // Find the Book of each item, then sort the items by their Book's place in the catalog, keeping batch order within
+        // each Book. Each item is packed into a long of the two, so the sort boxes nothing, and each Book's items end up side by side
+        Book[] bookOf = new Book[items.size()];
+        long[] order = new long[items.size()];
+        int grouped = 0;
+        for (int i = 0; i < items.size(); i++) {
+            CirculationBatch.Item item = items.get(i);
+            Book book = item.book != null ? item.book : findBookByISBN(item.isbn);
+            if (book == null) {
+                failures.add(new BatchResult.Failure(i, "No book has the ISBN " + item.isbn));
+            } else if (book.getLibrary() != this) {
+                failures.add(new BatchResult.Failure(i, "'" + book.getTitle() + "' is not in this Library"));
+            } else if (!item.isReturn && item.patron == null) {
+                failures.add(new BatchResult.Failure(i, "No patron was given to borrow '" + book.getTitle() + "'"));
+            } else if (!item.isReturn && item.count < 1) {
+                failures.add(new BatchResult.Failure(i, "Can't borrow " + item.count + " copies of '" + book.getTitle() + "'"));
+            } else {
+                bookOf[i] = book;
+                order[grouped++] = (long) book.getCatalogSeq() << 32 | i;
+            }
+        }
+        Arrays.sort(order, 0, grouped);
+
+        // Books are locked in catalog order, so two batches can't deadlock
+        for (int start = 0; start < grouped; start = groupEnd(order, bookOf, start, grouped))
+            bookOf[(int) order[start]].getLock().lock();
         try {
-            BufferedReader csv = new BufferedReader(new FileReader(file));
-            String line;
+            // Check every group before changing anything, so an atomic batch can still back out
+            boolean[] valid = new boolean[items.size()];
+            boolean[] repeated = new boolean[items.size()];
+            for (int start = 0, end; start < grouped; start = end) {
+                end = groupEnd(order, bookOf, start, grouped);
+                Book book = bookOf[(int) order[start]];
+                // Patrons waiting for the book are served before the batch: they take the AVAILABLE copies first, and
+                // then each copy the batch returns, until none are left waiting
+                int waiting = book.getHoldCount();
+                int available = book.getAvailableCopies();
+                int served = Math.min(waiting, available);
+                waiting -= served;
+                available -= served;
+                markRepeatedReturns(items, order, start, end, repeated);
+                for (int k = start; k < end; k++) {
+                    int i = (int) order[k];
+                    CirculationBatch.Item item = items.get(i);
+                    if (!item.isReturn)
+                        continue;
+
+                    if (book.borrowerOf(item.copyNumber) == null) {
+                        failures.add(new BatchResult.Failure(i, "Copy " + item.copyNumber + " of '" + book.getTitle() + "' is not on loan"));
+                    } else if (repeated[i]) {
+                        failures.add(new BatchResult.Failure(i, "Copy " + item.copyNumber + " of '" + book.getTitle() + "' is returned twice"));
+                    } else {
+                        valid[i] = true;
+                        // A copy which was removed while on loan doesn't come back to the shelf
+                        if (book.getCopyStore().find(item.copyNumber) < 0)
+                            continue;
+                        if (waiting > 0)
+                            waiting--;
+                        else
+                            available++;
+                    }
+                }
+                for (int k = start; k < end; k++) {
+                    int i = (int) order[k];
+                    CirculationBatch.Item item = items.get(i);
+                    if (item.isReturn)
+                        continue;
+
+                    if (item.count > available) {
+                        failures.add(new BatchResult.Failure(i, "Only " + available + " copies of '" + book.getTitle() + "' are available, not " + item.count));
+                    } else {
+                        valid[i] = true;
+                        available -= item.count;
+                    }
+                }
+            }
 
-            // Continue reading lines until there is nothing left to read
-            while ((line = csv.readLine()) != null) {
-                String data[] = line.split(delimiter);
-                addAuthor(data[0], Integer.parseInt(data[1]), Integer.parseInt(data[2]), Integer.parseInt(data[3]));
+            failures.sort(Comparator.comparingInt(BatchResult.Failure::getItem));
+            if (batch.isAtomic() && !failures.isEmpty())
+                return new BatchResult(false, new ArrayList<BookCopy>(), new ArrayList<BookCopy>(), failures);
+
+            // Every valid item can now be made, returns before checkouts. The copies are kept by item, so the results come out in batch order
+            BookCopy[] returnedByItem = new BookCopy[items.size()];
+            BookCopy[][] borrowedByItem = new BookCopy[items.size()][];
+            for (int start = 0, end; start < grouped; start = end) {
+                end = groupEnd(order, bookOf, start, grouped);
+                Book book = bookOf[(int) order[start]];
+                for (int k = start; k < end; k++) {
+                    int i = (int) order[k];
+                    CirculationBatch.Item item = items.get(i);
+                    if (valid[i] && item.isReturn) {
+                        BookCopy copy = new BookCopy(book, item.copyNumber);
+                        CopyStore store = book.storeOf(item.copyNumber);
+                        long returnStart = metrics.start();
+                        copy.tryReturnCopy(store, store.find(item.copyNumber));
+                        metrics.record(LibraryMetrics.Operation.RETURN, returnStart, true);
+                        returnedByItem[i] = copy;
+                    }
+                }
+                for (int k = start; k < end; k++) {
+                    int i = (int) order[k];
+                    CirculationBatch.Item item = items.get(i);
+                    if (valid[i] && !item.isReturn) {
+                        ArrayList<BookCopy> lent = book.tryBorrowCopies(item.patron, item.count);
+                        if (lent != null)
+                            borrowedByItem[i] = lent.toArray(new BookCopy[0]);
+                        else
+                            failures.add(new BatchResult.Failure(i, "Only " + book.getAvailableCopies() + " copies of '" + book.getTitle() + "' are available, not " + item.count));
+                    }
+                }
+            }
+
+            // The checks above should leave nothing to fail here, but a checkout which does is reported rather than lost
+            failures.sort(Comparator.comparingInt(BatchResult.Failure::getItem));
+            ArrayList<BookCopy> borrowed = new ArrayList<BookCopy>();
+            ArrayList<BookCopy> returned = new ArrayList<BookCopy>();
+            for (int i = 0; i < items.size(); i++) {
+                if (returnedByItem[i] != null)
+                    returned.add(returnedByItem[i]);
+                else if (borrowedByItem[i] != null)
+                    Collections.addAll(borrowed, borrowedByItem[i]);
             }
+            return new BatchResult(true, borrowed, returned, failures);
+        } finally {
+            for (int start = 0; start < grouped; start = groupEnd(order, bookOf, start, grouped))
+                bookOf[(int) order[start]].getLock().unlock();
+        }
+    }
 
-            csv.close();
+    // Finds where the group of items for one Book ends, in items sorted by applyBatch
+    private static int groupEnd(long[] order, Book[] bookOf, int start, int grouped) {
+        Book book = bookOf[(int) order[start]];
+        int end = start + 1;
+        while (end < grouped && bookOf[(int) order[end]] == book)
+            end++;
+        return end;
+    }
+
+    // Marks the returns in a group which repeat a copy returned by an earlier item. Each return is packed into a long of
+    // its copy number and item, so sorting brings repeats together in item order without boxing anything
+    private static void markRepeatedReturns(ArrayList<CirculationBatch.Item> items, long[] order, int start, int end, boolean[] repeated) {
+        int count = 0;
+        for (int k = start; k < end; k++) {
+            if (items.get((int) order[k]).isReturn)
+                count++;
+        }
+        // Most groups are a single item
+        if (count < 2)
+            return;
+
+        long[] returns = new long[count];
+        count = 0;
+        for (int k = start; k < end; k++) {
+            int i = (int) order[k];
+            if (items.get(i).isReturn)
+                returns[count++] = (long) items.get(i).copyNumber << 32 | i;
+        }
+        Arrays.sort(returns);
 
-            System.out.println("Authors loaded from " + file);
+        for (int k = 1; k < count; k++) {
+            if (returns[k] >>> 32 == returns[k - 1] >>> 32)
+                repeated[(int) returns[k]] = true;
+        }
+    }
 
+    /**
+     * Sets how the load methods read their files. Very large files load faster, and with far less garbage, when they are memory-mapped.
+     * 
+     * @param loadMode The mode to read files in. Files are streamed by default.
+     */
+    public void setLoadMode(CsvLoader.Mode loadMode) { this.loadMode = loadMode; }
+
+    /**
+     * Sets where the fields of Books and Authors are kept. This can only be chosen while the Library has no Books or Authors.
+     * 
+     * @param storage Where to keep the fields. They are kept on the heap by default.
+     */
+    public synchronized void setStorage(Storage storage) {
+        if (view.bookCount() > 0 || view.authorCount() > 0)
+            throw new IllegalStateException("The storage of a Library can only be changed while it has no books or authors");
+
+        this.offHeap = storage == Storage.OFF_HEAP ? new OffHeapCatalog() : null;
+        this.authorsByName = authorIndex();
+    }
+    /**
+     * @return Where the fields of Books and Authors are kept.
+     */
+    public Storage getStorage() { return offHeap == null ? Storage.HEAP : Storage.OFF_HEAP; }
+    /**
+     * @return The number of bytes of off-heap memory the catalog is using, which is 0 unless the Library is off-heap.
+     */
+    public long getOffHeapBytes() { return offHeap == null ? 0 : offHeap.getBytesUsed(); }
+
+    /**
+     * Sets up the caches of recent <code>findBooksByAuthor</code> and <code>searchBooks</code> results, which answer
+     * repeated queries without scanning the catalog again. Cached results are dropped as soon as the books they came from
+     * change. Any results cached so far are discarded.
+     * 
+     * @param policy How each cache chooses which results to evict.
+     * @param capacity The most results each cache holds, or 0 to turn caching off. Caching is on by default, with
+     *      <code>DEFAULT_QUERY_CACHE_SIZE</code> results per cache.
+     */
+    public void setQueryCache(CachePolicy policy, int capacity) {
+        booksByAuthorCache = capacity <= 0 ? null : new QueryCache<String, ArrayList<Book>>("findBooksByAuthor", policy, capacity);
+        searchCache = capacity <= 0 ? null : new QueryCache<SearchQuery, ArrayList<Book>>("searchBooks", policy, capacity);
+    }
+    /**
+     * @return How well each query cache is doing. Will be empty if caching is off.
+     */
+    public ArrayList<CacheStats> getQueryCacheStats() {
+        ArrayList<CacheStats> stats = new ArrayList<CacheStats>();
+        if (booksByAuthorCache != null)
+            stats.add(booksByAuthorCache.getStats());
+        if (searchCache != null)
+            stats.add(searchCache.getStats());
+        return stats;
+    }
+
+    private CsvLoader newLoader() {
+        CsvLoader loader = new CsvLoader(this);
+        loader.setMode(loadMode);
+        return loader;
+    }
+
+    /**
+     * Reads a list of Authors from a file. The list must be in CSV format. Rows which can't be read are skipped, and written to a reject file.
+     * 
+     * @param file The file to read.
+     */
+    public void loadAuthors(String file) {
+        try {
+            LoadReport report = newLoader().loadAuthors(file);
+            System.out.println("Authors loaded from " + file + ": " + report);
         } catch (IOException e) {
             System.err.println("There was an error reading " + file + ":");
             e.printStackTrace();
-        };
+        }
     }
 
     /**
-     * Reads a list of Patrons from a file. The list must be in CSV format.
+     * Reads a list of Patrons from a file. The list must be in CSV format. Rows which can't be read are skipped, and written to a reject file.
      * 
      * @param file The file to read.
      */
     public void loadPatrons(String file) {
-        // We'll assume the file is formatted as CSV data, which is easy to parse
-        String delimiter = ",";
-
         try {
-            BufferedReader csv = new BufferedReader(new FileReader(file));
-            String line;
-
-            // Continue reading lines until there is nothing left to read
-            while ((line = csv.readLine()) != null) {
-                String data[] = line.split(delimiter);
-                addPatron(data[0], data[1], data[2]);
-            }
-
-            csv.close();
-
-            System.out.println("Patrons loaded from " + file);
-
+            LoadReport report = newLoader().loadPatrons(file);
+            System.out.println("Patrons loaded from " + file + ": " + report);
         } catch (IOException e) {
             System.err.println("There was an error reading " + file + ":");
             e.printStackTrace();
-        };
+        }
     }
 
     /**
-     * Reads a list of Books from a file. The list must be in CSV format.
+     * Reads a list of Books from a file. The list must be in CSV format, and each book's author must already be known. 
+     * Rows which can't be read are skipped, and written to a reject file.
      * 
      * @param file The file to read.
      */
     public void loadBooks(String file) {
-        // We'll assume the file is formatted as CSV data, which is easy to parse
-        String delimiter = ",";
-
         try {
-            BufferedReader csv = new BufferedReader(new FileReader(file));
-            String line;
-
-            // Continue reading lines until there is nothing left to read
-            while ((line = csv.readLine()) != null) {
-                String data[] = line.split(delimiter);
-                addBook(data[0], findAuthorByName(data[1]), data[2], data[3]);
-            }
-
-            csv.close();
-
-            System.out.println("Books loaded from " + file);
-
+            LoadReport report = newLoader().loadBooks(file);
+            System.out.println("Books loaded from " + file + ": " + report);
         } catch (IOException e) {
             System.err.println("There was an error reading " + file + ":");
             e.printStackTrace();
-        };
+        }
     }
 
-    public String toString() {
-        String output = "Books in this Library:\n";
-        for (Book book : books)
-            output += book.toString() + "\n\n";
-
-        return output;
-    }
+    // Rendered in one pass into a single buffer - a large Library is better written straight to a file with a ReportWriter
+    public String toString() { return ReportWriter.render(this); }
 }
@@ -0,0 +1,178 @@
+package library;
+
+import java.time.LocalDate;
+
+/**
+ * One change to a Library, as published by a LibraryEventBus.
+ * <p>
+ * An event records what changed at the moment it happened: a copy's status, borrower and due date, or a field's old and
+ * new text. The Authors, Patrons and Books it refers to are the live objects, which may have changed again since, but the
+ * values captured in the event never change. Events are numbered in the order they were published, and the events for
+ * any one Book are always published in the order its changes were made.
+ */
+public final class LibraryEvent {
+    /**
+     * What kind of change an event records, and so which of its fields are set.
+     */
+    public enum Type {
+        /**
+         * An Author was added. Sets the author.
+         */
+        AUTHOR_ADDED,
+        /**
+         * A Patron was added. Sets the patron.
+         */
+        PATRON_ADDED,
+        /**
+         * A Book was added. Sets the book.
+         */
+        BOOK_ADDED,
+        /**
+         * A copy was added to a Book. Sets the book, copy number and status.
+         */
+        COPY_ADDED,
+        /**
+         * A copy was removed from a Book. Sets the book and copy number, and the borrower as patron if it was on loan.
+         */
+        COPY_REMOVED,
+        /**
+         * A copy was borrowed. Sets the book, copy number, status, borrower as patron, and due date.
+         */
+        COPY_BORROWED,
+        /**
+         * A copy was returned. Sets the book, copy number, status, and the patron who returned it.
+         */
+        COPY_RETURNED,
+        /**
+         * A copy's status, borrower or dates were set directly, or an overdue sweep marked it OVERDUE. Sets the book,
+         * copy number, status, borrower as patron, and due date.
+         */
+        COPY_CHANGED,
+        /**
+         * A patron joined the queue for a Book. Sets the hold, book and patron.
+         */
+        HOLD_PLACED,
+        /**
+         * A copy was lent to a waiting hold. Sets the hold, book, patron and copy number.
+         */
+        HOLD_FILLED,
+        /**
+         * A waiting hold was cancelled. Sets the hold, book and patron.
+         */
+        HOLD_CANCELLED,
+        /**
+         * An Author's name was set. Sets the author, and the old and new name.
+         */
+        AUTHOR_RENAMED,
+        /**
+         * A Patron's name was set. Sets the patron, and the old and new name.
+         */
+        PATRON_RENAMED,
+        /**
+         * A Patron's address was set. Sets the patron, and the old and new address.
+         */
+        PATRON_ADDRESS_CHANGED,
+        /**
+         * A Patron's phone number was set. Sets the patron, and the old and new number.
+         */
+        PATRON_PHONE_CHANGED,
+        /**
+         * A Book's title was set. Sets the book, and the old and new title.
+         */
+        BOOK_RETITLED,
+        /**
+         * A Book's publisher was set. Sets the book, and the old and new publisher.
+         */
+        BOOK_PUBLISHER_CHANGED;
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final Author author;
+    private final Patron patron;
+    private final Book book;
+    private final int copyNumber;
+    private final Status status;
+    private final LocalDate dueDate;
+    private final Hold hold;
+    private final String oldValue;
+    private final String newValue;
+
+    // Events are only made by a LibraryEventBus, as changes are published
+    LibraryEvent(long sequence, Type type, Author author, Patron patron, Book book, int copyNumber, Status status,
+            LocalDate dueDate, Hold hold, String oldValue, String newValue) {
+        this.sequence = sequence;
+        this.type = type;
+        this.author = author;
+        this.patron = patron;
+        this.book = book;
+        this.copyNumber = copyNumber;
+        this.status = status;
+        this.dueDate = dueDate;
+        this.hold = hold;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    /**
+     * @return The event's number. Each event published by a bus is numbered one more than the one before.
+     */
+    public long getSequence() { return sequence; }
+    /**
+     * @return What kind of change the event records.
+     */
+    public Type getType() { return type; }
+    /**
+     * @return The Author added or renamed. Will be <code>null</code> for other events.
+     */
+    public Author getAuthor() { return author; }
+    /**
+     * @return The Patron added, changed, borrowing, returning or waiting. Will be <code>null</code> if no patron was involved.
+     */
+    public Patron getPatron() { return patron; }
+    /**
+     * @return The Book added or changed, or whose copy or hold changed. Will be <code>null</code> for author and patron events.
+     */
+    public Book getBook() { return book; }
+    /**
+     * @return The number of the copy which changed. Will be 0 if no copy was involved.
+     */
+    public int getCopyNumber() { return copyNumber; }
+    /**
+     * @return The copy's status just after the change. Will be <code>null</code> if no copy was involved.
+     */
+    public Status getStatus() { return status; }
+    /**
+     * @return The copy's due date just after the change. Will be <code>null</code> if it had none.
+     */
+    public LocalDate getDueDate() { return dueDate; }
+    /**
+     * @return The Hold placed, filled or cancelled. Will be <code>null</code> for other events.
+     */
+    public Hold getHold() { return hold; }
+    /**
+     * @return The text of the changed field before the change. Will be <code>null</code> for events which don't set a field.
+     */
+    public String getOldValue() { return oldValue; }
+    /**
+     * @return The text of the changed field after the change. Will be <code>null</code> for events which don't set a field.
+     */
+    public String getNewValue() { return newValue; }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder("LibraryEvent[#").append(sequence).append(' ').append(type);
+        if (book != null)
+            text.append(", '").append(book.getTitle()).append('\'');
+        if (copyNumber != 0)
+            text.append(", copy ").append(copyNumber);
+        if (status != null)
+            text.append(", ").append(status);
+        if (author != null)
+            text.append(", author ").append(author.getName());
+        if (patron != null)
+            text.append(", patron ").append(patron.getName());
+        if (oldValue != null || newValue != null)
+            text.append(", '").append(oldValue).append("' -> '").append(newValue).append('\'');
+        return text.append(']').toString();
+    }
+}
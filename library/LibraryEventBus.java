@@ -0,0 +1,393 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes every change made to a Library as a LibraryEvent, for subscribers such as search indexers, analytics and
+ * notifications to keep their own state up to date from, rather than polling the Library and comparing.
+ * <p>
+ * Add the bus to a Library with addListener, then subscribe to it. Events go into a ring buffer of fixed size without
+ * taking any lock: a thread making a change claims the next slot by incrementing a counter, writes the event there, and
+ * marks the slot published. Each subscriber has a thread of its own, which takes every event published since it last
+ * looked in one batch, up to a limit. A slow subscriber holds up only itself until it falls a whole ring behind - then
+ * threads making changes wait for it to catch up, so no event is ever lost and the ring never grows.
+ * <p>
+ * Changes to copies are published while their Book's lock is held, so a subscriber which falls behind slows checkouts of
+ * the books being changed. Subscribers must not change the Library themselves: if the ring were full, they would wait
+ * for their own thread.
+ */
+public class LibraryEventBus implements LibraryListener, AutoCloseable {
+    /**
+     * The number of events the ring holds, unless told otherwise.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    /**
+     * The most events a subscriber is given in one batch, unless told otherwise.
+     */
+    public static final int DEFAULT_MAX_BATCH = 1024;
+
+    // How an idle subscriber waits for events: spinning briefly, then sleeping for a short time between looks
+    private static final int IDLE_SPINS = 100;
+    private static final long IDLE_PARK_NANOS = 50_000;
+    // How a thread making a change waits for room in a full ring
+    private static final long FULL_PARK_NANOS = 1_000;
+
+    /**
+     * Something which wants to be told about the events published by a bus.
+     */
+    public interface Subscriber {
+        /**
+         * Called with each batch of events, on the subscription's own thread, in the order they were published.
+         *
+         * @param events The events. The list is reused for the next batch, so copy it to keep it - the events in it never change.
+         */
+        void onEvents(List<LibraryEvent> events);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int maxBatch;
+    private final LibraryEvent[] ring;
+    // The sequence of the event in each slot, written once the event is there. A reader which finds the sequence it
+    // expects knows the slot holds that event
+    private final AtomicLongArray published;
+    // The sequence the next event will be given
+    private final AtomicLong next;
+    // The lowest sequence some subscriber still needed, when it was last worked out. It only increases, so a thread
+    // claiming a slot less than a ring ahead of it knows there is room without looking at every subscriber
+    private volatile long gatingSequence;
+    private final CopyOnWriteArrayList<Subscription> subscriptions;
+    private final LongAdder fullWaits;
+    private volatile boolean closed;
+
+    /**
+     * Class constructor, for a ring of DEFAULT_CAPACITY events, given to subscribers in batches of up to DEFAULT_MAX_BATCH.
+     */
+    public LibraryEventBus() { this(DEFAULT_CAPACITY, DEFAULT_MAX_BATCH); }
+
+    /**
+     * Class constructor.
+     *
+     * @param capacity The number of events the ring holds, which is rounded up to a power of two.
+     * @param maxBatch The most events a subscriber is given in one batch.
+     */
+    public LibraryEventBus(int capacity, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1)
+            throw new IllegalArgumentException("The capacity and batch size must be at least 1");
+
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.maxBatch = maxBatch;
+        this.ring = new LibraryEvent[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+            published.set(i, -1);
+        this.next = new AtomicLong();
+        this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+        this.fullWaits = new LongAdder();
+    }
+
+    /**
+     * @return The number of events the ring holds.
+     */
+    public int getCapacity() { return capacity; }
+    /**
+     * @return The number of events published so far. Changes made while no one was subscribed aren't counted, as they aren't kept.
+     */
+    public long getPublishedCount() { return next.get(); }
+    /**
+     * @return The number of times a thread making a change had to wait for a subscriber to make room in the ring.
+     */
+    public long getFullWaits() { return fullWaits.sum(); }
+    /**
+     * @return The current subscriptions.
+     */
+    public List<Subscription> getSubscriptions() { return new ArrayList<Subscription>(subscriptions); }
+
+    /**
+     * Starts giving events to a subscriber, on a thread of its own. It is given every event published after it subscribed.
+     *
+     * @param name A name for the subscription, which its thread is named after.
+     * @param subscriber The subscriber.
+     * @return The subscription, which can be cancelled.
+     */
+    public Subscription subscribe(String name, Subscriber subscriber) {
+        if (closed)
+            throw new IllegalStateException("The event bus has been closed");
+
+        // Until the subscription knows where it starts, it holds back every slot which could still be published to.
+        // Once it is in the list, any event claimed from then on sees it before overwriting a slot it needs
+        Subscription subscription = new Subscription(name, subscriber, next.get());
+        subscriptions.add(subscription);
+        subscription.consumed = next.get();
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Waits until every subscriber has been given every event published before this was called.
+     *
+     * @param timeout The longest to wait.
+     * @param unit The unit of the timeout.
+     * @return <code>true</code> if they all caught up, or <code>false</code> if the wait timed out.
+     */
+    public boolean awaitDelivered(long timeout, TimeUnit unit) {
+        long target = next.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Subscription subscription : subscriptions) {
+            while (subscription.consumed < target && subscription.isActive()) {
+                if (System.nanoTime() > deadline)
+                    return false;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops taking new events, and stops every subscription once it has been given the events already published.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions)
+            subscription.cancel();
+    }
+
+    // The LibraryListener methods, each of which publishes an event
+
+    @Override
+    public void authorAdded(Author author) { publish(LibraryEvent.Type.AUTHOR_ADDED, author, null, null, 0, null, null, null, null, null); }
+
+    @Override
+    public void patronAdded(Patron patron) { publish(LibraryEvent.Type.PATRON_ADDED, null, patron, null, 0, null, null, null, null, null); }
+
+    @Override
+    public void bookAdded(Book book) { publish(LibraryEvent.Type.BOOK_ADDED, null, null, book, 0, null, null, null, null, null); }
+
+    @Override
+    public void copyAdded(BookCopy copy) { publishCopy(LibraryEvent.Type.COPY_ADDED, copy, null); }
+
+    @Override
+    public void copyRemoved(BookCopy copy) {
+        // A removed copy which wasn't on loan has no state left to read
+        Book book = copy.getBook();
+        publish(LibraryEvent.Type.COPY_REMOVED, null, book.borrowerOf(copy.getCopyNumber()), book, copy.getCopyNumber(), null, null, null, null, null);
+    }
+
+    @Override
+    public void copyBorrowed(BookCopy copy) { publishCopy(LibraryEvent.Type.COPY_BORROWED, copy, null); }
+
+    @Override
+    public void copyReturned(BookCopy copy, Patron borrower) { publishCopy(LibraryEvent.Type.COPY_RETURNED, copy, borrower); }
+
+    @Override
+    public void copyChanged(BookCopy copy) { publishCopy(LibraryEvent.Type.COPY_CHANGED, copy, null); }
+
+    @Override
+    public void holdPlaced(Hold hold) { publishHold(LibraryEvent.Type.HOLD_PLACED, hold, 0); }
+
+    @Override
+    public void holdFilled(Hold hold) {
+        BookCopy copy = hold.getCopy();
+        publishHold(LibraryEvent.Type.HOLD_FILLED, hold, copy == null ? 0 : copy.getCopyNumber());
+    }
+
+    @Override
+    public void holdCancelled(Hold hold) { publishHold(LibraryEvent.Type.HOLD_CANCELLED, hold, 0); }
+
+    @Override
+    public void authorChanged(Author author, String oldName) {
+        publish(LibraryEvent.Type.AUTHOR_RENAMED, author, null, null, 0, null, null, null, oldName, author.getName());
+    }
+
+    @Override
+    public void patronChanged(Patron patron, String oldName, String oldAddress, String oldPhoneNum) {
+        // One event for each field which changed
+        if (!Objects.equals(oldName, patron.getName()))
+            publish(LibraryEvent.Type.PATRON_RENAMED, null, patron, null, 0, null, null, null, oldName, patron.getName());
+        if (!Objects.equals(oldAddress, patron.getAddress()))
+            publish(LibraryEvent.Type.PATRON_ADDRESS_CHANGED, null, patron, null, 0, null, null, null, oldAddress, patron.getAddress());
+        if (!Objects.equals(oldPhoneNum, patron.getPhoneNum()))
+            publish(LibraryEvent.Type.PATRON_PHONE_CHANGED, null, patron, null, 0, null, null, null, oldPhoneNum, patron.getPhoneNum());
+    }
+
+    @Override
+    public void bookChanged(Book book, String oldTitle, String oldPublisher) {
+        if (!Objects.equals(oldTitle, book.getTitle()))
+            publish(LibraryEvent.Type.BOOK_RETITLED, null, null, book, 0, null, null, null, oldTitle, book.getTitle());
+        if (!Objects.equals(oldPublisher, book.getPublisher()))
+            publish(LibraryEvent.Type.BOOK_PUBLISHER_CHANGED, null, null, book, 0, null, null, null, oldPublisher, book.getPublisher());
+    }
+
+    // Copies are reported while their Book's lock is held, with the copy in the Book's store, so its state is read
+    // straight from there as it was just after the change. Unless the patron is given, it is the copy's borrower
+    private void publishCopy(LibraryEvent.Type type, BookCopy copy, Patron patron) {
+        Book book = copy.getBook();
+        CopyStore store = book.getCopyStore();
+        int pos = store.find(copy.getCopyNumber());
+        publish(type, null, patron != null ? patron : store.borrower(pos), book, copy.getCopyNumber(), store.status(pos), store.dueDate(pos), null, null, null);
+    }
+
+    private void publishHold(LibraryEvent.Type type, Hold hold, int copyNumber) {
+        publish(type, null, hold.getPatron(), hold.getBook(), copyNumber, null, null, hold, null, null);
+    }
+
+    private void publish(LibraryEvent.Type type, Author author, Patron patron, Book book, int copyNumber, Status status,
+            LocalDate dueDate, Hold hold, String oldValue, String newValue) {
+        // With no one to tell, nothing is kept
+        if (closed || subscriptions.isEmpty())
+            return;
+
+        long sequence = claim();
+        int slot = (int) sequence & mask;
+        ring[slot] = new LibraryEvent(sequence, type, author, patron, book, copyNumber, status, dueDate, hold, oldValue, newValue);
+        // The event is written before the slot is marked, so a subscriber which sees the mark sees the event
+        published.lazySet(slot, sequence);
+    }
+
+    // Takes the next sequence, waiting if its slot still holds an event some subscriber hasn't been given
+    private long claim() {
+        long sequence = next.getAndIncrement();
+        long wrapPoint = sequence - capacity;
+        if (wrapPoint < gatingSequence)
+            return sequence;
+
+        long lowest;
+        boolean waited = false;
+        while (wrapPoint >= (lowest = lowestConsumed(sequence))) {
+            if (!waited) {
+                fullWaits.increment();
+                waited = true;
+            }
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        if (lowest > gatingSequence)
+            gatingSequence = lowest;
+        return sequence;
+    }
+
+    // The lowest sequence any subscriber still needs
+    private long lowestConsumed(long otherwise) {
+        long lowest = otherwise;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.isActive())
+                lowest = Math.min(lowest, subscription.consumed);
+        }
+        return lowest;
+    }
+
+    /**
+     * One subscriber's place in the ring, and the thread which gives it events.
+     */
+    public class Subscription {
+        private final String name;
+        private final Subscriber subscriber;
+        private final Thread thread;
+        // The sequence of the next event to give the subscriber. Every slot before it can be reused
+        private volatile long consumed;
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+        private final LongAdder batches;
+        private final LongAdder failures;
+        private volatile RuntimeException lastFailure;
+
+        private Subscription(String name, Subscriber subscriber, long start) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.consumed = start;
+            this.batches = new LongAdder();
+            this.failures = new LongAdder();
+            this.thread = new Thread(this::run, "event-bus-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @return The name of the subscription.
+         */
+        public String getName() { return name; }
+        /**
+         * @return The number of events given to the subscriber so far.
+         */
+        public long getDelivered() { return consumed; }
+        /**
+         * @return The number of events published which the subscriber hasn't been given yet.
+         */
+        public long getLag() { return Math.max(0, next.get() - consumed); }
+        /**
+         * @return The number of batches given to the subscriber so far.
+         */
+        public long getBatches() { return batches.sum(); }
+        /**
+         * @return The number of batches for which the subscriber threw an exception. The events were not given again.
+         */
+        public long getFailures() { return failures.sum(); }
+        /**
+         * @return The exception the subscriber threw for the latest batch it failed on, or <code>null</code> if it has
+         *      never failed.
+         */
+        public RuntimeException getLastFailure() { return lastFailure; }
+
+        /**
+         * Stops giving events to the subscriber, once it has been given those already published.
+         */
+        public void cancel() { cancelled = true; }
+
+        // A subscription holds back the ring until its thread has finished
+        private boolean isActive() { return !finished; }
+
+        private void run() {
+            ArrayList<LibraryEvent> batch = new ArrayList<LibraryEvent>(Math.min(maxBatch, capacity));
+            long sequence = consumed;
+            int idle = 0;
+            try {
+                while (true) {
+                    // Take every event published since the last batch, up to the limit, stopping at any slot still being written
+                    batch.clear();
+                    while (batch.size() < maxBatch) {
+                        int slot = (int) sequence & mask;
+                        if (published.get(slot) != sequence)
+                            break;
+                        batch.add(ring[slot]);
+                        sequence++;
+                    }
+
+                    if (batch.isEmpty()) {
+                        if (cancelled && sequence >= next.get())
+                            return;
+                        if (++idle < IDLE_SPINS)
+                            Thread.onSpinWait();
+                        else
+                            LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        continue;
+                    }
+
+                    idle = 0;
+                    try {
+                        subscriber.onEvents(batch);
+                    } catch (RuntimeException e) {
+                        lastFailure = e;
+                        failures.increment();
+                    }
+                    batches.increment();
+                    // The slots can be reused once the subscriber is done with the batch
+                    consumed = sequence;
+                }
+            } finally {
+                finished = true;
+                subscriptions.remove(this);
+            }
+        }
+
+        public String toString() { return "Subscription[" + name + ", " + getDelivered() + " delivered, " + getLag() + " behind]"; }
+    }
+}
@@ -0,0 +1,105 @@
+package library;
+
+/**
+ * An interface for things which want to be told about changes to a Library, such as journals and indexes.
+ * Every method does nothing by default, so a listener only needs to implement the changes it cares about.
+ * <p>
+ * Changes to copies are reported while their Book's lock is held, so the changes to any one Book are always reported in the
+ * order they happened. Listeners should be quick, and must not borrow or return copies themselves.
+ */
+public interface LibraryListener {
+    /**
+     * Called after an Author is added to the Library.
+     *
+     * @param author The new Author.
+     */
+    public default void authorAdded(Author author) {}
+    /**
+     * Called as a Patron is added to the Library - it belongs to the Library, but other threads can't find it there yet,
+     * so this is told about it before any of its loans or holds.
+     *
+     * @param patron The new Patron.
+     */
+    public default void patronAdded(Patron patron) {}
+    /**
+     * Called as a Book is added to the Library - it belongs to the Library, but other threads can't find it there yet,
+     * so this is told about it before any change to its copies.
+     *
+     * @param book The new Book.
+     */
+    public default void bookAdded(Book book) {}
+    /**
+     * Called after a copy is added to a Book in the Library.
+     *
+     * @param copy The new copy.
+     */
+    public default void copyAdded(BookCopy copy) {}
+    /**
+     * Called after a copy is removed from a Book in the Library.
+     *
+     * @param copy The removed copy.
+     */
+    public default void copyRemoved(BookCopy copy) {}
+    /**
+     * Called after a copy is borrowed.
+     *
+     * @param copy The borrowed copy. Its borrower, checkout date and due date have already been set.
+     */
+    public default void copyBorrowed(BookCopy copy) {}
+    /**
+     * Called after a copy is returned.
+     *
+     * @param copy The returned copy.
+     * @param borrower The Patron who returned it.
+     */
+    public default void copyReturned(BookCopy copy, Patron borrower) {}
+    /**
+     * Called after a copy's status, borrower, checkout date or due date is set directly, rather than by borrowing or returning it,
+     * and after an overdue sweep marks it OVERDUE.
+     *
+     * @param copy The changed copy.
+     */
+    public default void copyChanged(BookCopy copy) {}
+    /**
+     * Called after an Author's name is set. Every Library holding the author, or any of their books, is told.
+     *
+     * @param author The changed Author.
+     * @param oldName The author's name before it was set.
+     */
+    public default void authorChanged(Author author, String oldName) {}
+    /**
+     * Called after a Patron's name, address or phone number is set.
+     *
+     * @param patron The changed Patron.
+     * @param oldName The patron's name before the change. The same as their name now, if something else was set.
+     * @param oldAddress The patron's address before the change.
+     * @param oldPhoneNum The patron's phone number before the change.
+     */
+    public default void patronChanged(Patron patron, String oldName, String oldAddress, String oldPhoneNum) {}
+    /**
+     * Called after a Book's title or publisher is set.
+     *
+     * @param book The changed Book.
+     * @param oldTitle The book's title before the change. The same as its title now, if the publisher was set.
+     * @param oldPublisher The book's publisher before the change.
+     */
+    public default void bookChanged(Book book, String oldTitle, String oldPublisher) {}
+    /**
+     * Called after a patron joins the queue for a Book with no copy to lend them.
+     *
+     * @param hold The new Hold.
+     */
+    public default void holdPlaced(Hold hold) {}
+    /**
+     * Called after a copy is lent to a waiting hold, just after copyBorrowed is called for the copy.
+     *
+     * @param hold The filled Hold.
+     */
+    public default void holdFilled(Hold hold) {}
+    /**
+     * Called after a waiting hold is cancelled.
+     *
+     * @param hold The cancelled Hold.
+     */
+    public default void holdCancelled(Hold hold) {}
+}
@@ -0,0 +1,158 @@
+package library;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a Library's lookups, circulation and loads.
+ * <p>
+ * Every Library records into its own LibraryMetrics as operations are made. Recording is lock-free - a few striped
+ * counter increments, one of them in a histogram bucket striped across rows - so many threads can record at once
+ * without contending.
+ * The numbers can be read with <code>snapshot</code>, or watched over JMX once the metrics are registered.
+ */
+public class LibraryMetrics implements LibraryMetricsMXBean {
+    /**
+     * The operations which are recorded.
+     */
+    public enum Operation {
+        FIND_AUTHOR_BY_NAME,
+        FIND_BOOK_BY_TITLE,
+        FIND_BOOK_BY_ISBN,
+        FIND_BOOKS_BY_AUTHOR,
+        FIND_PATRON,
+        SEARCH_BOOKS,
+        BORROW,
+        RETURN,
+        APPLY_BATCH,
+        LOAD_AUTHORS,
+        LOAD_PATRONS,
+        LOAD_BOOKS;
+    }
+
+    // Stands in for a start time while recording is off, so the operation isn't recorded when it ends
+    private static final long NOT_RECORDING = Long.MIN_VALUE;
+
+    // Used by Books and copies which aren't in a Library, so they can record without checking for one
+    static final LibraryMetrics NONE = new LibraryMetrics(false);
+
+    private final LatencyHistogram[] latencies;
+    private final LongAdder[] failures;
+    private volatile boolean enabled;
+
+    /**
+     * Class constructor. Recording starts out on.
+     */
+    public LibraryMetrics() { this(true); }
+
+    private LibraryMetrics(boolean enabled) {
+        Operation[] operations = Operation.values();
+        this.latencies = new LatencyHistogram[operations.length];
+        this.failures = new LongAdder[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Turns recording on or off. Turning it off leaves the numbers recorded so far in place.
+     *
+     * @param enabled <code>true</code> to record operations.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        // The shared metrics of Books outside a Library never record
+        if (this != NONE)
+            this.enabled = enabled;
+    }
+    /**
+     * @return <code>true</code> if operations are being recorded.
+     */
+    @Override
+    public boolean isEnabled() { return enabled; }
+
+    // Used by the Library and its Books and copies around each operation they record
+    long start() { return enabled ? System.nanoTime() : NOT_RECORDING; }
+
+    void record(Operation operation, long start, boolean succeeded) {
+        if (start == NOT_RECORDING)
+            return;
+
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+        if (!succeeded)
+            failures[operation.ordinal()].increment();
+    }
+
+    /**
+     * Reads the numbers recorded for one operation. Operations being recorded at the same time may or may not be counted.
+     *
+     * @param operation The operation to read.
+     * @return The operation's counters and latencies.
+     */
+    public OperationStats snapshot(Operation operation) {
+        LatencyHistogram latency = latencies[operation.ordinal()];
+        return new OperationStats(operation.name(), latency.getCount(), failures[operation.ordinal()].sum(), latency.getMean(),
+                latency.getPercentile(50), latency.getPercentile(90), latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax());
+    }
+
+    /**
+     * Reads the numbers recorded for every operation.
+     *
+     * @return The counters and latencies of each operation, in the order of Operation.
+     */
+    public Map<Operation, OperationStats> snapshot() {
+        LinkedHashMap<Operation, OperationStats> stats = new LinkedHashMap<Operation, OperationStats>();
+        for (Operation operation : Operation.values())
+            stats.put(operation, snapshot(operation));
+        return stats;
+    }
+
+    @Override
+    public Map<String, OperationStats> getOperations() {
+        LinkedHashMap<String, OperationStats> stats = new LinkedHashMap<String, OperationStats>();
+        for (Operation operation : Operation.values())
+            stats.put(operation.name(), snapshot(operation));
+        return stats;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, so they can be watched with JConsole or any other JMX client.
+     *
+     * @param name A name telling this Library apart from any others in the same JVM.
+     * @return The name the metrics were registered under, which is <code>library:type=LibraryMetrics,name=</code> and the given name.
+     * @throws JMException If the name is not valid, or is already registered.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = ObjectName.getInstance("library:type=LibraryMetrics,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server.
+     *
+     * @param objectName The name returned by <code>register</code>.
+     * @throws JMException If nothing is registered under the name.
+     */
+    public void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (OperationStats stats : snapshot().values()) {
+            if (stats.getCount() > 0)
+                text.append(stats).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package library;
+
+import java.util.Map;
+
+/**
+ * The management interface of LibraryMetrics, so the Library's counters and latencies can be watched over JMX.
+ */
+public interface LibraryMetricsMXBean {
+    /**
+     * @return The statistics of every operation, by operation name.
+     */
+    Map<String, OperationStats> getOperations();
+
+    /**
+     * @return <code>true</code> if operations are being recorded.
+     */
+    boolean isEnabled();
+
+    /**
+     * Turns recording on or off.
+     *
+     * @param enabled <code>true</code> to record operations.
+     */
+    void setEnabled(boolean enabled);
+}
@@ -0,0 +1,408 @@
+package library;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP service which answers searches, checkouts and returns against a Library, with JSON responses.
+ * <p>
+ * The endpoints are:
+ * <ul>
+ * <li><code>GET /search?q=words&amp;limit=10</code> - the books best matching some words, as <code>searchBooks</code> finds them.</li>
+ * <li><code>GET /books?isbn=...</code> - one book, with how many of its copies are available.</li>
+ * <li><code>POST /checkout?patron=n&amp;isbn=...</code> - lends the next available copy to the patron at position n of the Library.</li>
+ * <li><code>POST /return?isbn=...&amp;copy=n</code> - returns a copy by its number.</li>
+ * </ul>
+ * Bad requests get a 400, unknown books and patrons a 404, and checkouts with no copy available or returns of a copy
+ * which isn't on loan a 409.
+ * <p>
+ * Each request runs on a thread of its own - a virtual thread where the JVM has them, or otherwise one of a pool as
+ * big as the concurrency limit. At most <code>maxConcurrentRequests</code> are worked on at once, and at most
+ * <code>maxQueuedRequests</code> more may wait their turn. Requests beyond that are turned away at once with a 503 and a
+ * Retry-After header, so an overloaded server answers quickly instead of letting its queue, and its latency, grow
+ * without bound.
+ * <p>
+ * Usage: java library.LibraryServer port [directory of authors.csv, patrons.csv and books.csv]
+ */
+public class LibraryServer {
+    /**
+     * The number of requests worked on at once, unless the server is told otherwise.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 64;
+    /**
+     * The number of requests which may wait for a turn, unless the server is told otherwise.
+     */
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 1024;
+
+    // Searches can't ask for more than this many results, so one request can't make the server build a huge response
+    private static final int MAX_SEARCH_LIMIT = 100;
+
+    private final Library library;
+    private final int port;
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+
+    private HttpServer server;
+    private ExecutorService threads;
+    // Where requests which are to be turned away are run, so they don't wait behind the ones being worked on
+    private ExecutorService rejections;
+    private boolean virtualThreads;
+    private Semaphore permits;
+    // Requests handed to the server's threads which haven't finished yet, counting those waiting for a permit
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Class constructor. The server doesn't listen until it is started.
+     *
+     * @param library The Library to serve.
+     * @param port The port to listen on, or 0 for any free port.
+     */
+    public LibraryServer(Library library, int port) {
+        this.library = library;
+        this.port = port;
+    }
+
+    /**
+     * Sets how many requests are worked on at once. Takes effect when the server is started.
+     *
+     * @param maxConcurrentRequests The number of requests, which must be at least 1.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1)
+            throw new IllegalArgumentException("At least one request must be allowed at once: " + maxConcurrentRequests);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+    /**
+     * Sets how many requests may wait for a turn before more are turned away. Takes effect when the server is started.
+     *
+     * @param maxQueuedRequests The number of requests, or 0 to turn away any request which can't be worked on at once.
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 0)
+            throw new IllegalArgumentException("The queue can't be shorter than empty: " + maxQueuedRequests);
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+    /**
+     * @return The number of requests worked on at once.
+     */
+    public int getMaxConcurrentRequests() { return maxConcurrentRequests; }
+    /**
+     * @return The number of requests which may wait for a turn.
+     */
+    public int getMaxQueuedRequests() { return maxQueuedRequests; }
+    /**
+     * @return The port the server is listening on, which is only known for port 0 once the server has started.
+     */
+    public int getPort() { return server == null ? port : server.getAddress().getPort(); }
+    /**
+     * @return <code>true</code> if requests are being run on virtual threads, rather than a pool of platform threads.
+     */
+    public boolean usesVirtualThreads() { return virtualThreads; }
+    /**
+     * @return The number of requests turned away with a 503 because the server was full.
+     */
+    public long getRejectedRequests() { return rejected.sum(); }
+    /**
+     * @return The number of requests answered with a 500 because the server failed while working on them.
+     */
+    public long getFailedRequests() { return failed.sum(); }
+
+    /**
+     * Starts listening.
+     *
+     * @throws IOException If the port can't be listened on.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null)
+            throw new IllegalStateException("The server has already been started");
+
+        permits = new Semaphore(maxConcurrentRequests, true);
+        threads = newVirtualThreadExecutor();
+        virtualThreads = threads != null;
+        if (virtualThreads) {
+            rejections = threads;
+        } else {
+            // Without virtual threads, a thread is only worth having for a request which can be worked on straight away
+            AtomicInteger count = new AtomicInteger();
+            threads = Executors.newFixedThreadPool(maxConcurrentRequests, task -> daemon(task, "library-server-" + count.incrementAndGet()));
+            rejections = Executors.newSingleThreadExecutor(task -> daemon(task, "library-server-rejections"));
+        }
+
+        server = HttpServer.create(new InetSocketAddress(port), maxQueuedRequests + maxConcurrentRequests);
+        server.setExecutor(new AdmittingExecutor());
+        server.createContext("/search", exchange -> handle(exchange, "GET", this::search));
+        server.createContext("/books", exchange -> handle(exchange, "GET", this::book));
+        server.createContext("/checkout", exchange -> handle(exchange, "POST", this::checkout));
+        server.createContext("/return", exchange -> handle(exchange, "POST", this::checkin));
+        server.start();
+    }
+
+    /**
+     * Stops listening, and waits for the requests being worked on to finish.
+     *
+     * @param delaySeconds The longest to wait for requests to finish.
+     */
+    public synchronized void stop(int delaySeconds) {
+        if (server == null)
+            return;
+
+        server.stop(delaySeconds);
+        threads.shutdown();
+        rejections.shutdown();
+        try {
+            threads.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server = null;
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor is looked up by name, so the server still builds and runs on JVMs
+    // which don't have it
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // What an endpoint does with a request, once it has its turn
+    private interface Endpoint {
+        Response serve(HashMap<String, String> params);
+    }
+
+    // The status and JSON body an endpoint answers with
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    // Set on a request's thread while it runs, when the server was already full as the request came in
+    private static final ThreadLocal<Boolean> OVERLOADED = new ThreadLocal<Boolean>();
+
+    // Counts requests as the server's dispatcher hands them over, which is the one place they can be counted before
+    // they wait for a thread. A request which finds the server full is still run, but only to be answered with a 503
+    private class AdmittingExecutor implements Executor {
+        @Override
+        public void execute(Runnable exchange) {
+            boolean overloaded = inFlight.incrementAndGet() > maxConcurrentRequests + maxQueuedRequests;
+            (overloaded ? rejections : threads).execute(() -> {
+                OVERLOADED.set(overloaded);
+                try {
+                    exchange.run();
+                } finally {
+                    OVERLOADED.remove();
+                    inFlight.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+        try {
+            if (OVERLOADED.get() == Boolean.TRUE) {
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, new Response(503, error("The server is busy")));
+                return;
+            }
+            if (!exchange.getRequestMethod().equals(method)) {
+                exchange.getResponseHeaders().set("Allow", method);
+                send(exchange, new Response(405, error("Use " + method)));
+                return;
+            }
+
+            Response response;
+            permits.acquireUninterruptibly();
+            try {
+                // A query which can't be decoded is as much the client's mistake as a missing parameter
+                response = endpoint.serve(parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                response = new Response(400, error(e.getMessage()));
+            } catch (RuntimeException e) {
+                // Anything else is the server's fault. The client still gets an answer, rather than a dropped connection
+                failed.increment();
+                response = new Response(500, error("The server failed to answer the request"));
+            } finally {
+                permits.release();
+            }
+            send(exchange, response);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response search(HashMap<String, String> params) {
+        String query = required(params, "q");
+        int limit = params.containsKey("limit") ? number(params, "limit") : 10;
+        if (limit < 1 || limit > MAX_SEARCH_LIMIT)
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_SEARCH_LIMIT);
+
+        StringBuilder json = new StringBuilder("[");
+        for (Book book : library.searchBooks(query, limit)) {
+            if (json.length() > 1)
+                json.append(',');
+            appendBook(json, book);
+        }
+        return new Response(200, json.append(']').toString());
+    }
+
+    private Response book(HashMap<String, String> params) {
+        Book book = library.findBookByISBN(required(params, "isbn"));
+        if (book == null)
+            return new Response(404, error("No book has that ISBN"));
+        return new Response(200, appendBook(new StringBuilder(), book).toString());
+    }
+
+    private Response checkout(HashMap<String, String> params) {
+        int patronId = number(params, "patron");
+        Book book = library.findBookByISBN(required(params, "isbn"));
+        List<Patron> patrons = library.getPatronsView();
+        if (patronId < 0 || patronId >= patrons.size())
+            return new Response(404, error("No patron has that number"));
+        if (book == null)
+            return new Response(404, error("No book has that ISBN"));
+
+        BookCopy copy = book.tryBorrowCopy(patrons.get(patronId));
+        if (copy == null)
+            return new Response(409, error("No copies are available"));
+
+        LocalDate dueDate = copy.getDueDate();
+        StringBuilder json = new StringBuilder("{\"isbn\":");
+        appendString(json, book.getISBN()).append(",\"copy\":").append(copy.getCopyNumber()).append(",\"due\":");
+        return new Response(200, appendString(json, String.valueOf(dueDate)).append('}').toString());
+    }
+
+    private Response checkin(HashMap<String, String> params) {
+        Book book = library.findBookByISBN(required(params, "isbn"));
+        int copyNumber = number(params, "copy");
+        if (book == null)
+            return new Response(404, error("No book has that ISBN"));
+
+        BookCopy copy = book.findCopy(copyNumber);
+        if (copy == null)
+            return new Response(404, error("The book has no copy with that number"));
+        if (!copy.tryReturnCopy())
+            return new Response(409, error("That copy is not on loan"));
+        return new Response(200, "{\"returned\":true}");
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static HashMap<String, String> parseQuery(String query) {
+        HashMap<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static String required(HashMap<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty())
+            throw new IllegalArgumentException(name + " is required");
+        return value;
+    }
+
+    private static int number(HashMap<String, String> params, String name) {
+        try {
+            return Integer.parseInt(required(params, name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number");
+        }
+    }
+
+    private static StringBuilder appendBook(StringBuilder json, Book book) {
+        json.append("{\"title\":");
+        appendString(json, book.getTitle()).append(",\"author\":");
+        appendString(json, book.getAuthor().getName()).append(",\"isbn\":");
+        appendString(json, book.getISBN()).append(",\"publisher\":");
+        appendString(json, book.getPublisher()).append(",\"available\":").append(book.getAvailableCopies());
+        return json.append(",\"total\":").append(book.getTotalCopies()).append('}');
+    }
+
+    private static String error(String message) { return appendString(new StringBuilder("{\"error\":"), message).append('}').toString(); }
+
+    // Writes a JSON string, escaping quotes, backslashes and control characters
+    private static StringBuilder appendString(StringBuilder json, String value) {
+        if (value == null)
+            return json.append("null");
+
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append('"');
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java library.LibraryServer port [directory of authors.csv, patrons.csv and books.csv]");
+            System.exit(1);
+        }
+
+        Library library = new Library();
+        if (args.length > 1) {
+            CsvLoader loader = new CsvLoader(library);
+            loader.loadAuthors(args[1] + "/authors.csv");
+            loader.loadPatrons(args[1] + "/patrons.csv");
+            loader.loadBooks(args[1] + "/books.csv");
+        }
+
+        LibraryServer server = new LibraryServer(library, Integer.parseInt(args[0]));
+        server.start();
+        System.out.println("Serving " + library.getBooksView().size() + " books on port " + server.getPort()
+                + (server.usesVirtualThreads() ? " with virtual threads" : " with a pool of " + server.getMaxConcurrentRequests() + " threads"));
+    }
+}
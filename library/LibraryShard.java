@@ -0,0 +1,62 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * How a ShardedLibrary reaches one of its branches. Every call is asynchronous, and passes only values, so a branch may
+ * be a Library in the same JVM or one on another machine.
+ * <p>
+ * The coordinator sends the same question to every branch at once and waits for all the answers, so an implementation
+ * should answer from its own threads rather than the caller's.
+ */
+public interface LibraryShard {
+    /**
+     * @return The name of the branch, which is unique within a ShardedLibrary.
+     */
+    public String getName();
+
+    /**
+     * Adds copies of a book to the branch, adding the book, and its author, if the branch doesn't have them yet.
+     * If patrons at the branch are waiting for the book, the new copies are lent to them.
+     *
+     * @param book The book to add copies of.
+     * @param copies The number of copies to add. May be 0, to add the book without copies.
+     * @return Completes with the branch's record of the book once the copies are added.
+     */
+    public CompletableFuture<BookRecord> addCopies(BookRecord book, int copies);
+
+    /**
+     * Removes one AVAILABLE copy of a book from the branch, so it can be sent to another.
+     *
+     * @param isbn The ISBN of the book.
+     * @return Completes with the branch's record of the book after the copy was removed, or with <code>null</code> if
+     *      the branch has no AVAILABLE copy of it.
+     */
+    public CompletableFuture<BookRecord> releaseCopy(String isbn);
+
+    /**
+     * Finds the branch's book with an ISBN.
+     *
+     * @param isbn The ISBN of the book.
+     * @return Completes with the branch's record of the book, or with <code>null</code> if the branch doesn't have it.
+     */
+    public CompletableFuture<BookRecord> findBookByISBN(String isbn);
+
+    /**
+     * Finds the branch's books by an author.
+     *
+     * @param authorName The name of the book's author.
+     * @return Completes with the matching books, in the order the branch added them.
+     */
+    public CompletableFuture<ArrayList<BookRecord>> findBooksByAuthor(String authorName);
+
+    /**
+     * Searches the branch's titles, authors and publishers for words, as Library.searchBooks does.
+     *
+     * @param query The words to search for.
+     * @param limit The most books to return.
+     * @return Completes with the matching books, best match first, each with its score.
+     */
+    public CompletableFuture<ArrayList<BookRecord>> searchBooks(String query, int limit);
+}
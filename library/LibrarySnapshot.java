@@ -0,0 +1,394 @@
+package library;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Saves a whole Library to a compact binary file, and loads it back again, including the state of every copy.
+ * <p>
+ * Every String is written once, to a table at the start of the file, and records refer to strings, authors, patrons and
+ * books by number rather than repeating them. The file is read from start to end in a single pass through a memory
+ * mapping, which is far quicker than parsing the CSV files and relinking everything.
+ * <p>
+ * The layout (all numbers big-endian) is:
+ * <pre>
+ * header   "LIBS", version
+ * strings  count, then (byte length, UTF-8 bytes) for each
+ * authors  count, then (name, date of birth as an epoch day) for each
+ * patrons  count, then (name, address, phone number) for each
+ * books    count, then (title, author, ISBN, publisher, next copy number, copy count,
+ *          then (copy number, status, borrower, checkout day, due day) for each copy) for each
+ * loans    for each patron: count, then (book, copy number) for each copy they have checked out, in order
+ * holds    count, then (book, patron, day placed) for each hold still waiting, each book's in the order they will be filled
+ * </pre>
+ * Missing strings, borrowers and dates are written as -1, or Long.MIN_VALUE for dates.
+ * <p>
+ * Version history: 1 numbered copies by their position in their Book's list. 2 saves each copy's copy number. 3 saves due dates.
+ * 4 saves the holds waiting on each book. Version 3 snapshots can still be loaded, with no holds.
+ */
+public class LibrarySnapshot {
+    private static final int MAGIC = 0x4C494253;
+    private static final int VERSION = 4;
+    // The oldest version which can still be loaded
+    private static final int FIRST_READABLE_VERSION = 3;
+    private static final int NONE = -1;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final Status[] STATUSES = Status.values();
+
+    // This class is only a namespace for save and load
+    private LibrarySnapshot() {}
+
+    /**
+     * Saves a Library to a file. The file is written under a temporary name, synced to disk and then moved into place,
+     * so an existing snapshot is never left half-written, even by a power cut.
+     * Circulation can carry on while saving, but copies which change part way through may be saved in either state - 
+     * CirculationJournal replays its records over such a snapshot to bring it up to date.
+     *
+     * @param library The Library to save.
+     * @param file The file to save to.
+     * @throws IOException If the file could not be written, or the Library refers to an Author or Patron it doesn't contain.
+     */
+    public static void save(Library library, String file) throws IOException {
+        // The lists all come from one view, so the authors, patrons and books saved are from the same moment
+        CatalogView view = library.getCatalogView();
+        List<Author> authors = view.getAuthors();
+        List<Patron> patrons = view.getPatrons();
+        List<Book> books = view.getBooks();
+
+        // Number everything, so records can refer to each other by number
+        IdentityHashMap<Author, Integer> authorIds = number(authors);
+        IdentityHashMap<Patron, Integer> patronIds = number(patrons);
+        IdentityHashMap<Book, Integer> bookIds = number(books);
+        // The borrower each lent copy was saved with, so that loans always agree with the saved copies
+        HashMap<BookCopy, Patron> savedBorrowers = new HashMap<BookCopy, Patron>();
+        // The holds waiting on each book when its copies were saved, read under the same lock so the two agree
+        ArrayList<Hold> savedHolds = new ArrayList<Hold>();
+
+        StringTable strings = new StringTable();
+        for (Author author : authors)
+            strings.add(author.getName());
+        for (Patron patron : patrons) {
+            strings.add(patron.getName());
+            strings.add(patron.getAddress());
+            strings.add(patron.getPhoneNum());
+        }
+        for (Book book : books) {
+            strings.add(book.getTitle());
+            strings.add(book.getISBN());
+            strings.add(book.getPublisher());
+        }
+
+        Path target = Paths.get(file);
+        Path temp = Paths.get(file + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(strings.values.size());
+            for (String s : strings.values) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(authors.size());
+            for (Author author : authors) {
+                out.writeInt(strings.id(author.getName()));
+                out.writeLong(author.getDOB().toEpochDay());
+            }
+
+            out.writeInt(patrons.size());
+            for (Patron patron : patrons) {
+                out.writeInt(strings.id(patron.getName()));
+                out.writeInt(strings.id(patron.getAddress()));
+                out.writeInt(strings.id(patron.getPhoneNum()));
+            }
+
+            out.writeInt(books.size());
+            for (Book book : books) {
+                Integer authorId = authorIds.get(book.getAuthor());
+                if (authorId == null)
+                    throw new IOException("The author of '" + book.getTitle() + "' is not in the Library");
+
+                out.writeInt(strings.id(book.getTitle()));
+                out.writeInt(authorId);
+                out.writeInt(strings.id(book.getISBN()));
+                out.writeInt(strings.id(book.getPublisher()));
+
+                book.getLock().lock();
+                try {
+                    out.writeInt(book.getNextCopyNumber());
+                    out.writeInt(book.getCopiesView().size());
+                    for (BookCopy copy : book.getCopiesView()) {
+                        if (copy.getBorrower() != null)
+                            savedBorrowers.put(copy, copy.getBorrower());
+
+                        out.writeInt(copy.getCopyNumber());
+                        out.writeByte(copy.getStatus().ordinal());
+                        out.writeInt(idOf(patronIds, copy.getBorrower()));
+                        out.writeLong(epochDay(copy.getCheckoutDate()));
+                        out.writeLong(epochDay(copy.getDueDate()));
+                    }
+                    savedHolds.addAll(book.getWaitingHolds());
+                } finally {
+                    book.getLock().unlock();
+                }
+            }
+
+            // Loans are saved separately so each patron's list comes back in the same order
+            for (Patron patron : patrons) {
+                ArrayList<BookCopy> loans = new ArrayList<BookCopy>();
+                synchronized (patron) {
+                    for (BookCopy copy : patron.getCheckedOut()) {
+                        // Skip loans which started after their copy was saved (or ended before it was)
+                        if (savedBorrowers.get(copy) == patron && bookIds.containsKey(copy.getBook()))
+                            loans.add(copy);
+                    }
+                }
+
+                out.writeInt(loans.size());
+                for (BookCopy copy : loans) {
+                    out.writeInt(bookIds.get(copy.getBook()));
+                    out.writeInt(copy.getCopyNumber());
+                }
+            }
+
+            out.writeInt(savedHolds.size());
+            for (Hold hold : savedHolds) {
+                Integer patronId = patronIds.get(hold.getPatron());
+                if (patronId == null)
+                    throw new IOException("Patron " + hold.getPatron().getName() + " is waiting for '" + hold.getBook().getTitle() + "', but is not in the Library");
+
+                out.writeInt(bookIds.get(hold.getBook()));
+                out.writeInt(patronId);
+                out.writeLong(hold.getPlacedDate().toEpochDay());
+            }
+        }
+
+        moveDurably(temp, target);
+    }
+
+    /**
+     * Moves a finished file into place over an older one, so that after a crash at any point there is either the old
+     * file or the whole new one. The file's contents are forced to disk before the move, and the directory after it, as
+     * otherwise the move may reach the disk before the data it names, or not at all.
+     *
+     * @param temp The finished file.
+     * @param target Where to move it.
+     * @throws IOException If the file could not be synced or moved.
+     */
+    static void moveDurably(Path temp, Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Forces a directory's entries to disk, so that files created, moved or deleted in it stay that way after a crash.
+     *
+     * @param dir The directory.
+     * @throws IOException If the directory could not be synced.
+     */
+    static void forceDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Some platforms, Windows among them, can't open a directory at all, and make its entries durable on their own
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Loads a Library from a snapshot file.
+     *
+     * @param file The file to load.
+     * @return A new Library, in the state it was saved in.
+     * @throws IOException If the file could not be read, or is not a snapshot.
+     */
+    public static Library load(String file) throws IOException {
+        try (SnapshotInput in = new SnapshotInput(Paths.get(file))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a library snapshot");
+            int version = in.readInt();
+            if (version < FIRST_READABLE_VERSION || version > VERSION)
+                throw new IOException(file + " is a version " + version + " snapshot, but only versions " + FIRST_READABLE_VERSION + " to " + VERSION + " can be read");
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = in.readString();
+
+            Library library = new Library();
+
+            Author[] authors = new Author[in.readInt()];
+            for (int i = 0; i < authors.length; i++) {
+                authors[i] = new Author(string(strings, in.readInt()), LocalDate.ofEpochDay(in.readLong()));
+                library.addAuthor(authors[i]);
+            }
+
+            Patron[] patrons = new Patron[in.readInt()];
+            for (int i = 0; i < patrons.length; i++) {
+                patrons[i] = new Patron(string(strings, in.readInt()), string(strings, in.readInt()), string(strings, in.readInt()));
+                library.addPatron(patrons[i]);
+            }
+
+            Book[] books = new Book[in.readInt()];
+            for (int i = 0; i < books.length; i++) {
+                String title = string(strings, in.readInt());
+                Author author = authors[in.readInt()];
+                books[i] = library.addBook(title, author, string(strings, in.readInt()), string(strings, in.readInt()));
+                books[i].setNextCopyNumber(in.readInt());
+
+                int copies = in.readInt();
+                for (int c = 0; c < copies; c++) {
+                    BookCopy copy = books[i].addCopy(in.readInt());
+                    Status status = STATUSES[in.readByte()];
+                    int borrower = in.readInt();
+                    long checkoutDay = in.readLong();
+                    long dueDay = in.readLong();
+
+                    // The copy goes straight into its saved state - patrons' lists are filled in below
+                    copy.setStatus(status);
+                    copy.setBorrower(borrower == NONE ? null : patrons[borrower]);
+                    copy.setCheckoutDate(date(checkoutDay));
+                    copy.setDueDate(date(dueDay));
+                }
+            }
+
+            for (Patron patron : patrons) {
+                int loans = in.readInt();
+                for (int i = 0; i < loans; i++) {
+                    Book book = books[in.readInt()];
+                    patron.addBook(book.findCopy(in.readInt()));
+                }
+            }
+
+            if (version >= 4) {
+                int holds = in.readInt();
+                for (int i = 0; i < holds; i++) {
+                    Book book = books[in.readInt()];
+                    book.restoreHold(patrons[in.readInt()], LocalDate.ofEpochDay(in.readLong()));
+                }
+            }
+
+            return library;
+        }
+    }
+
+    private static <T> IdentityHashMap<T, Integer> number(List<T> items) {
+        IdentityHashMap<T, Integer> ids = new IdentityHashMap<T, Integer>(items.size() * 2);
+        for (int i = 0; i < items.size(); i++)
+            ids.put(items.get(i), i);
+        return ids;
+    }
+
+    private static int idOf(IdentityHashMap<Patron, Integer> patronIds, Patron patron) throws IOException {
+        if (patron == null)
+            return NONE;
+
+        Integer id = patronIds.get(patron);
+        if (id == null)
+            throw new IOException("Patron " + patron.getName() + " has a copy checked out, but is not in the Library");
+        return id;
+    }
+
+    private static String string(String[] strings, int id) { return id == NONE ? null : strings[id]; }
+
+    private static long epochDay(LocalDate date) { return date == null ? NO_DATE : date.toEpochDay(); }
+
+    private static LocalDate date(long epochDay) { return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay); }
+
+    // Gives each distinct String a number, in the order they were first seen
+    private static class StringTable {
+        private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        private final ArrayList<String> values = new ArrayList<String>();
+
+        void add(String s) {
+            if (s != null && !ids.containsKey(s)) {
+                ids.put(s, values.size());
+                values.add(s);
+            }
+        }
+
+        int id(String s) { return s == null ? NONE : ids.get(s); }
+    }
+
+    // Reads a file from start to end through a moving memory-mapped window, as one mapping can't be larger than 2GB
+    static class SnapshotInput implements AutoCloseable {
+        private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        SnapshotInput(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        // Makes sure the next n bytes are in the window, moving the window forward if they aren't
+        private void ensure(int n) throws IOException {
+            if (window.remaining() >= n)
+                return;
+
+            long position = windowStart + window.position();
+            if (position + n > size)
+                throw new IOException("Snapshot is truncated");
+            map(position, n);
+        }
+
+        private void map(long position, int atLeast) throws IOException {
+            long length = Math.min(Math.max(WINDOW_SIZE, atLeast), size - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            windowStart = position;
+        }
+
+        byte readByte() throws IOException {
+            ensure(1);
+            return window.get();
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long readLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        String readString() throws IOException {
+            int length = readInt();
+            ensure(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public void close() throws IOException { channel.close(); }
+    }
+}
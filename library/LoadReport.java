@@ -0,0 +1,66 @@
+package library;
+
+/**
+ * A summary of loading a CSV file into the Library: how many rows were loaded, how many were rejected, and how long it took.
+ */
+public class LoadReport {
+    private final String file;
+    private final long rowsLoaded;
+    private final long rowsRejected;
+    private final long elapsedNanos;
+    private final String rejectFile;
+
+    /**
+     * Class constructor.
+     *
+     * @param file The file which was loaded.
+     * @param rowsLoaded The number of rows added to the Library.
+     * @param rowsRejected The number of rows which could not be read.
+     * @param elapsedNanos How long the load took, in nanoseconds.
+     * @param rejectFile The file the rejected rows were written to. Will be <code>null</code> if no rows were rejected.
+     */
+    public LoadReport(String file, long rowsLoaded, long rowsRejected, long elapsedNanos, String rejectFile) {
+        this.file = file;
+        this.rowsLoaded = rowsLoaded;
+        this.rowsRejected = rowsRejected;
+        this.elapsedNanos = elapsedNanos;
+        this.rejectFile = rejectFile;
+    }
+
+    /**
+     * @return The file which was loaded.
+     */
+    public String getFile() { return file; }
+    /**
+     * @return The number of rows added to the Library.
+     */
+    public long getRowsLoaded() { return rowsLoaded; }
+    /**
+     * @return The number of rows which could not be read.
+     */
+    public long getRowsRejected() { return rowsRejected; }
+    /**
+     * @return How long the load took, in nanoseconds.
+     */
+    public long getElapsedNanos() { return elapsedNanos; }
+    /**
+     * @return The file the rejected rows were written to. Will be <code>null</code> if no rows were rejected.
+     */
+    public String getRejectFile() { return rejectFile; }
+
+    /**
+     * @return The number of rows (loaded or rejected) read per second.
+     */
+    public double getRowsPerSecond() {
+        if (elapsedNanos <= 0)
+            return 0;
+        return (rowsLoaded + rowsRejected) * 1e9 / elapsedNanos;
+    }
+
+    public String toString() {
+        String desc = String.format("%d rows loaded, %d rejected in %.3fs (%.0f rows/s)", rowsLoaded, rowsRejected, elapsedNanos / 1e9, getRowsPerSecond());
+        if (rejectFile != null)
+            desc += ", rejected rows written to " + rejectFile;
+        return desc;
+    }
+}
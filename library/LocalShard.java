@@ -0,0 +1,143 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A branch of a ShardedLibrary which is a Library in the same JVM, reached through an in-memory transport.
+ * <p>
+ * Calls are answered on the branch's own threads, and results are passed back as BookRecords rather than live Books,
+ * just as they would be from another machine. This lets a whole sharded deployment, with transfers between branches,
+ * be run and tested in one process. Patrons borrow and return copies through the branch's Library as usual.
+ */
+public class LocalShard implements LibraryShard, AutoCloseable {
+    /**
+     * The number of threads a branch answers calls on, unless told otherwise.
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    private final String name;
+    private final Library library;
+    private final ExecutorService threads;
+
+    /**
+     * Class constructor. The branch answers calls on DEFAULT_THREADS threads of its own.
+     *
+     * @param name The name of the branch.
+     * @param library The Library holding the branch's books.
+     */
+    public LocalShard(String name, Library library) { this(name, library, DEFAULT_THREADS); }
+
+    /**
+     * Class constructor.
+     *
+     * @param name The name of the branch.
+     * @param library The Library holding the branch's books.
+     * @param numThreads The number of threads to answer calls on.
+     */
+    public LocalShard(String name, Library library, int numThreads) {
+        this.name = name;
+        this.library = library;
+        AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newFixedThreadPool(numThreads, task -> {
+            Thread thread = new Thread(task, "shard-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String getName() { return name; }
+    /**
+     * @return The Library holding the branch's books, for borrowing and returning copies at the branch.
+     */
+    public Library getLibrary() { return library; }
+
+    @Override
+    public CompletableFuture<BookRecord> addCopies(BookRecord book, int copies) {
+        return call(() -> {
+            Book local;
+            // Two copies of a new book arriving at once mustn't add it twice
+            synchronized (library) {
+                local = library.findBookByISBN(book.getISBN());
+                if (local == null) {
+                    Author author = library.findAuthorByName(book.getAuthorName());
+                    if (author == null) {
+                        author = new Author(book.getAuthorName(), book.getAuthorDOB());
+                        library.addAuthor(author);
+                    }
+                    local = new Book(book.getTitle(), author, book.getISBN(), book.getPublisher());
+                    library.addBook(local);
+                }
+            }
+            local.addCopies(copies);
+            return BookRecord.of(name, local, 0);
+        });
+    }
+
+    @Override
+    public CompletableFuture<BookRecord> releaseCopy(String isbn) {
+        return call(() -> {
+            Book book = library.findBookByISBN(isbn);
+            if (book == null)
+                return null;
+
+            // The copy is found and removed under the book's lock, so no one can borrow it in between
+            book.getLock().lock();
+            try {
+                BookCopy copy = book.nextAvailableCopy();
+                if (copy == null)
+                    return null;
+                book.removeCopy(copy);
+            } finally {
+                book.getLock().unlock();
+            }
+            return BookRecord.of(name, book, 0);
+        });
+    }
+
+    @Override
+    public CompletableFuture<BookRecord> findBookByISBN(String isbn) {
+        return call(() -> {
+            Book book = library.findBookByISBN(isbn);
+            return book == null ? null : BookRecord.of(name, book, 0);
+        });
+    }
+
+    @Override
+    public CompletableFuture<ArrayList<BookRecord>> findBooksByAuthor(String authorName) {
+        return call(() -> {
+            ArrayList<BookRecord> records = new ArrayList<BookRecord>();
+            for (Book book : library.findBooksByAuthor(authorName))
+                records.add(BookRecord.of(name, book, 0));
+            return records;
+        });
+    }
+
+    @Override
+    public CompletableFuture<ArrayList<BookRecord>> searchBooks(String query, int limit) {
+        return call(() -> {
+            ArrayList<Double> scores = new ArrayList<Double>();
+            ArrayList<Book> books = library.searchBooks(query, limit, scores);
+            ArrayList<BookRecord> records = new ArrayList<BookRecord>(books.size());
+            for (int i = 0; i < books.size(); i++)
+                records.add(BookRecord.of(name, books.get(i), scores.get(i)));
+            return records;
+        });
+    }
+
+    /**
+     * Stops the branch's threads. Calls already made are answered first.
+     */
+    @Override
+    public void close() { threads.shutdown(); }
+
+    // Answers a call on the branch's threads, as a remote branch would
+    private <T> CompletableFuture<T> call(Supplier<T> work) { return CompletableFuture.supplyAsync(work, threads); }
+
+    public String toString() { return "LocalShard[" + name + ", " + library.getBooksView().size() + " books]"; }
+}
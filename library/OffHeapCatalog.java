@@ -0,0 +1,129 @@
+package library;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * The fields of a Library's Books and Authors, kept outside the Java heap.
+ * <p>
+ * Each Book and Author has a fixed-width record, found by its position in the Library, which holds its fixed-size
+ * fields directly and references into a StringArena for its strings. Books and Authors in an off-heap Library read
+ * their fields from here each time they are asked for them, so the catalog's strings and dates never become long-lived
+ * heap objects for the garbage collector to trace.
+ * <p>
+ * Publishers repeat across the catalog, so rather than being kept here they stay in the Books as the Library's
+ * StringDictionary copies.
+ */
+class OffHeapCatalog {
+    // A Book record is the references to its title and ISBN
+    private static final int BOOK_TITLE = 0;
+    private static final int BOOK_ISBN = 8;
+    private static final int BOOK_RECORD_SIZE = 16;
+    // An Author record is the reference to their name, and their date of birth as an epoch day
+    private static final int AUTHOR_NAME = 0;
+    private static final int AUTHOR_DOB = 8;
+    private static final int AUTHOR_RECORD_SIZE = 16;
+
+    // Stands for a missing date of birth
+    private static final long NO_DAY = Long.MIN_VALUE;
+
+    private final StringArena strings;
+    private final RecordTable books;
+    private final RecordTable authors;
+
+    /**
+     * Class constructor. The catalog starts out empty.
+     */
+    OffHeapCatalog() {
+        this.strings = new StringArena();
+        this.books = new RecordTable(BOOK_RECORD_SIZE);
+        this.authors = new RecordTable(AUTHOR_RECORD_SIZE);
+    }
+
+    /**
+     * Writes the record of a Book being added to the Library.
+     *
+     * @param seq The Book's position in the Library.
+     * @param title The Book's title.
+     * @param isbn The Book's ISBN.
+     */
+    void addBook(int seq, String title, String isbn) {
+        books.ensureRecord(seq);
+        books.putLong(seq, BOOK_TITLE, strings.add(title));
+        books.putLong(seq, BOOK_ISBN, strings.add(isbn));
+    }
+
+    String bookTitle(int seq) { return strings.get(books.getLong(seq, BOOK_TITLE)); }
+
+    void setBookTitle(int seq, String title) { books.putLong(seq, BOOK_TITLE, strings.add(title)); }
+
+    String bookISBN(int seq) { return strings.get(books.getLong(seq, BOOK_ISBN)); }
+
+    /**
+     * Writes the record of an Author being added to the Library.
+     *
+     * @param seq The Author's position in the Library.
+     * @param name The Author's name.
+     * @param dateOfBirth The Author's date of birth.
+     */
+    void addAuthor(int seq, String name, LocalDate dateOfBirth) {
+        authors.ensureRecord(seq);
+        authors.putLong(seq, AUTHOR_NAME, strings.add(name));
+        authors.putLong(seq, AUTHOR_DOB, dateOfBirth == null ? NO_DAY : dateOfBirth.toEpochDay());
+    }
+
+    String authorName(int seq) { return strings.get(authors.getLong(seq, AUTHOR_NAME)); }
+
+    void setAuthorName(int seq, String name) { authors.putLong(seq, AUTHOR_NAME, strings.add(name)); }
+
+    LocalDate authorDOB(int seq) {
+        long day = authors.getLong(seq, AUTHOR_DOB);
+        return day == NO_DAY ? null : LocalDate.ofEpochDay(day);
+    }
+
+    /**
+     * @return The number of off-heap bytes the catalog has allocated or written, for records and strings together.
+     */
+    long getBytesUsed() { return books.getBytesAllocated() + authors.getBytesAllocated() + strings.getBytesUsed(); }
+
+    // Fixed-width records in direct buffers, each holding a block of records so that a record never spans two buffers
+    private static class RecordTable {
+        private static final int RECORDS_PER_CHUNK = 1 << 16;
+        // Reads and writes of the longs in a record. Fields are 8-byte aligned, as the ordered access modes need
+        private static final VarHandle FIELDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        private final int recordSize;
+        // Published whole each time a buffer is added, so readers never need the lock
+        private volatile ByteBuffer[] chunks;
+
+        private RecordTable(int recordSize) {
+            this.recordSize = recordSize;
+            this.chunks = new ByteBuffer[0];
+        }
+
+        private synchronized void ensureRecord(int seq) {
+            int chunk = seq / RECORDS_PER_CHUNK;
+            if (chunk < chunks.length)
+                return;
+
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunk + 1);
+            for (int i = chunks.length; i < grown.length; i++)
+                grown[i] = ByteBuffer.allocateDirect(RECORDS_PER_CHUNK * recordSize);
+            chunks = grown;
+        }
+
+        // A field is read with an acquiring read which pairs with the releasing write that set it, so a reader which sees
+        // a new reference into the arena also sees the string bytes, and the arena chunks, written before it
+        private long getLong(int seq, int field) { return (long) FIELDS.getAcquire(chunks[seq / RECORDS_PER_CHUNK], offset(seq, field)); }
+
+        private void putLong(int seq, int field, long value) { FIELDS.setRelease(chunks[seq / RECORDS_PER_CHUNK], offset(seq, field), value); }
+
+        private int offset(int seq, int field) { return (seq % RECORDS_PER_CHUNK) * recordSize + field; }
+
+        private long getBytesAllocated() { return (long) chunks.length * RECORDS_PER_CHUNK * recordSize; }
+    }
+}
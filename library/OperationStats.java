@@ -0,0 +1,88 @@
+package library;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the counters and latencies recorded for one kind of Library operation. Latencies are in nanoseconds.
+ */
+public class OperationStats {
+    private final String operation;
+    private final long count;
+    private final long failures;
+    private final double meanNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    /**
+     * Class constructor.
+     *
+     * @param operation The name of the operation.
+     * @param count The number of times the operation was made.
+     * @param failures The number of times it failed, or found nothing.
+     * @param meanNanos The mean latency.
+     * @param p50Nanos The median latency.
+     * @param p90Nanos The 90th percentile latency.
+     * @param p99Nanos The 99th percentile latency.
+     * @param p999Nanos The 99.9th percentile latency.
+     * @param maxNanos The highest latency.
+     */
+    // The names let JMX clients rebuild a snapshot from its attributes
+    @ConstructorProperties({ "operation", "count", "failures", "meanNanos", "p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos", "maxNanos" })
+    public OperationStats(String operation, long count, long failures, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+        this.operation = operation;
+        this.count = count;
+        this.failures = failures;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return The name of the operation.
+     */
+    public String getOperation() { return operation; }
+    /**
+     * @return The number of times the operation was made.
+     */
+    public long getCount() { return count; }
+    /**
+     * @return The number of times the operation failed: finds which matched nothing, borrows with no copy available,
+     *      returns of copies which weren't on loan, batches with any failed item, and loads which couldn't read their file.
+     */
+    public long getFailures() { return failures; }
+    /**
+     * @return The mean latency.
+     */
+    public double getMeanNanos() { return meanNanos; }
+    /**
+     * @return The median latency.
+     */
+    public long getP50Nanos() { return p50Nanos; }
+    /**
+     * @return The 90th percentile latency.
+     */
+    public long getP90Nanos() { return p90Nanos; }
+    /**
+     * @return The 99th percentile latency.
+     */
+    public long getP99Nanos() { return p99Nanos; }
+    /**
+     * @return The 99.9th percentile latency.
+     */
+    public long getP999Nanos() { return p999Nanos; }
+    /**
+     * @return The highest latency.
+     */
+    public long getMaxNanos() { return maxNanos; }
+
+    public String toString() {
+        return String.format("%-22s %10d ops %8d failed   mean %9.0fns  p50 %9dns  p99 %9dns  p99.9 %9dns  max %9dns",
+                operation, count, failures, meanNanos, p50Nanos, p99Nanos, p999Nanos, maxNanos);
+    }
+}
@@ -1,9 +1,13 @@
 package library;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 
 /**
  * Class which represents a Patron of the library. The Patron can check books out to their borrowed list.
+ * The borrowed list can be changed from several threads at once, as a patron may be checking out books at more than one desk.
+ * Loans are kept in hash-based sets, so adding, returning and finding them take the same time however many the patron has.
  * 
  * @author Lauren Wilson
  */
@@ -11,7 +15,18 @@ public class Patron {
     private String name;
     private String address;
     private String phoneNum;
-    private ArrayList<BookCopy> checkedOut;
+    // The copies on loan, in the order they were borrowed, and the same copies grouped by Book. A patron seldom has more
+    // than a couple of copies of one book, so each group is a short list
+    private LinkedHashSet<BookCopy> checkedOut;
+    private HashMap<Book, ArrayList<BookCopy>> loansByBook;
+    // The holds this patron is waiting on, one per Book. Made when their first hold is placed
+    private HashMap<Book, Hold> holds;
+    // How many copies this patron has borrowed, since they were made or loaded
+    private long borrowCount;
+
+    // The Library this patron has been added to, and its position there. The Library is told when their name or address changes, so it can keep its indexes up to date
+    private Library library;
+    private int catalogSeq;
 
     /**
      * Class constructor.
@@ -24,7 +39,8 @@ public class Patron {
         this.name = name;
         this.address = address;
         this.phoneNum = phoneNum;
-        this.checkedOut = new ArrayList<BookCopy>();
+        this.checkedOut = new LinkedHashSet<BookCopy>();
+        this.loansByBook = new HashMap<Book, ArrayList<BookCopy>>();
     }
 
     /**
@@ -43,28 +59,74 @@ public class Patron {
      */
     public String getPhoneNum() { return phoneNum; }
     /**
-     * @return A list of books currently checked out by the patron.
+     * @return A list of books currently checked out by the patron, in the order they were borrowed. The list is a copy, so
+     *      later loans and returns don't change it.
+     */
+    public synchronized ArrayList<BookCopy> getCheckedOut() { return new ArrayList<BookCopy>(checkedOut); }
+    /**
+     * @return The number of copies the patron has checked out.
+     */
+    public synchronized int getLoanCount() { return checkedOut.size(); }
+    /**
+     * Checks whether this patron has a copy checked out.
+     * 
+     * @param copy The copy to look for.
+     * @return <code>true</code> if the copy is in the patron's list of checked out books.
+     */
+    public synchronized boolean hasCopy(BookCopy copy) { return checkedOut.contains(copy); }
+    /**
+     * @return The number of copies this patron has borrowed since they were made or loaded, including those since returned.
      */
-    public ArrayList<BookCopy> getCheckedOut() { return checkedOut; }
+    public synchronized long getBorrowCount() { return borrowCount; }
+
+    // Used by the Library when this Patron is added to it
+    void setLibrary(Library library, int catalogSeq) {
+        this.library = library;
+        this.catalogSeq = catalogSeq;
+    }
+    Library getLibrary() { return library; }
+    int getCatalogSeq() { return catalogSeq; }
 
     /**
      * Sets the name of this patron.
      * 
      * @param name Name of the patron.
      */
-    public void setName(String name) { this.name = name; }
+    public void setName(String name) {
+        // The old name is read and the new one set under the Library's lock, as it guards the index being updated
+        synchronized (library != null ? library : this) {
+            String oldName = this.name;
+            this.name = name;
+            if (library != null)
+                library.patronChanged(this, oldName, address, phoneNum);
+        }
+    }
     /**
      * Sets the address of this patron.
      * 
      * @param address Address of the patron.
      */
-    public void setAddress(String address) { this.address = address; }
+    public void setAddress(String address) {
+        synchronized (library != null ? library : this) {
+            String oldAddress = this.address;
+            this.address = address;
+            if (library != null)
+                library.patronChanged(this, name, oldAddress, phoneNum);
+        }
+    }
     /**
      * Sets the phone number of the patron.
      * 
      * @param phoneNum Phone number of the patron.
      */
-    public void setPhoneNum(String phoneNum) { this.phoneNum = phoneNum; }
+    public void setPhoneNum(String phoneNum) {
+        synchronized (library != null ? library : this) {
+            String oldPhoneNum = this.phoneNum;
+            this.phoneNum = phoneNum;
+            if (library != null)
+                library.patronChanged(this, name, address, oldPhoneNum);
+        }
+    }
 
     // Functions to add or remove a copy of a book from the Patron's list of checked out books
     /**
@@ -72,13 +134,45 @@ public class Patron {
      * 
      * @param book The copy to add.
      */
-    public void addBook(BookCopy book) { checkedOut.add(book); }
+    public synchronized void addBook(BookCopy book) {
+        if (!checkedOut.add(book))
+            return;
+
+        ArrayList<BookCopy> copies = loansByBook.get(book.getBook());
+        if (copies == null) {
+            copies = new ArrayList<BookCopy>(1);
+            loansByBook.put(book.getBook(), copies);
+        }
+        copies.add(book);
+    }
+    // Used by a copy as it is lent to this patron, so that loans are counted, but copies restored from a snapshot or
+    // added with addBook aren't
+    synchronized void borrowed(BookCopy book) {
+        addBook(book);
+        borrowCount++;
+    }
+
+    // Reads what CirculationAnalytics needs under one lock: copies on loan, copies borrowed so far, and holds waiting
+    synchronized void readCirculation(long[] counts) {
+        counts[0] = checkedOut.size();
+        counts[1] = borrowCount;
+        counts[2] = holds == null ? 0 : holds.size();
+    }
+
     /**
      * Removes a specific BookCopy to this patron's list of checked out books.
      * 
      * @param book The copy to remove.
      */
-    public void removeBook(BookCopy book) { checkedOut.remove(book); }
+    public synchronized void removeBook(BookCopy book) {
+        if (!checkedOut.remove(book))
+            return;
+
+        ArrayList<BookCopy> copies = loansByBook.get(book.getBook());
+        copies.remove(book);
+        if (copies.isEmpty())
+            loansByBook.remove(book.getBook());
+    }
 
     /**
      * Returns the first checked out copy of a given book.
@@ -86,15 +180,9 @@ public class Patron {
      * @param book The book to search for.
      * @return The matching BookCopy. If no match was found, value will be <code>null</code>.
      */
-    public BookCopy findCopyOf(Book book) {
-        BookCopy find = null;
-        for (BookCopy copy : checkedOut) {
-            if (copy.getBook() == book)
-                find = copy;
-            break;
-        }
-
-        return find;
+    public synchronized BookCopy findCopyOf(Book book) {
+        ArrayList<BookCopy> copies = loansByBook.get(book);
+        return copies == null ? null : copies.get(0);
     }
 
     /**
@@ -103,24 +191,35 @@ public class Patron {
      * @param book The book to search for.
      * @return A list of copies checked out by this patron.
      */
-    public ArrayList<BookCopy> findCopiesOf(Book book) {
-        ArrayList<BookCopy> results = new ArrayList<BookCopy>();
-        for (BookCopy copy : checkedOut) {
-            if (copy.getBook() == book)
-                results.add(copy);
-        }
-
-        return results;
+    public synchronized ArrayList<BookCopy> findCopiesOf(Book book) {
+        ArrayList<BookCopy> copies = loansByBook.get(book);
+        return copies == null ? new ArrayList<BookCopy>() : new ArrayList<BookCopy>(copies);
     }
 
-    public String toString() {
-        // Create a basic string for the Patron
-        String fmt = String.format("Patron[name:'%s', address:'%s', phoneNum:'%s']",name, address, phoneNum);
+    /**
+     * @return The holds this patron is still waiting on. The list is a copy, so holds placed or filled later don't change it.
+     */
+    public synchronized ArrayList<Hold> getHolds() { return holds == null ? new ArrayList<Hold>() : new ArrayList<Hold>(holds.values()); }
 
-        // Append a tidy list of books this Patron haschecked out
-        fmt += "\nChecked out:\n";
-        for (BookCopy copy : checkedOut)
-            fmt += "\t" + copy.getBook().getTitle() + " <" + copy.getCheckoutDate() + ">";
-        return fmt;
+    /**
+     * Finds the hold this patron is waiting on for a given book.
+     * 
+     * @param book The book to search for.
+     * @return The waiting Hold. If the patron isn't waiting for the book, value will be <code>null</code>.
+     */
+    public synchronized Hold findHoldOn(Book book) { return holds == null ? null : holds.get(book); }
+
+    // Used by a Book as this patron joins or leaves its queue, while it holds its lock
+    synchronized void addHold(Hold hold) {
+        if (holds == null)
+            holds = new HashMap<Book, Hold>();
+        holds.put(hold.getBook(), hold);
+    }
+
+    synchronized void removeHold(Hold hold) {
+        if (holds != null && holds.get(hold.getBook()) == hold)
+            holds.remove(hold.getBook());
     }
+
+    public String toString() { return ReportWriter.render(this); }
 }
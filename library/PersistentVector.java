@@ -0,0 +1,165 @@
+package library;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list which can only grow, where adding an item makes a new list sharing nearly all of the old one.
+ * <p>
+ * Items are kept in a tree of 32-wide arrays, with the last 32 or fewer items in a separate tail. Adding an item copies
+ * the tail, and every 32 items, the path from the root down to where the tail goes into the tree - a few small arrays,
+ * however long the list. An item is found by walking down from the root, which takes four steps for a million items.
+ * <p>
+ * As a list never changes once it is made, any number of threads can read it without locking while another adds to it
+ * and publishes the result.
+ */
+final class PersistentVector<T> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final Object[] EMPTY_NODE = new Object[WIDTH];
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentVector EMPTY = new PersistentVector(0, BITS, EMPTY_NODE, new Object[0]);
+
+    private final int size;
+    // How far to shift an index to find its slot in the root
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /**
+     * @return The empty list.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> PersistentVector<T> empty() { return (PersistentVector<T>) EMPTY; }
+
+    /**
+     * @return The number of items in the list.
+     */
+    int size() { return size; }
+
+    /**
+     * Finds an item by its position.
+     *
+     * @param index The position of the item.
+     * @return The item.
+     */
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        return (T) leafFor(index)[index & MASK];
+    }
+
+    /**
+     * Makes a list with one more item on the end. This list is unchanged.
+     *
+     * @param item The item to add.
+     * @return The new list.
+     */
+    PersistentVector<T> append(T item) {
+        // Room in the tail
+        if (size - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = item;
+            return new PersistentVector<T>(size + 1, shift, root, newTail);
+        }
+
+        // The tail is full, so it goes into the tree and a new one is started. If the tree is full too, it gets a new root
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector<T>(size + 1, newShift, newRoot, new Object[] { item });
+    }
+
+    /**
+     * @return The list as a read-only java.util.List. It can be read from any thread, and never changes.
+     */
+    List<T> asList() { return new ListView(); }
+
+    // The position of the first item in the tail
+    private int tailOffset() { return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS; }
+
+    // The array holding an item
+    private Object[] leafFor(int index) {
+        if (index >= tailOffset())
+            return tail;
+
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS)
+            node = (Object[]) node[(index >>> level) & MASK];
+        return node;
+    }
+
+    // Copies the path down to where a full tail goes, with the tail put in place
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int slot = ((size - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        if (level == BITS) {
+            node[slot] = tailNode;
+        } else {
+            Object[] child = (Object[]) parent[slot];
+            node[slot] = child != null ? pushTail(level - BITS, child, tailNode) : newPath(level - BITS, tailNode);
+        }
+        return node;
+    }
+
+    // A chain of new nodes down to a leaf
+    private static Object[] newPath(int level, Object[] leaf) {
+        if (level == 0)
+            return leaf;
+
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    private class ListView extends AbstractList<T> implements RandomAccess {
+        @Override
+        public T get(int index) { return PersistentVector.this.get(index); }
+
+        @Override
+        public int size() { return size; }
+
+        // Walks a leaf at a time, rather than down from the root for every item
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int next;
+                private Object[] leaf;
+
+                @Override
+                public boolean hasNext() { return next < size; }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public T next() {
+                    if (next >= size)
+                        throw new NoSuchElementException();
+                    if ((next & MASK) == 0 || leaf == null)
+                        leaf = leafFor(next);
+                    return (T) leaf[next++ & MASK];
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * A bounded cache of query results, which evicts either the least recently used entry, or by W-TinyLFU.
+ * <p>
+ * W-TinyLFU keeps a small LRU window for new entries, in front of a main area split into probation and protected
+ * segments. An entry leaving the window only gets into the main area if it has been asked for more often than the entry
+ * it would push out, going by a compact frequency sketch of every recent query, hit or miss. A burst of one-off queries
+ * therefore can't flush out the popular ones, which is where plain LRU does badly on skewed traffic.
+ * <p>
+ * Even a hit reorders the entries and counts the query in the sketch, so every lookup has to change the cache. Rather
+ * than have every lookup wait on one lock, the cache is split by the hash of the query into up to one partition per
+ * processor, each an independent cache with its own share of the capacity, its own lists and its own sketch, and its own
+ * lock. Lookups of different queries then rarely wait on each other. A partition is never given fewer than a few dozen
+ * entries, so a small cache stays in one piece, and evicts just as an unsplit one would.
+ * <p>
+ * Entries are invalidated by key, by predicate or all at once when the data behind them changes. Each invalidation
+ * starts a new generation of the partitions it goes through, and a result computed during an older generation of its
+ * partition is not stored, so a query which raced with a change can't leave a stale result behind.
+ */
+class QueryCache<K, V> {
+    // The segments an entry can be in
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // The fewest entries a partition is given, so that its window and its sketch still have room to work
+    private static final int MIN_PARTITION_CAPACITY = 64;
+
+    private static class Node<K, V> {
+        private final K key;
+        private V value;
+        private int segment;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        private Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final String name;
+    private final Library.CachePolicy policy;
+    private final int capacity;
+    // A power of two of them, chosen by the spread hash of a query
+    private final Partition<K, V>[] partitions;
+
+    /**
+     * Class constructor. The cache starts out empty.
+     *
+     * @param name What the cache holds, for its statistics.
+     * @param policy How entries are chosen for eviction.
+     * @param capacity The most entries to hold. It must be at least 1.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    QueryCache(String name, Library.CachePolicy policy, int capacity) {
+        this.name = name;
+        this.policy = policy;
+        this.capacity = capacity;
+
+        // More partitions than threads running at once wouldn't cut waiting any further
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = 1;
+        while (count < processors && capacity / (count * 2) >= MIN_PARTITION_CAPACITY)
+            count *= 2;
+
+        this.partitions = new Partition[count];
+        for (int i = 0; i < count; i++)
+            partitions[i] = new Partition<K, V>(policy, capacity / count + (i < capacity % count ? 1 : 0));
+    }
+
+    /**
+     * Looks up a cached result.
+     *
+     * @param key The query.
+     * @return The cached result, or <code>null</code> if there is none.
+     */
+    V get(K key) { return partitionOf(key).get(key); }
+
+    /**
+     * Finds the generation a result for a query is computed in.
+     *
+     * @param key The query.
+     * @return The current generation of the query's partition, to be passed to <code>put</code> once the result has been
+     *      computed.
+     */
+    long generation(K key) { return partitionOf(key).generation(); }
+
+    /**
+     * Caches a result, unless the cache has been invalidated since the result was computed.
+     *
+     * @param key The query.
+     * @param value Its result.
+     * @param generation The generation read before the result was computed.
+     */
+    void put(K key, V value, long generation) { partitionOf(key).put(key, value, generation); }
+
+    /**
+     * Removes a cached result.
+     *
+     * @param key The query.
+     */
+    void invalidate(K key) { partitionOf(key).invalidate(key); }
+
+    /**
+     * Removes every cached result whose query matches a test.
+     *
+     * @param test Whether a query's result may have changed.
+     */
+    void invalidateIf(Predicate<K> test) {
+        for (Partition<K, V> partition : partitions)
+            partition.invalidateIf(test);
+    }
+
+    /**
+     * Removes every cached result.
+     */
+    void invalidateAll() {
+        for (Partition<K, V> partition : partitions)
+            partition.invalidateAll();
+    }
+
+    /**
+     * @return The cache's hit and miss counts, and its size, added up over its partitions.
+     */
+    CacheStats getStats() {
+        long[] totals = new long[5];
+        for (Partition<K, V> partition : partitions)
+            partition.addStats(totals);
+        return new CacheStats(name, policy, capacity, (int) totals[0], totals[1], totals[2], totals[3], totals[4]);
+    }
+
+    // Spreads the high bits of the hash into the low ones, which choose the partition
+    private Partition<K, V> partitionOf(K key) {
+        int h = key.hashCode();
+        return partitions[(h ^ (h >>> 16)) & (partitions.length - 1)];
+    }
+
+    // One part of the cache, holding the queries whose hashes choose it. All its methods are synchronized
+    private static class Partition<K, V> {
+        private final Library.CachePolicy policy;
+        private final int capacity;
+        private final int windowCapacity;
+        private final int protectedCapacity;
+        private final HashMap<K, Node<K, V>> nodes;
+        // Each segment is a circular list with a sentinel head: head.next is the least recently used entry
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private final Node<K, V>[] heads = new Node[3];
+        private final int[] sizes = new int[3];
+        private final FrequencySketch sketch;
+
+        private long generation;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long invalidations;
+
+        private Partition(Library.CachePolicy policy, int capacity) {
+            this.policy = policy;
+            this.capacity = capacity;
+            this.nodes = new HashMap<K, Node<K, V>>();
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = new Node<K, V>(null, null);
+                heads[i].prev = heads[i];
+                heads[i].next = heads[i];
+            }
+
+            if (policy == Library.CachePolicy.LRU) {
+                // Plain LRU is a window as big as the whole cache
+                this.windowCapacity = capacity;
+                this.protectedCapacity = 0;
+                this.sketch = null;
+            } else {
+                this.windowCapacity = Math.max(1, capacity / 100);
+                this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+                this.sketch = new FrequencySketch(capacity);
+            }
+        }
+
+        private synchronized V get(K key) {
+            if (sketch != null)
+                sketch.increment(key.hashCode());
+
+            Node<K, V> node = nodes.get(key);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+
+            hits++;
+            if (node.segment == PROBATION) {
+                // A second hit promotes an entry to the protected segment, which may push its oldest entry back to probation
+                unlink(node);
+                append(PROTECTED, node);
+                if (sizes[PROTECTED] > protectedCapacity)
+                    moveOldest(PROTECTED, PROBATION);
+            } else {
+                unlink(node);
+                append(node.segment, node);
+            }
+            return node.value;
+        }
+
+        private synchronized long generation() { return generation; }
+
+        private synchronized void put(K key, V value, long generation) {
+            if (generation != this.generation)
+                return;
+
+            Node<K, V> node = nodes.get(key);
+            if (node != null) {
+                node.value = value;
+                return;
+            }
+
+            node = new Node<K, V>(key, value);
+            nodes.put(key, node);
+            append(WINDOW, node);
+            if (sizes[WINDOW] <= windowCapacity)
+                return;
+
+            if (policy == Library.CachePolicy.LRU) {
+                evict(heads[WINDOW].next);
+                return;
+            }
+
+            // The oldest entry in the window moves to probation, and if the main area is now over capacity, either it or the
+            // entry it would push out has to go - whichever has been asked for less often
+            Node<K, V> candidate = heads[WINDOW].next;
+            unlink(candidate);
+            append(PROBATION, candidate);
+            if (sizes[PROBATION] + sizes[PROTECTED] <= capacity - windowCapacity)
+                return;
+
+            Node<K, V> victim = heads[PROBATION].next != candidate ? heads[PROBATION].next : heads[PROTECTED].next;
+            if (victim == heads[PROTECTED] || sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode()))
+                evict(candidate);
+            else
+                evict(victim);
+        }
+
+        private synchronized void invalidate(K key) {
+            generation++;
+            Node<K, V> node = nodes.remove(key);
+            if (node != null) {
+                unlink(node);
+                invalidations++;
+            }
+        }
+
+        private synchronized void invalidateIf(Predicate<K> test) {
+            generation++;
+            ArrayList<Node<K, V>> stale = new ArrayList<Node<K, V>>();
+            for (Node<K, V> node : nodes.values()) {
+                if (test.test(node.key))
+                    stale.add(node);
+            }
+            for (Node<K, V> node : stale) {
+                nodes.remove(node.key);
+                unlink(node);
+                invalidations++;
+            }
+        }
+
+        private synchronized void invalidateAll() {
+            generation++;
+            if (nodes.isEmpty())
+                return;
+
+            invalidations += nodes.size();
+            nodes.clear();
+            for (int i = 0; i < heads.length; i++) {
+                heads[i].prev = heads[i];
+                heads[i].next = heads[i];
+                sizes[i] = 0;
+            }
+        }
+
+        // Adds this partition's size, hits, misses, evictions and invalidations to the totals, in that order
+        private synchronized void addStats(long[] totals) {
+            totals[0] += nodes.size();
+            totals[1] += hits;
+            totals[2] += misses;
+            totals[3] += evictions;
+            totals[4] += invalidations;
+        }
+
+        private void evict(Node<K, V> node) {
+            nodes.remove(node.key);
+            unlink(node);
+            evictions++;
+        }
+
+        private void moveOldest(int from, int to) {
+            Node<K, V> oldest = heads[from].next;
+            unlink(oldest);
+            append(to, oldest);
+        }
+
+        // Adds an entry as the most recently used of a segment
+        private void append(int segment, Node<K, V> node) {
+            Node<K, V> head = heads[segment];
+            node.segment = segment;
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            sizes[segment]++;
+        }
+
+        private void unlink(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            sizes[node.segment]--;
+        }
+    }
+
+    // A count-min sketch of how often each key has been asked for recently. Each counter takes a byte, but stops at 15,
+    // as a count any higher wouldn't change which entry is kept. Counts are halved every so often, so that queries which
+    // were popular a while ago give way to ones which are popular now
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] counts;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        private FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+            this.counts = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.resetAfter = Math.max(16, capacity * 10);
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (counts[row][i] < MAX_COUNT) {
+                    counts[row][i]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions == resetAfter) {
+                for (byte[] row : counts) {
+                    for (int i = 0; i < row.length; i++)
+                        row[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++)
+                frequency = Math.min(frequency, counts[row][index(hash, row)]);
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
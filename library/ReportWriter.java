@@ -0,0 +1,282 @@
+package library;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+/**
+ * Writes reports on a Library - its inventory, the status of each Book's copies, and each Patron's loans - straight to
+ * a Writer or OutputStream.
+ * <p>
+ * Text is gathered in one fixed-size buffer, which is handed to the output whenever it fills, so a report on a catalog
+ * of any size takes time in proportion to its length and no more memory than the buffer. Numbers and dates are written
+ * digit by digit rather than through intermediate strings. The text matches what the toString methods of Library,
+ * Book and Patron return, which are themselves written with this class.
+ * <p>
+ * Each Book's copies are written from a copy of their state, read at one instant without holding up a checkout, so the
+ * report shows a consistent view of every Book, but not of the whole Library at one instant. A ReportWriter is not
+ * thread-safe.
+ */
+public class ReportWriter implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Writer out;
+    private final char[] buffer;
+    private int length;
+
+    /**
+     * Class constructor.
+     *
+     * @param out Where to write reports.
+     */
+    public ReportWriter(Writer out) {
+        this.out = out;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Class constructor. Reports are encoded as UTF-8.
+     *
+     * @param out Where to write reports.
+     */
+    public ReportWriter(OutputStream out) {
+        this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes every Book in a Library, with the status of its copies.
+     *
+     * @param library The Library to report on.
+     * @throws IOException If the output can't be written to.
+     */
+    public void writeInventory(Library library) throws IOException {
+        append("Books in this Library:\n");
+        for (Book book : library.getBooksView()) {
+            writeBook(book);
+            append("\n\n");
+        }
+    }
+
+    /**
+     * Writes every Patron in a Library, with the copies they have on loan.
+     *
+     * @param library The Library to report on.
+     * @throws IOException If the output can't be written to.
+     */
+    public void writePatrons(Library library) throws IOException {
+        append("Patrons in this Library:\n");
+        for (Patron patron : library.getPatronsView()) {
+            writePatron(patron);
+            append("\n\n");
+        }
+    }
+
+    /**
+     * Writes a Book's details, followed by the status of each of its copies.
+     *
+     * @param book The Book to write.
+     * @throws IOException If the output can't be written to.
+     */
+    public void writeBook(Book book) throws IOException {
+        // A copy of the copies' state is read, rather than holding the Book's lock while writing, so a slow output never
+        // holds up a checkout. It is read straight from the store, rather than making a BookCopy for each copy
+        CopyStore copies = book.readCopies();
+        append("Title:\t\t").append(book.getTitle()).append('\n');
+        append("Author:\t\t").append(book.getAuthor().getName()).append('\n');
+        append("ISBN:\t\t").append(book.getISBN()).append('\n');
+        append("Publisher:\t").append(book.getPublisher()).append('\n');
+        appendInt(copies.size()).append(" total copies, ");
+        appendInt(copies.count(Status.AVAILABLE)).append(" available\n");
+
+        append('[');
+        for (int pos = 0; pos < copies.size(); pos++) {
+            if (pos > 0)
+                append(", ");
+
+            switch (copies.status(pos)) {
+                case AVAILABLE:
+                    append("AVAILABLE");
+                    break;
+                case CHECKED_OUT:
+                    append("CHECKED_OUT <").appendDay(copies.checkoutDay(pos)).append('>');
+                    break;
+                case OVERDUE:
+                    append("OVERDUE <").appendDay(copies.dueDay(pos)).append('>');
+                    break;
+                default:
+                    append("<unknown>");
+            }
+        }
+        append(']');
+    }
+
+    /**
+     * Writes a Patron's details, followed by the copies they have on loan.
+     *
+     * @param patron The Patron to write.
+     * @throws IOException If the output can't be written to.
+     */
+    public void writePatron(Patron patron) throws IOException {
+        // Copies lock their Book to read their dates, which can't be done while holding the Patron's lock, so the list is copied first
+        ArrayList<BookCopy> copies = patron.getCheckedOut();
+
+        append("Patron[name:'").append(patron.getName());
+        append("', address:'").append(patron.getAddress());
+        append("', phoneNum:'").append(patron.getPhoneNum()).append("']");
+        append("\nChecked out:\n");
+        for (BookCopy copy : copies) {
+            LocalDate checkedOut = copy.getCheckoutDate();
+            append('\t').append(copy.getBook().getTitle()).append(" <");
+            appendDay(checkedOut == null ? CopyStore.NO_DAY : Math.toIntExact(checkedOut.toEpochDay())).append('>');
+        }
+    }
+
+    /**
+     * Hands everything written so far to the output, and flushes it.
+     *
+     * @throws IOException If the output can't be written to.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the output.
+     *
+     * @throws IOException If the output can't be written to.
+     */
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+
+    // Used by toString methods, which render into a string
+    static String render(Library library) {
+        StringWriter out = new StringWriter();
+        try {
+            ReportWriter report = new ReportWriter(out);
+            report.writeInventory(library);
+            report.flush();
+        } catch (IOException e) {
+            // A StringWriter never fails
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    static String render(Book book) {
+        StringWriter out = new StringWriter();
+        try {
+            ReportWriter report = new ReportWriter(out);
+            report.writeBook(book);
+            report.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    static String render(Patron patron) {
+        StringWriter out = new StringWriter();
+        try {
+            ReportWriter report = new ReportWriter(out);
+            report.writePatron(patron);
+            report.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    private ReportWriter append(String s) throws IOException {
+        // Written as "null", as string concatenation would
+        if (s == null)
+            s = "null";
+
+        int from = 0;
+        while (from < s.length()) {
+            if (length == buffer.length)
+                drain();
+            int count = Math.min(s.length() - from, buffer.length - length);
+            s.getChars(from, from + count, buffer, length);
+            length += count;
+            from += count;
+        }
+        return this;
+    }
+
+    private ReportWriter append(char c) throws IOException {
+        if (length == buffer.length)
+            drain();
+        buffer[length++] = c;
+        return this;
+    }
+
+    private ReportWriter appendInt(int value) throws IOException {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE)
+                return append(Integer.toString(value));
+            append('-');
+            value = -value;
+        }
+
+        // Find the highest power of ten in the value, then write its digits from the top down
+        int divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            append((char) ('0' + value / divisor % 10));
+        return this;
+    }
+
+    // Writes an epoch day as LocalDate.toString would
+    private ReportWriter appendDay(int day) throws IOException {
+        if (day == CopyStore.NO_DAY)
+            return append("null");
+
+        // Converts days to a civil date, counting in 400-year eras which start on the 1st of March
+        long z = day + 719468L;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        // Years which LocalDate writes with a sign or extra digits are rare enough to leave to it
+        if (year < 0 || year > 9999)
+            return append(LocalDate.ofEpochDay(day).toString());
+
+        appendPadded((int) year, 4).append('-');
+        appendPadded(month, 2).append('-');
+        return appendPadded(dayOfMonth, 2);
+    }
+
+    private ReportWriter appendPadded(int value, int digits) throws IOException {
+        int divisor = 1;
+        for (int i = 1; i < digits; i++)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            append((char) ('0' + value / divisor % 10));
+        return this;
+    }
+
+    // Hands the buffer to the output and starts it again
+    private void drain() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+}
@@ -0,0 +1,422 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntFunction;
+
+/**
+ * A full-text index of the words in each Book's title, author's name and publisher, for searching the catalog by partial words.
+ * <p>
+ * Each word maps to a posting list: the positions in the Library of the books containing it, in order, and which of their fields
+ * contain it. A search looks up each of its words, and walks the shortest list, checking the books it finds against the other
+ * lists by binary search, so it never scans the Library's list of books.
+ * <p>
+ * Results are ranked by how well each word matches: a word in the title counts for more than one in the author's name, which
+ * counts for more than one in the publisher, and rarer words count for more than common ones. Books with equal scores are
+ * ranked in the order they were added to the Library.
+ * <p>
+ * Books are indexed by one thread at a time - the Library's, under its monitor - while searches run on any number of threads
+ * with no lock. The words are kept in a concurrent skip list, which can be walked while words are added and removed, and
+ * each word's posting list is published as an immutable snapshot, replaced whole with every change. Appending a book fills
+ * the arrays past the end of the published snapshot, which no search reads, so the usual change copies nothing; only
+ * re-indexing a book which changed copies the list. A search sees each list as it was at some moment, and may see a book
+ * being added in one of its words but not yet in another, which it then leaves out of the results.
+ */
+class SearchIndex {
+    // The fields of a book which are indexed, as bits, and how much a match in each counts for
+    static final int TITLE = 1;
+    static final int AUTHOR = 2;
+    static final int PUBLISHER = 4;
+    private static final double TITLE_WEIGHT = 3;
+    private static final double AUTHOR_WEIGHT = 2;
+    private static final double PUBLISHER_WEIGHT = 1;
+
+    // The last word of a query may be incomplete. It is expanded to at most this many of the words it is a prefix of -
+    // the ones in the most books, so a short prefix still finds as many books as it can
+    private static final int MAX_EXPANSIONS = Library.MAX_PREFIX_EXPANSIONS;
+
+    // The posting lists of every word, sorted, so the words sharing a prefix sit next to each other
+    private final ConcurrentSkipListMap<String, Postings> words;
+    // Finds a book by its position, which is what the index holds
+    private final IntFunction<Book> books;
+    private volatile int indexed;
+
+    /**
+     * Class constructor. The index starts out empty.
+     *
+     * @param books Finds one of the Library's books by the position the index refers to it by.
+     */
+    SearchIndex(IntFunction<Book> books) {
+        this.words = new ConcurrentSkipListMap<String, Postings>();
+        this.books = books;
+    }
+
+    /**
+     * Splits text into words. A word is a run of letters and digits, folded so that case doesn't matter.
+     *
+     * @param text The text to split.
+     * @return The words of the text, in order. Will be empty if the text is <code>null</code> or has no words.
+     */
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        if (text == null)
+            return tokens;
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                tokens.add(CatalogIndex.fold(text.substring(start, i)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Indexes all the fields of a Book which has just been added to the Library.
+     *
+     * @param book The book to index.
+     */
+    void addBook(Book book) {
+        // Each word is added once, with every field it appears in, so a word in both the title and the publisher is
+        // appended to its list rather than changing an entry searches may be reading
+        LinkedHashMap<String, Integer> bookWords = new LinkedHashMap<String, Integer>();
+        collect(bookWords, book.getTitle(), TITLE);
+        collect(bookWords, book.getAuthor().getName(), AUTHOR);
+        collect(bookWords, book.getPublisher(), PUBLISHER);
+        for (Map.Entry<String, Integer> word : bookWords.entrySet())
+            postingsOf(word.getKey()).add(book.getCatalogSeq(), word.getValue());
+        indexed++;
+    }
+
+    private static void collect(LinkedHashMap<String, Integer> bookWords, String text, int field) {
+        for (String word : tokenize(text))
+            bookWords.merge(word, field, (a, b) -> a | b);
+    }
+
+    private Postings postingsOf(String word) {
+        Postings postings = words.get(word);
+        if (postings == null) {
+            postings = new Postings();
+            words.put(word, postings);
+        }
+        return postings;
+    }
+
+    /**
+     * Re-indexes one field of a Book whose value has changed.
+     *
+     * @param book The book which changed.
+     * @param field The field which changed - TITLE, AUTHOR or PUBLISHER.
+     * @param oldValue The value the field was indexed with.
+     * @param newValue The value to index it with now.
+     */
+    void fieldChanged(Book book, int field, String oldValue, String newValue) {
+        remove(oldValue, field, book.getCatalogSeq());
+        add(newValue, field, book.getCatalogSeq());
+    }
+
+    private void add(String text, int field, int seq) {
+        for (String word : tokenize(text))
+            postingsOf(word).add(seq, field);
+    }
+
+    private void remove(String text, int field, int seq) {
+        for (String word : tokenize(text)) {
+            Postings postings = words.get(word);
+            if (postings != null && postings.remove(seq, field) && postings.current.size == 0)
+                words.remove(word);
+        }
+    }
+
+    /**
+     * Finds the books which best match a query.
+     *
+     * @param query The words to search for. Every word must appear in the book's title, author's name or publisher. The last
+     *      word may be the start of a word, so that searches can be made as the query is typed.
+     * @param limit The most results to return.
+     * @return The matching books, best match first.
+     */
+    ArrayList<Book> search(String query, int limit) { return search(query, limit, null); }
+
+    /**
+     * Finds the books which best match a query, and how well each matched. Scores depend on how common each word is in
+     * this index, so scores from indexes of similar catalogs are close enough to merge their results by.
+     *
+     * @param query The words to search for, as for search(query, limit).
+     * @param limit The most results to return.
+     * @param scores If not <code>null</code>, the score of each result is added to it, in the same order as the results.
+     * @return The matching books, best match first.
+     */
+    ArrayList<Book> search(String query, int limit, ArrayList<Double> scores) {
+        ArrayList<Book> results = new ArrayList<Book>();
+        ArrayList<String> queryWords = tokenize(query);
+        if (queryWords.isEmpty() || limit <= 0)
+            return results;
+
+        // Each word of the query matches one posting list, except the last, which matches every word it is a prefix of
+        Term[] terms = new Term[queryWords.size()];
+        for (int i = 0; i < terms.length; i++) {
+            String word = queryWords.get(i);
+            // Each list is read once, so the search sees it as it was at that moment. A list emptied since it was found is skipped
+            ArrayList<PostingList> matches = new ArrayList<PostingList>(1);
+            if (i < terms.length - 1) {
+                Postings postings = words.get(word);
+                if (postings != null && postings.current.size > 0)
+                    matches.add(postings.current);
+            } else {
+                // The smallest list kept so far is at the head of the queue, to make way for a bigger one
+                PriorityQueue<PostingList> biggest = new PriorityQueue<PostingList>(MAX_EXPANSIONS + 1, (a, b) -> Integer.compare(a.size, b.size));
+                NavigableMap<String, Postings> completions = words.subMap(word, true, word + Character.MAX_VALUE, false);
+                for (Map.Entry<String, Postings> completion : completions.entrySet()) {
+                    PostingList list = completion.getValue().current;
+                    if (list.size == 0)
+                        continue;
+                    if (biggest.size() < MAX_EXPANSIONS) {
+                        biggest.add(list);
+                    } else if (list.size > biggest.peek().size) {
+                        biggest.poll();
+                        biggest.add(list);
+                    }
+                }
+                matches.addAll(biggest);
+            }
+
+            if (matches.isEmpty())
+                return results;
+            terms[i] = new Term(matches, indexed);
+        }
+
+        // Walk the shortest list. Every other word is checked by binary search
+        Arrays.sort(terms, (a, b) -> Long.compare(a.totalSize, b.totalSize));
+        int[] candidates = terms[0].candidates();
+        int numCandidates = terms[0].postings.length == 1 ? terms[0].postings[0].size : candidates.length;
+
+        double bestPossible = 0;
+        for (Term term : terms)
+            bestPossible += term.bestScore;
+
+        // The worst of the best results so far is at the head of the queue
+        PriorityQueue<Hit> best = new PriorityQueue<Hit>(Math.min(limit, 1024) + 1);
+        for (int c = 0; c < numCandidates; c++) {
+            int seq = candidates[c];
+            double score = 0;
+            for (Term term : terms) {
+                double termScore = term.score(seq);
+                if (termScore == 0) {
+                    score = 0;
+                    break;
+                }
+                score += termScore;
+            }
+            if (score == 0)
+                continue;
+
+            best.add(new Hit(seq, score));
+            if (best.size() > limit)
+                best.poll();
+
+            // Candidates come in the order they were added, so once every result has the best possible score, nothing later can beat them
+            if (best.size() == limit && best.peek().score >= bestPossible)
+                break;
+        }
+
+        while (!best.isEmpty()) {
+            Hit hit = best.poll();
+            results.add(books.apply(hit.seq));
+            if (scores != null)
+                scores.add(hit.score);
+        }
+        Collections.reverse(results);
+        if (scores != null)
+            Collections.reverse(scores);
+        return results;
+    }
+
+    // One word of a query, and the posting lists it matches
+    private static class Term {
+        private final PostingList[] postings;
+        private final double[] idf;
+        private final long totalSize;
+        private final double bestScore;
+
+        Term(ArrayList<PostingList> matches, int indexed) {
+            this.postings = matches.toArray(new PostingList[matches.size()]);
+            this.idf = new double[postings.length];
+
+            long totalSize = 0;
+            double bestScore = 0;
+            for (int i = 0; i < postings.length; i++) {
+                totalSize += postings[i].size;
+                idf[i] = Math.log(1 + (double) indexed / postings[i].size);
+                bestScore = Math.max(bestScore, weight(postings[i].fieldsUsed()) * idf[i]);
+            }
+            this.totalSize = totalSize;
+            this.bestScore = bestScore;
+        }
+
+        // The books matching any of this term's lists, in order and without repeats. A single list is returned as it is,
+        // without copying, so only its first <code>size</code> entries are books
+        int[] candidates() {
+            if (postings.length == 1)
+                return postings[0].books;
+
+            int[] all = new int[(int) totalSize];
+            int n = 0;
+            for (PostingList p : postings) {
+                System.arraycopy(p.books, 0, all, n, p.size);
+                n += p.size;
+            }
+            Arrays.sort(all);
+
+            int distinct = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (i == 0 || all[i] != all[i - 1])
+                    all[distinct++] = all[i];
+            }
+            return Arrays.copyOf(all, distinct);
+        }
+
+        // How well a book matches this term - zero if it doesn't
+        double score(int seq) {
+            double score = 0;
+            for (int i = 0; i < postings.length; i++) {
+                int fields = postings[i].fieldsOf(seq);
+                if (fields != 0)
+                    score = Math.max(score, weight(fields) * idf[i]);
+            }
+            return score;
+        }
+    }
+
+    // A match counts for the most important field it was found in
+    private static double weight(int fields) {
+        if ((fields & TITLE) != 0)
+            return TITLE_WEIGHT;
+        if ((fields & AUTHOR) != 0)
+            return AUTHOR_WEIGHT;
+        return (fields & PUBLISHER) != 0 ? PUBLISHER_WEIGHT : 0;
+    }
+
+    // A book in the results. Worse hits sort first: lower scores, then books added later
+    private static class Hit implements Comparable<Hit> {
+        private final int seq;
+        private final double score;
+
+        Hit(int seq, double score) {
+            this.seq = seq;
+            this.score = score;
+        }
+
+        public int compareTo(Hit other) {
+            if (score != other.score)
+                return Double.compare(score, other.score);
+            return Integer.compare(other.seq, seq);
+        }
+    }
+
+    // The books containing one word, in order of their position in the Library, and the fields of each which contain it.
+    // Kept as parallel arrays rather than objects, as a large catalog has tens of millions of postings. Never changed once
+    // published, except past its size, which only the newest list sharing its arrays can reach
+    private static class PostingList {
+        private static final PostingList EMPTY = new PostingList(new int[2], new byte[2], 0, 0, 0, 0);
+
+        private final int[] books;
+        private final byte[] fields;
+        private final int size;
+        // How many books contain the word in each field, so a search knows the best score the word can give
+        private final int titles, authors, publishers;
+
+        private PostingList(int[] books, byte[] fields, int size, int titles, int authors, int publishers) {
+            this.books = books;
+            this.fields = fields;
+            this.size = size;
+            this.titles = titles;
+            this.authors = authors;
+            this.publishers = publishers;
+        }
+
+        int fieldsUsed() { return (titles > 0 ? TITLE : 0) | (authors > 0 ? AUTHOR : 0) | (publishers > 0 ? PUBLISHER : 0); }
+
+        int fieldsOf(int seq) {
+            int pos = Arrays.binarySearch(books, 0, size, seq);
+            return pos < 0 ? 0 : fields[pos];
+        }
+
+        // The same books, with one whose fields have changed, counting the fields added (delta 1) or taken away (-1)
+        private PostingList with(int[] books, byte[] fields, int size, int changedFields, int delta) {
+            return new PostingList(books, fields, size,
+                    titles + ((changedFields & TITLE) != 0 ? delta : 0),
+                    authors + ((changedFields & AUTHOR) != 0 ? delta : 0),
+                    publishers + ((changedFields & PUBLISHER) != 0 ? delta : 0));
+        }
+    }
+
+    // One word's posting list, replaced whole with each change by the thread indexing books
+    private static class Postings {
+        private volatile PostingList current = PostingList.EMPTY;
+
+        // Adds fields to a book's entry, which may be a bit of each of TITLE, AUTHOR and PUBLISHER
+        void add(int seq, int field) {
+            PostingList list = current;
+            int size = list.size;
+            // Books are nearly always indexed in order, so this is usually an append
+            int pos = size > 0 && list.books[size - 1] < seq ? -(size + 1) : Arrays.binarySearch(list.books, 0, size, seq);
+            if (pos >= 0) {
+                int added = field & ~list.fields[pos];
+                if (added == 0)
+                    return;
+                byte[] fields = list.fields.clone();
+                fields[pos] |= added;
+                current = list.with(list.books, fields, size, added, 1);
+                return;
+            }
+
+            pos = -(pos + 1);
+            int[] books = list.books;
+            byte[] fields = list.fields;
+            if (pos < size || size == books.length || list == PostingList.EMPTY) {
+                // Anything but an append into spare room copies, so the arrays of the published list don't change
+                int capacity = size == books.length ? size * 2 : books.length;
+                books = new int[capacity];
+                fields = new byte[capacity];
+                System.arraycopy(list.books, 0, books, 0, pos);
+                System.arraycopy(list.fields, 0, fields, 0, pos);
+                System.arraycopy(list.books, pos, books, pos + 1, size - pos);
+                System.arraycopy(list.fields, pos, fields, pos + 1, size - pos);
+            }
+            books[pos] = seq;
+            fields[pos] = (byte) field;
+            current = list.with(books, fields, size + 1, field, 1);
+        }
+
+        // Returns true if the book had the word in that field
+        boolean remove(int seq, int field) {
+            PostingList list = current;
+            int pos = Arrays.binarySearch(list.books, 0, list.size, seq);
+            if (pos < 0 || (list.fields[pos] & field) == 0)
+                return false;
+
+            int[] books = list.books.clone();
+            byte[] fields = list.fields.clone();
+            int size = list.size;
+            fields[pos] &= ~field;
+            if (fields[pos] == 0) {
+                System.arraycopy(books, pos + 1, books, pos, size - pos - 1);
+                System.arraycopy(fields, pos + 1, fields, pos, size - pos - 1);
+                size--;
+            }
+            current = list.with(books, fields, size, field, -1);
+            return true;
+        }
+    }
+}
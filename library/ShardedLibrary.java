@@ -0,0 +1,263 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * A catalog split across several branches, each its own Library, with a coordinator which asks them all at once.
+ * <p>
+ * Books are placed either by a hash of their ISBN, which spreads a large catalog evenly and sends every lookup by ISBN to
+ * a single branch, or by the branch named when they are added, as the buildings of a library system would hold them. The
+ * coordinator sends a search to every branch at the same time, and merges their answers as they come back. With books
+ * placed by branch, a copy can be moved from one branch to another.
+ * <p>
+ * The coordinator reaches its branches only through LibraryShard, and gets back BookRecords rather than Books, so the
+ * branches can be LocalShards in one JVM or anything else which implements the interface.
+ */
+public class ShardedLibrary {
+    /**
+     * How books are placed among the branches.
+     */
+    public enum Partitioning {
+        /**
+         * Each book is placed on the branch its ISBN hashes to, whatever branch is named when it is added.
+         */
+        ISBN_HASH,
+        /**
+         * Each book is placed on the branch named when it is added, and a book may be held by several branches.
+         */
+        BRANCH;
+    }
+
+    /**
+     * How long the coordinator waits for every branch to answer, unless told otherwise.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final Partitioning partitioning;
+    // The branches in the order they were given, which is the order their answers are merged in when scores are equal
+    private final List<LibraryShard> shards;
+    private final HashMap<String, LibraryShard> shardsByName;
+    private volatile long timeoutMillis;
+
+    /**
+     * Class constructor.
+     *
+     * @param partitioning How books are placed among the branches.
+     * @param shards The branches. With ISBN_HASH, books are placed by their position in this list, so the same branches
+     *      must always be given in the same order.
+     */
+    public ShardedLibrary(Partitioning partitioning, List<? extends LibraryShard> shards) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("A ShardedLibrary needs at least one branch");
+
+        this.partitioning = partitioning;
+        this.shards = Collections.unmodifiableList(new ArrayList<LibraryShard>(shards));
+        this.shardsByName = new HashMap<String, LibraryShard>();
+        for (LibraryShard shard : shards) {
+            if (shardsByName.put(shard.getName(), shard) != null)
+                throw new IllegalArgumentException("There is more than one branch named " + shard.getName());
+        }
+        this.timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @return How books are placed among the branches.
+     */
+    public Partitioning getPartitioning() { return partitioning; }
+    /**
+     * @return The branches, in the order they were given. The list can't be changed.
+     */
+    public List<LibraryShard> getShards() { return shards; }
+    /**
+     * Sets how long to wait for every branch to answer, after which a call fails.
+     *
+     * @param timeoutMillis The longest wait, in milliseconds.
+     */
+    public void setTimeout(long timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+    /**
+     * Finds a branch by its name.
+     *
+     * @param name The name of the branch.
+     * @return The matching branch. Will be <code>null</code> if there is no branch with that name.
+     */
+    public LibraryShard findShard(String name) { return shardsByName.get(name); }
+
+    /**
+     * Finds the branch a book is placed on when books are placed by ISBN.
+     *
+     * @param isbn The ISBN of the book.
+     * @return The branch the ISBN hashes to.
+     */
+    public LibraryShard shardFor(String isbn) {
+        // Strings which differ only near the end hash close together, so the hash is spread before it is reduced
+        int hash = isbn.hashCode() * 0x9E3779B9;
+        return shards.get(Math.floorMod(hash ^ (hash >>> 16), shards.size()));
+    }
+
+    /**
+     * Adds copies of a book to the branch it belongs on, adding the book and its author there if they are new.
+     *
+     * @param book The book. With BRANCH partitioning, its branch names where it goes.
+     * @param copies The number of copies to add.
+     * @return The branch's record of the book once the copies are added.
+     */
+    public BookRecord addCopies(BookRecord book, int copies) {
+        LibraryShard shard = partitioning == Partitioning.ISBN_HASH ? shardFor(book.getISBN()) : branch(book.getBranch());
+        return await(shard, shard.addCopies(book, copies), deadline());
+    }
+
+    /**
+     * Finds a book by its ISBN. With ISBN_HASH, only the branch it hashes to is asked.
+     *
+     * @param isbn The ISBN of the book.
+     * @return A record of the book from each branch which has it, in the order the branches were given. Will be empty
+     *      if no branch has it.
+     */
+    public ArrayList<BookRecord> findBookByISBN(String isbn) {
+        ArrayList<BookRecord> found = new ArrayList<BookRecord>();
+        if (partitioning == Partitioning.ISBN_HASH) {
+            LibraryShard shard = shardFor(isbn);
+            BookRecord book = await(shard, shard.findBookByISBN(isbn), deadline());
+            if (book != null)
+                found.add(book);
+        } else {
+            for (BookRecord book : gather(shard -> shard.findBookByISBN(isbn))) {
+                if (book != null)
+                    found.add(book);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Searches every branch, at the same time, for the Books by an author.
+     *
+     * @param authorName The name of the book's author.
+     * @return A record of each matching book at each branch, grouped by branch in the order the branches were given.
+     */
+    public ArrayList<BookRecord> findBooksByAuthor(String authorName) {
+        ArrayList<BookRecord> found = new ArrayList<BookRecord>();
+        for (ArrayList<BookRecord> books : gather(shard -> shard.findBooksByAuthor(authorName)))
+            found.addAll(books);
+        return found;
+    }
+
+    /**
+     * Searches every branch, at the same time, as Library.searchBooks does, and merges their best matches.
+     * Each branch ranks its books against its own catalog, so the merged ranking is close to, but not always the same
+     * as, the ranking one Library holding every book would give. A book held by several branches is listed for each.
+     *
+     * @param query The words to search for.
+     * @param limit The most records to return.
+     * @return The matching books, best match first. Books which match equally well are listed in the order their branches were given.
+     */
+    public ArrayList<BookRecord> searchBooks(String query, int limit) {
+        // Any book in the overall best could be the best at its branch, so each branch is asked for as many as are wanted
+        ArrayList<BookRecord> merged = new ArrayList<BookRecord>();
+        for (ArrayList<BookRecord> books : gather(shard -> shard.searchBooks(query, limit)))
+            merged.addAll(books);
+
+        // The sort is stable, so equal scores keep branch order, and each branch's own order
+        merged.sort(Comparator.comparingDouble(BookRecord::getScore).reversed());
+        return merged.size() > limit ? new ArrayList<BookRecord>(merged.subList(0, limit)) : merged;
+    }
+
+    /**
+     * Moves an AVAILABLE copy of a book from one branch to another. If the receiving branch doesn't have the book yet,
+     * it is added there. If patrons at the receiving branch are waiting for the book, the copy is lent to the first of them.
+     * <p>
+     * The copy is taken out of the first branch before it is put into the second, so it is never in both. If the second
+     * branch answers that it failed, the copy is put back in the first. If it doesn't answer in time, it may still add
+     * the copy later, so the copy is not put back - the transfer is left unresolved, and the receiving branch should be
+     * checked before the copy is sent anywhere again.
+     *
+     * @param isbn The ISBN of the book.
+     * @param fromBranch The name of the branch sending the copy.
+     * @param toBranch The name of the branch receiving it.
+     * @return The receiving branch's record of the book. Will be <code>null</code> if the sending branch had no AVAILABLE copy.
+     * @throws IllegalStateException If either branch failed or didn't answer in time. The message says whether the copy
+     *      was put back, or the transfer is unresolved.
+     */
+    public BookRecord transferCopy(String isbn, String fromBranch, String toBranch) {
+        if (partitioning != Partitioning.BRANCH)
+            throw new IllegalStateException("Copies can only be moved between branches when books are placed by branch");
+
+        LibraryShard from = branch(fromBranch);
+        LibraryShard to = branch(toBranch);
+        if (from == to)
+            throw new IllegalArgumentException("A copy can't be moved from " + fromBranch + " to itself");
+
+        BookRecord released = await(from, from.releaseCopy(isbn), deadline());
+        if (released == null)
+            return null;
+
+        CompletableFuture<BookRecord> received = to.addCopies(released, 1);
+        try {
+            return received.get(Math.max(0, deadline() - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            // The receiving branch answered that it failed, so the copy never got there, and goes back where it came from
+            await(from, from.addCopies(released, 1), deadline());
+            throw new IllegalStateException("Branch " + toBranch + " failed, and the copy of " + isbn + " was put back in "
+                    + fromBranch + ": " + e.getCause(), e.getCause());
+        } catch (TimeoutException e) {
+            // Cancelling wouldn't stop a branch already adding the copy, so it may yet arrive, and putting it back could
+            // leave it in both branches
+            throw new IllegalStateException("Branch " + toBranch + " did not answer in time. The copy of " + isbn
+                    + " taken from " + fromBranch + " may still reach it, so it was not put back", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for branch " + toBranch + ". The copy of " + isbn
+                    + " taken from " + fromBranch + " may still reach it, so it was not put back", e);
+        }
+    }
+
+    // Finds a branch which must exist
+    private LibraryShard branch(String name) {
+        LibraryShard shard = name == null ? null : shardsByName.get(name);
+        if (shard == null)
+            throw new IllegalArgumentException("There is no branch named " + name);
+        return shard;
+    }
+
+    // Asks every branch at once, then collects their answers, in the order the branches were given
+    private <T> ArrayList<T> gather(Function<LibraryShard, CompletableFuture<T>> call) {
+        ArrayList<CompletableFuture<T>> answers = new ArrayList<CompletableFuture<T>>(shards.size());
+        for (LibraryShard shard : shards)
+            answers.add(call.apply(shard));
+
+        long deadline = deadline();
+        ArrayList<T> results = new ArrayList<T>(shards.size());
+        for (int i = 0; i < shards.size(); i++)
+            results.add(await(shards.get(i), answers.get(i), deadline));
+        return results;
+    }
+
+    private long deadline() { return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis); }
+
+    // Waits for a branch's answer, turning its failure into an unchecked exception naming the branch
+    private static <T> T await(LibraryShard shard, CompletableFuture<T> answer, long deadline) {
+        try {
+            return answer.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Branch " + shard.getName() + " failed: " + e.getCause(), e.getCause());
+        } catch (TimeoutException e) {
+            answer.cancel(false);
+            throw new IllegalStateException("Branch " + shard.getName() + " did not answer in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for branch " + shard.getName(), e);
+        }
+    }
+
+    public String toString() { return "ShardedLibrary[" + partitioning + ", " + shards.size() + " branches]"; }
+}
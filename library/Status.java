@@ -1,7 +1,7 @@
 package library;
 
 /**
- * A simple enumeration of all possible statuses of a book. Note that due dates are not implemented.
+ * A simple enumeration of all possible statuses of a book.
  */
 public enum Status {
     /**
@@ -13,7 +13,8 @@ public enum Status {
      */
     CHECKED_OUT,
     /**
-     * A book which is overdue. Due dates are not implemented, so this is unused.
+     * A book which is overdue - it is still checked out, but its due date has passed. The Library's <code>sweepOverdue</code>
+     * moves checked out books here.
      */
     OVERDUE;
 }
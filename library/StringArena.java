@@ -0,0 +1,88 @@
+package library;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Strings kept outside the Java heap, in large direct buffers.
+ * <p>
+ * Each string is written once, as its UTF-8 bytes after an int length, and is found again by a <code>long</code>
+ * reference - the index of its buffer in the high half and its offset in the low half. The garbage collector sees a
+ * handful of buffers however many strings there are, rather than two objects per string. Strings are decoded back
+ * onto the heap each time they are read, where they only live as long as the caller needs them.
+ * <p>
+ * The arena only grows: a string which is replaced keeps its space until the arena itself is dropped.
+ */
+class StringArena {
+    /**
+     * The reference which stands for a <code>null</code> string.
+     */
+    static final long NULL = -1;
+
+    private static final int CHUNK_SIZE = 16 << 20;
+
+    // Published whole each time a buffer is added, so readers never need the lock
+    private volatile ByteBuffer[] chunks;
+    // The buffer strings are currently written to - the last of the chunks
+    private ByteBuffer current;
+    private long bytesUsed;
+
+    /**
+     * Class constructor. The arena starts out empty, and allocates its first buffer when a string is added.
+     */
+    StringArena() {
+        this.chunks = new ByteBuffer[0];
+    }
+
+    /**
+     * Writes a string into the arena.
+     *
+     * @param s The string to write.
+     * @return The reference to read it back with, or <code>NULL</code> if the string was <code>null</code>.
+     */
+    synchronized long add(String s) {
+        if (s == null)
+            return NULL;
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int needed = Integer.BYTES + bytes.length;
+        if (current == null || current.remaining() < needed) {
+            // A string too big for a normal buffer gets one of its own
+            current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, needed));
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[grown.length - 1] = current;
+            chunks = grown;
+        }
+
+        int offset = current.position();
+        current.putInt(bytes.length).put(bytes);
+        bytesUsed += needed;
+        return (long) (chunks.length - 1) << 32 | offset;
+    }
+
+    /**
+     * Reads a string back from the arena, without the lock. The reference must have been passed from the thread which
+     * added the string in a way which orders the string's bytes before it - a releasing write and acquiring read, as
+     * OffHeapCatalog's records use, or a lock.
+     *
+     * @param ref The reference returned when the string was added.
+     * @return The string.
+     */
+    String get(long ref) {
+        if (ref == NULL)
+            return null;
+
+        ByteBuffer chunk = chunks[(int) (ref >>> 32)];
+        int offset = (int) ref;
+        byte[] bytes = new byte[chunk.getInt(offset)];
+        // Absolute reads leave the buffer's position alone, so they are safe alongside writes
+        chunk.get(offset + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The number of bytes written to the arena, including strings which have since been replaced.
+     */
+    synchronized long getBytesUsed() { return bytesUsed; }
+}
@@ -0,0 +1,140 @@
+package library;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A canonicalising dictionary of strings, which gives each distinct string an int id and keeps a single copy of it.
+ * <p>
+ * Each Library has its own, for the few fields whose values repeat across thousands of rows: publishers and author
+ * names. Books keep the dictionary's copy of their publisher, and Authors their name along with its id, so each distinct
+ * publisher or name is held once however many rows share it. Fields which are mostly unique, like titles or patrons'
+ * names and addresses, would only make the dictionary grow, and are kept as they are.
+ * <p>
+ * Each string also has a key: the id of the first string added which is <code>equalsIgnoreCase</code> to it. Two strings
+ * are equal ignoring case exactly when their keys are the same, so the find methods match names by comparing two ints
+ * rather than the strings' characters.
+ * <p>
+ * Looking up a string already in the dictionary, or reading one back by its id, takes no lock. Entries are never
+ * removed, so a string replaced everywhere it was used keeps its id until its Library, and the dictionary with it, are
+ * no longer used.
+ */
+final class StringDictionary {
+    /**
+     * The id which stands for a <code>null</code> string, and the key of a string which isn't in the dictionary.
+     */
+    static final int NO_ID = -1;
+
+    // Strings and keys are kept in fixed-size chunks, so the dictionary grows without copying what it already holds
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // The id of each string. An id is only put here once its string and key are in place, so a thread which finds the
+    // id can always read them back
+    private final ConcurrentHashMap<String, Integer> ids;
+    // The key of each distinct folded string
+    private final ConcurrentHashMap<String, Integer> keysByFolded;
+    // Published whole each time a chunk is added, so readers never need the lock
+    private volatile String[][] strings;
+    private volatile int[][] keys;
+    private int size;
+
+    /**
+     * Class constructor. The dictionary starts out empty.
+     */
+    StringDictionary() {
+        this.ids = new ConcurrentHashMap<String, Integer>();
+        this.keysByFolded = new ConcurrentHashMap<String, Integer>();
+        this.strings = new String[0][];
+        this.keys = new int[0][];
+    }
+
+    /**
+     * Finds a string's id, adding the string if it is new.
+     *
+     * @param s The string.
+     * @return The string's id, or <code>NO_ID</code> if it was <code>null</code>.
+     */
+    int intern(String s) {
+        if (s == null)
+            return NO_ID;
+
+        Integer id = ids.get(s);
+        return id != null ? id : add(s);
+    }
+
+    /**
+     * Finds the dictionary's copy of a string, adding the string if it is new.
+     *
+     * @param s The string.
+     * @return The dictionary's copy, which is <code>equals</code> to the string. Will be <code>null</code> if the string was.
+     */
+    String canonical(String s) { return get(intern(s)); }
+
+    /**
+     * Reads a string back by its id.
+     *
+     * @param id The id <code>intern</code> returned.
+     * @return The string. Will be <code>null</code> if the id is <code>NO_ID</code>.
+     */
+    String get(int id) { return id == NO_ID ? null : strings[id >>> CHUNK_BITS][id & CHUNK_MASK]; }
+
+    /**
+     * Finds the key of a string by its id.
+     *
+     * @param id The id <code>intern</code> returned.
+     * @return The key of the string, or <code>NO_ID</code> if the id is.
+     */
+    int keyOf(int id) { return id == NO_ID ? NO_ID : keys[id >>> CHUNK_BITS][id & CHUNK_MASK]; }
+
+    /**
+     * Finds the key a string has, or would have, without adding it.
+     *
+     * @param s The string.
+     * @return The key shared by every string in the dictionary which is <code>equalsIgnoreCase</code> to it. Will be
+     *      <code>NO_ID</code> if there are none, or the string is <code>null</code>.
+     */
+    int keyOf(String s) {
+        if (s == null)
+            return NO_ID;
+
+        // Most lookups are for a string exactly as it was added, which needs no folding
+        Integer id = ids.get(s);
+        if (id != null)
+            return keyOf(id);
+        Integer key = keysByFolded.get(CatalogIndex.fold(s));
+        return key == null ? NO_ID : key;
+    }
+
+    /**
+     * @return The number of distinct strings in the dictionary.
+     */
+    synchronized int size() { return size; }
+
+    private synchronized int add(String s) {
+        Integer id = ids.get(s);
+        if (id != null)
+            return id;
+
+        int newId = size;
+        if ((newId & CHUNK_MASK) == 0) {
+            String[][] grownStrings = Arrays.copyOf(strings, strings.length + 1);
+            grownStrings[grownStrings.length - 1] = new String[CHUNK_SIZE];
+            int[][] grownKeys = Arrays.copyOf(keys, keys.length + 1);
+            grownKeys[grownKeys.length - 1] = new int[CHUNK_SIZE];
+            strings = grownStrings;
+            keys = grownKeys;
+        }
+
+        id = newId;
+        Integer key = keysByFolded.putIfAbsent(CatalogIndex.fold(s), id);
+        strings[newId >>> CHUNK_BITS][newId & CHUNK_MASK] = s;
+        keys[newId >>> CHUNK_BITS][newId & CHUNK_MASK] = key == null ? newId : key;
+        size++;
+        ids.put(s, id);
+        return newId;
+    }
+
+    public String toString() { return "StringDictionary[" + size() + " strings]"; }
+}
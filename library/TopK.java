@@ -0,0 +1,122 @@
+package library;
+
+/**
+ * Picks the k highest-counted items from any number offered, keeping only k at a time.
+ * <p>
+ * Items are ints, such as positions in a Library, each with a long count, and are kept in a min-heap of parallel arrays,
+ * so nothing is boxed. The worst of the best so far sits at the root: an item which can't beat it is turned away with one
+ * comparison, and one which can replaces it in O(log k) steps, so picking from n items takes O(n log k) at worst and
+ * nearly O(n) when most items are turned away. Items with equal counts are ranked by their id, lowest first, so the
+ * result doesn't depend on the order they were offered in.
+ * <p>
+ * A TopK is not thread-safe. Threads working in parallel each fill their own, and merge them when they are done.
+ */
+final class TopK {
+    private final int k;
+    private final long[] counts;
+    private final int[] ids;
+    private int size;
+
+    /**
+     * Class constructor.
+     *
+     * @param k The number of items to keep.
+     */
+    TopK(int k) {
+        this.k = Math.max(k, 0);
+        this.counts = new long[this.k];
+        this.ids = new int[this.k];
+    }
+
+    /**
+     * @return The number of items kept, which is k once at least k have been offered.
+     */
+    int size() { return size; }
+
+    /**
+     * Offers an item, which is kept if it is among the best k so far.
+     *
+     * @param id The item.
+     * @param count The item's count.
+     */
+    void offer(int id, long count) {
+        if (size < k) {
+            counts[size] = count;
+            ids[size] = id;
+            siftUp(size++);
+        } else if (k > 0 && worse(counts[0], ids[0], count, id)) {
+            counts[0] = count;
+            ids[0] = id;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Offers every item kept by another TopK.
+     *
+     * @param other The other TopK.
+     */
+    void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++)
+            offer(other.ids[i], other.counts[i]);
+    }
+
+    /**
+     * Takes the items out, best first. This TopK is left empty.
+     *
+     * @param idsOut Filled with the items, best first. Must hold at least size() items.
+     * @param countsOut Filled with their counts.
+     * @return The number of items.
+     */
+    int drain(int[] idsOut, long[] countsOut) {
+        int n = size;
+        // Taking the root each time gives the items worst first, so they are written from the end
+        for (int i = n - 1; i >= 0; i--) {
+            idsOut[i] = ids[0];
+            countsOut[i] = counts[0];
+            size--;
+            counts[0] = counts[size];
+            ids[0] = ids[size];
+            siftDown(0);
+        }
+        return n;
+    }
+
+    // Whether item a ranks below item b: a lower count, or the same count and a higher id
+    private static boolean worse(long countA, int idA, long countB, int idB) {
+        return countA < countB || (countA == countB && idA > idB);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(counts[i], ids[i], counts[parent], ids[parent]))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && worse(counts[child + 1], ids[child + 1], counts[child], ids[child]))
+                child++;
+            if (!worse(counts[child], ids[child], counts[i], ids[i]))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+    }
+}